@@ -27,7 +27,7 @@ import com.mastfrog.giulius.Dependencies;
 import com.mastfrog.util.Checks;
 import com.mastfrog.util.ConfigurationError;
 import java.lang.reflect.Modifier;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -75,19 +75,46 @@ public class ArrayChain<T, C extends ArrayChain<T, C>> implements Chain<T, C> {
         this.type = type;
     }
 
+    /**
+     * Create a chain over elements which were already validated when they
+     * were added to some other chain, as returned by <code>remnant()</code>.
+     *
+     * @param deps The dependencies
+     * @param type The type
+     * @param elements Instances, classes or providers of the type
+     */
+    protected ArrayChain(Dependencies deps, Class<? super T> type, Object[] elements) {
+        this(deps, type);
+        Collections.addAll(types, elements);
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public Supplier<C> remnantSupplier(Object... scopeContents) {
+        final Object[] rem = remnant();
+        return () -> (C) new ArrayChain<T, C>(deps, type, rem);
+    }
+
+    /**
+     * Get the elements of this chain which have not yet been iterated, with
+     * any types replaced by their Guice providers, so chains created from
+     * them repeatedly - such as one per websocket frame - do not need to
+     * validate and look up the bindings for them each time.
+     *
+     * @return An array of instances and providers
+     */
+    protected final Object[] remnant() {
         assert chainPosition != null : "Called out of sequence";
         int pos = chainPosition.get();
-        final List<Object> rem = new ArrayList<>(types.size() - pos);
-        for (int i = pos; i < types.size(); i++) {
-            rem.add(types.get(i));
+        List<Object> rem = types.subList(pos, types.size());
+        Object[] result = new Object[rem.size()];
+        int ix = 0;
+        for (Object o : rem) {
+            result[ix++] = o instanceof Class<?>
+                    ? deps.getInjector().getProvider((Class<?>) o)
+                    : o;
         }
-        return () -> {
-            List<Object> l = new ArrayList<>(rem);
-            return (C) new ArrayChain<T, C>(deps, type, l);
-        };
+        return result;
     }
 
     @SuppressWarnings("unchecked")
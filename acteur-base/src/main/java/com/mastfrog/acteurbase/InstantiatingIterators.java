@@ -31,11 +31,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.inject.Inject;
+import javax.inject.Provider;
 
 /**
  * Creates a typed iterator over a List&lt;Object&gt; which may contain either
  * objects of the given type, or class objects of subtypes of the type, in which
- * case they should be instantiated using Guice and the instance returned.
+ * case they should be instantiated using Guice and the instance returned.  It
+ * may also contain providers for such types which were looked up in advance,
+ * which are simply invoked.
  *
  * @author Tim Boudreau
  */
@@ -72,6 +75,8 @@ public final class InstantiatingIterators {
             public T convert(Object t) {
                 if (t instanceof Class<?>) {
                     return type.cast(deps.getInstance((Class<?>) t));
+                } else if (t instanceof Provider<?>) {
+                    return type.cast(((Provider<?>) t).get());
                 } else {
                     return type.cast(t);
                 }
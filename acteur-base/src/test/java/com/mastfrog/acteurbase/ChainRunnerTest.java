@@ -46,6 +46,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 import org.junit.After;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import org.junit.Before;
@@ -195,12 +196,19 @@ public class ChainRunnerTest {
                 Supplier<Chain> supp = chain.remnantSupplier();
                 Chain nue = supp.get();
                 Set<Class<?>> s = new HashSet<>();
+                Set<Object> instances = new HashSet<>();
                 for (Object o : nue) {
                     s.add(o.getClass());
+                    instances.add(o);
                 }
                 assertTrue(s.contains(XA1.class));
                 assertTrue(s.contains(XA2.class));
                 assertEquals(2, s.size());
+                // The supplier is reused, e.g. per websocket frame, and
+                // must instantiate fresh acteurs each time
+                for (Object o : supp.get()) {
+                    assertFalse(instances.contains(o));
+                }
             }
             System.out.println("firstA " + Thread.currentThread());
             setState(new ActeurState<Response, ResponseImpl>("hello"));
@@ -138,7 +138,7 @@ public final class BoundedRange {
     
     public CharSequence toCharSequence() {
         if (start == -1L && end == -1L) {
-            AsciiString.of("bytes */" + of);
+            return AsciiString.of("bytes */" + of);
         }
         return AsciiString.of("bytes " + start + "-" + end + "/" + (of == -1L ? "*" : of));
         
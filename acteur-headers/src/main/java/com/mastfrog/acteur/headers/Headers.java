@@ -88,6 +88,11 @@ public final class Headers {
     public static final HeaderValueType<Locale> CONTENT_LANGUAGE = new LocaleHeader(HttpHeaderNames.CONTENT_LANGUAGE);
     public static final HeaderValueType<CharSequence> ETAG = new ETagHeader(HttpHeaderNames.ETAG);
     public static final HeaderValueType<CharSequence> IF_NONE_MATCH = new ETagHeader(HttpHeaderNames.IF_NONE_MATCH);
+    /**
+     * If-Range may contain either an entity tag or an HTTP date, so it is
+     * left as raw characters (quotes included) for the caller to interpret.
+     */
+    public static final HeaderValueType<CharSequence> IF_RANGE = header(HttpHeaderNames.IF_RANGE);
     public static final HeaderValueType<Duration> AGE = new DurationHeader(HttpHeaderNames.AGE);
     public static final HeaderValueType<Duration> RETRY_AFTER = new DurationHeader(HttpHeaderNames.RETRY_AFTER);
     public static final HeaderValueType<BasicCredentials> AUTHORIZATION = new BasicCredentialsHeader();
@@ -102,6 +107,11 @@ public final class Headers {
     public static final HeaderValueType<Boolean> ACCESS_CONTROL_ALLOW_CREDENTIALS = new BooleanHeader(HttpHeaderNames.ACCESS_CONTROL_ALLOW_CREDENTIALS);
     public static final HeaderValueType<CharSequence> X_REQUESTED_WITH = header(new AsciiString("x-requested-with"));
     public static final HeaderValueType<CharSequence> X_FORWARDED_PROTO = header(new AsciiString("x-forwarded-proto"));
+    /**
+     * The id acteur assigns each request, sent with every response so it can
+     * be matched with log records.
+     */
+    public static final HeaderValueType<CharSequence> X_REQ_ID = header(new AsciiString("X-Req-ID"));
     @Deprecated
     @SuppressWarnings("deprecation")
     public static final HeaderValueType<io.netty.handler.codec.http.Cookie> SET_COOKIE = new SetCookieHeader();
@@ -163,6 +173,36 @@ public final class Headers {
         return val;
     }
 
+    /**
+     * Weak comparison of an If-None-Match header, which may list several
+     * (possibly weak) etags or be <code>*</code>, against an etag, as the
+     * spec says to use for If-None-Match.
+     *
+     * @param ifNoneMatch The raw header value
+     * @param etag An etag, quoted or not
+     * @return true if the header matches the etag
+     */
+    public static boolean etagMatches(CharSequence ifNoneMatch, CharSequence etag) {
+        String target = opaqueEtag(etag.toString());
+        for (String candidate : ifNoneMatch.toString().split(",")) {
+            candidate = candidate.trim();
+            if ("*".equals(candidate) || target.equals(opaqueEtag(candidate))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueEtag(String etag) {
+        if (etag.startsWith("W/")) {
+            etag = etag.substring(2);
+        }
+        if (etag.length() > 1 && etag.charAt(0) == '"' && etag.charAt(etag.length() - 1) == '"') {
+            etag = etag.substring(1, etag.length() - 1);
+        }
+        return etag;
+    }
+
     public static final DateTimeFormatter ISO2822DateFormat
             = new DateTimeFormatterBuilder()
                     .appendText(ChronoField.DAY_OF_WEEK, TextStyle.SHORT_STANDALONE).appendLiteral(", ")
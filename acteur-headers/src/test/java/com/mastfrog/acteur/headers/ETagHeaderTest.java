@@ -24,6 +24,8 @@
 package com.mastfrog.acteur.headers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 /**
@@ -42,4 +44,13 @@ public class ETagHeaderTest {
         assertEquals(unquoted, Headers.ETAG.toValue(quoted).toString());
     }
 
+    @Test
+    public void testEtagMatching() {
+        assertTrue(Headers.etagMatches("\"abc\"", "abc"));
+        assertTrue(Headers.etagMatches("W/\"abc\"", "\"abc\""));
+        assertTrue(Headers.etagMatches("\"x\", \"abc\"", "abc"));
+        assertTrue(Headers.etagMatches("*", "abc"));
+        assertFalse(Headers.etagMatches("\"abcd\"", "abc"));
+        assertFalse(Headers.etagMatches("\"xabcx\"", "abc"));
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Maps static resource names to fingerprinted names which contain a hash of
+ * the resource's content, such as <code>js/app.3f9a0c21b7de.js</code> for
+ * <code>js/app.js</code>. ResourcesPage serves fingerprinted names with
+ * <code>Cache-Control: public, immutable, max-age=31536000</code>, since any
+ * change to the content produces a different name, so browsers need never
+ * revalidate them. Use {@link #fingerprintedName(String)} from templates to
+ * generate links.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class AssetFingerprints {
+
+    /**
+     * Settings key which, if false, disables serving fingerprinted names in
+     * ResourcesPage. The default is true.
+     */
+    public static final String SETTINGS_KEY_FINGERPRINTS_ENABLED = "static.resources.fingerprints";
+    static final int FINGERPRINT_LENGTH = 12;
+    private final StaticResources resources;
+
+    @Inject
+    public AssetFingerprints(StaticResources resources) {
+        this.resources = resources;
+    }
+
+    /**
+     * Get the fingerprinted form of a resource name, for use in links.
+     *
+     * @param name A resource name, as passed to StaticResources.get()
+     * @return The fingerprinted name, or the passed name if there is no such
+     * resource or it does not support fingerprints
+     */
+    public String fingerprintedName(String name) {
+        Resource resource = resources.get(name);
+        String fp = resource == null ? null : fingerprint(resource);
+        if (fp == null) {
+            return name;
+        }
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        if (dot <= slash + 1) {
+            return name + '.' + fp;
+        }
+        return name.substring(0, dot) + '.' + fp + name.substring(dot);
+    }
+
+    /**
+     * Get the fingerprint for a resource.
+     *
+     * @param resource The resource
+     * @return A fingerprint or null
+     */
+    static String fingerprint(Resource resource) {
+        String source = resource.fingerprint();
+        if (source == null) {
+            return null;
+        }
+        return Hashing.murmur3_128().hashString(source, UTF_8).toString().substring(0, FINGERPRINT_LENGTH);
+    }
+
+    /**
+     * If the passed path looks like a fingerprinted name, split it into the
+     * resource name and the fingerprint.
+     *
+     * @param path A path
+     * @return An array of the name and fingerprint, or null
+     */
+    static String[] split(String path) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if (dot <= slash + 1) {
+            return null;
+        }
+        int prev = path.lastIndexOf('.', dot - 1);
+        if (prev > slash + 1 && isFingerprint(path, prev + 1, dot)) {
+            return new String[]{path.substring(0, prev) + path.substring(dot), path.substring(prev + 1, dot)};
+        }
+        if (isFingerprint(path, dot + 1, path.length())) {
+            return new String[]{path.substring(0, dot), path.substring(dot + 1)};
+        }
+        return null;
+    }
+
+    private static boolean isFingerprint(String s, int start, int end) {
+        if (end - start != FINGERPRINT_LENGTH) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
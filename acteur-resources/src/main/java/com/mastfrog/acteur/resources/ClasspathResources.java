@@ -24,13 +24,21 @@
 package com.mastfrog.acteur.resources;
 
 import com.google.common.net.MediaType;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.google.inject.Singleton;
+import com.mastfrog.acteur.Application;
 import com.mastfrog.acteur.Event;
+import com.mastfrog.acteur.FastPathResponder;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Response;
 import com.mastfrog.acteur.ResponseWriter;
 import com.mastfrog.acteur.headers.HeaderValueType;
+import com.mastfrog.acteur.headers.Method;
+import com.mastfrog.acteur.io.PreEncodedHttpResponse;
 import com.mastfrog.acteur.util.CacheControlTypes;
 import com.mastfrog.acteur.headers.Headers;
 import static com.mastfrog.acteur.headers.Headers.ACCEPT_ENCODING;
@@ -41,48 +49,67 @@ import static com.mastfrog.acteur.headers.Headers.LAST_MODIFIED;
 import static com.mastfrog.acteur.headers.Headers.VARY;
 import static com.mastfrog.acteur.resources.DynamicFileResources.INTERNAL_COMPRESS_HEADER;
 import static com.mastfrog.acteur.resources.FileResources.RESOURCES_BASE_PATH;
+import com.mastfrog.acteur.server.ServerModule;
 import com.mastfrog.acteur.util.CacheControl;
+import com.mastfrog.acteur.util.Connection;
+import com.mastfrog.acteur.util.HttpMethod;
+import com.mastfrog.acteur.util.RequestID;
 import com.mastfrog.giulius.DeploymentMode;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.util.Checks;
 import com.mastfrog.util.Exceptions;
 import com.mastfrog.util.Streams;
 import com.mastfrog.util.Strings;
+import com.mastfrog.url.Path;
 import com.mastfrog.util.streams.HashingOutputStream;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.compression.JZlibDecoder;
 import io.netty.handler.codec.compression.ZlibWrapper;
 import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoField;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  *
  * @author Tim Boudreau
  */
 @Singleton
-public final class ClasspathResources implements StaticResources {
+public final class ClasspathResources implements StaticResources, FastPathResponder {
 
     private final MimeTypes types;
     private final Class<?> relativeTo;
@@ -91,28 +118,317 @@ public final class ClasspathResources implements StaticResources {
     private final String[] patterns;
     private final DeploymentMode mode;
     private final ByteBufAllocator allocator;
-    private final boolean internalGzip;
+    private final List<PrecompressionEncoder> encoders;
+    private final LoadingCache<String, Data> lazyData;
+    private final Map<String, Data> pinned = new ConcurrentHashMap<>();
+    private final Pattern baseUrlPattern;
+    @Inject(optional = true)
+    private ExpiresPolicy policy;
+    /**
+     * If true, only the names of resources are indexed at startup, and each
+     * one is loaded, hashed and compressed the first time it is requested,
+     * and held in a cache bounded by
+     * {@link #SETTINGS_KEY_LAZY_CACHE_MAX_BYTES} from which rarely used
+     * resources may be evicted and later reloaded.
+     */
+    public static final String SETTINGS_KEY_LAZY = "classpath.resources.lazy";
+    /**
+     * Maximum bytes (original plus compressed) of resource data to hold in
+     * memory in lazy mode. A resource which by itself is larger than this is
+     * held permanently once loaded, outside the cache, rather than being
+     * reloaded on every request.
+     */
+    public static final String SETTINGS_KEY_LAZY_CACHE_MAX_BYTES = "classpath.resources.lazy.cache.max.bytes";
+    /**
+     * Comma-delimited list of resource names to load in parallel in the
+     * background at startup, in lazy mode.
+     */
+    public static final String SETTINGS_KEY_HOT_SET = "classpath.resources.hot";
+    /**
+     * Comma-delimited list of content-codings to precompress every resource
+     * with when it is loaded, in order of preference where a client accepts
+     * several with the same q-value - e.g. <code>zstd,gzip,deflate</code>.
+     * Encodings which are not available in this JVM (zstd needs zstd-jni) are
+     * skipped. Defaults to <code>gzip</code> if <code>internal.gzip</code> is
+     * true, and none otherwise.
+     */
+    public static final String SETTINGS_KEY_ENCODINGS = "classpath.resources.encodings";
+    private static final long DEFAULT_LAZY_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+    private static final String IDENTITY = "identity";
 
-    @Inject
     public ClasspathResources(MimeTypes types, ClasspathResourceInfo info, DeploymentMode mode, ByteBufAllocator allocator, Settings settings) throws Exception {
+        this(types, info, mode, allocator, settings, null);
+    }
+
+    @Inject
+    public ClasspathResources(MimeTypes types, ClasspathResourceInfo info, DeploymentMode mode, ByteBufAllocator allocator, Settings settings,
+            @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService svc) throws Exception {
         Checks.notNull("allocator", allocator);
         Checks.notNull("types", types);
         Checks.notNull("info", info);
         Checks.notNull("mode", mode);
         this.allocator = allocator;
-        internalGzip = settings.getBoolean("internal.gzip", false);
+        encoders = PrecompressionEncoders.forNames(settings.getString(SETTINGS_KEY_ENCODINGS,
+                settings.getBoolean("internal.gzip", false) ? "gzip" : ""));
         this.types = types;
         this.mode = mode;
         this.relativeTo = info.relativeTo();
         List<String> l = new ArrayList<>();
         String resourcesBasePath = settings.getString(RESOURCES_BASE_PATH, "");
-
+        String baseUrl = settings.getString(ResourcesPage.SETTINGS_KEY_STATIC_RESOURCES_BASE_URL_PATH);
+        baseUrlPattern = baseUrl == null || baseUrl.isEmpty() ? null : Pattern.compile(baseUrl);
+        if (settings.getBoolean(SETTINGS_KEY_LAZY, false)) {
+            long maxBytes = settings.getLong(SETTINGS_KEY_LAZY_CACHE_MAX_BYTES, DEFAULT_LAZY_CACHE_MAX_BYTES);
+            // Guava divides the maximum weight between segments, so with more
+            // than one, anything over a fraction of it would be evicted as soon
+            // as it was loaded
+            lazyData = CacheBuilder.newBuilder()
+                    .concurrencyLevel(1)
+                    .maximumWeight(maxBytes)
+                    .weigher((String k, Data v) -> v.weight())
+                    .recordStats()
+                    .build(new CacheLoader<String, Data>() {
+                        @Override
+                        public Data load(String name) throws Exception {
+                            Data result = loadLazily(name);
+                            if (result.weight() > maxBytes) {
+                                pinned.put(name, result);
+                            }
+                            return result;
+                        }
+                    });
+        } else {
+            lazyData = null;
+        }
         for (String nm : info.names()) {
             this.names.put(nm, new ClasspathResource(nm));
             String pat = Strings.joinPath(resourcesBasePath, nm);
             l.add(pat);
         }
         patterns = l.toArray(new String[l.size()]);
+        if (lazyData != null) {
+            String hot = settings.getString(SETTINGS_KEY_HOT_SET);
+            if (hot != null) {
+                for (String nm : hot.split(",")) {
+                    String name = nm.trim();
+                    if (name.isEmpty() || !names.containsKey(name)) {
+                        continue;
+                    }
+                    if (svc == null) {
+                        lazyData.get(name);
+                    } else {
+                        svc.submit(() -> lazyData.get(name));
+                    }
+                }
+            }
+        }
+    }
+
+    private Data loadLazily(String name) throws IOException {
+        // Use JDK direct buffers, which the garbage collector frees once the
+        // entry is evicted and no response is still writing it
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String hash;
+        try (InputStream in = relativeTo.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new FileNotFoundException(name);
+            }
+            try (HashingOutputStream hashOut = HashingOutputStream.sha1(out)) {
+                Streams.copy(in, hashOut, 8192);
+                hash = hashOut.getHashAsString();
+            }
+        }
+        byte[] bytes = out.toByteArray();
+        Map<String, ByteBuf> variants = new LinkedHashMap<>(encoders.size() * 2);
+        for (Map.Entry<String, byte[]> e : encode(bytes).entrySet()) {
+            variants.put(e.getKey(), directBuffer(e.getValue()));
+        }
+        return newData(name, hash, directBuffer(bytes), variants);
+    }
+
+    private Data newData(String name, String hash, ByteBuf bytes, Map<String, ByteBuf> variants) {
+        // Encode the headers of each possible response once, for
+        // respond() to send without running any acteurs
+        MediaType type = types.get(name);
+        Map<String, ByteBuf> headerBlocks = new HashMap<>(variants.size() * 2 + 2);
+        for (String encoding : variants.keySet()) {
+            headerBlocks.put(encoding, encodeHeaders(hash, type, encoding, variants.get(encoding)));
+        }
+        headerBlocks.put(IDENTITY, encodeHeaders(hash, type, null, bytes));
+        HttpResponse notModified = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+        writeCacheHeaders(hash, notModified);
+        return new Data(hash, bytes, variants, headerBlocks, PreEncodedHttpResponse.encodeHeaders(notModified));
+    }
+
+    private ByteBuf encodeHeaders(String hash, MediaType type, String encoding, ByteBuf body) {
+        HttpResponse resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        writeCacheHeaders(hash, resp);
+        if (type != null) {
+            Headers.write(CONTENT_TYPE, type, resp);
+        }
+        if (encoding != null) {
+            Headers.write(Headers.CONTENT_ENCODING, encoding, resp);
+        }
+        Headers.write(Headers.CONTENT_LENGTH, body.readableBytes(), resp);
+        return PreEncodedHttpResponse.encodeHeaders(resp);
+    }
+
+    private void writeCacheHeaders(String hash, HttpResponse resp) {
+        if (!encoders.isEmpty()) {
+            Headers.write(VARY, new HeaderValueType<?>[]{ACCEPT_ENCODING}, resp);
+        }
+        Headers.write(CACHE_CONTROL, cacheControl(), resp);
+        Headers.write(LAST_MODIFIED, startTime, resp);
+        Headers.write(ETAG, hash, resp);
+    }
+
+    private CacheControl cacheControl() {
+        return productionMode() ? CacheControl.PUBLIC_MUST_REVALIDATE_MAX_AGE_1_DAY
+                : new CacheControl(CacheControlTypes.Private, CacheControlTypes.no_cache, CacheControlTypes.no_store);
+    }
+
+    /**
+     * Answers plain GET and HEAD requests for resources, and If-None-Match
+     * requests for them, with a response whose headers were encoded when the
+     * resource was loaded, plus the Server, Date, X-Req-ID and (if the
+     * ExpiresPolicy calls for it) Expires headers - the same response
+     * ResourcesPage would produce, without running it. Requests with
+     * Range or If-Modified-Since headers, for fingerprinted names, or for
+     * lazily loaded resources which are not currently in memory, are left to
+     * ResourcesPage. To use it, bind FastPathResponder to
+     * ClasspathResources, in an application where no page ahead of
+     * ResourcesPage answers the same URLs.
+     */
+    @Override
+    public HttpResponseStatus respond(RequestID id, HttpEvent evt, Channel channel, Application application) {
+        HttpMethod method = evt.method();
+        if ((method != Method.GET && method != Method.HEAD)
+                || !HttpVersion.HTTP_1_1.equals(evt.request().protocolVersion())
+                || evt.header(HttpHeaderNames.RANGE) != null) {
+            return null;
+        }
+        String ifNoneMatch = evt.header(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch == null && evt.header(HttpHeaderNames.IF_MODIFIED_SINCE) != null) {
+            return null;
+        }
+        String path = evt.path().toString();
+        if (baseUrlPattern != null) {
+            Matcher m = baseUrlPattern.matcher(path);
+            if (!m.matches() || m.groupCount() < 1) {
+                return null;
+            }
+            path = m.group(1);
+        }
+        Resource res = get(path);
+        if (!(res instanceof ClasspathResource)) {
+            return null;
+        }
+        ClasspathResource resource = (ClasspathResource) res;
+        // This runs on the event loop, so never load a lazy resource here -
+        // let the acteur chain do it
+        Data data = resource.loadedData();
+        if (data == null) {
+            return null;
+        }
+        HttpResponseStatus status;
+        ByteBuf head;
+        ByteBuf body = null;
+        if (ifNoneMatch != null && Headers.etagMatches(ifNoneMatch, data.hash)) {
+            status = HttpResponseStatus.NOT_MODIFIED;
+            head = data.notModified;
+        } else {
+            status = HttpResponseStatus.OK;
+            String encoding = encodingFor(evt, data);
+            head = data.headerBlocks.get(encoding == null ? IDENTITY : encoding);
+            if (method != Method.HEAD) {
+                body = data.bytes(encoding);
+            }
+        }
+        boolean close = !evt.requestsConnectionStayOpen();
+        ByteBuf dynamic = channel.alloc().buffer(192);
+        PreEncodedHttpResponse.appendHeader(dynamic, Headers.SERVER, application.getName());
+        PreEncodedHttpResponse.appendHeader(dynamic, Headers.DATE.name(), PreEncodedHttpResponse.httpDate());
+        PreEncodedHttpResponse.appendHeader(dynamic, Headers.X_REQ_ID, id.stringValue());
+        Duration expiresAfter = resource.expiresAfter();
+        if (expiresAfter != null) {
+            PreEncodedHttpResponse.appendHeader(dynamic, Headers.EXPIRES, ZonedDateTime.now().plus(expiresAfter));
+        }
+        if (close) {
+            PreEncodedHttpResponse.appendHeader(dynamic, Headers.CONNECTION, Connection.close);
+        }
+        PreEncodedHttpResponse.endHeaders(dynamic);
+        ByteBuf content = body == null ? Unpooled.wrappedBuffer(head.duplicate(), dynamic)
+                : Unpooled.wrappedBuffer(head.duplicate(), dynamic, body.duplicate());
+        ChannelFuture fut = channel.writeAndFlush(new PreEncodedHttpResponse(content));
+        if (close) {
+            fut.addListener(ChannelFutureListener.CLOSE);
+        }
+        return status;
+    }
+
+    /**
+     * Apply each configured encoder, dropping any result which is no smaller
+     * than the original.
+     */
+    private Map<String, byte[]> encode(byte[] bytes) throws IOException {
+        if (encoders.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, byte[]> result = new LinkedHashMap<>(encoders.size() * 2);
+        for (PrecompressionEncoder enc : encoders) {
+            byte[] encoded = enc.encode(bytes);
+            if (encoded.length < bytes.length) {
+                result.put(enc.name(), encoded);
+            }
+        }
+        return result;
+    }
+
+    private static ByteBuf directBuffer(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes);
+        buf.flip();
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(buf));
+    }
+
+    /**
+     * The bytes, encoded variants, hash and pre-encoded response headers of
+     * one resource.
+     */
+    static final class Data {
+
+        final String hash;
+        final ByteBuf bytes;
+        final Map<String, ByteBuf> variants;
+        final Map<String, ByteBuf> headerBlocks;
+        final ByteBuf notModified;
+
+        Data(String hash, ByteBuf bytes, Map<String, ByteBuf> variants, Map<String, ByteBuf> headerBlocks, ByteBuf notModified) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.variants = variants;
+            this.headerBlocks = headerBlocks;
+            this.notModified = notModified;
+        }
+
+        int weight() {
+            int result = bytes.readableBytes() + notModified.readableBytes();
+            for (ByteBuf buf : variants.values()) {
+                result += buf.readableBytes();
+            }
+            for (ByteBuf buf : headerBlocks.values()) {
+                result += buf.readableBytes();
+            }
+            return result;
+        }
+
+        ByteBuf bytes(String encoding) {
+            return encoding == null ? bytes : variants.get(encoding);
+        }
+    }
+
+    long lazyLoads() {
+        return lazyData == null ? 0 : lazyData.stats().loadCount();
     }
 
     boolean productionMode() {
@@ -136,14 +452,6 @@ public final class ClasspathResources implements StaticResources {
         return patterns;
     }
 
-    static void gzip(ByteBuf in, ByteBuf out) throws IOException {
-        try (GZIPOutputStream outStream = new GZIPOutputStream(new ByteBufOutputStream(out), 9)) {
-            try (ByteBufInputStream inStream = new ByteBufInputStream(in)) {
-                Streams.copy(inStream, outStream, 512);
-            }
-        }
-    }
-
     private static class Y extends JZlibDecoder {
 
         Y() {
@@ -161,15 +469,21 @@ public final class ClasspathResources implements StaticResources {
 
     private class ClasspathResource implements Resource {
 
-        final ByteBuf bytes;
-        final ByteBuf compressed;
-        private final String hash;
+        private final Data data;
         final String name;
-        private final int length;
+        private volatile Optional<Duration> expiresAfter;
 
         ClasspathResource(String name) throws Exception {
             Checks.notNull("name", name);
             this.name = name;
+            if (lazyData != null) {
+                if (relativeTo.getResource(name) == null) {
+                    throw new FileNotFoundException(name);
+                }
+                data = null;
+                return;
+            }
+            String hash;
             ByteBuf bytes = allocator.directBuffer();
             try (InputStream in = relativeTo.getResourceAsStream(name)) {
                 if (in == null) {
@@ -183,23 +497,53 @@ public final class ClasspathResources implements StaticResources {
                 }
             }
             bytes.retain();
-            this.bytes = Unpooled.unreleasableBuffer(bytes);
-            if (internalGzip) {
-                int sizeEstimate = (int) Math.ceil(bytes.readableBytes() * 1.001) + 12;
-                ByteBuf compressed = allocator.directBuffer(sizeEstimate);
-                gzip(bytes, compressed);
-                bytes.resetReaderIndex();
-                this.compressed = Unpooled.unreleasableBuffer(compressed);
-                assert check();
-
-            } else {
-                compressed = null;
+            bytes = Unpooled.unreleasableBuffer(bytes);
+            Map<String, ByteBuf> variants = new LinkedHashMap<>(encoders.size() * 2);
+            for (Map.Entry<String, byte[]> e : encode(ByteBufUtil.getBytes(bytes)).entrySet()) {
+                ByteBuf encoded = allocator.directBuffer(e.getValue().length);
+                encoded.writeBytes(e.getValue());
+                encoded = Unpooled.unreleasableBuffer(encoded);
+                assert !"gzip".equals(e.getKey()) || check(bytes, encoded);
+                variants.put(e.getKey(), encoded);
             }
             bytes.resetReaderIndex();
-            length = bytes.readableBytes();
+            data = newData(name, hash, bytes, variants);
+        }
+
+        private Data data() {
+            if (data != null) {
+                return data;
+            }
+            Data result = pinned.get(name);
+            return result != null ? result : lazyData.getUnchecked(name);
+        }
+
+        /**
+         * Get the data only if it does not need to be loaded.
+         */
+        private Data loadedData() {
+            if (data != null) {
+                return data;
+            }
+            Data result = pinned.get(name);
+            return result != null ? result : lazyData.getIfPresent(name);
+        }
+
+        Duration expiresAfter() {
+            Optional<Duration> result = expiresAfter;
+            if (result == null) {
+                ZonedDateTime expires = null;
+                MediaType type = getContentType();
+                if (policy != null && type != null) {
+                    expires = policy.get(type, Path.parse(name));
+                }
+                expiresAfter = result = expires == null ? Optional.empty()
+                        : Optional.of(Duration.between(ZonedDateTime.now(), expires));
+            }
+            return result.orElse(null);
         }
 
-        private boolean check() throws Exception {
+        private boolean check(ByteBuf bytes, ByteBuf compressed) throws Exception {
             Y y = new Y();
             ByteBuf test = allocator.buffer(bytes.readableBytes());
             try {
@@ -222,50 +566,41 @@ public final class ClasspathResources implements StaticResources {
 
         @Override
         public void decorateResponse(HttpEvent evt, String path, Response response, boolean chunked) {
-            String ua = evt.header("User-Agent");
-            if (ua != null && !ua.contains("MSIE")) {
+            if (!encoders.isEmpty()) {
+                // Caches must key on Accept-Encoding whichever variant this
+                // particular response is
                 response.add(VARY, new HeaderValueType<?>[]{ACCEPT_ENCODING});
             }
-            if (productionMode()) {
-                response.add(CACHE_CONTROL, CacheControl.PUBLIC_MUST_REVALIDATE_MAX_AGE_1_DAY);
-            } else {
-                response.add(CACHE_CONTROL, new CacheControl(CacheControlTypes.Private, CacheControlTypes.no_cache, CacheControlTypes.no_store));
-            }
+            response.add(CACHE_CONTROL, cacheControl());
+            Data data = data();
             response.add(LAST_MODIFIED, startTime)
-                    .add(ETAG, hash);
+                    .add(ETAG, data.hash);
             MediaType type = getContentType();
             if (type != null) {
                 response.add(CONTENT_TYPE, type);
             }
-            if (internalGzip) {
+            if (!encoders.isEmpty()) {
                 // Flag it so the standard compressor ignores us
                 response.add(INTERNAL_COMPRESS_HEADER, "true");
             }
             if (chunked) {
                 response.add(Headers.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
             }
-            if (isGzip(evt)) {
-                response.add(Headers.CONTENT_ENCODING, HttpHeaderValues.GZIP.toString());
-                if (!chunked) {
-                    response.add(Headers.CONTENT_LENGTH, (long) compressed.readableBytes());
-                }
-            } else {
-                if (!chunked) {
-                    response.add(Headers.CONTENT_LENGTH, (long) bytes.readableBytes());
-                }
+            String encoding = encodingFor(evt, data);
+            if (encoding != null) {
+                response.add(Headers.CONTENT_ENCODING, encoding);
+            }
+            if (!chunked) {
+                response.add(Headers.CONTENT_LENGTH, (long) data.bytes(encoding).readableBytes());
             }
             response.chunked(chunked);
         }
 
         @Override
         public void attachBytes(HttpEvent evt, Response response, boolean chunked) {
-            if (isGzip(evt)) {
-                CompressedBytesSender sender = new CompressedBytesSender(compressed, !evt.requestsConnectionStayOpen(), chunked);
-                response.contentWriter(sender);
-            } else {
-                CompressedBytesSender c = new CompressedBytesSender(bytes, !evt.requestsConnectionStayOpen(), chunked);
-                response.contentWriter(c);
-            }
+            Data data = data();
+            ByteBuf bytes = data.bytes(encodingFor(evt, data));
+            response.contentWriter(new CompressedBytesSender(bytes, !evt.requestsConnectionStayOpen(), chunked));
         }
 
         @Override
@@ -273,15 +608,18 @@ public final class ClasspathResources implements StaticResources {
             MediaType mt = types.get(name);
             return mt;
         }
+
+        @Override
+        public String fingerprint() {
+            return data().hash;
+        }
     }
 
-    boolean isGzip(HttpEvent evt) {
-        if (!internalGzip) {
-            return false;
+    String encodingFor(HttpEvent evt, Data data) {
+        if (data.variants.isEmpty()) {
+            return null;
         }
-        CharSequence acceptEncoding = evt.header(Headers.ACCEPT_ENCODING);
-        return acceptEncoding != null && 
-                Strings.charSequenceContains(acceptEncoding, "gzip", true);
+        return PrecompressionEncoders.negotiate(evt.header(Headers.ACCEPT_ENCODING), data.variants.keySet());
     }
 
     static final class BytesSender extends ResponseWriter {
@@ -0,0 +1,383 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.mastfrog.acteur.ResponseWriter;
+import com.mastfrog.acteur.spi.ApplicationControl;
+import com.mastfrog.util.Streams;
+import io.netty.buffer.Unpooled;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of gzipped variants of files served by DynamicFileResources, keyed on
+ * path, inode and modification time. Variants are held in memory (bounded by
+ * total bytes) or, if a cache directory is configured, on disk where they
+ * survive restarts and can be sent with a FileRegion; writing the variant for a
+ * new version of a file deletes the ones for older versions, so the directory
+ * holds at most one per file. Variants are built on a
+ * background thread; until one is available, callers get null and should send
+ * the file uncompressed.
+ *
+ * @author Tim Boudreau
+ */
+final class CompressedVariantCache {
+
+    private static final int FILE_VARIANT_WEIGHT = 128;
+    private final Cache<VariantKey, Variant> variants;
+    private final Set<VariantKey> inProgress = ConcurrentHashMap.newKeySet();
+    private final File cacheDir;
+    private final ExecutorService svc;
+    private final ApplicationControl ctrl;
+    private final boolean useSiblings;
+    private final long maxInMemoryVariant;
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxBytes The maximum bytes of compressed data held in memory
+     * @param cacheDir A directory to write variants to, or null
+     * @param useSiblings If true, use an existing <code>.gz</code> file next
+     * to the original if it is at least as new
+     * @param svc The executor to compress on, or null to compress
+     * synchronously
+     * @param ctrl Used to report errors
+     */
+    CompressedVariantCache(long maxBytes, File cacheDir, boolean useSiblings, ExecutorService svc, ApplicationControl ctrl) {
+        this.cacheDir = cacheDir;
+        this.useSiblings = useSiblings;
+        this.svc = svc;
+        this.ctrl = ctrl;
+        // The weight limit is divided between segments, so don't bother
+        // holding anything that would dominate one
+        this.maxInMemoryVariant = Math.max(0, maxBytes / 8);
+        variants = CacheBuilder.newBuilder()
+                .concurrencyLevel(4)
+                .maximumWeight(Math.max(0, maxBytes))
+                .weigher((VariantKey k, Variant v) -> v.weight())
+                .build();
+    }
+
+    /**
+     * Get the compressed variant of a file if one is available, scheduling
+     * its creation if not.
+     *
+     * @param file The file
+     * @param attrs Its current attributes
+     * @return A variant, or null if the file should be sent uncompressed
+     */
+    Variant variant(File file, BasicFileAttributes attrs) {
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        if (useSiblings) {
+            File sibling = new File(file.getPath() + ".gz");
+            long siblingModified = sibling.lastModified();
+            if (siblingModified != 0 && siblingModified >= lastModified) {
+                return new FileVariant(sibling, sibling.length());
+            }
+        }
+        VariantKey key = new VariantKey(file.getAbsolutePath(), attrs.fileKey(), lastModified, attrs.size());
+        Variant result = variants.getIfPresent(key);
+        if (result == null && cacheDir != null) {
+            File cached = new File(cacheDir, key.fileName());
+            if (cached.isFile()) {
+                result = new FileVariant(cached, cached.length());
+                variants.put(key, result);
+            }
+        }
+        if (result == null) {
+            if (svc == null) {
+                compress(key, file);
+                result = variants.getIfPresent(key);
+            } else if (inProgress.add(key)) {
+                svc.submit(() -> {
+                    try {
+                        compress(key, file);
+                    } finally {
+                        inProgress.remove(key);
+                    }
+                });
+            }
+        }
+        return result == null || result == NoGain.INSTANCE ? null : result;
+    }
+
+    private void compress(VariantKey key, File file) {
+        try {
+            if (cacheDir != null) {
+                compressToDisk(key, file);
+            } else {
+                compressToMemory(key, file);
+            }
+        } catch (IOException ex) {
+            ctrl.internalOnError(ex);
+        }
+    }
+
+    private void compressToMemory(VariantKey key, File file) throws IOException {
+        if (key.size / 2 > maxInMemoryVariant) {
+            // Too large to cache; remember that so we don't try again
+            variants.put(key, NoGain.INSTANCE);
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(64, key.size / 3));
+        gzip(file, bytes);
+        if (bytes.size() >= key.size || bytes.size() > maxInMemoryVariant) {
+            variants.put(key, NoGain.INSTANCE);
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.size());
+        buf.put(bytes.toByteArray());
+        buf.flip();
+        variants.put(key, new BufferVariant(buf.asReadOnlyBuffer()));
+    }
+
+    private void compressToDisk(VariantKey key, File file) throws IOException {
+        if (!cacheDir.exists() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+            throw new IOException("Could not create " + cacheDir);
+        }
+        File target = new File(cacheDir, key.fileName());
+        File temp = File.createTempFile(target.getName(), ".tmp", cacheDir);
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                gzip(file, out);
+            }
+            long length = temp.length();
+            if (length >= key.size) {
+                variants.put(key, NoGain.INSTANCE);
+            } else {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                variants.put(key, new FileVariant(target, length));
+            }
+            deleteStaleVersions(key, target);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private void deleteStaleVersions(VariantKey key, File current) {
+        variants.asMap().keySet().removeIf(k -> k.path.equals(key.path) && !k.equals(key));
+        String prefix = key.filePrefix();
+        File[] stale = cacheDir.listFiles((dir, name) -> name.startsWith(prefix)
+                && name.endsWith(".gz") && !name.equals(current.getName()));
+        if (stale != null) {
+            for (File f : stale) {
+                try {
+                    Files.deleteIfExists(f.toPath());
+                } catch (IOException ex) {
+                    // Possibly still being sent on a platform which does not
+                    // allow deleting open files; the next version gets it
+                }
+            }
+        }
+    }
+
+    private static void gzip(File file, OutputStream out) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            // Since this is done once per file version, spend the cycles
+            // to get the smallest output
+            try (GZIPOutputStream gz = new GZIPOutputStream(out, 8192) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            }) {
+                Streams.copy(in, gz, 8192);
+            }
+        }
+    }
+
+    /**
+     * A compressed representation of a file.
+     */
+    static abstract class Variant {
+
+        /**
+         * The number of compressed bytes.
+         *
+         * @return The length
+         */
+        abstract long length();
+
+        abstract void write(ResponseWriter.Output out) throws IOException;
+
+        abstract int weight();
+    }
+
+    static final class FileVariant extends Variant {
+
+        private final File file;
+        private final long length;
+
+        FileVariant(File file, long length) {
+            this.file = file;
+            this.length = length;
+        }
+
+        File file() {
+            return file;
+        }
+
+        @Override
+        long length() {
+            return length;
+        }
+
+        @Override
+        void write(ResponseWriter.Output out) throws IOException {
+            out.write(file, 0, length);
+        }
+
+        @Override
+        int weight() {
+            return FILE_VARIANT_WEIGHT;
+        }
+
+        @Override
+        public String toString() {
+            return file + " (" + length + ")";
+        }
+    }
+
+    static final class BufferVariant extends Variant {
+
+        // A JDK direct buffer, so it is freed by the garbage collector once
+        // evicted, and it is safe to wrap in ByteBufs nobody needs to release
+        private final ByteBuffer bytes;
+
+        BufferVariant(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        long length() {
+            return bytes.remaining();
+        }
+
+        @Override
+        void write(ResponseWriter.Output out) throws IOException {
+            out.write(Unpooled.wrappedBuffer(bytes.duplicate()));
+        }
+
+        @Override
+        int weight() {
+            return bytes.remaining();
+        }
+    }
+
+    /**
+     * Marker for files which do not get smaller when compressed, or which are
+     * too large to keep in memory.
+     */
+    static final class NoGain extends Variant {
+
+        static final NoGain INSTANCE = new NoGain();
+
+        @Override
+        long length() {
+            return 0;
+        }
+
+        @Override
+        void write(ResponseWriter.Output out) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        int weight() {
+            return 1;
+        }
+    }
+
+    static final class VariantKey {
+
+        private final String path;
+        private final Object fileKey;
+        final long lastModified;
+        final long size;
+
+        VariantKey(String path, Object fileKey, long lastModified, long size) {
+            this.path = path;
+            this.fileKey = fileKey;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        /**
+         * The prefix shared by the file names of all versions of a file.
+         */
+        String filePrefix() {
+            return Hashing.sha1().hashString(path, UTF_8).toString().substring(0, 16) + '-';
+        }
+
+        String fileName() {
+            return filePrefix() + Hashing.sha1().hashString(toString(), UTF_8).toString() + ".gz";
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 41 * hash + path.hashCode();
+            hash = 41 * hash + Objects.hashCode(fileKey);
+            hash = 41 * hash + (int) (lastModified ^ (lastModified >>> 32));
+            hash = 41 * hash + (int) (size ^ (size >>> 32));
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final VariantKey other = (VariantKey) obj;
+            return lastModified == other.lastModified && size == other.size
+                    && path.equals(other.path) && Objects.equals(fileKey, other.fileKey);
+        }
+
+        @Override
+        public String toString() {
+            return path + '|' + fileKey + '|' + lastModified + '|' + size;
+        }
+    }
+}
@@ -23,15 +23,16 @@
  */
 package com.mastfrog.acteur.resources;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.net.MediaType;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.mastfrog.acteur.Event;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Response;
 import com.mastfrog.acteur.ResponseWriter;
+import com.mastfrog.acteur.headers.BoundedRange;
 import com.mastfrog.acteur.headers.ByteRanges;
 import com.mastfrog.acteur.headers.HeaderValueType;
 import com.mastfrog.acteur.headers.Headers;
@@ -45,52 +46,50 @@ import static com.mastfrog.acteur.headers.Headers.CONTENT_RANGE;
 import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
 import static com.mastfrog.acteur.headers.Headers.ETAG;
 import static com.mastfrog.acteur.headers.Headers.EXPIRES;
+import static com.mastfrog.acteur.headers.Headers.IF_MODIFIED_SINCE;
+import static com.mastfrog.acteur.headers.Headers.IF_RANGE;
 import static com.mastfrog.acteur.headers.Headers.LAST_MODIFIED;
 import static com.mastfrog.acteur.headers.Headers.RANGE;
 import static com.mastfrog.acteur.headers.Headers.VARY;
 import com.mastfrog.acteur.headers.Method;
 import static com.mastfrog.acteur.headers.Method.HEAD;
 import com.mastfrog.acteur.headers.Range;
+import com.mastfrog.acteur.server.ServerModule;
 import com.mastfrog.acteur.spi.ApplicationControl;
 import com.mastfrog.acteur.util.CacheControl;
 import com.mastfrog.acteur.util.CacheControlTypes;
+import com.mastfrog.giulius.ShutdownHookRegistry;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.util.Exceptions;
-import com.mastfrog.util.Streams;
 import com.mastfrog.util.Strings;
-import com.mastfrog.util.streams.HashingOutputStream;
 import com.mastfrog.util.time.TimeUtil;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.ByteBufOutputStream;
-import io.netty.channel.DefaultFileRegion;
-import io.netty.channel.FileRegion;
-import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
-import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
-import static io.netty.handler.codec.http.HttpResponseStatus.NOT_IMPLEMENTED;
-import static io.netty.handler.codec.http.HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
 import io.netty.util.AsciiString;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.time.ZonedDateTime;
-import java.util.Date;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Version of FileResources that does not cache bytes in-memory, just uses
- * Netty's FileRegion, and inode numbers for etags.
+ * Netty's FileRegion, and inode numbers for etags - except, optionally, for a
+ * bounded set of small, frequently requested files (see
+ * {@link #SETTINGS_KEY_HOT_CACHE_MAX_BYTES}).
  *
  * @author Tim Boudreau
  */
@@ -101,16 +100,21 @@ public class DynamicFileResources implements StaticResources {
     private final MimeTypes types;
     private final ApplicationControl ctrl;
     private final ByteBufAllocator alloc;
-    static final HeaderValueType<CharSequence> INTERNAL_COMPRESS_HEADER
+    /**
+     * Header telling the server's pipeline that a response body is already
+     * compressed, or not worth compressing, so it should not be gzipped again;
+     * it is removed before the response is sent.
+     */
+    public static final HeaderValueType<CharSequence> INTERNAL_COMPRESS_HEADER
             = Headers.header("X-Internal-Compress");
     private static final AsciiString TRUE = new AsciiString("true");
     /**
      * Settings key which, if true, means DynamicFileResources will use the
      * SHA-1 hash of the file's bytes for ETag headers, rather than the inode
-     * value. This is useful for consistent etags in a clustered environment, at
-     * the price of adding overhead the first time the file is requested and the
-     * hash is computed (after which the hash will be cached for some length of
-     * time, assuming the file is not modified).
+     * value. This is useful for consistent etags in a clustered environment.
+     * Hashes are computed in the background the first time a file (or a new
+     * version of it) is requested, and the inode etag is used until the hash
+     * is ready.
      */
     public static final String SETTINGS_KEY_USE_HASH_ETAG = "dyn.resources.use.hash.etag";
     /**
@@ -118,11 +122,80 @@ public class DynamicFileResources implements StaticResources {
      * sha-1 hash etags instead of inodes.
      */
     public static final String SETTINGS_KEY_HASH_ETAG_CACHE_EXPIRY_MINUTES = "dyn.resources.hash.etag.cache.expiry.minutes";
+    /**
+     * The maximum number of file hashes to hold in memory, when using sha-1
+     * hash etags.
+     */
+    public static final String SETTINGS_KEY_HASH_ETAG_CACHE_SIZE = "dyn.resources.hash.etag.cache.size";
+    /**
+     * If set, a file which sha-1 hash etags are recorded in, keyed by path,
+     * inode, size and modification time, and reloaded from at startup so
+     * files which have not changed need not be hashed again.
+     */
+    public static final String SETTINGS_KEY_HASH_ETAG_INDEX_FILE = "dyn.resources.hash.etag.index.file";
+    /**
+     * Maximum number of bytes of gzipped file variants to hold in memory.
+     * Files whose compressed form is larger than an eighth of this are served
+     * uncompressed unless a cache directory is set.
+     */
+    public static final String SETTINGS_KEY_COMPRESSED_CACHE_MAX_BYTES = "dyn.resources.compressed.cache.max.bytes";
+    /**
+     * If set, gzipped variants of files are written to this directory rather
+     * than held in memory, where they are reused across restarts and sent
+     * using zero-copy file transfer.
+     */
+    public static final String SETTINGS_KEY_COMPRESSED_CACHE_DIR = "dyn.resources.compressed.cache.dir";
+    /**
+     * If true (the default), a file named the same as the requested one plus
+     * <code>.gz</code> which is at least as new as it is served as-is to
+     * clients which accept gzip encoding.
+     */
+    public static final String SETTINGS_KEY_USE_GZ_SIBLINGS = "dyn.resources.use.gz.siblings";
+    private static final long DEFAULT_COMPRESSED_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+    /**
+     * The maximum number of paths (including ones which do not exist) to
+     * cache file information for, when watching files with
+     * {@link FileResources#SETTINGS_KEY_WATCH_FILES}.
+     */
+    public static final String SETTINGS_KEY_WATCH_CACHE_SIZE = "dyn.resources.watch.cache.size";
+    /**
+     * If greater than zero, the maximum bytes of file content to keep in an
+     * off-heap cache of small, frequently requested files (and their gzipped
+     * forms), which are then served from memory instead of from disk. The
+     * default is 0, which disables it.
+     */
+    public static final String SETTINGS_KEY_HOT_CACHE_MAX_BYTES = "dyn.resources.hot.cache.max.bytes";
+    /**
+     * Files larger than this are never held in the hot file cache.
+     */
+    public static final String SETTINGS_KEY_HOT_CACHE_MAX_FILE_SIZE = "dyn.resources.hot.cache.max.file.size";
+    /**
+     * The number of recent requests for a file after which it is loaded into
+     * the hot file cache.
+     */
+    public static final String SETTINGS_KEY_HOT_CACHE_ADMIT_AFTER = "dyn.resources.hot.cache.admit.after";
+    private static final long DEFAULT_HOT_CACHE_MAX_FILE_SIZE = 256 * 1024;
     private final boolean hashEtags;
-    private final LoadingCache<File, EtagCacheEntry> etagCache;
+    /**
+     * Requests for more ranges than this are answered with the whole file.
+     */
+    private static final int MAX_RANGES = 32;
+    private final EtagIndex etags;
+    private final CompressedVariantCache variants;
+    private final Cache<String, Optional<FileInfo>> infos;
+    private final HotFileCache hotFiles;
 
-    @Inject
+    /**
+     * Create a DynamicFileResources which compresses files synchronously the
+     * first time they are requested.
+     */
     public DynamicFileResources(File dir, MimeTypes types, ExpiresPolicy policy, ApplicationControl ctrl, ByteBufAllocator alloc, Settings settings) {
+        this(dir, types, policy, ctrl, alloc, settings, null, null);
+    }
+
+    @Inject
+    public DynamicFileResources(File dir, MimeTypes types, ExpiresPolicy policy, ApplicationControl ctrl, ByteBufAllocator alloc, Settings settings,
+            @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService svc, ShutdownHookRegistry reg) {
         this.hashEtags = settings.getBoolean(SETTINGS_KEY_USE_HASH_ETAG, false);
         this.dir = dir;
         this.policy = policy;
@@ -130,25 +203,186 @@ public class DynamicFileResources implements StaticResources {
         this.ctrl = ctrl;
         this.alloc = alloc;
         if (hashEtags) {
-            int etagCacheExpiryMinutes = settings.getInt(SETTINGS_KEY_HASH_ETAG_CACHE_EXPIRY_MINUTES, 8 * 60);
-            etagCache = CacheBuilder.newBuilder()
+            String indexFile = settings.getString(SETTINGS_KEY_HASH_ETAG_INDEX_FILE);
+            etags = new EtagIndex(settings.getInt(SETTINGS_KEY_HASH_ETAG_CACHE_SIZE, 10000),
+                    settings.getInt(SETTINGS_KEY_HASH_ETAG_CACHE_EXPIRY_MINUTES, 8 * 60),
+                    indexFile == null ? null : new File(indexFile), svc, ctrl);
+        } else {
+            etags = null;
+        }
+        String cacheDir = settings.getString(SETTINGS_KEY_COMPRESSED_CACHE_DIR);
+        variants = new CompressedVariantCache(
+                settings.getLong(SETTINGS_KEY_COMPRESSED_CACHE_MAX_BYTES, DEFAULT_COMPRESSED_CACHE_MAX_BYTES),
+                cacheDir == null ? null : new File(cacheDir),
+                settings.getBoolean(SETTINGS_KEY_USE_GZ_SIBLINGS, true), svc, ctrl);
+        long hotCacheMaxBytes = settings.getLong(SETTINGS_KEY_HOT_CACHE_MAX_BYTES, 0);
+        if (hotCacheMaxBytes > 0) {
+            hotFiles = new HotFileCache(hotCacheMaxBytes,
+                    settings.getLong(SETTINGS_KEY_HOT_CACHE_MAX_FILE_SIZE, DEFAULT_HOT_CACHE_MAX_FILE_SIZE),
+                    settings.getInt(SETTINGS_KEY_HOT_CACHE_ADMIT_AFTER, 2), svc, ctrl);
+        } else {
+            hotFiles = null;
+        }
+        if (settings.getBoolean(FileResources.SETTINGS_KEY_WATCH_FILES, false)) {
+            infos = CacheBuilder.newBuilder()
                     .concurrencyLevel(5)
-                    .maximumSize(500)
-                    .softValues()
-                    .expireAfterAccess(etagCacheExpiryMinutes, TimeUnit.MINUTES)
-                    .build(new EtagCacheLoader());
+                    .maximumSize(settings.getInt(SETTINGS_KEY_WATCH_CACHE_SIZE, 10000))
+                    .build();
+            try {
+                FileWatcher.watch(dir.toPath(), new Invalidator(), reg);
+            } catch (IOException ex) {
+                Exceptions.chuck(ex);
+            }
         } else {
-            etagCache = null;
+            infos = null;
         }
     }
 
+    /**
+     * Get the hit ratio and residency of the hot file cache.
+     *
+     * @return The current statistics, or null if the hot file cache is not
+     * enabled
+     */
+    public HotFileCacheStats hotCacheStats() {
+        return hotFiles == null ? null : hotFiles.stats();
+    }
+
+    HotFileCache.Entry hotEntry(String path) {
+        FileInfo info = hotFiles == null ? null : FileInfo.load(new File(dir, path));
+        return info == null ? null : hotFiles.getIfPresent(info);
+    }
+
     @Override
     public Resource get(String path) {
-        File f = new File(dir, path);
-        if (f.exists() && f.isFile() && f.canRead()) {
-            return new DynFileResource(f);
+        FileInfo info;
+        if (infos != null) {
+            String key;
+            try {
+                key = normalize(path);
+            } catch (InvalidPathException ex) {
+                return null;
+            }
+            try {
+                info = infos.get(key, () -> Optional.ofNullable(FileInfo.load(new File(dir, key)))).orElse(null);
+            } catch (ExecutionException ex) {
+                return Exceptions.chuck(ex);
+            }
+        } else {
+            info = FileInfo.load(new File(dir, path));
+        }
+        return info == null ? null : new DynFileResource(info);
+    }
+
+    private static String normalize(String path) {
+        String result = Paths.get(path).normalize().toString();
+        if (File.separatorChar != '/') {
+            result = result.replace(File.separatorChar, '/');
+        }
+        int start = 0;
+        while (start < result.length() && result.charAt(start) == '/') {
+            start++;
+        }
+        return start == 0 ? result : result.substring(start);
+    }
+
+    /**
+     * Discards cached file information when the filesystem reports a change.
+     */
+    private final class Invalidator implements FileWatcher.Listener {
+
+        @Override
+        public void onChange(java.nio.file.Path path, boolean created) {
+            String key = normalize(path.toString());
+            invalidate(key);
+            if (key.endsWith(".gz")) {
+                // A precompressed sibling changed
+                invalidate(key.substring(0, key.length() - 3));
+            }
+            if (!created) {
+                // May be a deleted or renamed directory
+                String prefix = key + '/';
+                for (String k : infos.asMap().keySet()) {
+                    if (k.startsWith(prefix)) {
+                        invalidate(k);
+                    }
+                }
+            }
+        }
+
+        private void invalidate(String key) {
+            // Hashes are keyed on modification time and size, so need not be
+            // invalidated
+            infos.invalidate(key);
+        }
+
+        @Override
+        public void onOverflow() {
+            infos.invalidateAll();
+        }
+    }
+
+    /**
+     * File metadata read once per request, or, if watching the filesystem,
+     * once per change to the file.
+     */
+    static final class FileInfo {
+
+        final File file;
+        final BasicFileAttributes attrs;
+        private volatile String inodeEtag;
+        // Only ever a disk-backed variant
+        volatile CompressedVariantCache.Variant variant;
+
+        FileInfo(File file, BasicFileAttributes attrs) {
+            this.file = file;
+            this.attrs = attrs;
+        }
+
+        static FileInfo load(File file) {
+            try {
+                java.nio.file.Path path = file.toPath();
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attrs.isRegularFile() && Files.isReadable(path)) {
+                    return new FileInfo(file, attrs);
+                }
+            } catch (IOException | InvalidPathException ex) {
+                // Does not exist or is unreadable
+            }
+            return null;
+        }
+
+        long length() {
+            return attrs.size();
+        }
+
+        long lastModified() {
+            return attrs.lastModifiedTime().toMillis();
+        }
+
+        String inodeEtag() {
+            String result = inodeEtag;
+            if (result == null) {
+                inodeEtag = result = inodeEtag(attrs.fileKey());
+            }
+            return result;
+        }
+
+        private static String inodeEtag(Object fileKey) {
+            if (fileKey != null) {
+                String s = fileKey.toString();
+                if (s.contains("ino=")) {
+                    String inode = s.substring(s.indexOf("ino=") + 4, s.indexOf(')'));
+                    try {
+                        long val = Long.parseLong(inode);
+                        return Long.toString(val, 36);
+                    } catch (NumberFormatException nfe) {
+                        return inode;
+                    }
+                }
+            }
+            return null;
         }
-        return null;
     }
 
     @Override
@@ -156,13 +390,60 @@ public class DynamicFileResources implements StaticResources {
         return null;
     }
 
+    /**
+     * A retained duplicate of the content of a hot file cache entry, taken
+     * once the response is known to have a body; released once written, or
+     * when the connection closes if it never is.
+     */
+    static final class HotContent implements ChannelFutureListener {
+
+        private final Channel channel;
+        private ByteBuf content;
+
+        HotContent(ByteBuf content, Channel channel) {
+            this.content = content;
+            this.channel = channel;
+            channel.closeFuture().addListener(this);
+        }
+
+        synchronized ByteBuf take() {
+            ByteBuf result = content;
+            content = null;
+            channel.closeFuture().removeListener(this);
+            return result;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            ByteBuf toRelease;
+            synchronized (this) {
+                toRelease = content;
+                content = null;
+            }
+            if (toRelease != null) {
+                toRelease.release();
+            }
+        }
+    }
+
     private class DynFileResource implements Resource {
 
+        final FileInfo info;
         final File file;
         final MediaType contentType;
+        private boolean rangesComputed;
+        private List<BoundedRange> ranges;
+        private MultipartByteRanges multipart;
+        private boolean variantComputed;
+        private CompressedVariantCache.Variant variant;
+        private boolean hotEntryComputed;
+        private String etag;
+        private HotFileCache.Entry hotEntry;
+        private boolean hotGzipped;
 
-        DynFileResource(File file) {
-            this.file = file;
+        DynFileResource(FileInfo info) {
+            this.info = info;
+            this.file = info.file;
             contentType = types.get(file.getName());
         }
 
@@ -179,7 +460,7 @@ public class DynamicFileResources implements StaticResources {
             CacheControl cc = new CacheControl(CacheControlTypes.Public, CacheControlTypes.must_revalidate)
                     .add(CacheControlTypes.max_age, maxAge);
             response.add(CACHE_CONTROL, cc)
-                    .add(LAST_MODIFIED, TimeUtil.fromUnixTimestamp(file.lastModified()))
+                    .add(LAST_MODIFIED, TimeUtil.fromUnixTimestamp(info.lastModified()))
                     .add(ETAG, etag())
                     .add(AGE, Duration.ZERO)
                     .add(ACCEPT_RANGES, HttpHeaderValues.BYTES);
@@ -192,89 +473,155 @@ public class DynamicFileResources implements StaticResources {
             if (expires != null) {
                 response.add(EXPIRES, expires);
             }
-            CharSequence acceptEncoding = evt.header(ACCEPT_ENCODING);
             if (evt.method() == HEAD) {
                 return;
             }
-            long length = file.length();
-            ByteRanges ranges = evt.header(RANGE);
-            boolean willCompress = acceptEncoding != null && Strings.charSequenceContains(acceptEncoding, HttpHeaderValues.GZIP, true)
-                    && types.shouldCompress(contentType);
+            long length = info.length();
+            List<BoundedRange> ranges = ranges(evt, length);
             if (ranges != null) {
-                if (!ranges.isValid()) {
-                    response.status(BAD_REQUEST);
-                    response.content("Invalid range " + ranges);
-                    return;
+                // Ranges are always served from the identity encoding
+                if (ranges.isEmpty()) {
+                    response.add(CONTENT_RANGE, BoundedRange.unsatisfiable(length));
+                } else if (ranges.size() == 1) {
+                    response.add(CONTENT_RANGE, ranges.get(0));
+                    response.add(CONTENT_LENGTH, ranges.get(0).length());
+                } else {
+                    multipart = new MultipartByteRanges(ranges, contentType);
+                    response.add(CONTENT_TYPE, multipart.contentType());
+                    response.add(CONTENT_LENGTH, multipart.contentLength());
                 }
-                if (ranges.size() > 1 /* && willCompress*/) { // PENDING: We do it correctly, need multiple range Content-Range header to be written
-                    response.status(NOT_IMPLEMENTED);
-                    response.content("Multiple ranges not supported in compressed responses, but requested " + ranges);
-                    return;
-                }
-                Range first = ranges.first();
-                if (first.toBoundedRange(length).isRangeNotSatisfiable()) {
-                    response.status(REQUESTED_RANGE_NOT_SATISFIABLE);
-                    response.content("Unsatisfiable range in file of length " + length + ": " + ranges.first());
-                    return;
-                }
-                if (first.end(length) < 0) {
-                    response.status(REQUESTED_RANGE_NOT_SATISFIABLE);
-                    response.content("Requested past end of file at " + length);
-                    return;
-                }
-                response.add(CONTENT_RANGE, first.toBoundedRange(length));
+                response.chunked(false);
+                return;
             }
-            if (!willCompress) {
-                if (evt.method() != Method.HEAD) {
-                    response.add(CONTENT_LENGTH, length);
-                }
-            } else {
-                if (evt.method() != Method.HEAD) {
-                    response.add(INTERNAL_COMPRESS_HEADER, TRUE).add(CONTENT_ENCODING, HttpHeaderValues.GZIP.toString());
+            HotFileCache.Entry hotEntry = hotEntry();
+            if (hotEntry != null) {
+                // The bytes are not retained until attachBytes(), which is
+                // not called for 304 responses
+                hotGzipped = hotEntry.hasGzip() && acceptsGzip(evt);
+                if (hotGzipped) {
+                    response.add(CONTENT_ENCODING, HttpHeaderValues.GZIP.toString());
                 }
+                response.add(CONTENT_LENGTH, hotEntry.length(hotGzipped));
             }
+            CompressedVariantCache.Variant variant = hotEntry == null ? variant(evt) : null;
+            if (hotEntry == null && variant == null) {
+                response.add(CONTENT_LENGTH, length);
+            } else if (variant != null) {
+                response.add(CONTENT_ENCODING, HttpHeaderValues.GZIP.toString())
+                        .add(CONTENT_LENGTH, variant.length());
+            }
+            // Either we compressed it or it is not worth compressing - don't
+            // let the pipeline try
+            response.add(INTERNAL_COMPRESS_HEADER, TRUE);
             response.chunked(false);
         }
 
-        private String etag() {
-            try {
-                return hashEtags ? hashEtag() : inodeEtag();
-            } catch (ExecutionException ex) {
-                return Exceptions.chuck(ex);
-            }
+        private boolean acceptsGzip(HttpEvent evt) {
+            CharSequence acceptEncoding = evt.header(ACCEPT_ENCODING);
+            return acceptEncoding != null && Strings.charSequenceContains(acceptEncoding, HttpHeaderValues.GZIP, true)
+                    && types.shouldCompress(contentType);
         }
 
-        private String hashEtag() throws ExecutionException {
-            EtagCacheEntry etg = etagCache.get(file);
-            if (!etg.stillValid(file)) {
-                etagCache.refresh(file);
-                etg = etagCache.get(file);
+        private HotFileCache.Entry hotEntry() {
+            if (!hotEntryComputed) {
+                hotEntryComputed = true;
+                if (hotFiles != null) {
+                    hotEntry = hotFiles.get(info, types.shouldCompress(contentType));
+                }
             }
-            return etg.hash;
+            return hotEntry;
         }
 
-        private String inodeEtag() {
-            try {
-                java.nio.file.Path path = file.toPath();
-                BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class);
-                Object fileKey = attr.fileKey();
-                if (fileKey != null) {
-                    String s = fileKey.toString();
-                    if (s.contains("ino=")) {
-                        String inode = s.substring(s.indexOf("ino=") + 4, s.indexOf(')'));
-                        try {
-                            long val = Long.parseLong(inode);
-                            return Long.toString(val, 36);
-                        } catch (NumberFormatException nfe) {
-                            ctrl.internalOnError(nfe);
+        private CompressedVariantCache.Variant variant(HttpEvent evt) {
+            if (!variantComputed) {
+                variantComputed = true;
+                if (acceptsGzip(evt)) {
+                    variant = info.variant;
+                    if (variant == null) {
+                        variant = variants.variant(file, info.attrs);
+                        if (infos != null && variant instanceof CompressedVariantCache.FileVariant) {
+                            // Watching, so info is discarded if the file or
+                            // its .gz sibling changes; in-memory variants are
+                            // only held by the variant cache, so they stay
+                            // within its byte limit
+                            info.variant = variant;
                         }
-                        return inode;
                     }
                 }
-            } catch (IOException ex) {
-                ctrl.internalOnError(ex);
             }
-            return null;
+            return variant;
+        }
+
+        private List<BoundedRange> ranges(HttpEvent evt, long length) {
+            if (!rangesComputed) {
+                rangesComputed = true;
+                ranges = computeRanges(evt, length);
+            }
+            return ranges;
+        }
+
+        /**
+         * Returns null if the whole file should be sent, an empty list if no
+         * requested range is satisfiable, or the clamped ranges to send.
+         */
+        private List<BoundedRange> computeRanges(HttpEvent evt, long length) {
+            ByteRanges requested = evt.header(RANGE);
+            // Malformed or abusive Range headers are ignored rather than
+            // rejected, per RFC 7233
+            if (requested == null || !requested.isValid() || requested.size() > MAX_RANGES) {
+                return null;
+            }
+            if (length == 0) {
+                // No range of an empty file is satisfiable; ignore the
+                // header, as RFC 7233 allows, and send it whole
+                return null;
+            }
+            CharSequence ifRange = evt.header(IF_RANGE);
+            if (ifRange != null && !ifRangeMatches(ifRange)) {
+                return null;
+            }
+            List<BoundedRange> result = new ArrayList<>(requested.size());
+            for (Range range : requested) {
+                long start = range.start(length);
+                long end = range.end(length);
+                if (start < 0 || start >= length) {
+                    continue;
+                }
+                if (end < 0 || end >= length) {
+                    end = length - 1;
+                }
+                if (end >= start) {
+                    result.add(new BoundedRange(start, end, length));
+                }
+            }
+            return result;
+        }
+
+        private boolean ifRangeMatches(CharSequence ifRange) {
+            String value = ifRange.toString().trim();
+            if (value.startsWith("W/")) {
+                // Weak validators never match for If-Range
+                return false;
+            }
+            if (value.startsWith("\"")) {
+                String etag = etag();
+                return etag != null && value.equals('"' + etag + '"');
+            }
+            try {
+                ZonedDateTime date = IF_MODIFIED_SINCE.toValue(value);
+                return date != null && date.toInstant().getEpochSecond() == info.lastModified() / 1000;
+            } catch (RuntimeException ex) {
+                return false;
+            }
+        }
+
+        private String etag() {
+            if (etag == null) {
+                String result = hashEtags ? etags.hash(info) : null;
+                // Until the hash is computed, use the inode
+                etag = result == null ? info.inodeEtag() : result;
+            }
+            return etag;
         }
 
         @Override
@@ -282,159 +629,91 @@ public class DynamicFileResources implements StaticResources {
             if (evt.method() == Method.HEAD) {
                 return;
             }
-            CharSequence acceptEncoding = evt.header(Headers.ACCEPT_ENCODING);
-            boolean willCompress = acceptEncoding != null && Strings.charSequenceContains(acceptEncoding, HttpHeaderValues.GZIP, true)
-                    && types.shouldCompress(contentType);
-
-            final ByteRanges ranges = evt.header(Headers.RANGE);
-            final long length = file.length();
-            if (ranges != null && ranges.size() > 0) {
-                response.add(CONTENT_RANGE, ranges.first().toBoundedRange(length));
-            }
-            if (!willCompress) {
+            final long length = info.length();
+            final List<BoundedRange> ranges = ranges(evt, length);
+            if (ranges != null) {
+                if (ranges.isEmpty()) {
+                    return;
+                }
+                final BoundedRange single = ranges.size() == 1 ? ranges.get(0) : null;
+                if (single != null) {
+                    response.add(CONTENT_RANGE, single);
+                } else if (multipart == null) {
+                    multipart = new MultipartByteRanges(ranges, contentType);
+                    response.add(CONTENT_TYPE, multipart.contentType());
+                    response.add(CONTENT_LENGTH, multipart.contentLength());
+                }
+                final MultipartByteRanges parts = multipart;
                 response.contentWriter(new ResponseWriter() {
                     @Override
                     public ResponseWriter.Status write(Event<?> evt, ResponseWriter.Output out, int iteration) throws Exception {
-                        if (ranges == null) {
-                            FileRegion reg = new DefaultFileRegion(file, 0, length);
-                            out.write(reg);
-                            return Status.DONE;
+                        if (single != null) {
+                            out.write(file, single.start(), single.length());
                         } else {
-                            for (Range range : ranges) {
-                                long count = range.length(length);
-                                FileRegion reg = new DefaultFileRegion(file, range.start(length), count);
-                                out.write(reg);
-                            }
-                            return Status.DONE;
+                            parts.write(file, out);
                         }
+                        return Status.DONE;
                     }
                 });
-            } else {
-                ByteBuf buf = alloc.directBuffer();
-                try {
-                    if (ranges == null) {
-                        try (FileInputStream in = new FileInputStream(file)) {
-                            try (ByteBufOutputStream bufOut = new ByteBufOutputStream(buf)) {
-                                try (GZIPOutputStream gz = new GZIPOutputStream(bufOut, (int) (file.length() / 2))) {
-                                    Streams.copy(in, gz);
-                                }
+                return;
+            }
+            final HotFileCache.Entry hotEntry = hotEntry();
+            final CompressedVariantCache.Variant variant;
+            if (hotEntry != null) {
+                ByteBuf taken = hotEntry.content(hotGzipped);
+                if (taken != null) {
+                    final HotContent hot = new HotContent(taken, evt.channel());
+                    response.contentWriter(new ResponseWriter() {
+                        @Override
+                        public ResponseWriter.Status write(Event<?> evt, ResponseWriter.Output out, int iteration) throws Exception {
+                            ByteBuf content = hot.take();
+                            if (content != null) {
+                                out.write(content);
                             }
+                            return Status.DONE;
                         }
+                    });
+                    return;
+                }
+                // Evicted since the headers were computed - serve it from
+                // disk, correcting the headers to match
+                variant = hotGzipped ? variant(evt) : null;
+                if (variant != null) {
+                    response.add(CONTENT_LENGTH, variant.length());
+                } else if (hotGzipped) {
+                    response.add(CONTENT_ENCODING, HttpHeaderValues.IDENTITY.toString())
+                            .add(CONTENT_LENGTH, length);
+                }
+            } else {
+                variant = variant(evt);
+            }
+            response.contentWriter(new ResponseWriter() {
+                @Override
+                public ResponseWriter.Status write(Event<?> evt, ResponseWriter.Output out, int iteration) throws Exception {
+                    if (variant != null) {
+                        variant.write(out);
                     } else {
-                        try (ByteBufOutputStream bufOut = new ByteBufOutputStream(buf)) {
-                            for (Range r : ranges) {
-                                try (FileInputStream in = new FileInputStream(file)) {
-                                    try (FileChannel channel = in.getChannel()) {
-                                        int rangeLength = (int) r.length(length);
-                                        if (rangeLength > 0) {
-                                            ByteBuffer buffer = ByteBuffer.allocateDirect(rangeLength);
-                                            channel.position(r.start(length));
-                                            channel.read(buffer);
-                                            buffer.flip();
-                                            try (InputStream rangeIn = Streams.asInputStream(buffer)) {
-                                                try (GZIPOutputStream gz = new GZIPOutputStream(bufOut, (int) (file.length() / 2))) {
-                                                    Streams.copy(rangeIn, gz);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                        out.write(file, 0, length);
                     }
-                } catch (Exception ex) {
-                    buf.release();
-                    throw ex;
+                    return Status.DONE;
                 }
-
-                response.add(Headers.CONTENT_LENGTH, (long) buf.readableBytes());
-                response.contentWriter(new ResponseWriter() {
-                    boolean first = true;
-
-                    @Override
-                    public ResponseWriter.Status write(Event<?> evt, ResponseWriter.Output out, int iteration) throws Exception {
-                        if (!first) {
-                            out.write(new DefaultLastHttpContent());
-                            return Status.DONE;
-                        }
-                        out.write(buf);
-                        boolean wasFirst = first;
-                        first = false;
-                        return wasFirst ? Status.NOT_DONE : Status.DONE;
-                    }
-                });
-            }
+            });
         }
 
         @Override
         public MediaType getContentType() {
             return contentType;
         }
-    }
-
-    static final class EtagCacheLoader extends CacheLoader<File, EtagCacheEntry> {
-
-        @Override
-        public EtagCacheEntry load(File k) throws Exception {
-            if (!k.exists()) {
-                return new EtagCacheEntry("<deleted>", 0);
-            }
-            HashingOutputStream hashOut = HashingOutputStream.sha1(Streams.nullOutputStream());;
-            try (FileInputStream in = new FileInputStream(k)) {
-                Streams.copy(in, hashOut, 1024);
-            } finally {
-                hashOut.close();
-            }
-            byte[] digest = hashOut.getDigest();
-            return new EtagCacheEntry(Strings.toBase64(digest), k.lastModified());
-        }
-    }
-
-    private static final class EtagCacheEntry {
-
-        private final String hash;
-        private final long lastModified;
-
-        public EtagCacheEntry(String hash, long lastModified) {
-            this.hash = hash;
-            this.lastModified = lastModified;
-        }
-
-        public boolean stillValid(File f) {
-            return f.exists() && f.lastModified() == lastModified;
-        }
 
         @Override
-        public int hashCode() {
-            int hash = 3;
-            hash = 67 * hash + Objects.hashCode(this.hash);
-            hash = 67 * hash + (int) (this.lastModified ^ (this.lastModified >>> 32));
-            return hash;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj == null) {
-                return false;
-            }
-            if (getClass() != obj.getClass()) {
-                return false;
+        public String fingerprint() {
+            if (hashEtags) {
+                // Not etag(), which is the inode until the hash is ready - a
+                // name handed out for that would stop matching once it is
+                return etags.hash(info);
             }
-            final EtagCacheEntry other = (EtagCacheEntry) obj;
-            if (this.lastModified != other.lastModified) {
-                return false;
-            }
-            if (!Objects.equals(this.hash, other.hash)) {
-                return false;
-            }
-            return true;
-        }
-
-        public String toString() {
-            return hash + ":" + TimeUtil.toIsoFormat(new Date(lastModified));
+            // Cheaper than hashing the file, and changes on any modification
+            return info.inodeEtag() + '-' + info.lastModified() + '-' + info.length();
         }
     }
 }
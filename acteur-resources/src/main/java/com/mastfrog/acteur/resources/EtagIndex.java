@@ -0,0 +1,308 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mastfrog.acteur.resources.DynamicFileResources.FileInfo;
+import com.mastfrog.acteur.spi.ApplicationControl;
+import com.mastfrog.util.Streams;
+import com.mastfrog.util.Strings;
+import com.mastfrog.util.streams.HashingOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA-1 hashes of files for use as etags, keyed on path, file key (inode),
+ * size and modification time. Hashes are computed on a background thread;
+ * until one is ready, callers get null and should use a cheaper etag.
+ * Optionally, hashes are appended to an index file and reloaded from it at
+ * startup, so a restart does not mean rehashing every file; once most of its
+ * lines are superseded by later ones, the file is rewritten in the
+ * background.
+ *
+ * @author Tim Boudreau
+ */
+final class EtagIndex {
+
+    private final Cache<Key, String> hashes;
+    private final Set<Key> inProgress = ConcurrentHashMap.newKeySet();
+    private final File indexFile;
+    private final ExecutorService svc;
+    private final ApplicationControl ctrl;
+    // Guarded by this
+    private final Set<String> indexedPaths = new HashSet<>();
+    private int indexLines;
+    private boolean compactionScheduled;
+
+    /**
+     * Create a new index.
+     *
+     * @param maxEntries The maximum number of hashes to hold in memory
+     * @param expiryMinutes Discard hashes which have not been used for this
+     * long
+     * @param indexFile A file to persist hashes in, or null
+     * @param svc The executor to hash on, or null to hash synchronously
+     * @param ctrl Used to report errors
+     */
+    EtagIndex(int maxEntries, long expiryMinutes, File indexFile, ExecutorService svc, ApplicationControl ctrl) {
+        this.indexFile = indexFile;
+        this.svc = svc;
+        this.ctrl = ctrl;
+        hashes = CacheBuilder.newBuilder()
+                .concurrencyLevel(5)
+                .maximumSize(maxEntries)
+                .expireAfterAccess(expiryMinutes, TimeUnit.MINUTES)
+                .build();
+        if (indexFile != null && indexFile.isFile()) {
+            try {
+                load(maxEntries);
+            } catch (IOException ex) {
+                ctrl.internalOnError(ex);
+            }
+        }
+    }
+
+    private synchronized void load(int maxEntries) throws IOException {
+        Map<String, String> latest = read();
+        int skip = Math.max(0, latest.size() - maxEntries);
+        for (String line : latest.values()) {
+            if (skip-- > 0) {
+                continue;
+            }
+            hashes.put(Key.parse(line), line.substring(0, line.indexOf('\t')));
+        }
+        if (needsCompaction()) {
+            compact(latest.values());
+        }
+    }
+
+    /**
+     * Read the latest line for each path from the index file.
+     */
+    private synchronized Map<String, String> read() throws IOException {
+        // Later lines supersede earlier ones for the same path
+        Map<String, String> latest = new LinkedHashMap<>();
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                Key key = Key.parse(line);
+                if (key != null) {
+                    latest.remove(key.path);
+                    latest.put(key.path, line);
+                }
+            }
+        }
+        indexLines = lines;
+        indexedPaths.clear();
+        indexedPaths.addAll(latest.keySet());
+        return latest;
+    }
+
+    private synchronized boolean needsCompaction() {
+        return indexLines > indexedPaths.size() * 2 + 64;
+    }
+
+    private void compactNow() {
+        try {
+            synchronized (this) {
+                compactionScheduled = false;
+                compact(read().values());
+            }
+        } catch (IOException ex) {
+            ctrl.internalOnError(ex);
+        }
+    }
+
+    private synchronized void compact(Collection<String> lines) throws IOException {
+        File temp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+        try {
+            try (Writer out = Files.newBufferedWriter(temp.toPath(), UTF_8)) {
+                for (String line : lines) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            }
+            Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            indexLines = lines.size();
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Get the hash of a file if it is known, scheduling its computation if
+     * not.
+     *
+     * @param info The file
+     * @return A base-64 SHA-1 hash, or null
+     */
+    String hash(FileInfo info) {
+        Key key = new Key(info.file.getAbsolutePath(), String.valueOf(info.attrs.fileKey()),
+                info.lastModified(), info.length());
+        String result = hashes.getIfPresent(key);
+        if (result == null) {
+            if (svc == null) {
+                hash(key, info.file);
+                result = hashes.getIfPresent(key);
+            } else if (inProgress.add(key)) {
+                svc.submit(() -> {
+                    try {
+                        hash(key, info.file);
+                    } finally {
+                        inProgress.remove(key);
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    private void hash(Key key, File file) {
+        try {
+            HashingOutputStream hashOut = HashingOutputStream.sha1(Streams.nullOutputStream());
+            try (FileInputStream in = new FileInputStream(file)) {
+                Streams.copy(in, hashOut, 8192);
+            } finally {
+                hashOut.close();
+            }
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (attrs.lastModifiedTime().toMillis() != key.lastModified || attrs.size() != key.size) {
+                // Modified while we were reading it
+                return;
+            }
+            String hash = Strings.toBase64(hashOut.getDigest());
+            hashes.put(key, hash);
+            if (indexFile != null && key.isPersistable()) {
+                append(key, hash);
+            }
+        } catch (IOException ex) {
+            ctrl.internalOnError(ex);
+        }
+    }
+
+    private synchronized void append(Key key, String hash) throws IOException {
+        Files.write(indexFile.toPath(), (key.toLine(hash) + '\n').getBytes(UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        indexLines++;
+        indexedPaths.add(key.path);
+        // Use the same threshold as at startup, so a long-running process
+        // which sees many edits does not grow the file without limit
+        if (!compactionScheduled && needsCompaction()) {
+            compactionScheduled = true;
+            if (svc == null) {
+                compactNow();
+            } else {
+                svc.submit(this::compactNow);
+            }
+        }
+    }
+
+    static final class Key {
+
+        final String path;
+        final String fileKey;
+        final long lastModified;
+        final long size;
+
+        Key(String path, String fileKey, long lastModified, long size) {
+            this.path = path;
+            this.fileKey = fileKey;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        boolean isPersistable() {
+            return path.indexOf('\n') < 0 && path.indexOf('\r') < 0 && fileKey.indexOf('\t') < 0
+                    && fileKey.indexOf('\n') < 0;
+        }
+
+        /**
+         * Format as a line of the index file: hash, size, modification time,
+         * file key and path, tab-separated.
+         */
+        String toLine(String hash) {
+            return hash + '\t' + size + '\t' + lastModified + '\t' + fileKey + '\t' + path;
+        }
+
+        static Key parse(String line) {
+            String[] parts = line.split("\t", 5);
+            if (parts.length != 5 || parts[0].isEmpty()) {
+                return null;
+            }
+            try {
+                return new Key(parts[4], parts[3], Long.parseLong(parts[2]), Long.parseLong(parts[1]));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 53 * hash + path.hashCode();
+            hash = 53 * hash + fileKey.hashCode();
+            hash = 53 * hash + (int) (lastModified ^ (lastModified >>> 32));
+            return 53 * hash + (int) (size ^ (size >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return lastModified == other.lastModified && size == other.size
+                    && path.equals(other.path) && Objects.equals(fileKey, other.fileKey);
+        }
+
+        @Override
+        public String toString() {
+            return path + " (" + fileKey + ", " + size + " bytes, modified " + lastModified + ")";
+        }
+    }
+}
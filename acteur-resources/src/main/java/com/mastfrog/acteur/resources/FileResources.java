@@ -35,6 +35,7 @@ import com.mastfrog.acteur.util.CacheControlTypes;
 import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.util.CacheControl;
 import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.giulius.ShutdownHookRegistry;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.url.Path;
 import com.mastfrog.util.Checks;
@@ -71,9 +72,11 @@ import static java.time.temporal.ChronoField.MILLI_OF_SECOND;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -88,18 +91,31 @@ import java.util.zip.GZIPOutputStream;
 public final class FileResources implements StaticResources {
 
     private final MimeTypes types;
-    private final Map<String, Resource> names = new HashMap<>();
-    private final String[] patterns;
+    private final Map<String, Resource> names = new ConcurrentHashMap<>();
+    private volatile String[] patterns;
     private final DeploymentMode mode;
     private final ByteBufAllocator allocator;
     private final boolean internalGzip;
     private final File dir;
     private final boolean debug;
+    private final boolean watching;
+    private final ExpiresPolicy policy;
+    private final String resourcesBasePath;
 
     public static final String RESOURCES_BASE_PATH = "resources.base.path";
+    /**
+     * If true, FileResources and DynamicFileResources use a WatchService to
+     * learn about changed, added or deleted files, rather than checking the
+     * filesystem on every request.
+     */
+    public static final String SETTINGS_KEY_WATCH_FILES = "resources.watch.files";
 
-    @Inject
     public FileResources(File dir, MimeTypes types, DeploymentMode mode, ByteBufAllocator allocator, Settings settings, ExpiresPolicy policy) throws Exception {
+        this(dir, types, mode, allocator, settings, policy, null);
+    }
+
+    @Inject
+    public FileResources(File dir, MimeTypes types, DeploymentMode mode, ByteBufAllocator allocator, Settings settings, ExpiresPolicy policy, ShutdownHookRegistry reg) throws Exception {
         Checks.notNull("allocator", allocator);
         Checks.notNull("types", types);
         Checks.notNull("dir", dir);
@@ -109,21 +125,97 @@ public final class FileResources implements StaticResources {
         internalGzip = settings.getBoolean("internal.gzip", false);
         this.types = types;
         this.mode = mode;
+        this.policy = policy;
         List<String> l = new ArrayList<>();
         scan(dir, "", l);
         patterns = l.toArray(new String[l.size()]);
         debug = settings.getBoolean("acteur.debug", false);
-        String resourcesBasePath = settings.getString(RESOURCES_BASE_PATH, "");
+        resourcesBasePath = settings.getString(RESOURCES_BASE_PATH, "");
         for (String name : l) {
+            add(name);
+        }
+        watching = settings.getBoolean(SETTINGS_KEY_WATCH_FILES, false);
+        if (watching) {
+            FileWatcher.watch(dir.toPath(), new Invalidator(), reg);
+        }
+    }
+
+    private void add(String name) throws Exception {
+        String pth = Strings.joinPath(resourcesBasePath, name);
+        if (debug) {
+            System.out.println("STATIC RES: " + name + " -> " + pth);
+        }
+        Path p = Path.parse(pth);
+        ZonedDateTime expires = policy.get(types.get(pth), p);
+        Duration maxAge = expires == null ? Duration.ofHours(2)
+                : Duration.between(ZonedDateTime.now(), expires);
+        this.names.put(pth, new FileResource2(name, maxAge));
+    }
+
+    private void updatePatterns() {
+        List<String> l = new ArrayList<>(names.size());
+        for (Resource r : names.values()) {
+            l.add(((FileResource2) r).name);
+        }
+        patterns = l.toArray(new String[l.size()]);
+    }
+
+    /**
+     * Updates the set of files and marks changed ones for reloading, when
+     * watching the filesystem.
+     */
+    private final class Invalidator implements FileWatcher.Listener {
+
+        @Override
+        public void onChange(java.nio.file.Path path, boolean created) {
+            String name = path.toString().replace(File.separatorChar, '/');
             String pth = Strings.joinPath(resourcesBasePath, name);
-            if (debug) {
-                System.out.println("STATIC RES: " + name + " -> " + pth);
+            File file = new File(dir, name);
+            FileResource2 res = (FileResource2) names.get(pth);
+            if (res != null) {
+                if (file.isFile()) {
+                    res.stale = true;
+                } else {
+                    names.remove(pth);
+                    updatePatterns();
+                }
+            } else if (file.isFile() && file.canRead()) {
+                try {
+                    add(name);
+                } catch (Exception ex) {
+                    Exceptions.printStackTrace(ex);
+                }
+                updatePatterns();
+            } else if (!file.exists()) {
+                // May have been a directory
+                String prefix = pth + '/';
+                if (names.keySet().removeIf(key -> key.startsWith(prefix))) {
+                    updatePatterns();
+                }
             }
-            Path p = Path.parse(pth);
-            ZonedDateTime expires = policy.get(types.get(pth), p);
-            Duration maxAge = expires == null ? Duration.ofHours(2)
-                    :  Duration.between(ZonedDateTime.now(), expires);
-            this.names.put(pth, new FileResource2(name, maxAge));
+        }
+
+        @Override
+        public void onOverflow() {
+            List<String> l = new ArrayList<>();
+            scan(dir, "", l);
+            Set<String> current = new HashSet<>();
+            for (String name : l) {
+                String pth = Strings.joinPath(resourcesBasePath, name);
+                current.add(pth);
+                FileResource2 res = (FileResource2) names.get(pth);
+                if (res != null) {
+                    res.stale = true;
+                } else {
+                    try {
+                        add(name);
+                    } catch (Exception ex) {
+                        Exceptions.printStackTrace(ex);
+                    }
+                }
+            }
+            names.keySet().retainAll(current);
+            updatePatterns();
         }
     }
 
@@ -197,6 +289,7 @@ public final class FileResources implements StaticResources {
         private final File file;
         private long lastModified;
         final Duration maxAge;
+        volatile boolean stale;
 
         FileResource2(String name, Duration maxAge) throws Exception {
             Checks.notNull("name", name);
@@ -207,6 +300,7 @@ public final class FileResources implements StaticResources {
         }
 
         private synchronized void load() throws Exception {
+            stale = false;
             ByteBuf bytes = allocator.directBuffer((int) file.length());
             try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
                 if (in == null) {
@@ -262,14 +356,7 @@ public final class FileResources implements StaticResources {
 
         @Override
         public void decorateResponse(HttpEvent evt, String path, Response response, boolean chunked) {
-            // XXX would be nicer not to hit the filesystem every time here
-            if (file.lastModified() != lastModified) {
-                try {
-                    load();
-                } catch (Exception ex) {
-                    Exceptions.printStackTrace(ex);
-                }
-            }
+            reloadIfModified();
             String ua = evt.header("User-Agent");
             if (ua != null && !ua.contains("MSIE")) {
 //                page.getResponseHeaders().addVaryHeader(Headers.ACCEPT_ENCODING);
@@ -290,7 +377,7 @@ public final class FileResources implements StaticResources {
             }
             if (internalGzip) {
                 // Flag it so the standard compressor ignores us
-                response.add(Headers.header("X-Internal-Compress"), "true");
+                response.add(DynamicFileResources.INTERNAL_COMPRESS_HEADER, "true");
             }
             if (chunked) {
                 response.add(Headers.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED.toString());
@@ -325,6 +412,24 @@ public final class FileResources implements StaticResources {
             return mt;
         }
 
+        private void reloadIfModified() {
+            // When watching, the watcher tells us if the file changed, and
+            // we don't need to hit the filesystem on every request
+            if (watching ? stale : file.lastModified() != lastModified) {
+                try {
+                    load();
+                } catch (Exception ex) {
+                    Exceptions.printStackTrace(ex);
+                }
+            }
+        }
+
+        @Override
+        public String fingerprint() {
+            reloadIfModified();
+            return hash;
+        }
+
         public Long getContentLength() {
 //            return internalGzip ? null : (long) length;
             return null;
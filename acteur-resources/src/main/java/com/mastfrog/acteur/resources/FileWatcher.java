@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a directory tree using a WatchService, so that file-based resources
+ * can cache metadata and only revalidate it when the filesystem reports a
+ * change, rather than making several system calls on every request.
+ *
+ * @author Tim Boudreau
+ */
+final class FileWatcher implements Runnable {
+
+    private final Path root;
+    private final Listener listener;
+    private final WatchService watch;
+    private final Map<WatchKey, Path> dirs = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private FileWatcher(Path root, Listener listener) throws IOException {
+        this.root = root;
+        this.listener = listener;
+        this.watch = root.getFileSystem().newWatchService();
+        registerTree(root, false);
+    }
+
+    /**
+     * Start watching a directory tree on a daemon thread.
+     *
+     * @param root The root directory
+     * @param listener Notified of changes
+     * @param reg Used to stop watching on shutdown, may be null
+     * @return A watcher
+     * @throws IOException If the directory cannot be watched
+     */
+    static FileWatcher watch(Path root, Listener listener, ShutdownHookRegistry reg) throws IOException {
+        FileWatcher result = new FileWatcher(root, listener);
+        Thread thread = new Thread(result, "file-watcher-" + root.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+        if (reg != null) {
+            reg.add((Runnable) result::close);
+        }
+        return result;
+    }
+
+    interface Listener {
+
+        /**
+         * Called when a file or directory is created, modified or deleted.
+         *
+         * @param path The path of the file, relative to the root
+         * @param created True if the file was created
+         */
+        void onChange(Path path, boolean created);
+
+        /**
+         * Called when events were lost and everything should be considered
+         * stale.
+         */
+        void onOverflow();
+    }
+
+    private void registerTree(Path dir, boolean announce) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                dirs.put(d.register(watch, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (announce) {
+                    listener.onChange(root.relativize(file), true);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watch.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                break;
+            }
+            Path dir = dirs.get(key);
+            try {
+                for (WatchEvent<?> evt : key.pollEvents()) {
+                    if (evt.kind() == OVERFLOW || dir == null) {
+                        listener.onOverflow();
+                        continue;
+                    }
+                    Path child = dir.resolve((Path) evt.context());
+                    boolean created = evt.kind() == ENTRY_CREATE;
+                    if (created && Files.isDirectory(child)) {
+                        // Files may have been added to it before we could
+                        // register, so notify for its contents
+                        registerTree(child, true);
+                    }
+                    listener.onChange(root.relativize(child), created);
+                }
+            } catch (Exception ex) {
+                Logger.getLogger(FileWatcher.class.getName()).log(Level.WARNING, "Failed processing changes in " + root, ex);
+                listener.onOverflow();
+            }
+            if (!key.reset()) {
+                dirs.remove(key);
+            }
+        }
+    }
+
+    void close() {
+        closed = true;
+        try {
+            watch.close();
+        } catch (IOException ex) {
+            Logger.getLogger(FileWatcher.class.getName()).log(Level.INFO, "Closing watch service for " + root, ex);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.mastfrog.acteur.resources.CompressedVariantCache.VariantKey;
+import com.mastfrog.acteur.resources.DynamicFileResources.FileInfo;
+import com.mastfrog.acteur.spi.ApplicationControl;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.IllegalReferenceCountException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte-bounded, off-heap cache of the content (and gzipped content) of small,
+ * frequently requested files served by DynamicFileResources. A file is only
+ * admitted once it has been requested several times recently, as estimated
+ * by a count-min sketch whose counts are periodically halved, so a scan over
+ * many files once does not flush the files which are actually hot. Files
+ * which are cold, too large, or not yet loaded are sent with a FileRegion as
+ * usual.
+ *
+ * @author Tim Boudreau
+ */
+final class HotFileCache {
+
+    private final Cache<VariantKey, Entry> entries;
+    private final FrequencySketch sketch;
+    private final Set<VariantKey> loading = ConcurrentHashMap.newKeySet();
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final int admitAfter;
+    private final ExecutorService svc;
+    private final ApplicationControl ctrl;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder admissions = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final AtomicLong residentBytes = new AtomicLong();
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxBytes The maximum bytes of file content to hold
+     * @param maxFileSize The largest file to consider
+     * @param admitAfter The number of recent requests for a file after which
+     * it is loaded into the cache
+     * @param svc The executor to load files on, or null to load them
+     * synchronously
+     * @param ctrl Used to report errors
+     */
+    HotFileCache(long maxBytes, long maxFileSize, int admitAfter, ExecutorService svc, ApplicationControl ctrl) {
+        this.maxBytes = maxBytes;
+        // The weight limit is divided between segments, so don't bother
+        // holding anything that would dominate one
+        this.maxFileSize = Math.min(Math.min(maxFileSize, maxBytes / 8), Integer.MAX_VALUE / 2);
+        this.admitAfter = Math.max(1, admitAfter);
+        this.svc = svc;
+        this.ctrl = ctrl;
+        this.sketch = new FrequencySketch(maxBytes / Math.max(1024, this.maxFileSize / 4));
+        entries = CacheBuilder.newBuilder()
+                .concurrencyLevel(4)
+                .maximumWeight(maxBytes)
+                .weigher((VariantKey k, Entry v) -> v.weight())
+                .removalListener(this::onRemoval)
+                .build();
+    }
+
+    private void onRemoval(RemovalNotification<VariantKey, Entry> notification) {
+        if (notification.wasEvicted()) {
+            evictions.increment();
+        }
+        Entry entry = notification.getValue();
+        residentBytes.addAndGet(-entry.weight());
+        entry.release();
+    }
+
+    /**
+     * Get the cached content of a file, counting the request toward loading
+     * it if it is not cached.
+     *
+     * @param info The file
+     * @param compressible Whether a gzipped copy should be kept too
+     * @return An entry or null
+     */
+    Entry get(FileInfo info, boolean compressible) {
+        if (info.length() > maxFileSize) {
+            return null;
+        }
+        VariantKey key = key(info);
+        Entry result = entries.getIfPresent(key);
+        if (result != null) {
+            hits.increment();
+            return result;
+        }
+        misses.increment();
+        if (sketch.increment(key.hashCode()) >= admitAfter && loading.add(key)) {
+            if (svc == null) {
+                load(key, info.file, compressible);
+                result = entries.getIfPresent(key);
+            } else {
+                svc.submit(() -> load(key, info.file, compressible));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the cached content of a file, if present, without counting it as a
+     * request.
+     *
+     * @param info The file
+     * @return An entry or null
+     */
+    Entry getIfPresent(FileInfo info) {
+        return entries.getIfPresent(key(info));
+    }
+
+    private static VariantKey key(FileInfo info) {
+        return new VariantKey(info.file.getAbsolutePath(), info.attrs.fileKey(),
+                info.lastModified(), info.length());
+    }
+
+    private void load(VariantKey key, File file, boolean compressible) {
+        try {
+            ByteBuf identity = read(file, (int) key.size);
+            ByteBuf gzip = null;
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                if (attrs.lastModifiedTime().toMillis() != key.lastModified || attrs.size() != key.size) {
+                    // Modified while we were reading it
+                    identity.release();
+                    return;
+                }
+                if (compressible) {
+                    byte[] compressed = gzip(identity);
+                    if (compressed.length < key.size) {
+                        gzip = Unpooled.directBuffer(compressed.length).writeBytes(compressed);
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                identity.release();
+                throw ex;
+            }
+            Entry entry = new Entry(identity, gzip);
+            residentBytes.addAndGet(entry.weight());
+            admissions.increment();
+            entries.put(key, entry);
+        } catch (IOException ex) {
+            ctrl.internalOnError(ex);
+        } finally {
+            loading.remove(key);
+        }
+    }
+
+    private static ByteBuf read(File file, int length) throws IOException {
+        // Unpooled, so the memory is freed as soon as an evicted entry is no
+        // longer being written, and a released buffer is never recycled
+        // for something else while a duplicate of it might be taken
+        ByteBuf buf = Unpooled.directBuffer(length, length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (buf.isWritable()) {
+                if (buf.writeBytes(channel, buf.writerIndex(), buf.writableBytes()) < 0) {
+                    throw new IOException("Truncated while reading: " + file);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            buf.release();
+            throw ex;
+        }
+        return buf;
+    }
+
+    /**
+     * Gzip cached bytes the same way they would be if the cached copy had
+     * been evicted and they must be recompressed.
+     */
+    static byte[] gzip(ByteBuf bytes) throws IOException {
+        byte[] arr = new byte[bytes.readableBytes()];
+        bytes.getBytes(bytes.readerIndex(), arr);
+        return gzip(arr);
+    }
+
+    static byte[] gzip(byte[] bytes) throws IOException {
+        return new PrecompressionEncoders.Gzip().encode(bytes);
+    }
+
+    HotFileCacheStats stats() {
+        return new HotFileCacheStats(hits.sum(), misses.sum(), admissions.sum(), evictions.sum(),
+                residentBytes.get(), entries.size(), maxBytes);
+    }
+
+    void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * The cached content of one version of a file.
+     */
+    static final class Entry {
+
+        private final ByteBuf identity;
+        private final ByteBuf gzip;
+
+        Entry(ByteBuf identity, ByteBuf gzip) {
+            this.identity = identity;
+            this.gzip = gzip;
+        }
+
+        int weight() {
+            return identity.capacity() + (gzip == null ? 0 : gzip.capacity());
+        }
+
+        boolean hasGzip() {
+            return gzip != null;
+        }
+
+        long length(boolean gzipped) {
+            return gzipped ? gzip.readableBytes() : identity.readableBytes();
+        }
+
+        /**
+         * Get a duplicate of the content which the caller must release (the
+         * pipeline does so once it is written).
+         *
+         * @param gzipped Whether to get the gzipped content
+         * @return A buffer, or null if the entry was evicted and released in
+         * the meantime
+         */
+        ByteBuf content(boolean gzipped) {
+            try {
+                return (gzipped ? gzip : identity).retainedDuplicate();
+            } catch (IllegalReferenceCountException ex) {
+                return null;
+            }
+        }
+
+        int refCnt() {
+            return identity.refCnt();
+        }
+
+        void release() {
+            identity.release();
+            if (gzip != null) {
+                gzip.release();
+            }
+        }
+    }
+
+    /**
+     * Estimates how often keys have been seen recently, in a fixed amount of
+     * memory, using four-bit counters which are halved once enough
+     * increments have happened.
+     */
+    static final class FrequencySketch {
+
+        private static final int MAX_COUNT = 15;
+        private final byte[] counts;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedEntries) {
+            int size = Integer.highestOneBit((int) Math.max(256, Math.min(1 << 22, expectedEntries * 4)) - 1) << 1;
+            counts = new byte[size];
+            mask = size - 1;
+            sampleSize = size * 10;
+        }
+
+        /**
+         * Count an occurrence of a key.
+         *
+         * @param hash The key's hash code
+         * @return The estimated number of recent occurrences, including this
+         * one
+         */
+        synchronized int increment(int hash) {
+            int h1 = spread(hash);
+            int h2 = spread(h1 ^ 0x9E3779B9) | 1;
+            int min = MAX_COUNT;
+            for (int i = 0; i < 4; i++) {
+                min = Math.min(min, counts[(h1 + i * h2) & mask]);
+            }
+            if (min < MAX_COUNT) {
+                // Conservative update - only raise the counters which
+                // determine the estimate
+                for (int i = 0; i < 4; i++) {
+                    int ix = (h1 + i * h2) & mask;
+                    if (counts[ix] == min) {
+                        counts[ix]++;
+                    }
+                }
+            }
+            if (++additions >= sampleSize) {
+                additions = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] >>>= 1;
+                }
+            }
+            return Math.min(MAX_COUNT, min + 1);
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
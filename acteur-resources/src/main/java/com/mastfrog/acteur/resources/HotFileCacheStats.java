@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+/**
+ * A snapshot of the hit ratio and residency of the in-memory hot file cache
+ * of a DynamicFileResources.
+ *
+ * @see DynamicFileResources#hotCacheStats()
+ * @author Tim Boudreau
+ */
+public final class HotFileCacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long admissions;
+    private final long evictions;
+    private final long residentBytes;
+    private final long residentFiles;
+    private final long maxBytes;
+
+    HotFileCacheStats(long hits, long misses, long admissions, long evictions, long residentBytes, long residentFiles, long maxBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.admissions = admissions;
+        this.evictions = evictions;
+        this.residentBytes = residentBytes;
+        this.residentFiles = residentFiles;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The number of requests for files small enough to cache which were
+     * served from memory.
+     *
+     * @return The hit count
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * The number of requests for files small enough to cache which were not
+     * in memory.
+     *
+     * @return The miss count
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * The fraction of requests for cacheable files which were hits.
+     *
+     * @return A number between 0 and 1
+     */
+    public double hitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0D : (double) hits / total;
+    }
+
+    /**
+     * The number of times a file was loaded into the cache.
+     *
+     * @return The count
+     */
+    public long admissions() {
+        return admissions;
+    }
+
+    /**
+     * The number of files removed to make room for others.
+     *
+     * @return The count
+     */
+    public long evictions() {
+        return evictions;
+    }
+
+    /**
+     * The number of bytes, original plus gzipped, currently cached.
+     *
+     * @return The byte count
+     */
+    public long residentBytes() {
+        return residentBytes;
+    }
+
+    public long residentFiles() {
+        return residentFiles;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "HotFileCacheStats{hits=" + hits + ", misses=" + misses
+                + ", hitRatio=" + String.format("%.3f", hitRatio())
+                + ", admissions=" + admissions + ", evictions=" + evictions
+                + ", residentBytes=" + residentBytes + ", residentFiles=" + residentFiles
+                + ", maxBytes=" + maxBytes + "}";
+    }
+}
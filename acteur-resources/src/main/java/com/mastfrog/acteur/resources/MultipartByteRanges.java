@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.google.common.net.MediaType;
+import com.mastfrog.acteur.ResponseWriter;
+import com.mastfrog.acteur.headers.BoundedRange;
+import io.netty.buffer.Unpooled;
+import java.io.File;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A multipart/byteranges response body, where each part is a zero-copy
+ * FileRegion slice of the file, preceded by its part headers.
+ *
+ * @author Tim Boudreau
+ */
+final class MultipartByteRanges {
+
+    private final List<BoundedRange> ranges;
+    private final String boundary;
+    private final byte[][] partHeaders;
+    private final byte[] trailer;
+    private final long contentLength;
+
+    MultipartByteRanges(List<BoundedRange> ranges, MediaType partType) {
+        this.ranges = ranges;
+        boundary = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36)
+                + Long.toString(System.nanoTime(), 36);
+        partHeaders = new byte[ranges.size()][];
+        long len = 0;
+        for (int i = 0; i < partHeaders.length; i++) {
+            BoundedRange range = ranges.get(i);
+            StringBuilder sb = new StringBuilder(80);
+            if (i > 0) {
+                sb.append("\r\n");
+            }
+            sb.append("--").append(boundary).append("\r\n");
+            if (partType != null) {
+                sb.append("Content-Type: ").append(partType).append("\r\n");
+            }
+            sb.append("Content-Range: ").append(range).append("\r\n\r\n");
+            partHeaders[i] = sb.toString().getBytes(US_ASCII);
+            len += partHeaders[i].length + range.length();
+        }
+        trailer = ("\r\n--" + boundary + "--\r\n").getBytes(US_ASCII);
+        contentLength = len + trailer.length;
+    }
+
+    MediaType contentType() {
+        return MediaType.create("multipart", "byteranges").withParameter("boundary", boundary);
+    }
+
+    long contentLength() {
+        return contentLength;
+    }
+
+    void write(File file, ResponseWriter.Output out) throws Exception {
+        for (int i = 0; i < partHeaders.length; i++) {
+            BoundedRange range = ranges.get(i);
+            out.write(Unpooled.wrappedBuffer(partHeaders[i]));
+            out.write(file, range.start(), range.length());
+        }
+        out.write(Unpooled.wrappedBuffer(trailer));
+    }
+
+    static boolean isMultipartByteRanges(MediaType type) {
+        return type != null && "multipart".equals(type.type()) && "byteranges".equals(type.subtype());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import java.io.IOException;
+
+/**
+ * A content-coding which static resources can be compressed with once, when
+ * they are loaded, rather than on every request. Encoders are selected by
+ * name using the <code>classpath.resources.encodings</code> setting; besides
+ * the built-in <code>gzip</code>, <code>deflate</code> and <code>zstd</code>,
+ * additional ones can be registered in
+ * <code>META-INF/services/com.mastfrog.acteur.resources.PrecompressionEncoder</code>.
+ *
+ * @author Tim Boudreau
+ */
+public interface PrecompressionEncoder {
+
+    /**
+     * The content-coding token, as used in the Accept-Encoding and
+     * Content-Encoding headers.
+     *
+     * @return The name, in lower case
+     */
+    String name();
+
+    /**
+     * Determine if this encoder can be used in the current JVM - for example,
+     * an encoder which depends on a native library may not be.  Unavailable
+     * encoders are skipped, so clients get the next configured encoding.
+     *
+     * @return true if it is usable
+     */
+    default boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Compress some bytes.
+     *
+     * @param bytes The original content
+     * @return The encoded content
+     * @throws IOException If something goes wrong
+     */
+    byte[] encode(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.mastfrog.util.Strings;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Built-in precompression encoders, and Accept-Encoding negotiation.
+ *
+ * @author Tim Boudreau
+ */
+final class PrecompressionEncoders {
+
+    private PrecompressionEncoders() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Resolve a comma-delimited list of encoding names, in order of server
+     * preference, to the available encoders.
+     *
+     * @param names The names
+     * @return A list of encoders, possibly empty
+     */
+    static List<PrecompressionEncoder> forNames(String names) {
+        if (names == null || names.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<String, PrecompressionEncoder> all = new HashMap<>();
+        for (PrecompressionEncoder enc : new PrecompressionEncoder[]{new Gzip(), new Deflate(), new Zstd()}) {
+            all.put(enc.name(), enc);
+        }
+        for (PrecompressionEncoder enc : ServiceLoader.load(PrecompressionEncoder.class)) {
+            all.put(enc.name(), enc);
+        }
+        Map<String, PrecompressionEncoder> result = new LinkedHashMap<>();
+        for (String nm : names.split(",")) {
+            String name = nm.trim().toLowerCase();
+            if (name.isEmpty() || result.containsKey(name)) {
+                continue;
+            }
+            PrecompressionEncoder enc = all.get(name);
+            if (enc == null) {
+                throw new IllegalArgumentException("No precompression encoder named '" + name + "' in " + names);
+            }
+            if (enc.isAvailable()) {
+                result.put(name, enc);
+            } else {
+                Logger.getLogger(PrecompressionEncoders.class.getName()).log(Level.INFO,
+                        "Precompression encoder {0} not available; skipping it", name);
+            }
+        }
+        return new ArrayList<>(result.values());
+    }
+
+    /**
+     * Choose the content-coding to send, given the request's Accept-Encoding
+     * header and the encodings a resource is available in. The encoding with
+     * the highest q-value wins; ties go to whichever comes first in
+     * <code>available</code>.
+     *
+     * @param acceptEncoding The header value, or null
+     * @param available Encoding names, in order of server preference
+     * @return The name of an encoding, or null to send the identity encoding
+     */
+    static String negotiate(CharSequence acceptEncoding, Iterable<String> available) {
+        if (acceptEncoding == null || acceptEncoding.length() == 0) {
+            return null;
+        }
+        Map<String, Float> qualities = new HashMap<>(6);
+        for (CharSequence part : Strings.split(',', acceptEncoding)) {
+            String token = part.toString().trim();
+            float q = 1F;
+            int semi = token.indexOf(';');
+            if (semi >= 0) {
+                q = qValue(token.substring(semi + 1));
+                token = token.substring(0, semi).trim();
+            }
+            if (token.isEmpty()) {
+                continue;
+            }
+            token = token.toLowerCase();
+            if ("x-gzip".equals(token)) {
+                token = "gzip";
+            }
+            qualities.put(token, q);
+        }
+        Float star = qualities.get("*");
+        String best = null;
+        float bestQ = 0F;
+        for (String enc : available) {
+            Float q = qualities.get(enc);
+            if (q == null) {
+                q = star;
+            }
+            if (q != null && q > bestQ) {
+                best = enc;
+                bestQ = q;
+            }
+        }
+        Float identity = qualities.get("identity");
+        if (best != null && identity != null && identity > bestQ) {
+            return null;
+        }
+        return best;
+    }
+
+    private static float qValue(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=') {
+                try {
+                    float result = Float.parseFloat(param.substring(2).trim());
+                    return result < 0F || result > 1F ? 0F : result;
+                } catch (NumberFormatException ex) {
+                    return 0F;
+                }
+            }
+        }
+        return 1F;
+    }
+
+    static final class Gzip implements PrecompressionEncoder {
+
+        @Override
+        public String name() {
+            return "gzip";
+        }
+
+        @Override
+        public byte[] encode(byte[] bytes) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 20);
+            try (GZIPOutputStream gz = new GZIPOutputStream(out, 8192) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            }) {
+                gz.write(bytes);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    static final class Deflate implements PrecompressionEncoder {
+
+        @Override
+        public String name() {
+            return "deflate";
+        }
+
+        @Override
+        public byte[] encode(byte[] bytes) throws IOException {
+            // HTTP's "deflate" is the zlib format, not raw deflate
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, false);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 20);
+            try (DeflaterOutputStream def = new DeflaterOutputStream(out, deflater, 8192)) {
+                def.write(bytes);
+            } finally {
+                deflater.end();
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Zstandard, using zstd-jni if it is on the classpath and its native
+     * library loads; otherwise unavailable, so the next configured encoding
+     * is used instead.
+     */
+    static final class Zstd implements PrecompressionEncoder {
+
+        private static final int LEVEL = 19;
+        private static final Method COMPRESS = findCompressMethod();
+
+        private static Method findCompressMethod() {
+            try {
+                Class<?> type = Class.forName("com.github.luben.zstd.Zstd");
+                Method result = type.getMethod("compress", byte[].class, int.class);
+                // Fail now, not on the first resource, if the native
+                // library cannot be loaded
+                result.invoke(null, new byte[1], 1);
+                return result;
+            } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+                    | InvocationTargetException | LinkageError ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public String name() {
+            return "zstd";
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return COMPRESS != null;
+        }
+
+        @Override
+        public byte[] encode(byte[] bytes) throws IOException {
+            if (COMPRESS == null) {
+                throw new IOException("zstd-jni not available");
+            }
+            try {
+                return (byte[]) COMPRESS.invoke(null, bytes, LEVEL);
+            } catch (IllegalAccessException ex) {
+                throw new IOException(ex);
+            } catch (InvocationTargetException ex) {
+                throw new IOException(ex.getCause());
+            }
+        }
+    }
+}
@@ -48,5 +48,15 @@ public interface Resource {
     void attachBytes(HttpEvent evt, Response response, boolean chunked) throws Exception;
 
     MediaType getContentType();
-    
+
+    /**
+     * Get a string which changes whenever the content of this resource does,
+     * such as a hash of its bytes, from which a fingerprinted URL for it can
+     * be constructed. See {@link AssetFingerprints}.
+     *
+     * @return A string, or null if this resource cannot provide one
+     */
+    default String fingerprint() {
+        return null;
+    }
 }
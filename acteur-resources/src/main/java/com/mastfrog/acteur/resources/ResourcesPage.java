@@ -30,6 +30,7 @@ import com.mastfrog.acteur.ActeurFactory;
 import com.mastfrog.acteur.CheckIfModifiedSinceHeader;
 import com.mastfrog.acteur.CheckIfNoneMatchHeader;
 import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.BoundedRange;
 import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.Response;
@@ -37,9 +38,11 @@ import com.mastfrog.acteur.headers.Method;
 import com.mastfrog.acteur.preconditions.Description;
 import com.mastfrog.acteur.preconditions.Methods;
 import com.mastfrog.acteur.resources.Resource;
+import com.mastfrog.acteur.util.CacheControl;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.url.Path;
 import static io.netty.handler.codec.http.HttpResponseStatus.PARTIAL_CONTENT;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
 import java.net.URLDecoder;
 import java.time.ZonedDateTime;
 import java.util.regex.Matcher;
@@ -89,52 +92,80 @@ public class ResourcesPage extends Page {
                 }
             }
             path = URLDecoder.decode(path, "UTF-8");
+            Resource found = null;
+            boolean immutable = false;
+            if (settings.getBoolean(AssetFingerprints.SETTINGS_KEY_FINGERPRINTS_ENABLED, true)) {
+                String[] nameAndFingerprint = AssetFingerprints.split(path);
+                if (nameAndFingerprint != null) {
+                    Resource r = res.get(nameAndFingerprint[0]);
+                    if (r != null && nameAndFingerprint[1].equals(AssetFingerprints.fingerprint(r))) {
+                        path = nameAndFingerprint[0];
+                        found = r;
+                        immutable = true;
+                    } else if (r != null && res.get(path) == null) {
+                        // A stale fingerprint, e.g. in a page rendered before
+                        // a deployment, is served as a plain request for the
+                        // current content
+                        path = nameAndFingerprint[0];
+                        found = r;
+                    }
+                }
+            }
             String[] patterns = res.getPatterns();
             if (patterns != null) {
                 for (String pat : res.getPatterns()) {
                     if (path.equals(pat)) {
-                        Resource r = res.get(path);
+                        Resource r = found != null ? found : res.get(path);
                         if (r == null) {
                             reject();
                             return;
                         } else {
-                            r.decorateResponse(evt, path, response(), chunked);
-                            MediaType mimeType = r.getContentType();
-                            if (mimeType != null) {
-                                ZonedDateTime dt = policy.get(mimeType, Path.parse(path));
-                                if (dt != null) {
-                                    add(Headers.EXPIRES, dt);
-                                }
-                            }
-                            next(r);
+                            serve(r, evt, path, policy, immutable);
                             return;
                         }
                     }
                 }
             } else {
-                Resource r = res.get(path);
+                Resource r = found != null ? found : res.get(path);
                 if (r != null) {
-                    r.decorateResponse(evt, path, response(), chunked);
-                    MediaType mimeType = r.getContentType();
-                    if (mimeType != null) {
-                        ZonedDateTime dt = policy.get(mimeType, Path.parse(path));
-                        if (dt != null) {
-                            add(Headers.EXPIRES, dt);
-                        }
-                    }
-                    next(r);
+                    serve(r, evt, path, policy, immutable);
                     return;
                 }
             }
             reject();
         }
+
+        private void serve(Resource r, HttpEvent evt, String path, ExpiresPolicy policy, boolean immutable) throws Exception {
+            r.decorateResponse(evt, path, response(), chunked);
+            if (immutable) {
+                // The URL changes if the content does, so it never needs
+                // to be revalidated
+                add(Headers.CACHE_CONTROL, CacheControl.PUBLIC_IMMUTABLE_MAX_AGE_1_YEAR);
+                add(Headers.EXPIRES, ZonedDateTime.now().plusYears(1));
+            } else {
+                MediaType mimeType = r.getContentType();
+                if (mimeType != null) {
+                    ZonedDateTime dt = policy.get(mimeType, Path.parse(path));
+                    if (dt != null) {
+                        add(Headers.EXPIRES, dt);
+                    }
+                }
+            }
+            next(r);
+        }
     }
 
     private static class BytesWriter extends Acteur {
 
         @Inject
         BytesWriter(HttpEvent evt, Resource r) throws Exception {
-            if (evt.header(Headers.RANGE) != null) {
+            // Only answer 206 if the resource actually honored the range - it
+            // may have ignored it, e.g. because If-Range did not match
+            BoundedRange range = get(Headers.CONTENT_RANGE);
+            if (range != null && range.isRangeNotSatisfiable()) {
+                reply(REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            } else if (range != null || MultipartByteRanges.isMultipartByteRanges(get(Headers.CONTENT_TYPE))) {
                 reply(PARTIAL_CONTENT);
             } else {
                 ok();
@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources.markup;
+
+import com.google.common.net.MediaType;
+import com.mastfrog.acteur.Event;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.Response;
+import com.mastfrog.acteur.ResponseWriter;
+import com.mastfrog.acteur.headers.HeaderValueType;
+import static com.mastfrog.acteur.headers.Headers.ACCEPT_ENCODING;
+import static com.mastfrog.acteur.headers.Headers.CACHE_CONTROL;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_ENCODING;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_LENGTH;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
+import static com.mastfrog.acteur.headers.Headers.ETAG;
+import static com.mastfrog.acteur.headers.Headers.EXPIRES;
+import static com.mastfrog.acteur.headers.Headers.LAST_MODIFIED;
+import static com.mastfrog.acteur.headers.Headers.VARY;
+import static com.mastfrog.acteur.headers.Method.HEAD;
+import static com.mastfrog.acteur.resources.DynamicFileResources.INTERNAL_COMPRESS_HEADER;
+import com.mastfrog.acteur.resources.ExpiresPolicy;
+import com.mastfrog.acteur.resources.MimeTypes;
+import com.mastfrog.acteur.resources.Resource;
+import com.mastfrog.acteur.resources.StaticResources;
+import com.mastfrog.acteur.util.CacheControl;
+import com.mastfrog.acteur.util.CacheControlTypes;
+import com.mastfrog.util.Streams;
+import com.mastfrog.util.Strings;
+import com.mastfrog.util.streams.HashingOutputStream;
+import com.mastfrog.util.time.TimeUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoField;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.xeustechnologies.jtar.TarEntry;
+import org.xeustechnologies.jtar.TarInputStream;
+
+/**
+ * Serves the entries of a tar.gz archive of markup directly from memory,
+ * indexed in a single sequential read of the archive, rather than unpacking
+ * it to disk. Etags and the gzipped form of each compressible entry are
+ * computed while reading, so nothing is compressed on a request thread.
+ *
+ * @author Tim Boudreau
+ */
+final class ArchiveResources implements StaticResources {
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final MimeTypes types;
+    private final ExpiresPolicy policy;
+
+    ArchiveResources(InputStream archive, MimeTypes types, ExpiresPolicy policy) throws IOException {
+        this.types = types;
+        this.policy = policy;
+        try (TarInputStream tar = new TarInputStream(new GZIPInputStream(archive, 65536))) {
+            TarEntry entry;
+            while ((entry = (TarEntry) tar.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = normalize(entry.getName());
+                long size = entry.getSize();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(size > 0 && size < Integer.MAX_VALUE ? (int) size : 512);
+                String hash;
+                try (HashingOutputStream hashOut = HashingOutputStream.sha1(bytes)) {
+                    Streams.copy(tar, hashOut, 8192);
+                    hash = hashOut.getHashAsString();
+                }
+                ZonedDateTime lastModified = TimeUtil.fromUnixTimestamp(entry.getModTime().getTime())
+                        .with(ChronoField.MILLI_OF_SECOND, 0);
+                byte[] content = bytes.toByteArray();
+                MediaType contentType = types.get(name);
+                ByteBuf compressed = types.shouldCompress(contentType) ? gzip(content) : null;
+                entries.put(name, new Entry(name, directBuffer(content), compressed, hash, lastModified, contentType));
+            }
+        }
+    }
+
+    static String normalize(String name) {
+        while (name.startsWith("./")) {
+            name = name.substring(2);
+        }
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        return name;
+    }
+
+    /**
+     * Get the gzipped bytes, or null if compressing does not make them
+     * smaller.
+     */
+    private static ByteBuf gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 20);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out, 8192) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gz.write(bytes);
+        }
+        return out.size() < bytes.length ? directBuffer(out.toByteArray()) : null;
+    }
+
+    private static ByteBuf directBuffer(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes);
+        buf.flip();
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(buf));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public Resource get(String path) {
+        return entries.get(normalize(path));
+    }
+
+    @Override
+    public String[] getPatterns() {
+        return null;
+    }
+
+    private final class Entry implements Resource {
+
+        private final String name;
+        private final ByteBuf bytes;
+        private final String hash;
+        private final ZonedDateTime lastModified;
+        private final MediaType contentType;
+        // Null if the type is not compressible or compressing does not make
+        // it smaller
+        private final ByteBuf compressed;
+
+        Entry(String name, ByteBuf bytes, ByteBuf compressed, String hash, ZonedDateTime lastModified, MediaType contentType) {
+            this.name = name;
+            this.bytes = bytes;
+            this.compressed = compressed;
+            this.hash = hash;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+        }
+
+        private ByteBuf body(HttpEvent evt) {
+            CharSequence acceptEncoding = evt.header(ACCEPT_ENCODING);
+            if (compressed != null && acceptEncoding != null
+                    && Strings.charSequenceContains(acceptEncoding, HttpHeaderValues.GZIP, true)) {
+                return compressed;
+            }
+            return bytes;
+        }
+
+        @Override
+        public void decorateResponse(HttpEvent evt, String path, Response response, boolean chunked) {
+            String ua = evt.header("User-Agent");
+            if (ua != null && !ua.contains("MSIE")) {
+                response.add(VARY, new HeaderValueType<?>[]{ACCEPT_ENCODING});
+            }
+            ZonedDateTime expires = policy.get(contentType, evt.path());
+            Duration maxAge = expires == null ? Duration.ofHours(2)
+                    : Duration.between(ZonedDateTime.now(), expires);
+            response.add(CACHE_CONTROL, new CacheControl(CacheControlTypes.Public, CacheControlTypes.must_revalidate)
+                    .add(CacheControlTypes.max_age, maxAge))
+                    .add(LAST_MODIFIED, lastModified)
+                    .add(ETAG, hash);
+            if (expires != null) {
+                response.add(EXPIRES, expires);
+            }
+            if (contentType != null) {
+                response.add(CONTENT_TYPE, contentType);
+            }
+            // We do our own compression
+            response.add(INTERNAL_COMPRESS_HEADER, "true");
+            if (evt.method() != HEAD) {
+                ByteBuf body = body(evt);
+                if (body != bytes) {
+                    response.add(CONTENT_ENCODING, HttpHeaderValues.GZIP.toString());
+                }
+                response.add(CONTENT_LENGTH, (long) body.readableBytes());
+            }
+            response.chunked(false);
+        }
+
+        @Override
+        public void attachBytes(HttpEvent evt, Response response, boolean chunked) {
+            if (evt.method() == HEAD) {
+                return;
+            }
+            ByteBuf body = body(evt);
+            response.contentWriter(new ResponseWriter() {
+                @Override
+                public ResponseWriter.Status write(Event<?> evt, ResponseWriter.Output out, int iteration) throws Exception {
+                    // Unreleasable, so a duplicate can be written any number
+                    // of times
+                    out.write(body.duplicate());
+                    return Status.DONE;
+                }
+            });
+        }
+
+        @Override
+        public MediaType getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String fingerprint() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + bytes.readableBytes() + " bytes)";
+        }
+    }
+}
@@ -6,32 +6,22 @@ import com.mastfrog.acteur.resources.ExpiresPolicy;
 import com.mastfrog.acteur.resources.FileResources;
 import com.mastfrog.acteur.resources.MimeTypes;
 import com.mastfrog.acteur.resources.StaticResources;
+import com.mastfrog.acteur.server.ServerModule;
 import com.mastfrog.acteur.spi.ApplicationControl;
 import com.mastfrog.giulius.DeploymentMode;
 import com.mastfrog.giulius.ShutdownHookRegistry;
 import com.mastfrog.settings.Settings;
-import com.mastfrog.util.Streams;
-import com.mastfrog.util.strings.RandomStrings;
 import io.netty.buffer.ByteBufAllocator;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.ProtectionDomain;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Set;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ExecutorService;
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
-import org.xeustechnologies.jtar.TarEntry;
-import org.xeustechnologies.jtar.TarInputStream;
 
 /**
  * Looks up static html files to be served by acteur-resources and provides an
@@ -56,12 +46,8 @@ import org.xeustechnologies.jtar.TarInputStream;
  * will look for <code>html-files.tar.gz</code> in that package, or you can set
  * the name using the settings key SETTINGS_KEY_HTML_ARCHIVE_TAR_GZ_NAME
  * ("archive.tar.gz.name") - the file <em>must</em> have a <code>.tar.gz</code>
- * extension. If that is found:
- * <ul>
- * <li>Create a directory <code>html-$RANDOM_ID</code> in the system temporary
- * directory</li>
- * <li>Unpack the archive there and serve those files</li>
- * </ul>
+ * extension. If that is found, it is read once into memory and its entries
+ * are served directly from there, without unpacking it to disk.
  * If no archive is found and no place to serve files from as found an
  * IOException will be thrown (if you want to make serving files optional, don't
  * bind StaticResources or add ResourcePage to your application - do that
@@ -107,7 +93,8 @@ public class MarkupFiles implements Provider<StaticResources> {
 
     @Inject
     @SuppressWarnings("unchecked")
-    public MarkupFiles(@Named(GUICE_BINDING_CLASS_RELATIVE_MARKUP) Class type, Settings settings, MimeTypes types, DeploymentMode mode, ByteBufAllocator allocator, ExpiresPolicy policy, ShutdownHookRegistry onShutdown, ApplicationControl ctrl) throws Exception {
+    public MarkupFiles(@Named(GUICE_BINDING_CLASS_RELATIVE_MARKUP) Class type, Settings settings, MimeTypes types, DeploymentMode mode, ByteBufAllocator allocator, ExpiresPolicy policy, ShutdownHookRegistry onShutdown, ApplicationControl ctrl,
+            @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService svc) throws Exception {
         String jarRelativeFolderName = settings.getString(SETTINGS_KEY_JAR_RELATIVE_FOLDER_NAME, DEFAULT_JAR_RELATIVE_FOLDER_NAME);
         // Find where we're running from and try to look up ../html
         File file = findFolderRelativeToJAR(type, jarRelativeFolderName);
@@ -123,14 +110,12 @@ public class MarkupFiles implements Provider<StaticResources> {
             }
         }
         boolean dynResources = file != null || settings.getBoolean(SETTINGS_KEY_USE_DYN_FILE_RESOURCES, DEFAULT_USE_DYN_FILE_RESOURCES);
-        // If that fails, unpack the embedded archive of html into a unique
-        // subdir of /tmp and serve from there
+        // If that fails, serve the embedded archive of html from memory
         if (file == null) {
             String archiveName = settings.getString(SETTINGS_KEY_HTML_ARCHIVE_TAR_GZ_NAME, DEFAULT_HTML_ARCHIVE_TAR_GZ_NAME);
-            file = unpackMarkupArchive(type, archiveName, onShutdown, ctrl);
-        }
-        if (dynResources) {
-            resources = new DynamicFileResources(file, types, policy, ctrl, allocator, settings);
+            resources = loadMarkupArchive(type, archiveName, types, policy);
+        } else if (dynResources) {
+            resources = new DynamicFileResources(file, types, policy, ctrl, allocator, settings, svc, onShutdown);
         } else {
             resources = new FileResources(file, types, mode, allocator, settings, policy);
         }
@@ -159,104 +144,30 @@ public class MarkupFiles implements Provider<StaticResources> {
             if (result != null) {
                 System.err.println("Using markup files in " + result.getAbsolutePath());
             } else {
-                System.err.println("No markup files folder found - unpacking embedded markup tarball");
+                System.err.println("No markup files folder found - serving embedded markup tarball");
             }
         }
         return result;
     }
 
-    private File unpackMarkupArchive(Class<?> relativeTo, String archiveName, ShutdownHookRegistry onShutdown, ApplicationControl ctrl) throws IOException, FileNotFoundException {
-        File tmp = new File(System.getProperty("java.io.tmpdir"));
-        String uniq = new RandomStrings().get(7) + "-" + Long.toString(System.currentTimeMillis(), 36);
+    private StaticResources loadMarkupArchive(Class<?> relativeTo, String archiveName, MimeTypes types, ExpiresPolicy policy) throws IOException {
         if (!archiveName.endsWith(".tar.gz")) {
             archiveName += ".tar.gz";
         }
-        File destDir = new File(tmp, "html-" + uniq);
-        if (Boolean.getBoolean("acteur.debug")) {
-            System.err.println("Decompressing markup archive to " + destDir);
-        }
         try (InputStream in = relativeTo.getResourceAsStream(archiveName)) {
             if (in == null) {
                 throw new IOException("Markup files missing from archive: " + archiveName + " in " + relativeTo.getPackage().getName().replace('.', '/'));
             }
-            if (!destDir.mkdirs()) {
-                throw new IOException("Could not create " + destDir.getAbsolutePath());
-            }
-            List<File> untarred = unTar(in, destDir);
-            if (!untarred.isEmpty()) {
-                try {
-                    onShutdown.add(new MarkupDeleter(destDir, untarred));
-                } catch (Exception e) {
-                    ctrl.internalOnError(e);
-                }
+            ArchiveResources result = new ArchiveResources(in, types, policy);
+            if (Boolean.getBoolean("acteur.debug")) {
+                System.err.println("Serving " + result.size() + " markup files from " + archiveName);
             }
+            return result;
         }
-        return destDir;
     }
 
     @Override
     public StaticResources get() {
         return resources;
     }
-
-    private List<File> unTar(InputStream raw, final File outputDir) throws FileNotFoundException, IOException {
-        final List<File> untarredFiles = new LinkedList<>();
-        GZIPInputStream is = new GZIPInputStream(raw);
-        try (TarInputStream debInputStream = new TarInputStream(is)) {
-            TarEntry entry;
-            while ((entry = (TarEntry) debInputStream.getNextEntry()) != null) {
-                final File outputFile = new File(outputDir, entry.getName());
-                if (entry.isDirectory()) {
-                    if (!outputFile.exists()) {
-                        if (!outputFile.mkdirs()) {
-                            throw new IllegalStateException(String.format("Couldn't create directory %s.", outputFile.getAbsolutePath()));
-                        }
-                    }
-                } else {
-                    try (OutputStream outputFileStream = new FileOutputStream(outputFile)) {
-                        Streams.copy(debInputStream, outputFileStream);
-                    }
-                    outputFile.setLastModified(entry.getModTime().getTime());
-                }
-                untarredFiles.add(outputFile);
-            }
-        }
-        return untarredFiles;
-    }
-
-    static class MarkupDeleter implements Runnable {
-
-        private final File markupDir;
-        private final Set<File> files;
-
-        public MarkupDeleter(File markupDir, List<File> files) {
-            this.markupDir = markupDir;
-            this.files = new HashSet<>(files);
-        }
-
-        @Override
-        public void run() {
-            if (Boolean.getBoolean("acteur.debug")) {
-                System.err.println("Deleting unarchived markup in " + markupDir);
-            }
-            delete(markupDir);
-        }
-
-        private void delete(File file) {
-            if (file.isFile()) {
-                if (files.contains(file)) {
-                    if (!file.delete()) {
-                        if (Boolean.getBoolean("acteur.debug")) {
-                            System.err.println("Could not delete " + file);
-                        }
-                    }
-                }
-            } else if (file.isDirectory()) {
-                for (File f : file.listFiles()) {
-                    delete(f);
-                }
-                file.delete();
-            }
-        }
-    }
 }
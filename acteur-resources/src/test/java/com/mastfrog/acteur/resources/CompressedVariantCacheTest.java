@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.mastfrog.acteur.resources.CompressedVariantCache.FileVariant;
+import com.mastfrog.acteur.resources.CompressedVariantCache.Variant;
+import com.mastfrog.util.Streams;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class CompressedVariantCacheTest {
+
+    private File dir;
+    private File file;
+    private String content;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("variants").toFile();
+        file = new File(dir, "script.js");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("function f").append(i).append("() { return ").append(i).append("; }\n");
+        }
+        content = sb.toString();
+        Streams.writeString(content, file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        File[] kids = dir.listFiles();
+        if (kids != null) {
+            for (File f : kids) {
+                if (f.isDirectory()) {
+                    for (File k : f.listFiles()) {
+                        Files.delete(k.toPath());
+                    }
+                }
+                Files.delete(f.toPath());
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+
+    private BasicFileAttributes attrs(File f) throws IOException {
+        return Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+    }
+
+    private String gunzip(File f) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new FileInputStream(f))) {
+            return Streams.readString(in);
+        }
+    }
+
+    @Test
+    public void testInMemoryVariant() throws IOException {
+        CompressedVariantCache cache = new CompressedVariantCache(1024 * 1024, null, true, null, null);
+        Variant v = cache.variant(file, attrs(file));
+        assertNotNull(v);
+        assertTrue(v.length() > 0 && v.length() < file.length());
+        assertTrue(v == cache.variant(file, attrs(file)));
+
+        File tiny = new File(dir, "tiny.js");
+        Streams.writeString("x", tiny);
+        assertNull("Compressing a tiny file only makes it bigger", cache.variant(tiny, attrs(tiny)));
+    }
+
+    @Test
+    public void testDiskVariantIsBuiltInBackgroundAndPersists() throws Exception {
+        File cacheDir = new File(dir, "cache");
+        ExecutorService svc = Executors.newSingleThreadExecutor();
+        CompressedVariantCache cache = new CompressedVariantCache(1024 * 1024, cacheDir, true, svc, null);
+        assertNull("Should not block on compression", cache.variant(file, attrs(file)));
+        svc.shutdown();
+        assertTrue(svc.awaitTermination(30, TimeUnit.SECONDS));
+        Variant v = cache.variant(file, attrs(file));
+        assertTrue(String.valueOf(v), v instanceof FileVariant);
+        File compressed = ((FileVariant) v).file();
+        assertEquals(cacheDir, compressed.getParentFile());
+        assertEquals(content, gunzip(compressed));
+
+        // A fresh cache over the same directory should find it without
+        // compressing again
+        CompressedVariantCache restarted = new CompressedVariantCache(1024 * 1024, cacheDir, true, null, null);
+        Variant v2 = restarted.variant(file, attrs(file));
+        assertTrue(v2 instanceof FileVariant);
+        assertEquals(compressed, ((FileVariant) v2).file());
+    }
+
+    @Test
+    public void testStaleDiskVariantIsDeleted() throws Exception {
+        File cacheDir = new File(dir, "cache");
+        CompressedVariantCache cache = new CompressedVariantCache(1024 * 1024, cacheDir, false, null, null);
+        Variant v = cache.variant(file, attrs(file));
+        assertTrue(String.valueOf(v), v instanceof FileVariant);
+        File old = ((FileVariant) v).file();
+
+        String updated = content + content;
+        Streams.writeString(updated, file);
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        Variant v2 = cache.variant(file, attrs(file));
+        assertTrue(String.valueOf(v2), v2 instanceof FileVariant);
+        File current = ((FileVariant) v2).file();
+        assertNotEquals(old, current);
+        assertFalse("Variant for the old version was not deleted", old.exists());
+        assertEquals(updated, gunzip(current));
+        assertArrayEquals(new String[]{current.getName()}, cacheDir.list());
+    }
+
+    @Test
+    public void testGzSiblingIsUsed() throws IOException {
+        File sibling = new File(dir, "script.js.gz");
+        Streams.writeString("not really gzip", sibling);
+        assertTrue(sibling.setLastModified(file.lastModified() + 1000));
+        CompressedVariantCache cache = new CompressedVariantCache(1024 * 1024, null, true, null, null);
+        Variant v = cache.variant(file, attrs(file));
+        assertTrue(v instanceof FileVariant);
+        assertEquals(sibling, ((FileVariant) v).file());
+        assertEquals(sibling.length(), v.length());
+
+        // A stale sibling is ignored
+        assertTrue(sibling.setLastModified(file.lastModified() - 10000));
+        v = cache.variant(file, attrs(file));
+        assertTrue(String.valueOf(v), v instanceof CompressedVariantCache.BufferVariant);
+    }
+}
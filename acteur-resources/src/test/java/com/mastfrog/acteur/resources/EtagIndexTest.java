@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.mastfrog.acteur.resources.DynamicFileResources.FileInfo;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class EtagIndexTest {
+
+    private File dir;
+    private File index;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("etags").toFile();
+        index = new File(dir, "etags.idx");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                Files.delete(f.toPath());
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+
+    private FileInfo write(String name, String text) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), text.getBytes(UTF_8));
+        return FileInfo.load(file);
+    }
+
+    @Test
+    public void testHashesArePersisted() throws IOException {
+        FileInfo info = write("a.css", "body { color: red; }");
+        EtagIndex etags = new EtagIndex(100, 60, index, null, null);
+        String hash = etags.hash(info);
+        assertNotNull(hash);
+        assertEquals(hash, etags.hash(info));
+        List<String> lines = Files.readAllLines(index.toPath(), UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).startsWith(hash + '\t'));
+
+        // An executor which never runs anything - a hash can only come from the index
+        ExecutorService never = Executors.newSingleThreadExecutor();
+        never.shutdown();
+        EtagIndex reloaded = new EtagIndex(100, 60, index, never, null);
+        assertEquals(hash, reloaded.hash(info));
+        assertEquals(1, Files.readAllLines(index.toPath(), UTF_8).size());
+    }
+
+    @Test
+    public void testModifiedFileIsRehashed() throws IOException, InterruptedException {
+        FileInfo info = write("b.js", "var x = 1;");
+        ExecutorService svc = Executors.newSingleThreadExecutor();
+        try {
+            EtagIndex etags = new EtagIndex(100, 60, index, svc, null);
+            assertNull("Hash should be computed in the background", etags.hash(info));
+            String hash = awaitHash(etags, info);
+
+            File file = info.file;
+            Files.write(file.toPath(), "var x = 23;".getBytes(UTF_8));
+            file.setLastModified(info.lastModified() + 5000);
+            FileInfo changed = FileInfo.load(file);
+            String newHash = awaitHash(etags, changed);
+            assertNotEquals(hash, newHash);
+
+            EtagIndex reloaded = new EtagIndex(100, 60, index, null, null);
+            assertEquals(newHash, reloaded.hash(changed));
+            assertEquals("Hash should have come from the index", 2,
+                    Files.readAllLines(index.toPath(), UTF_8).size());
+        } finally {
+            svc.shutdown();
+            svc.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testIndexIsCompactedWhileRunning() throws IOException {
+        FileInfo info = write("c.css", "p { margin: 0; }");
+        File file = info.file;
+        long modified = info.lastModified();
+        EtagIndex etags = new EtagIndex(100, 60, index, null, null);
+        String hash = null;
+        for (int i = 0; i < 100; i++) {
+            Files.write(file.toPath(), ("p { margin: " + i + "px; }").getBytes(UTF_8));
+            assertTrue(file.setLastModified(modified + (i + 1) * 1000L));
+            info = FileInfo.load(file);
+            hash = etags.hash(info);
+            assertNotNull(hash);
+        }
+        List<String> lines = Files.readAllLines(index.toPath(), UTF_8);
+        assertTrue("Index should have been compacted, but has " + lines.size() + " lines",
+                lines.size() <= 66);
+        assertTrue(lines.get(lines.size() - 1), lines.get(lines.size() - 1).startsWith(hash + '\t'));
+
+        EtagIndex reloaded = new EtagIndex(100, 60, index, null, null);
+        assertEquals(hash, reloaded.hash(info));
+    }
+
+    private String awaitHash(EtagIndex etags, FileInfo info) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            String result = etags.hash(info);
+            if (result != null) {
+                return result;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Hash never computed for " + info.file);
+    }
+}
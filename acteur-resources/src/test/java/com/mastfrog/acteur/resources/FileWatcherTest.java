@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.mastfrog.util.Streams;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.After;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class FileWatcherTest {
+
+    private Path dir;
+    private FileWatcher watcher;
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private final Set<String> created = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("watch");
+        Files.createDirectories(dir.resolve("sub"));
+        Streams.writeString("hello", dir.resolve("sub/a.txt").toFile());
+        watcher = FileWatcher.watch(dir, new FileWatcher.Listener() {
+            @Override
+            public void onChange(Path path, boolean isNew) {
+                String name = path.toString().replace(File.separatorChar, '/');
+                changed.add(name);
+                if (isNew) {
+                    created.add(name);
+                }
+            }
+
+            @Override
+            public void onOverflow() {
+                // do nothing
+            }
+        }, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        watcher.close();
+        Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+    }
+
+    private void await(Set<String> set, String name) throws InterruptedException {
+        // Some platforms poll rather than using native notifications
+        for (int i = 0; i < 300 && !set.contains(name); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(name + " not in " + set, set.contains(name));
+    }
+
+    @Test
+    public void testChangesAreReported() throws Exception {
+        Streams.writeString("goodbye", dir.resolve("sub/a.txt").toFile());
+        await(changed, "sub/a.txt");
+
+        Files.createDirectories(dir.resolve("other"));
+        await(created, "other");
+        Streams.writeString("new", dir.resolve("other/b.txt").toFile());
+        await(created, "other/b.txt");
+
+        changed.clear();
+        Files.delete(dir.resolve("sub/a.txt"));
+        await(changed, "sub/a.txt");
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.mastfrog.acteur.resources.DynamicFileResources.FileInfo;
+import com.mastfrog.acteur.resources.HotFileCache.FrequencySketch;
+import com.mastfrog.util.Streams;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class HotFileCacheTest {
+
+    private File dir;
+    private String content;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("hotfiles").toFile();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("body { margin: ").append(i).append("px; }\n");
+        }
+        content = sb.toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                Files.delete(f.toPath());
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+
+    private FileInfo write(String name, String text) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), text.getBytes(UTF_8));
+        return FileInfo.load(file);
+    }
+
+    @Test
+    public void testAdmittedAfterRepeatedRequests() throws IOException {
+        HotFileCache cache = new HotFileCache(1024 * 1024, 64 * 1024, 2, null, null);
+        FileInfo info = write("style.css", content);
+        assertNull("Admitted on first request", cache.get(info, true));
+        HotFileCache.Entry entry = cache.get(info, true);
+        assertNotNull("Not admitted after second request", entry);
+        assertTrue(entry.hasGzip());
+        assertEquals(content.length(), entry.length(false));
+        assertTrue(entry.length(true) < content.length());
+
+        ByteBuf identity = entry.content(false);
+        try {
+            assertEquals(content, identity.toString(UTF_8));
+        } finally {
+            identity.release();
+        }
+        ByteBuf gzipped = entry.content(true);
+        try {
+            assertEquals(content, gunzip(gzipped));
+        } finally {
+            gzipped.release();
+        }
+
+        assertNotNull(cache.get(info, true));
+        HotFileCacheStats stats = cache.stats();
+        assertEquals(1, stats.hits());
+        assertEquals(2, stats.misses());
+        assertEquals(1, stats.admissions());
+        assertEquals(1, stats.residentFiles());
+        assertEquals(content.length() + entry.length(true), stats.residentBytes());
+    }
+
+    @Test
+    public void testLargeAndIncompressibleFiles() throws IOException {
+        HotFileCache cache = new HotFileCache(1024 * 1024, 1024, 1, null, null);
+        assertNull(cache.get(write("big.css", content), true));
+        assertEquals("Files over the size limit should not count", 0, cache.stats().misses());
+
+        HotFileCache.Entry entry = cache.get(write("tiny.txt", "x"), true);
+        assertNotNull(entry);
+        assertFalse("Gzip of one byte cannot be smaller", entry.hasGzip());
+    }
+
+    @Test
+    public void testModifiedFileIsNewEntry() throws IOException {
+        HotFileCache cache = new HotFileCache(1024 * 1024, 64 * 1024, 1, null, null);
+        FileInfo info = write("app.js", content);
+        assertNotNull(cache.get(info, false));
+        FileInfo changed = write("app.js", content + "// more\n");
+        HotFileCache.Entry entry = cache.get(changed, false);
+        assertNotNull(entry);
+        assertFalse(entry.hasGzip());
+        assertEquals(content.length() + 8, entry.length(false));
+    }
+
+    @Test
+    public void testEvictedEntriesAreReleased() throws IOException {
+        // Each of the cache's four segments has room for four files
+        HotFileCache cache = new HotFileCache(content.length() * 16, content.length(), 1, null, null);
+        HotFileCache.Entry first = cache.get(write("a.css", content), false);
+        assertNotNull(first);
+        ByteBuf held = first.content(false);
+        for (int i = 0; i < 20; i++) {
+            cache.get(write("b" + i + ".css", content), false);
+        }
+        cache.invalidateAll();
+        assertNull("Released entry should not hand out buffers", first.content(false));
+        // A duplicate taken before eviction stays readable until released
+        assertEquals(content, held.toString(UTF_8));
+        assertTrue(held.release());
+        assertTrue(cache.stats().evictions() > 0);
+        assertEquals(0, cache.stats().residentBytes());
+    }
+
+    @Test
+    public void testSketchAgesCounts() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        assertEquals(1, sketch.increment(42));
+        assertEquals(2, sketch.increment(42));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(42);
+        }
+        assertEquals("Counts should saturate", 15, sketch.increment(42));
+        // Enough other keys to trigger halving
+        for (int i = 0; i < 256 * 10; i++) {
+            sketch.increment(100000 + i);
+        }
+        assertTrue(sketch.increment(42) < 15);
+    }
+
+    private static String gunzip(ByteBuf buf) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteBufInputStream(buf.duplicate()))) {
+            Streams.copy(in, out);
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
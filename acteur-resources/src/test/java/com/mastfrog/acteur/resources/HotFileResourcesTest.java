@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import static com.mastfrog.acteur.headers.Headers.ETAG;
+import static com.mastfrog.acteur.headers.Headers.IF_NONE_MATCH;
+import com.mastfrog.acteur.resources.ResourcesApp.HotDynFileResourcesModule;
+import com.mastfrog.acteur.resources.ResourcesApp.NoCompression;
+import static com.mastfrog.acteur.resources.ResourcesApp.tmpdir;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.netty.http.test.harness.TestHarness;
+import com.mastfrog.netty.http.test.harness.TestHarnessModule;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import java.io.File;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that serving a file from the hot file cache, or answering a
+ * conditional request for one, leaves no extra reference to its bytes.
+ *
+ * @author Tim Boudreau
+ */
+@RunWith(GuiceRunner.class)
+@TestWith({TestHarnessModule.class, HotDynFileResourcesModule.class, NoCompression.class})
+public class HotFileResourcesTest {
+
+    private static final String NAME = "hot.css";
+    private static File file;
+    private static String content;
+
+    @BeforeClass
+    public static void setUpFile() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("body { margin: ").append(i).append("px; }\n");
+        }
+        content = sb.toString();
+        tmpdir.mkdirs();
+        file = new File(tmpdir, NAME);
+        Files.write(file.toPath(), content.getBytes(UTF_8));
+    }
+
+    @AfterClass
+    public static void deleteFile() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Test(timeout = 20000L)
+    public void testConditionalRequestsDoNotRetainContent(TestHarness har, DynamicFileResources resources) throws Throwable {
+        CharSequence etag = har.get("static/" + NAME).go().await()
+                .assertStatus(OK)
+                .assertContent(content)
+                .getHeader(ETAG);
+        assertNotNull(etag);
+        while (resources.hotEntry(NAME) == null) {
+            Thread.sleep(20);
+        }
+        HotFileCache.Entry entry = resources.hotEntry(NAME);
+        int baseline = entry.refCnt();
+
+        for (int i = 0; i < 5; i++) {
+            har.get("static/" + NAME)
+                    .addHeader(IF_NONE_MATCH, etag)
+                    .go().await()
+                    .assertStatus(NOT_MODIFIED);
+        }
+        assertEquals("304 responses should not retain the cached bytes", baseline, entry.refCnt());
+
+        har.get("static/" + NAME).go().await()
+                .assertStatus(OK)
+                .assertContent(content);
+        // The buffer is released once the write completes, which may be
+        // just after the client has the response
+        while (entry.refCnt() != baseline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, resources.hotCacheStats().residentFiles());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests that resources loaded lazily stay loaded, however large they are
+ * relative to the cache size.
+ *
+ * @author Tim Boudreau
+ */
+public class LazyClasspathResourcesTest {
+
+    @Test
+    public void testLargeResourceIsNotReloaded() throws Exception {
+        // large.txt is about 20k - more than a quarter of the cache size, but
+        // less than all of it
+        ClasspathResources res = resources(40000);
+        String hash = res.get("large.txt").fingerprint();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(hash, res.get("large.txt").fingerprint());
+        }
+        assertEquals(1, res.lazyLoads());
+    }
+
+    @Test
+    public void testResourceLargerThanCacheIsPinned() throws Exception {
+        ClasspathResources res = resources(1000);
+        String hash = res.get("large.txt").fingerprint();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(hash, res.get("large.txt").fingerprint());
+        }
+        assertEquals(1, res.lazyLoads());
+    }
+
+    private static ClasspathResources resources(long maxBytes) throws Exception {
+        return new ClasspathResources(new MimeTypes(), new ClasspathResourceInfo(ResourcesApp.class, "large.txt"),
+                DeploymentMode.DEVELOPMENT, UnpooledByteBufAllocator.DEFAULT, new SettingsBuilder()
+                .add(ClasspathResources.SETTINGS_KEY_LAZY, true)
+                .add(ClasspathResources.SETTINGS_KEY_LAZY_CACHE_MAX_BYTES, maxBytes)
+                .build());
+    }
+}
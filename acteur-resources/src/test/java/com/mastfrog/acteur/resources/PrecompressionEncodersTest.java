@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources;
+
+import com.mastfrog.util.Streams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class PrecompressionEncodersTest {
+
+    private static final List<String> AVAILABLE = Arrays.asList("zstd", "gzip", "deflate");
+
+    @Test
+    public void testNegotiation() {
+        assertNull(PrecompressionEncoders.negotiate(null, AVAILABLE));
+        assertNull(PrecompressionEncoders.negotiate("", AVAILABLE));
+        assertNull(PrecompressionEncoders.negotiate("br", AVAILABLE));
+        assertEquals("gzip", PrecompressionEncoders.negotiate("gzip", AVAILABLE));
+        assertEquals("gzip", PrecompressionEncoders.negotiate("x-gzip", AVAILABLE));
+        // Ties go to server preference order
+        assertEquals("zstd", PrecompressionEncoders.negotiate("gzip, deflate, zstd", AVAILABLE));
+        assertEquals("gzip", PrecompressionEncoders.negotiate("gzip, deflate, br", AVAILABLE));
+        // Higher q-values win
+        assertEquals("deflate", PrecompressionEncoders.negotiate("gzip;q=0.5, deflate", AVAILABLE));
+        assertEquals("gzip", PrecompressionEncoders.negotiate("zstd;q=0.2, GZIP;Q=0.8", AVAILABLE));
+        // q=0 means not acceptable
+        assertEquals("deflate", PrecompressionEncoders.negotiate("zstd;q=0, gzip;q=0, *", AVAILABLE));
+        assertNull(PrecompressionEncoders.negotiate("gzip;q=0", AVAILABLE));
+        assertEquals("zstd", PrecompressionEncoders.negotiate("*", AVAILABLE));
+        assertNull(PrecompressionEncoders.negotiate("gzip;q=0.5, identity", AVAILABLE));
+        assertNull(PrecompressionEncoders.negotiate("gzip;q=bad", AVAILABLE));
+        assertNull(PrecompressionEncoders.negotiate("gzip", Arrays.asList()));
+    }
+
+    @Test
+    public void testEncodersRoundTrip() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("function f").append(i).append("() { return ").append(i).append("; }\n");
+        }
+        byte[] orig = sb.toString().getBytes(UTF_8);
+        List<PrecompressionEncoder> encoders = PrecompressionEncoders.forNames("gzip, deflate");
+        assertEquals(2, encoders.size());
+        assertEquals("gzip", encoders.get(0).name());
+        assertEquals("deflate", encoders.get(1).name());
+
+        byte[] gz = encoders.get(0).encode(orig);
+        assertTrue(gz.length < orig.length);
+        assertArrayEquals(orig, read(new GZIPInputStream(new ByteArrayInputStream(gz))));
+
+        byte[] deflated = encoders.get(1).encode(orig);
+        assertTrue(deflated.length < orig.length);
+        assertArrayEquals(orig, read(new InflaterInputStream(new ByteArrayInputStream(deflated))));
+    }
+
+    @Test
+    public void testUnavailableEncodersAreSkipped() {
+        boolean zstd = new PrecompressionEncoders.Zstd().isAvailable();
+        List<PrecompressionEncoder> encoders = PrecompressionEncoders.forNames("zstd,gzip");
+        assertEquals(zstd ? 2 : 1, encoders.size());
+        assertEquals("gzip", encoders.get(encoders.size() - 1).name());
+        assertTrue(PrecompressionEncoders.forNames("").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownEncoder() {
+        PrecompressionEncoders.forNames("gzip,lzma");
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream i = in) {
+            Streams.copy(i, out);
+        }
+        return out.toByteArray();
+    }
+}
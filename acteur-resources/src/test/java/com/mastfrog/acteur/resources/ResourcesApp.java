@@ -26,20 +26,27 @@ package com.mastfrog.acteur.resources;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.Scopes;
 import com.google.inject.Singleton;
 import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
 import com.mastfrog.acteur.Application;
+import com.mastfrog.acteur.FastPathResponder;
 import com.mastfrog.acteur.Event;
 import com.mastfrog.acteur.RequestLogger;
 import com.mastfrog.acteur.server.ServerModule;
 import com.mastfrog.acteur.util.RequestID;
+import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.settings.SettingsBuilder;
 import com.mastfrog.netty.http.client.HttpClient;
 import com.mastfrog.util.Exceptions;
 import com.mastfrog.util.strings.RandomStrings;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.File;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -114,6 +121,19 @@ public class ResourcesApp extends Application {
         }
     }
 
+    static class HotDynFileResourcesModule extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            install(new ServerModule<>(ResourcesApp.class));
+            bind(File.class).toInstance(tmpdir);
+            // One instance, so there is one hot file cache
+            bind(DynamicFileResources.class).in(Scopes.SINGLETON);
+            bind(StaticResources.class).to(DynamicFileResources.class);
+            bind(RequestLogger.class).to(SilentRequestLogger.class);
+        }
+    }
+
     static class FileResourcesModule extends AbstractModule {
 
         @Override
@@ -146,6 +166,50 @@ public class ResourcesApp extends Application {
         }
     }
 
+    static class FastPathClasspathResourcesModule extends ClasspathResourcesModule {
+
+        @Override
+        protected void configure() {
+            super.configure();
+            bind(FastPathResponder.class).to(ClasspathResources.class);
+        }
+    }
+
+    static class LazyClasspathResourcesModule extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            install(new ServerModule<>(ResourcesApp.class));
+            bind(StaticResources.class).toProvider(LazyClasspathResourcesProvider.class);
+            bind(ClasspathResourceInfo.class).toInstance(new ClasspathResourceInfo(ResourcesApp.class,
+                    "hello.txt", "another.txt"));
+            bind(RequestLogger.class).to(SilentRequestLogger.class);
+        }
+
+        @Singleton
+        static final class LazyClasspathResourcesProvider implements Provider<StaticResources> {
+
+            private final ClasspathResources resources;
+
+            @Inject
+            LazyClasspathResourcesProvider(MimeTypes types, ClasspathResourceInfo info, DeploymentMode mode, ByteBufAllocator alloc,
+                    @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService svc) throws Exception {
+                // Smaller than any entry, so they are held outside the cache
+                resources = new ClasspathResources(types, info, mode, alloc, new SettingsBuilder()
+                        .add(ClasspathResources.SETTINGS_KEY_LAZY, true)
+                        .add(ClasspathResources.SETTINGS_KEY_LAZY_CACHE_MAX_BYTES, 80)
+                        .add(ClasspathResources.SETTINGS_KEY_HOT_SET, "hello.txt")
+                        .add("internal.gzip", true)
+                        .build(), svc);
+            }
+
+            @Override
+            public StaticResources get() {
+                return resources;
+            }
+        }
+    }
+
     static class MergedResourcesModule extends AbstractModule {
 
         @Override
@@ -25,13 +25,17 @@ package com.mastfrog.acteur.resources;
 
 import com.mastfrog.acteur.headers.ByteRanges;
 import static com.mastfrog.acteur.headers.Headers.ACCEPT_RANGES;
+import static com.mastfrog.acteur.headers.Headers.CACHE_CONTROL;
 import static com.mastfrog.acteur.headers.Headers.CONTENT_RANGE;
 import static com.mastfrog.acteur.headers.Headers.ETAG;
 import static com.mastfrog.acteur.headers.Headers.IF_MODIFIED_SINCE;
 import static com.mastfrog.acteur.headers.Headers.IF_NONE_MATCH;
+import static com.mastfrog.acteur.headers.Headers.IF_RANGE;
 import static com.mastfrog.acteur.headers.Headers.LAST_MODIFIED;
 import static com.mastfrog.acteur.headers.Headers.RANGE;
 import com.mastfrog.acteur.resources.ResourcesApp.Compression;
+import com.mastfrog.acteur.util.CacheControl;
+import com.mastfrog.acteur.util.CacheControlTypes;
 import static com.mastfrog.acteur.resources.ResourcesApp.FILES;
 import com.mastfrog.acteur.resources.ResourcesApp.NoCompression;
 import static com.mastfrog.acteur.resources.ResourcesApp.STUFF;
@@ -43,7 +47,6 @@ import com.mastfrog.netty.http.test.harness.TestHarness;
 import com.mastfrog.netty.http.test.harness.TestHarness.CallResult;
 import com.mastfrog.netty.http.test.harness.TestHarnessModule;
 import com.mastfrog.util.Streams;
-import static io.netty.handler.codec.http.HttpResponseStatus.NOT_IMPLEMENTED;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpResponseStatus.PARTIAL_CONTENT;
@@ -73,6 +76,8 @@ import org.junit.runner.RunWith;
         iterate = {
             ResourcesApp.DynFileResourcesModule.class,
             ResourcesApp.ClasspathResourcesModule.class,
+            ResourcesApp.FastPathClasspathResourcesModule.class,
+            ResourcesApp.LazyClasspathResourcesModule.class,
             ResourcesApp.FileResourcesModule.class,
             ResourcesApp.FileResourcesModule2.class,
             ResourcesApp.MergedResourcesModule.class
@@ -214,9 +219,42 @@ public class StaticResourcesTest {
                     .assertContent("is another");
 
             ByteRanges compound = ByteRanges.builder().add(5, 15).add(25, 30).build();
-            har.get("static/another.txt")
+            CallResult multi = har.get("static/another.txt")
                     .addHeader(RANGE, compound)
-                    .go().await().assertStatus(NOT_IMPLEMENTED);
+                    .go().await().assertStatus(PARTIAL_CONTENT);
+            String body = multi.content();
+            assertTrue(body, body.contains("Content-Range: bytes 5-15/"));
+            assertTrue(body, body.contains("Content-Range: bytes 25-30/"));
+            assertTrue(body, body.contains("\r\n\r\nis another \r\n--"));
+            assertTrue(body, body.contains("\r\n\r\n has s\r\n--"));
+
+            CharSequence anotherEtag = cb.getHeader(ETAG);
+            // A stale If-Range validator means the whole file is sent
+            har.get("static/another.txt")
+                    .addHeader(RANGE, ByteRanges.of(1, 3))
+                    .addHeader(IF_RANGE, "\"not-the-etag\"")
+                    .go().await()
+                    .assertStatus(OK)
+                    .assertContent("This is another file.  It has some data in it.\n");
+            har.get("static/another.txt")
+                    .addHeader(RANGE, ByteRanges.of(1, 3))
+                    .addHeader(IF_RANGE, "\"" + anotherEtag + "\"")
+                    .go().await()
+                    .assertStatus(PARTIAL_CONTENT)
+                    .assertContent("his");
+        }
+        if (resources instanceof DynamicFileResources) {
+            // No range of an empty file is satisfiable, so it is sent whole
+            File empty = new File(tmpdir, "empty.txt");
+            if (!empty.exists()) {
+                assertTrue(empty.createNewFile());
+            }
+            String emptyContent = har.get("static/empty.txt")
+                    .addHeader(RANGE, ByteRanges.of(0, 3))
+                    .go().await()
+                    .assertStatus(OK)
+                    .content();
+            assertTrue(emptyContent, emptyContent == null || emptyContent.isEmpty());
         }
         if (resources instanceof ClasspathResources) {
             // should be server start time since that's all we know
@@ -254,4 +292,33 @@ public class StaticResourcesTest {
                 .go()
                 .assertStatus(OK);
     }
+
+    @TestWith(iterate = {Compression.class, NoCompression.class})
+    public void testFingerprintedNames(TestHarness har, AssetFingerprints fingerprints) throws Throwable {
+        String name = fingerprints.fingerprintedName("hello.txt");
+        assertTrue(name, name.startsWith("hello.") && name.endsWith(".txt"));
+        assertEquals(name, "hello.txt".length() + AssetFingerprints.FINGERPRINT_LENGTH + 1, name.length());
+        assertEquals("nothing.txt", fingerprints.fingerprintedName("nothing.txt"));
+
+        CacheControl cacheControl = har.get("static/" + name).go().await()
+                .assertStatus(OK)
+                .assertContent(HELLO_CONTENT)
+                .getHeader(CACHE_CONTROL);
+        assertNotNull(cacheControl);
+        assertTrue(cacheControl.toString(), cacheControl.contains(CacheControlTypes.immutable));
+
+        CacheControl plain = har.get("static/hello.txt").go().await()
+                .assertStatus(OK)
+                .getHeader(CACHE_CONTROL);
+        assertTrue(String.valueOf(plain), plain == null || !plain.contains(CacheControlTypes.immutable));
+
+        // A stale fingerprint gets the current content, revalidated as usual
+        CacheControl stale = har.get("static/hello.0123456789ab.txt").go().await()
+                .assertStatus(OK)
+                .assertContent(HELLO_CONTENT)
+                .getHeader(CACHE_CONTROL);
+        assertTrue(String.valueOf(stale), stale == null || !stale.contains(CacheControlTypes.immutable));
+
+        har.get("static/nothing.0123456789ab.txt").go().await().assertCode(404);
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.resources.markup;
+
+import com.google.common.net.MediaType;
+import com.mastfrog.acteur.resources.MimeTypes;
+import com.mastfrog.acteur.resources.Resource;
+import com.mastfrog.util.Streams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+import org.xeustechnologies.jtar.TarEntry;
+import org.xeustechnologies.jtar.TarOutputStream;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ArchiveResourcesTest {
+
+    private static byte[] archive(String... namesAndContents) throws IOException {
+        File dir = Files.createTempDirectory("ArchiveResourcesTest").toFile();
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (TarOutputStream tar = new TarOutputStream(new GZIPOutputStream(result))) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                File f = new File(dir, "f" + i);
+                Streams.writeString(namesAndContents[i + 1], f);
+                tar.putNextEntry(new TarEntry(f, namesAndContents[i]));
+                try (FileInputStream in = new FileInputStream(f)) {
+                    Streams.copy(in, tar);
+                }
+                Files.delete(f.toPath());
+            }
+        } finally {
+            Files.delete(dir.toPath());
+        }
+        return result.toByteArray();
+    }
+
+    @Test
+    public void testEntriesAreIndexed() throws IOException {
+        byte[] bytes = archive("./index.html", "<html>hello</html>", "js/app.js", "var x = 1;");
+        ArchiveResources res = new ArchiveResources(new ByteArrayInputStream(bytes), new MimeTypes(), null);
+        assertEquals(2, res.size());
+        Resource index = res.get("index.html");
+        assertNotNull(index);
+        assertEquals(MediaType.HTML_UTF_8.withoutParameters(), index.getContentType().withoutParameters());
+        assertNotNull(res.get("/js/app.js"));
+        assertNull(res.get("js/other.js"));
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("a/b.html", ArchiveResources.normalize("./a/b.html"));
+        assertEquals("a/b.html", ArchiveResources.normalize("/a/b.html"));
+        assertEquals("a/b.html", ArchiveResources.normalize("a/b.html"));
+    }
+}
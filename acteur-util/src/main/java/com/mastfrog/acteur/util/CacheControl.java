@@ -48,6 +48,12 @@ public final class CacheControl {
             = new CacheControl(Private, no_cache, no_store);
     public static CacheControl PUBLIC
             = new CacheControl(Public);
+    /**
+     * For content served at a URL which changes whenever the content does,
+     * such as a fingerprinted static asset.
+     */
+    public static CacheControl PUBLIC_IMMUTABLE_MAX_AGE_1_YEAR
+            = new CacheControl(Public, immutable).add(max_age, Duration.of(365, ChronoUnit.DAYS));
 
     public CacheControl(CacheControlTypes... types) {
         for (CacheControlTypes c : types) {
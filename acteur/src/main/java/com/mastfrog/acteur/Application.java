@@ -30,10 +30,13 @@ import com.google.common.net.MediaType;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.mastfrog.acteur.Acteur.WrapperActeur;
+import com.mastfrog.acteur.annotations.Cached;
+import com.mastfrog.acteur.annotations.Coalesced;
 import com.mastfrog.acteur.annotations.Concluders;
 import com.mastfrog.acteur.annotations.Early;
 import com.mastfrog.acteur.annotations.HttpCall;
 import com.mastfrog.acteur.annotations.Precursors;
+import com.mastfrog.acteur.annotations.ValidatedBy;
 import com.mastfrog.acteur.debug.Probe;
 import com.mastfrog.acteur.headers.HeaderValueType;
 import com.mastfrog.acteur.preconditions.Description;
@@ -128,6 +131,18 @@ public class Application implements Iterable<Page> {
     CORSResponseDecorator corsDecorator;
     @Inject(optional = true)
     private ResponseDecorator responseDecorator;
+    @Inject(optional = true)
+    private FastPathResponder fastPath;
+    private final boolean overridesResponseHooks = overridesResponseHooks(getClass());
+    @Inject
+    ResponseCache responseCache;
+    private boolean hasCachedPages;
+    @Inject
+    RequestCoalescer coalescer;
+    private boolean hasCoalescedPages;
+    @Inject
+    EarlyValidators validators;
+    private boolean hasValidatedPages;
 
     @Inject(optional = true)
     @Named("application.name")
@@ -137,6 +152,10 @@ public class Application implements Iterable<Page> {
     @Named("acteur.debug")
     private boolean debug = false;
 
+    @Inject(optional = true)
+    @Named(ServerModule.SETTINGS_KEY_AUTO_ETAGS)
+    boolean autoEtags = false;
+
     @Inject(optional = true)
     @Named(GUICE_BINDING_DEFAULT_CONTEXT_OBJECTS)
     private Object[] defaultContextObjects;
@@ -530,6 +549,9 @@ public class Application implements Iterable<Page> {
         } else {
             normalPageMatcher.add(page);
             pages.add(page);
+            hasCachedPages |= page.getAnnotation(Cached.class) != null;
+            hasCoalescedPages |= page.getAnnotation(Coalesced.class) != null;
+            hasValidatedPages |= page.getAnnotation(ValidatedBy.class) != null;
         }
     }
 
@@ -544,6 +566,9 @@ public class Application implements Iterable<Page> {
         } else {
             normalPageMatcher.add(page);
             pages.add(page);
+            hasCachedPages |= page.getClass().getAnnotation(Cached.class) != null;
+            hasCoalescedPages |= page.getClass().getAnnotation(Coalesced.class) != null;
+            hasValidatedPages |= page.getClass().getAnnotation(ValidatedBy.class) != null;
         }
     }
 
@@ -593,7 +618,6 @@ public class Application implements Iterable<Page> {
     private static final HeaderValueType<CharSequence> X_REQ_PATH = Headers.header(new AsciiString("X-Req-Path"));
     private static final HeaderValueType<CharSequence> X_ACTEUR = Headers.header(new AsciiString("X-Acteur"));
     private static final HeaderValueType<CharSequence> X_PAGE = Headers.header(new AsciiString("X-Page"));
-    private static final HeaderValueType<CharSequence> X_REQ_ID = Headers.header(new AsciiString("X-Req-ID"));
 
     HttpResponse _decorateResponse(RequestID id, Event<?> event, Page page, Acteur action, HttpResponse response) {
         Headers.write(Headers.SERVER, getName(), response);
@@ -604,7 +628,7 @@ public class Application implements Iterable<Page> {
             Headers.write(X_ACTEUR, action.getClass().getName(), response);
             Headers.write(X_PAGE, page.getClass().getName(), response);
         }
-        Headers.write(X_REQ_ID, id.stringValue(), response);
+        Headers.write(Headers.X_REQ_ID, id.stringValue(), response);
         if (corsEnabled) {
             corsDecorator.decorateApplicationResponse(response);
         }
@@ -721,6 +745,35 @@ public class Application implements Iterable<Page> {
         // Enter request scope with the id and the event
         try (QuietAutoCloseable cl = scope.enter(event, id)) {
             onBeforeEvent(id, event);
+            HttpResponseStatus status = null;
+            if (fastPath != null && event instanceof HttpEvent && !corsEnabled && responseDecorator == null
+                    && !overridesResponseHooks) {
+                status = fastPath.respond(id, (HttpEvent) event, channel, this);
+            }
+            boolean parked = false;
+            if (status == null && (hasCachedPages || hasValidatedPages || hasCoalescedPages)
+                    && event instanceof HttpEvent && !((HttpEvent) event).isPreContent()) {
+                HttpEvent evt = (HttpEvent) event;
+                // These only apply to the page which will be offered the request first
+                Class<?> pageType = firstMatchingPageType(evt);
+                if (pageType != null) {
+                    if (hasCachedPages) {
+                        status = responseCache.respond(id, evt, pageType, channel);
+                    }
+                    if (status == null && hasValidatedPages) {
+                        status = validators.respond(id, evt, pageType, channel, this);
+                    }
+                    parked = status == null && hasCoalescedPages && coalescer.join(id, evt, pageType, channel, this);
+                }
+            }
+            if (status != null || parked) {
+                if (status != null) {
+                    onBeforeRespond(id, event, status);
+                }
+                CountDownLatch latch = new CountDownLatch(1);
+                latch.countDown();
+                return latch;
+            }
             return runner.onEvent(id, event, channel, defaultContextObjects);
         } catch (Exception e) {
             internalOnError(e);
@@ -730,6 +783,39 @@ public class Application implements Iterable<Page> {
         }
     }
 
+    /**
+     * Determine if a subclass overrides any of the methods which expect to see
+     * every response the pages produce, in which case a FastPathResponder,
+     * which writes responses without them, must not be used.
+     */
+    private static boolean overridesResponseHooks(Class<?> type) {
+        for (Class<?> c = type; c != null && c != Application.class; c = c.getSuperclass()) {
+            for (java.lang.reflect.Method m : c.getDeclaredMethods()) {
+                switch (m.getName()) {
+                    case "decorateResponse":
+                    case "onAfterRespond":
+                    case "onBeforeSendResponse":
+                        return true;
+                    default:
+                        break;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run the pages for a request which was set aside, such as one waiting on
+     * a coalesced request which failed.
+     */
+    void runPages(RequestID id, Event<?> event, Channel channel) {
+        try (QuietAutoCloseable cl = scope.enter(event, id)) {
+            runner.onEvent(id, event, channel, defaultContextObjects);
+        } catch (Exception e) {
+            internalOnError(e);
+        }
+    }
+
     @SuppressWarnings({"unchecked", "ThrowableInstanceNotThrown", "ThrowableInstanceNeverThrown"})
     Dependencies getDependencies() {
         if (deps == null) {
@@ -751,6 +837,33 @@ public class Application implements Iterable<Page> {
         return filtered;
     }
 
+    /**
+     * Get the type of the page which will be offered a request first.
+     *
+     * @param evt The request
+     * @return A type or null
+     */
+    Class<?> firstMatchingPageType(HttpEvent evt) {
+        List<Object> all = filter(normalPageMatcher, evt);
+        if (all.isEmpty()) {
+            return null;
+        }
+        Object first = all.get(0);
+        return first instanceof Class<?> ? (Class<?>) first : first.getClass();
+    }
+
+    boolean hasCachedPages() {
+        return hasCachedPages;
+    }
+
+    boolean hasCoalescedPages() {
+        return hasCoalescedPages;
+    }
+
+    boolean hasValidatedPages() {
+        return hasValidatedPages;
+    }
+
     Iterator<Page> iterator(HttpEvent evt) {
         List<Object> all = filter(normalPageMatcher, evt);
         return all.isEmpty() ? Collections.emptyIterator()
@@ -54,7 +54,7 @@ public abstract class ChunkHandler extends SimpleChannelInboundHandler<Object> {
     protected final synchronized void resume(Object... ctx) {
         resumed = true;
         if (resumer != null) {
-            resumer.resume(context);
+            resumer.resume(ctx);
         } else {
             this.context = ctx;
         }
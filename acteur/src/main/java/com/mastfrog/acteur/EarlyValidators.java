@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mastfrog.acteur.ResponseCache.Route;
+import com.mastfrog.acteur.annotations.ValidatedBy;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteur.headers.Method;
+import com.mastfrog.acteur.util.HttpMethod;
+import com.mastfrog.acteur.util.RequestID;
+import com.mastfrog.util.thread.QuietAutoCloseable;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import java.time.ZonedDateTime;
+import javax.inject.Singleton;
+
+/**
+ * Implements {@link ValidatedBy} - answers conditional requests for pages
+ * whose validators show the client's copy is current, before the page is
+ * created.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class EarlyValidators {
+
+    private final Cache<Route, Validators> memo = CacheBuilder.newBuilder()
+            .concurrencyLevel(4)
+            .maximumSize(10000)
+            .build();
+
+    /**
+     * Send a 304 if the request is conditional and its validators match those
+     * of the page.
+     *
+     * @param pageType The type of the first page matching the request
+     * @return The status written, or null
+     */
+    HttpResponseStatus respond(RequestID id, HttpEvent evt, Class<?> pageType, Channel channel, Application application) throws Exception {
+        ValidatedBy anno = pageType.getAnnotation(ValidatedBy.class);
+        if (anno == null || !isGetOrHead(evt.method())) {
+            return null;
+        }
+        // If-None-Match takes precedence over If-Modified-Since if both are present
+        String ifNoneMatch = evt.header(HttpHeaderNames.IF_NONE_MATCH);
+        ZonedDateTime ifModifiedSince = ifNoneMatch == null ? ifModifiedSince(evt) : null;
+        if (ifNoneMatch == null && ifModifiedSince == null) {
+            return null;
+        }
+        Validators validators = validators(evt, pageType, anno, application);
+        boolean notModified = ifNoneMatch != null
+                ? validators.etag != null && Headers.etagMatches(ifNoneMatch, validators.etag)
+                : validators.lastModified != null
+                && !validators.lastModified.withNano(0).toInstant().isAfter(ifModifiedSince.toInstant());
+        if (!notModified) {
+            return null;
+        }
+        DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, NOT_MODIFIED, Unpooled.EMPTY_BUFFER);
+        validators.write(resp);
+        Headers.write(Headers.SERVER, application.getName(), resp);
+        Headers.write(Headers.DATE, ZonedDateTime.now(), resp);
+        resp.headers().set(Headers.X_REQ_ID.name(), id.stringValue());
+        boolean keepAlive = evt.requestsConnectionStayOpen();
+        if (!keepAlive) {
+            resp.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        }
+        ChannelFuture fut = channel.writeAndFlush(resp);
+        if (!keepAlive) {
+            fut.addListener(ChannelFutureListener.CLOSE);
+        }
+        return NOT_MODIFIED;
+    }
+
+    /**
+     * Add the validators to a successful response from a validated page, if
+     * it did not set them itself.
+     */
+    void decorate(RequestID id, HttpEvent evt, Page page, HttpResponse resp, Application application) {
+        ValidatedBy anno = page == null ? null : page.getClass().getAnnotation(ValidatedBy.class);
+        if (anno == null || !isGetOrHead(evt.method()) || resp.status().code() != HttpResponseStatus.OK.code()
+                || (resp.headers().contains(HttpHeaderNames.ETAG)
+                && resp.headers().contains(HttpHeaderNames.LAST_MODIFIED))) {
+            return;
+        }
+        try (QuietAutoCloseable cl = application.getRequestScope().enter(id, evt)) {
+            validators(evt, page.getClass(), anno, application).write(resp);
+        } catch (Exception ex) {
+            application.internalOnError(ex);
+        }
+    }
+
+    private Validators validators(HttpEvent evt, Class<?> pageType, ValidatedBy anno, Application application) throws Exception {
+        long memoizeNanos = anno.unit().toNanos(anno.memoize());
+        Route key = memoizeNanos > 0 ? new Route(pageType, evt, anno.parameters()) : null;
+        if (key != null) {
+            Validators result = memo.getIfPresent(key);
+            if (result != null && !result.isExpired()) {
+                return result;
+            }
+        }
+        ValidatorSupplier supplier = application.getDependencies().getInstance(anno.value());
+        Validators result = new Validators(supplier.etag(evt), supplier.lastModified(evt), memoizeNanos);
+        if (key != null) {
+            memo.put(key, result);
+        }
+        return result;
+    }
+
+    private static boolean isGetOrHead(HttpMethod method) {
+        return method == Method.GET || method == Method.HEAD;
+    }
+
+    private static ZonedDateTime ifModifiedSince(HttpEvent evt) {
+        try {
+            return evt.header(Headers.IF_MODIFIED_SINCE);
+        } catch (RuntimeException ex) {
+            // An invalid date is treated as absent
+            return null;
+        }
+    }
+
+    static final class Validators {
+
+        final CharSequence etag;
+        final ZonedDateTime lastModified;
+        private final long expires;
+
+        Validators(CharSequence etag, ZonedDateTime lastModified, long ttlNanos) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = System.nanoTime() + ttlNanos;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - expires >= 0;
+        }
+
+        void write(HttpResponse resp) {
+            if (etag != null && !resp.headers().contains(HttpHeaderNames.ETAG)) {
+                Headers.write(Headers.ETAG, etag, resp);
+            }
+            if (lastModified != null && !resp.headers().contains(HttpHeaderNames.LAST_MODIFIED)) {
+                Headers.write(Headers.LAST_MODIFIED, lastModified, resp);
+            }
+        }
+    }
+}
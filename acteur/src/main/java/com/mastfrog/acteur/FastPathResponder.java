@@ -0,0 +1,57 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.mastfrog.acteur.util.RequestID;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * Optional binding which is offered each HTTP request before any page or
+ * acteur is instantiated, and may answer it directly - typically with a
+ * response it has computed in advance, such as one for an immutable static
+ * resource. Since this bypasses the pages, a responder must only answer
+ * requests whose response would not depend on them. It is not consulted if
+ * default CORS handling is enabled, a {@link ResponseDecorator} is bound, or
+ * the application overrides <code>decorateResponse()</code>,
+ * <code>onAfterRespond()</code> or <code>onBeforeSendResponse()</code>, since
+ * those expect to see every response.
+ *
+ * @author Tim Boudreau
+ */
+public interface FastPathResponder {
+
+    /**
+     * Answer a request, if possible.
+     *
+     * @param id The request id
+     * @param event The request
+     * @param channel The channel, to write the response to
+     * @param application The application, e.g. for its name
+     * @return The status of the response written, or null if nothing was
+     * written and the request should be handled normally
+     * @throws Exception If something goes wrong
+     */
+    HttpResponseStatus respond(RequestID id, HttpEvent event, Channel channel, Application application) throws Exception;
+}
@@ -41,6 +41,7 @@ import com.mastfrog.acteurbase.ChainsRunner;
 import com.mastfrog.giulius.Dependencies;
 import com.mastfrog.giulius.DeploymentMode;
 import com.mastfrog.giulius.scope.ReentrantScope;
+import com.mastfrog.marshallers.netty.NettyContentMarshallers;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.url.Path;
 import com.mastfrog.util.Exceptions;
@@ -55,19 +56,19 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import static io.netty.util.CharsetUtil.UTF_8;
 import java.io.PrintStream;
 import java.time.Duration;
 import java.time.ZonedDateTime;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -101,6 +102,17 @@ class PagesImpl2 {
 
     private final boolean renderStackTraces;
 
+    private final boolean framesOnEventLoop;
+
+    private final ReentrantScope scope;
+
+    private final int fragmentBytes;
+
+    private volatile WebSocketFrames frames;
+
+    private static final AttributeKey<ChainsRunner> FRAME_RUNNER
+            = AttributeKey.valueOf(PagesImpl2.class, "frameRunner");
+
     @Inject
     PagesImpl2(Application application, Settings settings, @Named(DELAY_EXECUTOR) ScheduledExecutorService scheduler,
             DeploymentMode mode, ReentrantScope scope, @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService exe) {
@@ -109,6 +121,11 @@ class PagesImpl2 {
         disableFilterPathsAndMethods = settings.getBoolean("disable.filter", false);
         renderStackTraces = settings.getBoolean(ServerModule.SETTINGS_KEY_RENDER_STACK_TRACES, !mode.isProduction());
         debug = settings.getBoolean("acteur.debug", false);
+        framesOnEventLoop = settings.getBoolean(WebSocketUpgradeActeur.SETTINGS_KEY_WEBSOCKET_FRAMES_ON_EVENT_LOOP,
+                WebSocketUpgradeActeur.DEFAULT_WEBSOCKET_FRAMES_ON_EVENT_LOOP);
+        fragmentBytes = settings.getInt(WebSocketUpgradeActeur.SETTINGS_KEY_WEBSOCKET_FRAGMENT_BYTES,
+                WebSocketUpgradeActeur.DEFAULT_WEBSOCKET_FRAGMENT_BYTES);
+        this.scope = scope;
         ChainRunner chr = new ChainRunner(exe, scope);
         ch = new ChainsRunner(exe, scope, chr);
     }
@@ -118,6 +135,8 @@ class PagesImpl2 {
 
         Iterable<PageChain> pagesIterable;
         Closables clos = null;
+        AtomicBoolean cancelled = null;
+        ChainsRunner runner = ch;
         if (event.request() instanceof WebSocketFrame) {
             Attribute<Supplier<? extends Chain<? extends Acteur, ?>>> s = channel.attr(WebSocketUpgradeActeur.CHAIN_KEY);
             Supplier<? extends Chain<? extends Acteur, ?>> chainSupplier = s.get();
@@ -125,12 +144,23 @@ class PagesImpl2 {
                 throw new IllegalStateException("Got a WebSocketFrame on a channel with no websocket chain set up");
             }
 
-            PageChain pageChain = (PageChain) chainSupplier.get();
-            clos = pageChain.findInContext(Closables.class);
+            PageChain pageChain;
+            if (chainSupplier instanceof FrameChains) {
+                FrameChains frameChains = (FrameChains) chainSupplier;
+                pageChain = frameChains.get(event);
+                clos = frameChains.closables;
+                cancelled = frameChains.cancelled(channel);
+            } else {
+                pageChain = (PageChain) chainSupplier.get();
+                clos = pageChain.findInContext(Closables.class);
+                pageChain.addToContext(event);
+            }
             if (clos == null) {
                 clos = new Closables(channel, application.control());
             }
-            pageChain.addToContext(event);
+            if (framesOnEventLoop) {
+                runner = eventLoopRunner(channel);
+            }
             pageChain.page = channel.attr(WebSocketUpgradeActeur.PAGE_KEY).get();
             application.probe.onBeforeRunPage(id, event, pageChain.page);
             pagesIterable = Collections.singleton(pageChain);
@@ -148,13 +178,40 @@ class PagesImpl2 {
         }
 
         CB callback = new CB(id, event, latch, channel, clos);
-        CancelOnChannelClose closer = new CancelOnChannelClose();
-        channel.closeFuture().addListener(closer);
-        ch.submit(pagesIterable, callback, closer.cancelled, id, event, clos);
+        if (cancelled == null) {
+            CancelOnChannelClose closer = new CancelOnChannelClose();
+            channel.closeFuture().addListener(closer);
+            cancelled = closer.cancelled;
+        }
+        runner.submit(pagesIterable, callback, cancelled, id, event, clos);
 
         return latch;
     }
 
+    private WebSocketFrames frames() {
+        // Looked up on first use, since not every application uses websockets
+        WebSocketFrames result = frames;
+        if (result == null) {
+            frames = result = new WebSocketFrames(application.getDependencies().getInstance(NettyContentMarshallers.class),
+                    application.charset, fragmentBytes);
+        }
+        return result;
+    }
+
+    private ChainsRunner eventLoopRunner(Channel channel) {
+        Attribute<ChainsRunner> attr = channel.attr(FRAME_RUNNER);
+        ChainsRunner result = attr.get();
+        if (result == null) {
+            EventLoop loop = channel.eventLoop();
+            result = new ChainsRunner(loop, scope, new ChainRunner(loop, scope));
+            ChainsRunner old = attr.setIfAbsent(result);
+            if (old != null) {
+                result = old;
+            }
+        }
+        return result;
+    }
+
     static class CancelOnChannelClose implements ChannelFutureListener {
 
         final AtomicBoolean cancelled = new AtomicBoolean();
@@ -227,6 +284,9 @@ class PagesImpl2 {
 
         @Override
         public void onNoResponse() {
+            if (application.hasCoalescedPages() && event instanceof HttpEvent) {
+                application.coalescer.leaderFailed((HttpEvent) event, application);
+            }
             application.send404(id, event, channel);
             latch.countDown();
         }
@@ -259,6 +319,9 @@ class PagesImpl2 {
             try (NonThrowingAutoCloseable clos = Page.set(application.getDependencies().getInstance(Page.class))) {
                 // Abort if the client disconnected
                 if (!channel.isOpen()) {
+                    if (application.hasCoalescedPages() && event instanceof HttpEvent) {
+                        application.coalescer.leaderFailed((HttpEvent) event, application);
+                    }
                     latch.countDown();
                     return;
                 }
@@ -268,6 +331,16 @@ class PagesImpl2 {
                 HttpResponse httpResponse = response.toResponse(event, application.charset);
                 // Allow the application to add headers
                 httpResponse = application._decorateResponse(id, event, state.getLockedPage(), acteur, httpResponse);
+                if (application.hasValidatedPages() && event instanceof HttpEvent) {
+                    application.validators.decorate(id, (HttpEvent) event, state.getLockedPage(), httpResponse, application);
+                }
+                if (application.hasCachedPages() && event instanceof HttpEvent) {
+                    application.responseCache.store((HttpEvent) event, state.getLockedPage(), response,
+                            httpResponse, application);
+                }
+                if (application.hasCoalescedPages() && event instanceof HttpEvent) {
+                    application.coalescer.leaderResponded((HttpEvent) event, response, httpResponse, application);
+                }
 
                 // Abort if the client disconnected
                 if (!channel.isOpen()) {
@@ -310,14 +383,8 @@ class PagesImpl2 {
                 return true;
             }
             // XXX consider response.getDelay()?
-            // This is ugly - we create an HttpResponse just to extract a wad of binary
-            // data and send that as a WebSocketFrame.
             try (NonThrowingAutoCloseable cl = Page.set(state.getLockedPage())) {
-                HttpResponse resp = response.toResponse(event, application.charset);
-                if (resp instanceof FullHttpResponse) {
-                    BinaryWebSocketFrame frame = new BinaryWebSocketFrame(((FullHttpResponse) resp).content());
-                    channel.writeAndFlush(frame);
-                }
+                frames().send(channel, response.getMessage(), response.get(Headers.CONTENT_TYPE));
             } catch (Exception ex) {
                 uncaughtException(Thread.currentThread(), ex);
             }
@@ -518,12 +585,12 @@ class PagesImpl2 {
             this.app = app;
         }
 
-        PageChain(Application app, Dependencies deps, ReentrantScope scope, Class<? super Acteur> type, List<Object> pages, Object[] ctx) {
-            super(deps, type, pages);
+        PageChain(Application app, Dependencies deps, ReentrantScope scope, Class<? super Acteur> type, Page page, Object[] remnant, Object[] ctx) {
+            super(deps, type, remnant);
             isReconstituted = true;
             this.scope = scope;
             this.ctx = ctx;
-            this.page = null;
+            this.page = page;
             this.app = app;
         }
 
@@ -582,19 +649,8 @@ class PagesImpl2 {
 
         @Override
         public Supplier<PageChain> remnantSupplier(Object... scopeContents) {
-            Object[] context = ArrayUtils.concatenate(ctx, scopeContents);
-            assert chainPosition != null : "Called out of sequence";
-            int pos = chainPosition.get();
-            final List<Object> rem = new ArrayList<>(types.size() - pos);
-            for (int i = pos; i < types.size(); i++) {
-                rem.add(types.get(i));
-            }
-            return () -> {
-                List<Object> l = new ArrayList<>(rem);
-                PageChain chain = new PageChain(app, deps, scope, type, l, context);
-                chain.page = page;
-                return chain;
-            };
+            return new FrameChains(app, deps, scope, type, page, remnant(),
+                    ArrayUtils.concatenate(ctx, scopeContents));
         }
 
         private void addToContext(Event<?> event) {
@@ -602,6 +658,61 @@ class PagesImpl2 {
         }
     }
 
+    /**
+     * Creates the chain for each frame on a websocket connection from the
+     * remainder of the chain which upgraded it, which is resolved once when
+     * the connection is upgraded, along with the things every frame needs.
+     */
+    static final class FrameChains implements Supplier<PageChain> {
+
+        private final Application app;
+        private final Dependencies deps;
+        private final ReentrantScope scope;
+        private final Class<? super Acteur> type;
+        private final Page page;
+        private final Object[] remnant;
+        private final Object[] ctx;
+        final Closables closables;
+        private final CancelOnChannelClose closer = new CancelOnChannelClose();
+        private final AtomicBoolean listening = new AtomicBoolean();
+
+        FrameChains(Application app, Dependencies deps, ReentrantScope scope, Class<? super Acteur> type, Page page, Object[] remnant, Object[] ctx) {
+            this.app = app;
+            this.deps = deps;
+            this.scope = scope;
+            this.type = type;
+            this.page = page;
+            this.remnant = remnant;
+            this.ctx = ctx;
+            Closables clos = null;
+            for (int i = ctx.length - 1; i >= 0 && clos == null; i--) {
+                if (ctx[i] instanceof Closables) {
+                    clos = (Closables) ctx[i];
+                }
+            }
+            this.closables = clos;
+        }
+
+        @Override
+        public PageChain get() {
+            return new PageChain(app, deps, scope, type, page, remnant, ctx);
+        }
+
+        PageChain get(Event<?> event) {
+            return new PageChain(app, deps, scope, type, page, remnant,
+                    ArrayUtils.concatenate(ctx, new Object[]{event}));
+        }
+
+        AtomicBoolean cancelled(Channel channel) {
+            // One listener for the life of the connection, rather than one
+            // added to the close future per frame
+            if (listening.compareAndSet(false, true)) {
+                channel.closeFuture().addListener(closer);
+            }
+            return closer.cancelled;
+        }
+    }
+
     static class ScopeWrapIterator<T> implements Iterator<T> {
 
         private final ReentrantScope scope;
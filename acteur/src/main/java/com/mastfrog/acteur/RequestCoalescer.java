@@ -0,0 +1,304 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.ResponseCache.Route;
+import com.mastfrog.acteur.annotations.Coalesced;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteur.headers.Method;
+import static com.mastfrog.acteur.server.ServerModule.DELAY_EXECUTOR;
+import com.mastfrog.acteur.util.RequestID;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Implements {@link Coalesced} - tracks in-flight requests for coalesced
+ * pages, parks identical requests which arrive while one is running, and
+ * either answers them with a copy of its response or, if it fails or times
+ * out, runs their pages for them.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class RequestCoalescer {
+
+    private final ConcurrentHashMap<FlightKey, Flight> flights = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<HttpEvent, Flight> leaders = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    final LongAdder coalesced = new LongAdder();
+    final LongAdder fallbacks = new LongAdder();
+
+    @Inject
+    RequestCoalescer(@Named(DELAY_EXECUTOR) ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Either register a request as the leader for its key, in which case it
+     * should be run normally, or park it behind the current leader.
+     *
+     * @return true if the request was parked and should not be run
+     */
+    boolean join(RequestID id, HttpEvent evt, Class<?> pageType, Channel channel, Application application) {
+        if (evt.method() != Method.GET || ResponseCache.isConditional(evt)) {
+            return false;
+        }
+        Coalesced anno = pageType.getAnnotation(Coalesced.class);
+        // Requests with credentials or session cookies not part of the key
+        // would be handed some other user's response
+        if (anno == null || !ResponseCache.isCacheable(evt, anno.vary())) {
+            return false;
+        }
+        FlightKey key = new FlightKey(new Route(pageType, evt, anno.parameters()), varyValues(evt, anno.vary()));
+        Waiter waiter = new Waiter(id, evt, channel);
+        for (;;) {
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                Flight nue = new Flight(key, evt);
+                if (flights.putIfAbsent(key, nue) == null) {
+                    leaders.put(evt, nue);
+                    nue.timeout = scheduler.schedule(() -> fail(nue, application),
+                            anno.timeout(), anno.unit());
+                    return false;
+                }
+            } else if (flight.add(waiter)) {
+                coalesced.increment();
+                return true;
+            } else {
+                // Finished while we were looking; the next one is ours
+                flights.remove(key, flight);
+            }
+        }
+    }
+
+    /**
+     * Called with the response to a request just before it is sent; if it is
+     * leading a flight, hand copies of it to the waiters, or have them run
+     * their own pages if it cannot be shared.
+     */
+    void leaderResponded(HttpEvent evt, ResponseImpl response, HttpResponse httpResponse, Application application) {
+        Flight flight = leaders.remove(evt);
+        if (flight == null) {
+            return;
+        }
+        if (!isShareable(response, httpResponse)) {
+            fail(flight, application);
+            return;
+        }
+        List<Waiter> waiters = flight.finish();
+        if (waiters == null) {
+            return;
+        }
+        FullHttpResponse full = (FullHttpResponse) httpResponse;
+        for (Waiter waiter : waiters) {
+            if (!waiter.channel.isOpen()) {
+                continue;
+            }
+            try {
+                waiter.send(full, application);
+            } catch (Exception | Error ex) {
+                application.internalOnError(ex);
+            }
+        }
+    }
+
+    /**
+     * Called if a request which may be leading a flight did not produce a
+     * response.
+     */
+    void leaderFailed(HttpEvent evt, Application application) {
+        Flight flight = leaders.remove(evt);
+        if (flight != null) {
+            fail(flight, application);
+        }
+    }
+
+    private void fail(Flight flight, Application application) {
+        leaders.remove(flight.leader(), flight);
+        List<Waiter> waiters = flight.finish();
+        if (waiters == null) {
+            return;
+        }
+        for (Waiter waiter : waiters) {
+            if (waiter.channel.isOpen()) {
+                fallbacks.increment();
+                application.runPages(waiter.id, waiter.evt, waiter.channel);
+            }
+        }
+    }
+
+    private static boolean isShareable(ResponseImpl response, HttpResponse httpResponse) {
+        if (!(httpResponse instanceof FullHttpResponse) || response.hasListener() || response.getDelay() != null
+                || httpResponse.status().code() >= 500) {
+            return false;
+        }
+        HttpHeaders headers = httpResponse.headers();
+        if (headers.contains(HttpHeaderNames.SET_COOKIE)) {
+            return false;
+        }
+        String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        return cacheControl == null || !cacheControl.toLowerCase(Locale.US).contains("private");
+    }
+
+    private static List<String> varyValues(HttpEvent evt, String[] vary) {
+        if (vary.length == 0) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>(vary.length);
+        for (String name : vary) {
+            result.add(evt.header(name));
+        }
+        return result;
+    }
+
+    final class Flight {
+
+        private final FlightKey key;
+        private final HttpEvent leader;
+        private List<Waiter> waiters = new ArrayList<>(4);
+        volatile ScheduledFuture<?> timeout;
+
+        Flight(FlightKey key, HttpEvent leader) {
+            this.key = key;
+            this.leader = leader;
+        }
+
+        HttpEvent leader() {
+            return leader;
+        }
+
+        synchronized boolean add(Waiter waiter) {
+            if (waiters == null) {
+                return false;
+            }
+            waiters.add(waiter);
+            return true;
+        }
+
+        /**
+         * Close the flight to new waiters.
+         *
+         * @return The waiters, or null if already finished
+         */
+        List<Waiter> finish() {
+            List<Waiter> result;
+            synchronized (this) {
+                result = waiters;
+                waiters = null;
+            }
+            if (result != null) {
+                flights.remove(key, this);
+                ScheduledFuture<?> t = timeout;
+                if (t != null) {
+                    t.cancel(false);
+                }
+            }
+            return result;
+        }
+    }
+
+    static final class Waiter {
+
+        final RequestID id;
+        final HttpEvent evt;
+        final Channel channel;
+
+        Waiter(RequestID id, HttpEvent evt, Channel channel) {
+            this.id = id;
+            this.evt = evt;
+            this.channel = channel;
+        }
+
+        void send(FullHttpResponse response, Application application) {
+            DefaultHttpHeaders headers = new DefaultHttpHeaders(false);
+            headers.set(response.headers());
+            headers.set(Headers.X_REQ_ID.name(), id.stringValue());
+            boolean keepAlive = evt.requestsConnectionStayOpen();
+            if (keepAlive) {
+                headers.remove(HttpHeaderNames.CONNECTION);
+            } else {
+                headers.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            }
+            ByteBuf content = response.content() == null ? Unpooled.EMPTY_BUFFER
+                    : response.content().retainedDuplicate();
+            application.onBeforeRespond(id, evt, response.status());
+            ChannelFuture fut = channel.writeAndFlush(new DefaultFullHttpResponse(HTTP_1_1,
+                    response.status(), content, headers, EmptyHttpHeaders.INSTANCE));
+            if (!keepAlive) {
+                fut.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+
+    static final class FlightKey {
+
+        private final Route route;
+        private final List<String> varyValues;
+
+        FlightKey(Route route, List<String> varyValues) {
+            this.route = route;
+            this.varyValues = varyValues;
+        }
+
+        @Override
+        public int hashCode() {
+            return route.hashCode() * 31 + varyValues.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof FlightKey && ((FlightKey) obj).route.equals(route)
+                    && ((FlightKey) obj).varyValues.equals(varyValues);
+        }
+
+        @Override
+        public String toString() {
+            return route + (varyValues.isEmpty() ? "" : " " + varyValues);
+        }
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mastfrog.acteur.annotations.Cached;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteur.headers.Method;
+import com.mastfrog.acteur.util.RequestID;
+import com.mastfrog.settings.Settings;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AsciiString;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * In-memory cache of complete responses from pages annotated with
+ * {@link Cached}. When the first page matching a request's path and method is
+ * annotated, and a live response to an equivalent request is cached, it is
+ * written directly and no page or acteur is instantiated. Inject this to
+ * discard cached responses when the data behind them changes.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class ResponseCache {
+
+    /**
+     * The maximum bytes of cached responses to hold in memory.
+     */
+    public static final String SETTINGS_KEY_RESPONSE_CACHE_MAX_BYTES = "acteur.response.cache.max.bytes";
+    /**
+     * Responses whose body is larger than this are not cached.
+     */
+    public static final String SETTINGS_KEY_RESPONSE_CACHE_MAX_ENTRY_BYTES = "acteur.response.cache.max.entry.bytes";
+    /**
+     * The maximum number of variants (distinct values of the request headers a
+     * response varies on) to cache for any one URL.
+     */
+    public static final String SETTINGS_KEY_RESPONSE_CACHE_MAX_VARIANTS = "acteur.response.cache.max.variants";
+    public static final long DEFAULT_RESPONSE_CACHE_MAX_BYTES = 32 * 1024 * 1024;
+    public static final int DEFAULT_RESPONSE_CACHE_MAX_ENTRY_BYTES = 1024 * 1024;
+    public static final int DEFAULT_RESPONSE_CACHE_MAX_VARIANTS = 16;
+
+    private final Cache<Route, Variants> entries;
+    private final int maxEntryBytes;
+    private final int maxVariants;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @Inject
+    ResponseCache(Settings settings) {
+        long maxBytes = settings.getLong(SETTINGS_KEY_RESPONSE_CACHE_MAX_BYTES, DEFAULT_RESPONSE_CACHE_MAX_BYTES);
+        maxEntryBytes = (int) Math.min(maxBytes / 8, settings.getInt(SETTINGS_KEY_RESPONSE_CACHE_MAX_ENTRY_BYTES,
+                DEFAULT_RESPONSE_CACHE_MAX_ENTRY_BYTES));
+        maxVariants = Math.max(1, settings.getInt(SETTINGS_KEY_RESPONSE_CACHE_MAX_VARIANTS,
+                DEFAULT_RESPONSE_CACHE_MAX_VARIANTS));
+        entries = CacheBuilder.newBuilder()
+                .concurrencyLevel(4)
+                .maximumWeight(Math.max(0, maxBytes))
+                .weigher((Route k, Variants v) -> v.weight())
+                .build();
+    }
+
+    /**
+     * Discard all cached responses for paths which start with the passed
+     * string (leading slashes are ignored).
+     *
+     * @param pathPrefix A path prefix, such as <code>/api/users/</code>
+     * @return The number of URLs whose responses were discarded
+     */
+    public int invalidate(String pathPrefix) {
+        String prefix = trimLeadingSlashes(pathPrefix);
+        int result = 0;
+        for (Route route : entries.asMap().keySet()) {
+            if (route.path.startsWith(prefix)) {
+                entries.invalidate(route);
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discard all cached responses from pages which list the passed tag in
+     * their {@link Cached} annotation.
+     *
+     * @param tag A tag
+     * @return The number of URLs whose responses were discarded
+     */
+    public int invalidateTag(String tag) {
+        int result = 0;
+        for (Map.Entry<Route, Variants> e : entries.asMap().entrySet()) {
+            if (Arrays.asList(e.getValue().tags).contains(tag)) {
+                entries.invalidate(e.getKey());
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discard everything.
+     */
+    public void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * The number of requests answered from the cache.
+     *
+     * @return A count
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * The number of requests for cacheable pages which were not answered from
+     * the cache.
+     *
+     * @return A count
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Answer a request from the cache, if possible.
+     *
+     * @param pageType The type of the first page matching the request
+     * @return The status written, or null
+     */
+    HttpResponseStatus respond(RequestID id, HttpEvent evt, Class<?> pageType, Channel channel) {
+        if (evt.method() != Method.GET || isConditional(evt)) {
+            return null;
+        }
+        Cached cached = pageType.getAnnotation(Cached.class);
+        if (cached == null || !isCacheable(evt, cached.vary())) {
+            return null;
+        }
+        Variants variants = entries.getIfPresent(new Route(pageType, evt, cached.parameters()));
+        Entry entry = variants == null ? null : variants.get(evt);
+        if (entry == null || entry.isExpired()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        boolean keepAlive = evt.requestsConnectionStayOpen();
+        ChannelFuture fut = channel.writeAndFlush(entry.toResponse(id, keepAlive));
+        if (!keepAlive) {
+            fut.addListener(ChannelFutureListener.CLOSE);
+        }
+        return entry.status;
+    }
+
+    /**
+     * Cache a response about to be sent, if it came from a page annotated
+     * with &#064;Cached and is cacheable.
+     */
+    void store(HttpEvent evt, Page page, ResponseImpl response, HttpResponse httpResponse, Application application) {
+        Cached cached = page == null ? null : page.getClass().getAnnotation(Cached.class);
+        if (cached == null || evt.method() != Method.GET || !isCacheable(evt, cached.vary())
+                || response.hasListener() || response.getDelay() != null
+                || !(httpResponse instanceof FullHttpResponse)
+                || httpResponse.status().code() != HttpResponseStatus.OK.code()) {
+            return;
+        }
+        HttpHeaders headers = httpResponse.headers();
+        if (headers.contains(HttpHeaderNames.SET_COOKIE) || headers.contains(HttpHeaderNames.TRANSFER_ENCODING)) {
+            return;
+        }
+        String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        if (cacheControl != null) {
+            String cc = cacheControl.toLowerCase(Locale.US);
+            if (cc.contains("no-store") || cc.contains("private")) {
+                return;
+            }
+        }
+        List<String> varyNames = varyNames(cached.vary(), headers.getAll(HttpHeaderNames.VARY));
+        ByteBuf content = ((FullHttpResponse) httpResponse).content();
+        if (varyNames == null || content.readableBytes() > maxEntryBytes) {
+            return;
+        }
+        // If some other page would be offered the request first, we will never
+        // be asked for this response
+        if (application.firstMatchingPageType(evt) != page.getClass()) {
+            return;
+        }
+        Entry entry = new Entry(httpResponse.status(), headers, content,
+                cached.unit().toNanos(cached.ttl()));
+        Route route = new Route(page.getClass(), evt, cached.parameters());
+        List<String> values = varyValues(evt, varyNames);
+        Variants old = entries.getIfPresent(route);
+        entries.put(route, old == null || !old.varyNames.equals(varyNames)
+                ? new Variants(varyNames, cached.tags(), values, entry)
+                : old.with(values, entry, maxVariants));
+    }
+
+    static boolean isConditional(HttpEvent evt) {
+        return evt.header(HttpHeaderNames.IF_NONE_MATCH) != null
+                || evt.header(HttpHeaderNames.IF_MODIFIED_SINCE) != null;
+    }
+
+    static boolean isCacheable(HttpEvent evt, String[] vary) {
+        // Never replay a response to one user's credentials or session to
+        // another
+        return !hasUnvariedHeader(evt, HttpHeaderNames.AUTHORIZATION, vary)
+                && !hasUnvariedHeader(evt, HttpHeaderNames.COOKIE, vary);
+    }
+
+    private static boolean hasUnvariedHeader(HttpEvent evt, AsciiString name, String[] vary) {
+        if (evt.header(name) == null) {
+            return false;
+        }
+        for (String v : vary) {
+            if (name.contentEqualsIgnoreCase(v.trim())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the sorted, lower-cased names of the headers a response varies on,
+     * or null if it varies on everything.
+     */
+    static List<String> varyNames(String[] vary, List<String> responseVary) {
+        TreeSet<String> names = new TreeSet<>();
+        for (String v : vary) {
+            names.add(v.trim().toLowerCase(Locale.US));
+        }
+        for (String vary : responseVary) {
+            for (String v : vary.split(",")) {
+                v = v.trim().toLowerCase(Locale.US);
+                if ("*".equals(v)) {
+                    return null;
+                } else if (!v.isEmpty()) {
+                    names.add(v);
+                }
+            }
+        }
+        return names.isEmpty() ? Collections.emptyList() : new ArrayList<>(names);
+    }
+
+    static List<String> varyValues(HttpEvent evt, List<String> names) {
+        if (names.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>(names.size());
+        for (String name : names) {
+            result.add(evt.header(name));
+        }
+        return result;
+    }
+
+    static String trimLeadingSlashes(String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        return path.substring(start);
+    }
+
+    /**
+     * The part of the cache key which identifies a URL - the page type, path
+     * and the relevant query parameters.
+     */
+    static final class Route {
+
+        final String pageType;
+        final String path;
+        final String query;
+
+        Route(Class<?> pageType, HttpEvent evt, String[] parameters) {
+            this(pageType.getName(), trimLeadingSlashes(evt.path().toString()), query(evt, parameters));
+        }
+
+        Route(String pageType, String path, String query) {
+            this.pageType = pageType;
+            this.path = path;
+            this.query = query;
+        }
+
+        static String query(HttpEvent evt, String[] parameters) {
+            if (parameters.length == 0) {
+                String uri = evt.request().uri();
+                int ix = uri.indexOf('?');
+                return ix < 0 ? "" : uri.substring(ix + 1);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String param : parameters) {
+                String value = evt.urlParameter(param);
+                if (value != null) {
+                    if (sb.length() > 0) {
+                        sb.append('&');
+                    }
+                    sb.append(param).append('=').append(value);
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public int hashCode() {
+            return (pageType.hashCode() * 31 + path.hashCode()) * 31 + query.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Route)) {
+                return false;
+            }
+            Route other = (Route) obj;
+            return path.equals(other.path) && query.equals(other.query) && pageType.equals(other.pageType);
+        }
+
+        @Override
+        public String toString() {
+            return pageType + ":" + path + (query.isEmpty() ? "" : "?" + query);
+        }
+    }
+
+    /**
+     * The cached responses for one route, by the values of the request headers
+     * they vary on. Immutable - adding a variant replaces the instance, so the
+     * cache's weight for it is recomputed.
+     */
+    static final class Variants {
+
+        final List<String> varyNames;
+        final String[] tags;
+        private final Map<List<String>, Entry> byValues;
+        private final int weight;
+
+        Variants(List<String> varyNames, String[] tags, List<String> values, Entry entry) {
+            this(varyNames, tags, Collections.singletonMap(values, entry));
+        }
+
+        private Variants(List<String> varyNames, String[] tags, Map<List<String>, Entry> byValues) {
+            this.varyNames = varyNames;
+            this.tags = tags;
+            this.byValues = byValues;
+            int w = 0;
+            for (Entry e : byValues.values()) {
+                w += e.weight();
+            }
+            this.weight = w;
+        }
+
+        Variants with(List<String> values, Entry entry, int maxVariants) {
+            Map<List<String>, Entry> map = new HashMap<>(byValues);
+            if (map.size() >= maxVariants && !map.containsKey(values)) {
+                // Drop expired variants, or failing that, any one
+                map.values().removeIf(Entry::isExpired);
+                if (map.size() >= maxVariants) {
+                    map.remove(map.keySet().iterator().next());
+                }
+            }
+            map.put(values, entry);
+            return new Variants(varyNames, tags, map);
+        }
+
+        Entry get(HttpEvent evt) {
+            return byValues.get(varyValues(evt, varyNames));
+        }
+
+        int weight() {
+            return weight;
+        }
+    }
+
+    static final class Entry {
+
+        final HttpResponseStatus status;
+        private final HttpHeaders headers;
+        private final ByteBuf content;
+        private final long created = System.nanoTime();
+        private final long expires;
+        private final int weight;
+
+        Entry(HttpResponseStatus status, HttpHeaders headers, ByteBuf content, long ttlNanos) {
+            this.status = status;
+            this.headers = new DefaultHttpHeaders(false).set(headers);
+            // Per-request values which are replaced when the response is sent
+            this.headers.remove(HttpHeaderNames.DATE);
+            this.headers.remove(HttpHeaderNames.CONNECTION);
+            this.headers.remove(HttpHeaderNames.AGE);
+            this.headers.remove(Headers.X_REQ_ID.name());
+            int length = content.readableBytes();
+            // A GC-managed buffer, so eviction does not need to release it
+            ByteBuffer copy = ByteBuffer.allocateDirect(length);
+            content.getBytes(content.readerIndex(), copy);
+            copy.flip();
+            this.content = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(copy));
+            this.expires = created + ttlNanos;
+            int headerBytes = 0;
+            Iterator<Map.Entry<CharSequence, CharSequence>> it = this.headers.iteratorCharSequence();
+            while (it.hasNext()) {
+                Map.Entry<CharSequence, CharSequence> e = it.next();
+                headerBytes += e.getKey().length() + e.getValue().length() + 4;
+            }
+            this.weight = length + headerBytes + 128;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - expires >= 0;
+        }
+
+        int weight() {
+            return weight;
+        }
+
+        FullHttpResponse toResponse(RequestID id, boolean keepAlive) {
+            DefaultHttpHeaders hdrs = new DefaultHttpHeaders(false);
+            hdrs.set(headers);
+            Headers.write(Headers.DATE, ZonedDateTime.now(), hdrs);
+            Headers.write(Headers.AGE, Duration.ofNanos(System.nanoTime() - created), hdrs);
+            hdrs.set(Headers.X_REQ_ID.name(), id.stringValue());
+            if (!keepAlive) {
+                hdrs.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            }
+            return new DefaultFullHttpResponse(HTTP_1_1, status, content.duplicate(), hdrs,
+                    EmptyHttpHeaders.INSTANCE);
+        }
+    }
+}
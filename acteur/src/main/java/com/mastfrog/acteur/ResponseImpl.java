@@ -33,6 +33,7 @@ import com.mastfrog.acteur.ResponseWriter.Status;
 import com.mastfrog.acteur.headers.HeaderValueType;
 import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.headers.Method;
+import com.mastfrog.acteur.io.FileChunks;
 import com.mastfrog.acteur.server.ServerModule;
 import com.mastfrog.acteur.spi.ApplicationControl;
 import com.mastfrog.giulius.Dependencies;
@@ -49,6 +50,7 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import static io.netty.channel.ChannelFutureListener.CLOSE;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.FileRegion;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpContent;
@@ -73,6 +75,8 @@ import static io.netty.handler.codec.http.HttpVersion.HTTP_1_0;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.ssl.SslHandler;
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.time.Duration;
@@ -533,6 +537,20 @@ final class ResponseImpl extends Response {
             }
             return this;
         }
+
+        @Override
+        public Output write(File file, long position, long length) throws IOException {
+            Channel channel = future.channel();
+            SslHandler ssl = channel.pipeline().get(SslHandler.class);
+            if (ssl == null) {
+                ResponseWriterListener.this.future = channel.writeAndFlush(new DefaultFileRegion(file, position, length));
+            } else {
+                FileChunks.ensureChunkedWriteHandler(channel.pipeline());
+                ResponseWriterListener.this.future = channel.writeAndFlush(
+                        FileChunks.open(file, position, length, FileChunks.chunkSize(ssl), chunked));
+            }
+            return this;
+        }
     }
 
     /**
@@ -585,12 +603,42 @@ final class ResponseImpl extends Response {
         return buf;
     }
 
+    /**
+     * Replace a Stream, Iterator or Flow.Publisher message with a listener
+     * that serializes it incrementally, rather than marshalling the whole
+     * thing into one buffer.
+     */
+    private void prepareStreamingBody(Event<?> evt, HttpResponseStatus status, Charset charset) {
+        Object body = message;
+        message = null;
+        if (!canHaveBody(status) || Method.HEAD.equals(((HttpEvent) evt).method())) {
+            StreamingBodyWriter.close(body);
+            return;
+        }
+        MediaType type = get(Headers.CONTENT_TYPE);
+        if (type == null) {
+            add(Headers.CONTENT_TYPE, MediaType.JSON_UTF_8);
+        } else if (type.charset().isPresent()) {
+            charset = type.charset().get();
+        }
+        Dependencies deps = Page.get().getApplication().getDependencies();
+        ExecutorService svc = deps.getInstance(Key.get(ExecutorService.class,
+                Names.named(ServerModule.WORKER_THREAD_POOL_NAME)));
+        chunked = true;
+        contentWriter(new StreamingBodyWriter(body, StreamingBodyWriter.isNdJson(type),
+                deps.getInstance(Codec.class), charset, evt.channel().alloc(), svc,
+                deps.getInstance(ApplicationControl.class), !isKeepAlive(evt)));
+    }
+
     HttpResponseStatus internalStatus() {
         return status == null ? OK : status;
     }
 
     public HttpResponse toResponse(Event<?> evt, Charset defaultCharset) throws Exception {
         HttpResponseStatus status = internalStatus();
+        if (listener == null && evt instanceof HttpEvent && StreamingBodyWriter.isStreamable(message)) {
+            prepareStreamingBody(evt, status, defaultCharset);
+        }
         if (!canHaveBody(status) && (message != null || listener != null)) {
             if (listener != ChannelFutureListener.CLOSE) {
                 System.err.println(evt
@@ -604,6 +652,17 @@ final class ResponseImpl extends Response {
             defaultCharset = mimeType.charset().get();
         }
         ByteBuf buf = writeMessage(evt, defaultCharset);
+        String autoEtag = null;
+        if (buf != null && listener == null && status.code() == OK.code() && isAutoEtagCandidate(evt)) {
+            autoEtag = "W/\"" + Long.toHexString(bodyHash(buf)) + '"';
+            String ifNoneMatch = ((HttpEvent) evt).header(HttpHeaderNames.IF_NONE_MATCH);
+            if (ifNoneMatch != null && Headers.etagMatches(ifNoneMatch, autoEtag)) {
+                // The client already has these bytes
+                buf.release();
+                buf = null;
+                this.status = status = NOT_MODIFIED;
+            }
+        }
         HttpResponse resp;
         DefaultHttpHeaders hdrs = new DefaultHttpHeaders();
         boolean hasContentLength = false;
@@ -625,6 +684,9 @@ final class ResponseImpl extends Response {
             hasContentLength |= Headers.CONTENT_LENGTH.equals(e.decorator);
             e.write(hdrs);
         }
+        if (autoEtag != null) {
+            hdrs.set(HttpHeaderNames.ETAG, autoEtag);
+        }
         // Ensure a 0 content length is present for items with no content
         if (buf == null && listener == null && !hasContentLength && status != NOT_MODIFIED && status != NO_CONTENT && !hasContentLength) {
             hdrs.add(HttpHeaderNames.CONTENT_LENGTH, 0);
@@ -651,6 +713,42 @@ final class ResponseImpl extends Response {
         return resp;
     }
 
+    private boolean isAutoEtagCandidate(Event<?> evt) {
+        if (!(evt instanceof HttpEvent) || get(Headers.ETAG) != null) {
+            return false;
+        }
+        HttpEvent httpEvent = (HttpEvent) evt;
+        if (httpEvent.method() != Method.GET && httpEvent.method() != Method.HEAD) {
+            return false;
+        }
+        Page p = Page.get();
+        return p != null && p.getApplication() != null && p.getApplication().autoEtags;
+    }
+
+    /**
+     * A fast, non-cryptographic 64-bit hash of the readable bytes of a buffer,
+     * for use in weak etags.
+     */
+    static long bodyHash(ByteBuf buf) {
+        int ix = buf.readerIndex();
+        int end = buf.writerIndex();
+        long result = 0x9E3779B97F4A7C15L ^ (end - ix);
+        for (; ix + 8 <= end; ix += 8) {
+            result = mix(result ^ buf.getLong(ix)) + 0x9E3779B97F4A7C15L;
+        }
+        long tail = 0;
+        for (int shift = 0; ix < end; ix++, shift += 8) {
+            tail |= (buf.getByte(ix) & 0xFFL) << shift;
+        }
+        return mix(result ^ tail);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
     ChannelFuture sendMessage(Event<?> evt, ChannelFuture future, HttpMessage resp) {
         if (listener != null) {
             future = future.addListener(listener);
@@ -31,8 +31,10 @@ import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.FileRegion;
 import io.netty.handler.codec.http.HttpContent;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -91,6 +93,25 @@ public abstract class ResponseWriter {
                 
         Output write(FileRegion region) throws IOException
                 ;
+
+        /**
+         * Write a region of a file. If the channel is not encrypted, this
+         * uses a FileRegion for zero-copy transfer; if it is, the file is
+         * sent in chunks sized to the TLS record size, memory-mapping large
+         * regions, since a FileRegion cannot pass through an SslHandler.
+         * The default implementation, for Output implementations which
+         * predate this method, simply writes a DefaultFileRegion.
+         *
+         * @param file The file
+         * @param position The offset to start at
+         * @param length The number of bytes to send
+         * @return this
+         * @throws IOException If the file cannot be opened
+         */
+        default Output write(File file, long position, long length) throws IOException {
+            return write(new DefaultFileRegion(file, position, length));
+        }
+
         Output write(HttpContent chunk) throws IOException;
 
         <T> Output trailer(HeaderValueType<T> type, T value);
@@ -0,0 +1,452 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.google.common.net.MediaType;
+import com.mastfrog.acteur.spi.ApplicationControl;
+import com.mastfrog.util.Codec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import static io.netty.channel.ChannelFutureListener.CLOSE;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Writes a response body from a Stream, Iterator or Flow.Publisher passed as
+ * the response message, serializing elements incrementally as a JSON array or
+ * as newline-delimited JSON, in chunks. The next batch is only pulled from the
+ * source once the previous one has been flushed, or immediately if the
+ * channel is still writable, so neither the time to the first byte nor the
+ * memory used grows with the size of the result.
+ *
+ * @author Tim Boudreau
+ */
+final class StreamingBodyWriter implements ChannelFutureListener, Runnable {
+
+    static final int BATCH_BYTES = 8192;
+    static final Object PENDING = new Object();
+    static final Object END = new Object();
+    private final Source source;
+    private final boolean ndjson;
+    private final Codec codec;
+    private final Charset charset;
+    private final ByteBufAllocator alloc;
+    private final ExecutorService svc;
+    private final ApplicationControl ctrl;
+    private final boolean shouldClose;
+    private volatile Channel channel;
+    private boolean started;
+    private boolean wroteElement;
+
+    StreamingBodyWriter(Object message, boolean ndjson, Codec codec, Charset charset,
+            ByteBufAllocator alloc, ExecutorService svc, ApplicationControl ctrl, boolean shouldClose) {
+        this.source = sourceFor(message);
+        this.ndjson = ndjson;
+        this.codec = codec;
+        this.charset = charset;
+        this.alloc = alloc;
+        this.svc = svc;
+        this.ctrl = ctrl;
+        this.shouldClose = shouldClose;
+    }
+
+    static boolean isStreamable(Object message) {
+        return message instanceof Stream<?> || message instanceof Iterator<?>
+                || FlowPublisherSource.isPublisher(message);
+    }
+
+    static boolean isNdJson(MediaType type) {
+        if (type == null) {
+            return false;
+        }
+        String sub = type.subtype();
+        return "x-ndjson".equals(sub) || "ndjson".equals(sub) || "x-json-stream".equals(sub)
+                || "jsonl".equals(sub) || "x-jsonlines".equals(sub);
+    }
+
+    static void close(Object message) {
+        sourceFor(message).close();
+    }
+
+    private static Source sourceFor(Object message) {
+        if (message instanceof Stream<?>) {
+            return new IteratorSource(((Stream<?>) message).iterator(), (Stream<?>) message);
+        } else if (message instanceof Iterator<?>) {
+            return new IteratorSource((Iterator<?>) message,
+                    message instanceof AutoCloseable ? (AutoCloseable) message : null);
+        } else {
+            return new FlowPublisherSource(message);
+        }
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) throws Exception {
+        if (future.cause() != null) {
+            abort(future.cause(), future.channel());
+            return;
+        }
+        channel = future.channel();
+        if (!channel.isOpen()) {
+            source.close();
+            return;
+        }
+        // Called once, when the headers have been written
+        channel.closeFuture().addListener(f -> source.disconnected());
+        // Pull from the source off the event loop - it may block
+        svc.submit(this);
+    }
+
+    @Override
+    public void run() {
+        Channel ch = channel;
+        ByteBuf buf = alloc.ioBuffer(BATCH_BYTES);
+        boolean done = false;
+        try {
+            if (!started) {
+                started = true;
+                source.start();
+                if (!ndjson) {
+                    buf.writeByte('[');
+                }
+            }
+            Object next = PENDING;
+            while (buf.readableBytes() < BATCH_BYTES) {
+                next = source.next();
+                if (next == END) {
+                    done = true;
+                    break;
+                } else if (next == PENDING) {
+                    break;
+                }
+                if (!ndjson && wroteElement) {
+                    buf.writeByte(',');
+                }
+                buf.writeCharSequence(codec.writeValueAsString(next), charset);
+                if (ndjson) {
+                    buf.writeByte('\n');
+                }
+                wroteElement = true;
+            }
+            if (done && !ndjson) {
+                buf.writeByte(']');
+            }
+            if (!buf.isReadable()) {
+                buf.release();
+                if (done) {
+                    finish(ch.newSucceededFuture());
+                } else {
+                    source.onAvailable(this::resubmit);
+                }
+                return;
+            }
+            ChannelFuture fut = ch.writeAndFlush(new DefaultHttpContent(buf));
+            if (done) {
+                finish(fut);
+            } else if (next == PENDING) {
+                fut.addListener((ChannelFutureListener) f -> {
+                    if (f.isSuccess()) {
+                        source.onAvailable(this::resubmit);
+                    } else {
+                        abort(f.cause(), ch);
+                    }
+                });
+            } else if (ch.isWritable()) {
+                // Still room in the outbound buffer - keep going
+                resubmit();
+            } else {
+                // Wait for what we wrote to drain before pulling more
+                fut.addListener((ChannelFutureListener) this::drained);
+            }
+        } catch (Exception | Error e) {
+            if (buf.refCnt() > 0) {
+                buf.release();
+            }
+            abort(e, ch);
+        }
+    }
+
+    private void drained(ChannelFuture future) {
+        if (future.cause() != null) {
+            abort(future.cause(), future.channel());
+        } else {
+            resubmit();
+        }
+    }
+
+    private void resubmit() {
+        if (channel.isOpen()) {
+            svc.submit(this);
+        } else {
+            source.close();
+        }
+    }
+
+    private void finish(ChannelFuture fut) {
+        source.close();
+        fut = fut.channel().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (shouldClose) {
+            fut.addListener(CLOSE);
+        }
+    }
+
+    private void abort(Throwable t, Channel ch) {
+        source.close();
+        ctrl.internalOnError(t);
+        // Headers are long gone, so all we can do is truncate the response
+        if (ch != null && ch.isOpen()) {
+            ch.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StreamingBodyWriter(" + source + (ndjson ? " ndjson)" : " json)");
+    }
+
+    interface Source {
+
+        default void start() throws Exception {
+        }
+
+        /**
+         * Get the next element, or END or PENDING.
+         */
+        Object next() throws Exception;
+
+        /**
+         * Called when next() has returned PENDING; the runnable must be run
+         * once an element is available or the source is finished.
+         */
+        default void onAvailable(Runnable r) {
+            r.run();
+        }
+
+        /**
+         * Called when the channel closes, possibly while another thread is
+         * pulling from the source.
+         */
+        default void disconnected() {
+        }
+
+        void close();
+    }
+
+    static final class IteratorSource implements Source {
+
+        private final Iterator<?> iter;
+        private final AutoCloseable onDone;
+        private boolean closed;
+
+        IteratorSource(Iterator<?> iter, AutoCloseable onDone) {
+            this.iter = iter;
+            this.onDone = onDone;
+        }
+
+        @Override
+        public Object next() {
+            return iter.hasNext() ? iter.next() : END;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                if (onDone != null) {
+                    try {
+                        onDone.close();
+                    } catch (Exception ex) {
+                        // nothing useful to do
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return iter.toString();
+        }
+    }
+
+    /**
+     * Adapts a java.util.concurrent.Flow.Publisher to a demand-driven source.
+     * Since this library still targets Java 8, the Flow interfaces are looked
+     * up reflectively and a proxy is used as the subscriber.
+     */
+    static final class FlowPublisherSource implements Source, InvocationHandler {
+
+        private static final int DEMAND = 32;
+        private static final Class<?> PUBLISHER = flowType("Publisher");
+        private static final Class<?> SUBSCRIBER = flowType("Subscriber");
+        private static final Class<?> SUBSCRIPTION = flowType("Subscription");
+        private final Object publisher;
+        private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicReference<Runnable> waiter = new AtomicReference<>();
+        private volatile Object subscription;
+        private volatile Throwable failure;
+        private volatile boolean complete;
+        private volatile boolean cancelled;
+        private int consumed;
+
+        FlowPublisherSource(Object publisher) {
+            this.publisher = publisher;
+        }
+
+        private static Class<?> flowType(String name) {
+            try {
+                return Class.forName("java.util.concurrent.Flow$" + name);
+            } catch (ClassNotFoundException ex) {
+                // JDK 8
+                return null;
+            }
+        }
+
+        static boolean isPublisher(Object o) {
+            return PUBLISHER != null && PUBLISHER.isInstance(o);
+        }
+
+        @Override
+        public void start() throws Exception {
+            Object subscriber = Proxy.newProxyInstance(StreamingBodyWriter.class.getClassLoader(),
+                    new Class<?>[]{SUBSCRIBER}, this);
+            try {
+                PUBLISHER.getMethod("subscribe", SUBSCRIBER).invoke(publisher, subscriber);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+            }
+        }
+
+        private void request(Object subscription, long count) {
+            try {
+                SUBSCRIPTION.getMethod("request", Long.TYPE).invoke(subscription, count);
+            } catch (IllegalAccessException | NoSuchMethodException | InvocationTargetException ex) {
+                failure = ex;
+                signal();
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "onSubscribe":
+                    subscription = args[0];
+                    request(args[0], DEMAND);
+                    break;
+                case "onNext":
+                    queue.offer(args[0]);
+                    signal();
+                    break;
+                case "onError":
+                    failure = (Throwable) args[0];
+                    signal();
+                    break;
+                case "onComplete":
+                    complete = true;
+                    signal();
+                    break;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Subscriber(" + publisher + ")";
+                default:
+                    break;
+            }
+            return null;
+        }
+
+        private void signal() {
+            Runnable r = waiter.getAndSet(null);
+            if (r != null) {
+                r.run();
+            }
+        }
+
+        @Override
+        public Object next() throws Exception {
+            Object result = queue.poll();
+            if (result != null) {
+                // Replenish demand in half-batches as the queue drains
+                if (++consumed == DEMAND / 2) {
+                    consumed = 0;
+                    request(subscription, DEMAND / 2);
+                }
+                return result;
+            }
+            Throwable t = failure;
+            if (t != null) {
+                throw t instanceof Exception ? (Exception) t : new Exception(t);
+            }
+            return complete && queue.isEmpty() ? END : PENDING;
+        }
+
+        @Override
+        public void onAvailable(Runnable r) {
+            waiter.set(r);
+            // Guard against the element arriving before the waiter was set
+            if (!queue.isEmpty() || complete || failure != null) {
+                signal();
+            }
+        }
+
+        @Override
+        public void disconnected() {
+            // Otherwise we would only notice on the next element, which an
+            // idle publisher may never send
+            close();
+        }
+
+        @Override
+        public synchronized void close() {
+            Object sub = subscription;
+            if (!complete && !cancelled && sub != null) {
+                cancelled = true;
+                try {
+                    SUBSCRIPTION.getMethod("cancel").invoke(sub);
+                } catch (IllegalAccessException | NoSuchMethodException | InvocationTargetException ex) {
+                    // nothing useful to do
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return publisher.toString();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import java.time.ZonedDateTime;
+
+/**
+ * Computes the ETag and/or Last-Modified date a page's response to a request
+ * would have, cheaply - say, from a version counter or an update timestamp -
+ * without doing the work of producing the response. Declare one for a page
+ * with {@link com.mastfrog.acteur.annotations.ValidatedBy}; conditional
+ * requests which match are answered with <code>304 Not Modified</code> before
+ * the page or any of its acteurs is created, and successful responses from
+ * the page which do not set these headers themselves get them from here.
+ * <p>
+ * Implementations are obtained from Guice, in request scope.
+ *
+ * @author Tim Boudreau
+ */
+public interface ValidatorSupplier {
+
+    /**
+     * Get the current entity tag for the response to this request.
+     *
+     * @param evt The request
+     * @return An etag (without quotes) or null
+     * @throws Exception If something goes wrong
+     */
+    default CharSequence etag(HttpEvent evt) throws Exception {
+        return null;
+    }
+
+    /**
+     * Get the time the response to this request last changed.
+     *
+     * @param evt The request
+     * @return A date or null
+     * @throws Exception If something goes wrong
+     */
+    default ZonedDateTime lastModified(HttpEvent evt) throws Exception {
+        return null;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.google.common.net.MediaType;
+import com.mastfrog.marshallers.netty.NettyContentMarshallers;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.nio.charset.Charset;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Marshals the message of a response to a websocket frame directly into
+ * websocket frames, without creating an HttpResponse - a text message if the
+ * content type is textual and UTF-8, binary otherwise - splitting messages
+ * larger than the maximum frame size into continuation frames.
+ *
+ * @author Tim Boudreau
+ */
+final class WebSocketFrames {
+
+    private final NettyContentMarshallers marshallers;
+    private final Charset defaultCharset;
+    private final int maxFrameBytes;
+
+    WebSocketFrames(NettyContentMarshallers marshallers, Charset defaultCharset, int maxFrameBytes) {
+        this.marshallers = marshallers;
+        this.defaultCharset = defaultCharset;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    ChannelFuture send(Channel channel, Object message, MediaType contentType) throws Exception {
+        Charset charset = defaultCharset;
+        if (contentType != null && contentType.charset().isPresent()) {
+            charset = contentType.charset().get();
+        }
+        // Text frames must be UTF-8
+        boolean text = isText(contentType) && UTF_8.equals(charset);
+        ByteBuf buf;
+        if (message instanceof ByteBuf) {
+            buf = (ByteBuf) message;
+        } else {
+            buf = channel.alloc().ioBuffer();
+            try {
+                marshallers.write(message, buf, charset);
+            } catch (Exception | Error e) {
+                buf.release();
+                throw e;
+            }
+        }
+        if (maxFrameBytes <= 0 || buf.readableBytes() <= maxFrameBytes) {
+            return channel.writeAndFlush(text ? new TextWebSocketFrame(buf) : new BinaryWebSocketFrame(buf));
+        }
+        ChannelPromise promise = channel.newPromise();
+        // Nothing else may be written between the fragments of a message, so
+        // write them all from the event loop in one go
+        if (channel.eventLoop().inEventLoop()) {
+            writeFragments(channel, buf, text, promise);
+        } else {
+            channel.eventLoop().execute(() -> writeFragments(channel, buf, text, promise));
+        }
+        return promise;
+    }
+
+    private void writeFragments(Channel channel, ByteBuf buf, boolean text, ChannelPromise promise) {
+        try {
+            int start = buf.readerIndex();
+            int length = buf.readableBytes();
+            for (int offset = 0; offset < length; offset += maxFrameBytes) {
+                int size = Math.min(maxFrameBytes, length - offset);
+                ByteBuf slice = buf.retainedSlice(start + offset, size);
+                boolean last = offset + size == length;
+                WebSocketFrame frame;
+                if (offset == 0) {
+                    frame = text ? new TextWebSocketFrame(false, 0, slice)
+                            : new BinaryWebSocketFrame(false, 0, slice);
+                } else {
+                    frame = new ContinuationWebSocketFrame(last, 0, slice);
+                }
+                if (last) {
+                    channel.write(frame, promise);
+                } else {
+                    channel.write(frame);
+                }
+            }
+            channel.flush();
+        } finally {
+            buf.release();
+        }
+    }
+
+    static boolean isText(MediaType type) {
+        if (type == null) {
+            return false;
+        }
+        if ("text".equals(type.type())) {
+            return true;
+        }
+        String sub = type.subtype();
+        return "json".equals(sub) || "xml".equals(sub) || "javascript".equals(sub)
+                || sub.endsWith("+json") || sub.endsWith("+xml");
+    }
+}
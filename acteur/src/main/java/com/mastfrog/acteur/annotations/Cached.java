@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.annotations;
+
+import com.mastfrog.acteur.preconditions.Description;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Annotate a page (or an acteur annotated with &#064;HttpCall) with this to
+ * have successful responses to GET requests kept in the application's
+ * {@link com.mastfrog.acteur.ResponseCache} and replayed, without running any
+ * acteurs, until they expire or are invalidated.
+ * <p>
+ * Responses are keyed on the path, the query parameters named here (or the
+ * entire query string if none are), and the values of any request headers
+ * named in the response's <code>Vary</code> header or in
+ * <code>vary()</code>. Responses which are streamed, delayed, set cookies,
+ * are marked <code>no-store</code> or <code>private</code>, or are not 200 OK
+ * are never cached. Requests which carry an <code>Authorization</code> or
+ * <code>Cookie</code> header which is not listed in <code>vary()</code>, or
+ * which are conditional, always run the page normally.
+ * <p>
+ * <b>When a cached response is replayed, no acteurs run - including ones
+ * which authenticate or authorize the caller.</b> A page which authenticates
+ * by some other means, such as a custom header, must name that header in
+ * <code>vary()</code>, or must not be cached, or one caller's response will be
+ * sent to everyone.
+ *
+ * @author Tim Boudreau
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Description("Responses to GET requests are cached in memory and replayed "
+        + "without running the call until they expire")
+public @interface Cached {
+
+    /**
+     * How long a response may be replayed for.
+     *
+     * @return The time to live, in the units specified by
+     * <code>unit()</code>
+     */
+    long ttl();
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+
+    /**
+     * The query parameters which affect the response; if empty, the entire
+     * query string is part of the cache key.
+     *
+     * @return Parameter names
+     */
+    String[] parameters() default {};
+
+    /**
+     * Request headers whose values should be part of the cache key, in
+     * addition to any named in the response's <code>Vary</code> header.
+     *
+     * @return Header names
+     */
+    String[] vary() default {};
+
+    /**
+     * Tags which can be passed to
+     * {@link com.mastfrog.acteur.ResponseCache#invalidateTag(java.lang.String)}
+     * to discard cached responses from this and other pages at once.
+     *
+     * @return Tags
+     */
+    String[] tags() default {};
+}
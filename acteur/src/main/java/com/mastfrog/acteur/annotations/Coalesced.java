@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.annotations;
+
+import com.mastfrog.acteur.preconditions.Description;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Annotate a page (or an acteur annotated with &#064;HttpCall) with this to
+ * have concurrent, identical GET requests for it share one response: the
+ * first runs the page, and requests which arrive while it is running wait for
+ * its response and are sent a copy of it, rather than each doing the same
+ * expensive work. Combined with {@link Cached}, this keeps an expiring cache
+ * entry from causing a stampede.
+ * <p>
+ * Requests are identical if they have the same path, values for the query
+ * parameters named here (or the entire query string if none are), and values
+ * for the request headers named in <code>vary()</code>. If the first request
+ * fails, does not produce a complete response, produces an error, sets
+ * cookies, or does not finish within the timeout, each waiting request runs
+ * the page itself. Requests which are conditional or carry an
+ * <code>Authorization</code> or <code>Cookie</code> header not listed in
+ * <code>vary()</code> are never coalesced.
+ *
+ * @author Tim Boudreau
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Description("Concurrent identical GET requests share the response of the "
+        + "first one")
+public @interface Coalesced {
+
+    /**
+     * How long requests will wait for the first one to complete before
+     * running the page themselves.
+     *
+     * @return The timeout, in the units specified by <code>unit()</code>
+     */
+    long timeout() default 10;
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+
+    /**
+     * The query parameters which affect the response; if empty, the entire
+     * query string is considered.
+     *
+     * @return Parameter names
+     */
+    String[] parameters() default {};
+
+    /**
+     * Request headers whose values affect the response.
+     *
+     * @return Header names
+     */
+    String[] vary() default {};
+}
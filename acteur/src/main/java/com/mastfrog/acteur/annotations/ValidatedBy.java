@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.annotations;
+
+import com.mastfrog.acteur.ValidatorSupplier;
+import com.mastfrog.acteur.preconditions.Description;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Annotate a page (or an acteur annotated with &#064;HttpCall) with this to
+ * have conditional GET and HEAD requests answered with
+ * <code>304 Not Modified</code> when the ETag or Last-Modified date computed by
+ * the passed {@link ValidatorSupplier} shows the client's copy is current,
+ * without running the page at all.
+ * <p>
+ * The values are memoized for each path and set of query parameters for the
+ * time specified by <code>memoize()</code>, so a burst of revalidation
+ * requests does not turn into a burst of version lookups.
+ *
+ * @author Tim Boudreau
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Description("Conditional requests are answered with 304 Not Modified "
+        + "before the call runs, if the client's copy is current")
+public @interface ValidatedBy {
+
+    /**
+     * The type which computes validators, instantiated by Guice.
+     *
+     * @return A type
+     */
+    Class<? extends ValidatorSupplier> value();
+
+    /**
+     * How long computed validators may be reused for the same path and query
+     * parameters; 0 means compute them for every request.
+     *
+     * @return A duration in the units specified by <code>unit()</code>
+     */
+    long memoize() default 1000;
+
+    TimeUnit unit() default TimeUnit.MILLISECONDS;
+
+    /**
+     * The query parameters which affect the validators; if empty, the entire
+     * query string is considered.
+     *
+     * @return Parameter names
+     */
+    String[] parameters() default {};
+}
@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.io;
+
+import com.mastfrog.acteur.server.PipelineDecorator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sends a region of a file as a series of chunks, for use where Netty's
+ * FileRegion (sendfile) cannot be used because the bytes must pass through an
+ * SslHandler to be encrypted. Large regions are sent as slices of a
+ * memory-mapped window of the file, so no copy is made onto the heap; small
+ * ones are read into pooled buffers. Requires a ChunkedWriteHandler in the
+ * pipeline - see {@link #ensureChunkedWriteHandler(ChannelPipeline)}.
+ *
+ * @author Tim Boudreau
+ */
+public final class FileChunks implements ChunkedInput<Object> {
+
+    /**
+     * The largest amount of plaintext a TLS record can hold.
+     */
+    public static final int MAX_TLS_RECORD_PAYLOAD = 16384;
+    /**
+     * Regions at least this large are memory-mapped rather than read.
+     */
+    public static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final int DEFAULT_CHUNK_SIZE = 65536;
+    private static final long MAP_WINDOW = 16 * 1024 * 1024;
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private final int chunkSize;
+    private final boolean httpChunks;
+    private final boolean map;
+    private long position;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private FileChunks(FileChannel channel, long start, long length, int chunkSize, boolean httpChunks) {
+        this.channel = channel;
+        this.start = start;
+        this.position = start;
+        this.end = start + length;
+        this.chunkSize = chunkSize;
+        this.httpChunks = httpChunks;
+        this.map = length >= MAP_THRESHOLD;
+    }
+
+    /**
+     * Open a region of a file for sending in chunks.
+     *
+     * @param file The file
+     * @param position The start offset
+     * @param length The number of bytes
+     * @param chunkSize The maximum bytes per chunk
+     * @param httpChunks If true, chunks are emitted as HttpContent for a
+     * response using chunked transfer-encoding, rather than as raw ByteBufs
+     * @return A ChunkedInput
+     * @throws IOException If the file cannot be opened
+     */
+    public static FileChunks open(File file, long position, long length, int chunkSize, boolean httpChunks) throws IOException {
+        if (position < 0 || length < 0) {
+            throw new IllegalArgumentException("Bad region " + position + ":" + length);
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Bad chunk size " + chunkSize);
+        }
+        return new FileChunks(FileChannel.open(file.toPath(), StandardOpenOption.READ), position, length, chunkSize, httpChunks);
+    }
+
+    /**
+     * Get a chunk size which matches the TLS record size of the passed
+     * SslHandler, so that each chunk is encrypted into exactly one record.
+     *
+     * @param ssl An SslHandler or null
+     * @return A chunk size
+     */
+    public static int chunkSize(SslHandler ssl) {
+        if (ssl == null) {
+            return DEFAULT_CHUNK_SIZE;
+        }
+        // The application buffer size includes some slack over the largest
+        // payload a record can carry
+        int appBufferSize = ssl.engine().getSession().getApplicationBufferSize();
+        return Math.max(1024, Math.min(MAX_TLS_RECORD_PAYLOAD, appBufferSize));
+    }
+
+    /**
+     * Add a ChunkedWriteHandler ahead of the application's handler if there
+     * is not one already.
+     *
+     * @param pipeline The pipeline
+     */
+    public static void ensureChunkedWriteHandler(ChannelPipeline pipeline) {
+        synchronized (pipeline) {
+            if (pipeline.get(ChunkedWriteHandler.class) != null) {
+                return;
+            }
+            if (pipeline.get(PipelineDecorator.HANDLER) != null) {
+                pipeline.addBefore(PipelineDecorator.HANDLER, PipelineDecorator.CHUNKED_WRITER, new ChunkedWriteHandler());
+            } else {
+                pipeline.addLast(PipelineDecorator.CHUNKED_WRITER, new ChunkedWriteHandler());
+            }
+        }
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return position >= end || !channel.isOpen();
+    }
+
+    @Override
+    public void close() throws Exception {
+        window = null;
+        channel.close();
+    }
+
+    @Override
+    @Deprecated
+    public Object readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public Object readChunk(ByteBufAllocator allocator) throws Exception {
+        if (isEndOfInput()) {
+            return null;
+        }
+        int size = (int) Math.min(chunkSize, end - position);
+        ByteBuf buf = map ? mappedSlice(size) : read(allocator, size);
+        position += size;
+        return httpChunks ? new DefaultHttpContent(buf) : buf;
+    }
+
+    private ByteBuf mappedSlice(int size) throws IOException {
+        if (window == null || position + size > windowStart + window.capacity()) {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, end - position));
+        }
+        ByteBuffer slice = window.duplicate();
+        int offset = (int) (position - windowStart);
+        slice.position(offset);
+        slice.limit(offset + size);
+        // The mapping is unmapped by the garbage collector once no buffer
+        // refers to it, so the wrapper does not need to be released
+        return Unpooled.wrappedBuffer(slice.slice());
+    }
+
+    private ByteBuf read(ByteBufAllocator allocator, int size) throws IOException {
+        ByteBuf buf = allocator.ioBuffer(size);
+        try {
+            long pos = position;
+            while (buf.writableBytes() > 0 && buf.writerIndex() < size) {
+                int count = buf.writeBytes(channel, pos, size - buf.writerIndex());
+                if (count < 0) {
+                    throw new IOException("File truncated at " + pos + " while sending bytes " + start + "-" + end);
+                }
+                pos += count;
+            }
+            return buf;
+        } catch (IOException | RuntimeException ex) {
+            buf.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public long length() {
+        return end - start;
+    }
+
+    @Override
+    public long progress() {
+        return position - start;
+    }
+}
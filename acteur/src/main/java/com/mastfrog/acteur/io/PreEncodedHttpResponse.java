@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.io;
+
+import com.mastfrog.acteur.headers.HeaderValueType;
+import com.mastfrog.acteur.headers.Headers;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderResult;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+import java.util.Iterator;
+import java.util.Map;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * A complete HTTP response - status line, headers and body - which has
+ * already been encoded to bytes, so it can be sent with a single write
+ * without being re-encoded. The pipeline's encoder and compressor pass it
+ * through unchanged.
+ * <p>
+ * Typical use is to encode the invariant part of a response once with
+ * {@link #encodeHeaders(HttpResponse)}, and per request compose it with the
+ * few headers which vary (such as <code>Date</code>, appended with
+ * {@link #appendHeader(ByteBuf, HeaderValueType, Object)}), the blank line
+ * that ends the headers, and the body.
+ *
+ * @author Tim Boudreau
+ */
+public final class PreEncodedHttpResponse extends DefaultByteBufHolder implements HttpObject {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static volatile CachedDate cachedDate = new CachedDate(0, "");
+
+    /**
+     * Create a response.
+     *
+     * @param content The complete encoded response, which this object takes
+     * ownership of
+     */
+    public PreEncodedHttpResponse(ByteBuf content) {
+        super(content);
+    }
+
+    /**
+     * Encode the status line and headers of a response, not including the
+     * blank line which ends the headers. The result is an unreleasable
+     * buffer which may be shared by any number of responses.
+     *
+     * @param response A response
+     * @return A buffer
+     */
+    public static ByteBuf encodeHeaders(HttpResponse response) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(response.protocolVersion().text()).append(' ')
+                .append(response.status().code()).append(' ')
+                .append(response.status().reasonPhrase()).append("\r\n");
+        for (Iterator<Map.Entry<CharSequence, CharSequence>> it = response.headers().iteratorCharSequence(); it.hasNext();) {
+            Map.Entry<CharSequence, CharSequence> e = it.next();
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+        }
+        byte[] bytes = sb.toString().getBytes(US_ASCII);
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes);
+        buf.flip();
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(buf));
+    }
+
+    /**
+     * Append one header to a buffer of encoded headers.
+     *
+     * @param <T> The header value type
+     * @param buf The buffer
+     * @param type The header
+     * @param value The value
+     * @return The buffer
+     */
+    public static <T> ByteBuf appendHeader(ByteBuf buf, HeaderValueType<T> type, T value) {
+        return appendHeader(buf, type.name(), type.toCharSequence(value));
+    }
+
+    public static ByteBuf appendHeader(ByteBuf buf, CharSequence name, CharSequence value) {
+        ByteBufUtil.writeAscii(buf, name);
+        buf.writeByte(':').writeByte(' ');
+        ByteBufUtil.writeAscii(buf, value);
+        return buf.writeBytes(CRLF);
+    }
+
+    /**
+     * Append the blank line which ends the headers.
+     *
+     * @param buf The buffer
+     * @return The buffer
+     */
+    public static ByteBuf endHeaders(ByteBuf buf) {
+        return buf.writeBytes(CRLF);
+    }
+
+    /**
+     * Get the current time formatted for the <code>Date</code> header, which
+     * is only reformatted once per second.
+     *
+     * @return The date
+     */
+    public static CharSequence httpDate() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate result = cachedDate;
+        if (result.second != second) {
+            cachedDate = result = new CachedDate(second, Headers.DATE.toCharSequence(ZonedDateTime.now()));
+        }
+        return result.value;
+    }
+
+    @Override
+    public DecoderResult decoderResult() {
+        return DecoderResult.SUCCESS;
+    }
+
+    @Override
+    @Deprecated
+    public DecoderResult getDecoderResult() {
+        return DecoderResult.SUCCESS;
+    }
+
+    @Override
+    public void setDecoderResult(DecoderResult result) {
+        throw new UnsupportedOperationException("Not a decoded message");
+    }
+
+    @Override
+    public PreEncodedHttpResponse replace(ByteBuf content) {
+        return new PreEncodedHttpResponse(content);
+    }
+
+    @Override
+    public PreEncodedHttpResponse retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public PreEncodedHttpResponse retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    private static final class CachedDate {
+
+        private final long second;
+        private final CharSequence value;
+
+        CachedDate(long second, CharSequence value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.multipart;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteur.preconditions.Description;
+import com.mastfrog.acteur.util.Connection;
+import javax.inject.Inject;
+
+/**
+ * Replies with an error if the multipart upload decoded by a
+ * {@link MultipartChunkHandler} failed or exceeded its limits; otherwise
+ * simply continues the chain.
+ *
+ * @author Tim Boudreau
+ */
+@Description("Rejects malformed or oversized multipart uploads")
+public final class CheckMultipartUpload extends Acteur {
+
+    @Inject
+    CheckMultipartUpload(MultipartUpload upload) {
+        if (upload.isFailed()) {
+            // The rest of the body may still be in flight, so don't try to
+            // reuse the connection
+            add(Headers.CONNECTION, Connection.close);
+            reply(upload.failure().status(), upload.failure().getMessage());
+        } else {
+            next();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.multipart;
+
+import com.google.common.net.MediaType;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A part of a multipart/form-data request body which was streamed to a
+ * temporary file. Unless it is moved somewhere else using
+ * <code>moveTo()</code>, the file is deleted once the request completes.
+ *
+ * @author Tim Boudreau
+ */
+public final class FilePart {
+
+    private final String name;
+    private final String fileName;
+    private final MediaType contentType;
+    private final long size;
+    private volatile Path path;
+    private volatile boolean moved;
+
+    FilePart(String name, String fileName, MediaType contentType, Path path, long size) {
+        this.name = name;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.path = path;
+        this.size = size;
+    }
+
+    /**
+     * The form field name.
+     *
+     * @return The name
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * The file name the client supplied, if any (parts which were not marked
+     * as files but exceeded the in-memory threshold will not have one).
+     *
+     * @return The file name or null
+     */
+    public String fileName() {
+        return fileName;
+    }
+
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * The current location of the file.
+     *
+     * @return The path
+     */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Move the uploaded file to a permanent location, so it will not be deleted
+     * when the request completes.
+     *
+     * @param target The target file
+     * @return The target
+     * @throws IOException If the move fails
+     */
+    public synchronized Path moveTo(Path target) throws IOException {
+        path = Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
+        moved = true;
+        return path;
+    }
+
+    synchronized void delete() throws IOException {
+        if (!moved) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + fileName + " (" + size + " bytes " + contentType + " at " + path + ")";
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.multipart;
+
+import com.google.common.net.MediaType;
+import java.nio.charset.Charset;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A small, non-file part of a multipart/form-data request body, which is held
+ * in memory.
+ *
+ * @author Tim Boudreau
+ */
+public final class FormField {
+
+    private final String name;
+    private final MediaType contentType;
+    private final byte[] bytes;
+
+    FormField(String name, MediaType contentType, byte[] bytes) {
+        this.name = name;
+        this.contentType = contentType;
+        this.bytes = bytes;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * The content type of this part, if the client sent one.
+     *
+     * @return A content type or null
+     */
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public byte[] bytes() {
+        return bytes.clone();
+    }
+
+    /**
+     * Get the value as a string, using the charset from the part's content
+     * type if present, or UTF-8.
+     *
+     * @return The value
+     */
+    public String value() {
+        Charset charset = UTF_8;
+        if (contentType != null && contentType.charset().isPresent()) {
+            charset = contentType.charset().get();
+        }
+        return new String(bytes, charset);
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + (bytes.length > 80 ? bytes.length + " bytes" : value());
+    }
+}
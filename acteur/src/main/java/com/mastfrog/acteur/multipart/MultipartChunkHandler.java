@@ -0,0 +1,473 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.multipart;
+
+import com.google.common.net.MediaType;
+import com.mastfrog.acteur.ChunkHandler;
+import com.mastfrog.acteur.Closables;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.settings.Settings;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaders;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+import static io.netty.handler.codec.http.HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.List;
+import javax.inject.Inject;
+
+/**
+ * Incrementally decodes a multipart/form-data request body as it arrives.
+ * Small fields are held in memory; parts with a file name, or parts which
+ * exceed the in-memory threshold, are written straight from the inbound
+ * buffers to a temporary file using gathering FileChannel writes, so the
+ * upload is never aggregated on the heap.
+ * <p>
+ * Use it by annotating a page or HttpCall with
+ * <code>&#064;Early(MultipartChunkHandler.class)</code>; once the body has been
+ * received (or a limit has been exceeded), the chain resumes and a
+ * {@link MultipartUpload} is available for injection into subsequent acteurs.
+ * Put {@link CheckMultipartUpload} first in that sequence to have failed
+ * uploads answered with an appropriate error. Subclass and call the protected
+ * constructor to use limits other than the ones from settings for a particular
+ * page.
+ *
+ * @author Tim Boudreau
+ */
+public class MultipartChunkHandler extends ChunkHandler {
+
+    /**
+     * Settings key for the maximum number of bytes in any single part.
+     */
+    public static final String SETTINGS_KEY_MULTIPART_MAX_PART_BYTES = "multipart.max.part.bytes";
+    /**
+     * Settings key for the maximum number of bytes in the entire request body.
+     */
+    public static final String SETTINGS_KEY_MULTIPART_MAX_TOTAL_BYTES = "multipart.max.total.bytes";
+    /**
+     * Settings key for the number of bytes above which a part without a file
+     * name will be written to disk rather than held in memory.
+     */
+    public static final String SETTINGS_KEY_MULTIPART_MEMORY_THRESHOLD = "multipart.memory.threshold";
+    /**
+     * Settings key for the directory uploaded files are written into; the
+     * default is the system temporary directory.
+     */
+    public static final String SETTINGS_KEY_MULTIPART_UPLOAD_DIR = "multipart.upload.dir";
+
+    public static final long DEFAULT_MAX_PART_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_MAX_TOTAL_BYTES = 256 * 1024 * 1024;
+    public static final int DEFAULT_MEMORY_THRESHOLD = 16 * 1024;
+    private static final int MAX_PART_HEADER_BYTES = 8192;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+
+    private final MultipartUpload upload = new MultipartUpload();
+    private final long maxPartBytes;
+    private final long maxTotalBytes;
+    private final int memoryThreshold;
+    private final Path uploadDir;
+    private byte[] dashBoundary;
+    private byte[] delimiter;
+    private State state = State.PREAMBLE;
+    private CompositeByteBuf pending;
+    private long received;
+    private boolean finished;
+    private boolean resumedWithUpload;
+
+    private String partName;
+    private String partFileName;
+    private MediaType partType;
+    private long partBytes;
+    private ByteArrayOutputStream partMemory;
+    private FileChannel partChannel;
+    private Path partPath;
+
+    @Inject
+    public MultipartChunkHandler(HttpEvent evt, Settings settings, Closables closables) {
+        this(evt, closables, settings.getLong(SETTINGS_KEY_MULTIPART_MAX_PART_BYTES, DEFAULT_MAX_PART_BYTES),
+                settings.getLong(SETTINGS_KEY_MULTIPART_MAX_TOTAL_BYTES, DEFAULT_MAX_TOTAL_BYTES),
+                settings.getInt(SETTINGS_KEY_MULTIPART_MEMORY_THRESHOLD, DEFAULT_MEMORY_THRESHOLD),
+                Paths.get(settings.getString(SETTINGS_KEY_MULTIPART_UPLOAD_DIR, System.getProperty("java.io.tmpdir"))));
+    }
+
+    protected MultipartChunkHandler(HttpEvent evt, Closables closables, long maxPartBytes, long maxTotalBytes, int memoryThreshold, Path uploadDir) {
+        this.maxPartBytes = maxPartBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.memoryThreshold = memoryThreshold;
+        this.uploadDir = uploadDir;
+        closables.add(upload);
+        MediaType type = evt.header(Headers.CONTENT_TYPE);
+        Number length = evt.header(Headers.CONTENT_LENGTH);
+        List<String> boundaries = type == null ? null : type.parameters().get("boundary");
+        if (type == null || !"multipart".equals(type.type())) {
+            fail(new MultipartException("Not a multipart request: " + type, UNSUPPORTED_MEDIA_TYPE));
+        } else if (boundaries.isEmpty() || boundaries.get(0).isEmpty() || boundaries.get(0).length() > 70) {
+            fail(new MultipartException("Missing or invalid boundary in " + type, BAD_REQUEST));
+        } else if (length != null && length.longValue() > maxTotalBytes) {
+            fail(new MultipartException("Content-Length " + length + " exceeds " + maxTotalBytes, REQUEST_ENTITY_TOO_LARGE));
+        } else {
+            dashBoundary = ("--" + boundaries.get(0)).getBytes(US_ASCII);
+            delimiter = ("\r\n--" + boundaries.get(0)).getBytes(US_ASCII);
+        }
+    }
+
+    enum State {
+        PREAMBLE,
+        AFTER_BOUNDARY,
+        HEADERS,
+        BODY,
+        EPILOGUE,
+        FAILED
+    }
+
+    @Override
+    protected void onContent(ChannelHandlerContext ctx, ByteBuf chunk, HttpHeaders trailersOrHeaders, boolean done) throws Exception {
+        if (state != State.FAILED) {
+            received += chunk.readableBytes();
+            upload.setTotalBytes(received);
+            if (received > maxTotalBytes) {
+                fail(new MultipartException("Request body exceeds " + maxTotalBytes + " bytes", REQUEST_ENTITY_TOO_LARGE));
+            } else if (chunk.isReadable()) {
+                if (pending == null) {
+                    pending = ctx.alloc().compositeBuffer();
+                }
+                pending.addComponent(true, chunk.retain());
+                try {
+                    process();
+                    pending.discardReadComponents();
+                } catch (MultipartException ex) {
+                    fail(ex);
+                } catch (IOException ex) {
+                    fail(new MultipartException("Failed writing upload", ex));
+                }
+            }
+        }
+        if (done) {
+            if (state != State.EPILOGUE && state != State.FAILED) {
+                fail(new MultipartException("Request body ended before closing boundary", BAD_REQUEST));
+            }
+            finish();
+            ctx.pipeline().remove(this);
+            resumeWithUpload();
+        }
+    }
+
+    private void resumeWithUpload() {
+        if (!resumedWithUpload) {
+            resumedWithUpload = true;
+            resume(upload);
+        }
+    }
+
+    private void process() throws IOException {
+        for (;;) {
+            switch (state) {
+                case PREAMBLE:
+                    int start = indexOf(pending, dashBoundary);
+                    if (start < 0) {
+                        skipAllBut(dashBoundary.length - 1);
+                        return;
+                    }
+                    pending.readerIndex(start + dashBoundary.length);
+                    state = State.AFTER_BOUNDARY;
+                    break;
+                case AFTER_BOUNDARY:
+                    if (pending.readableBytes() < 2) {
+                        return;
+                    }
+                    byte a = pending.getByte(pending.readerIndex());
+                    byte b = pending.getByte(pending.readerIndex() + 1);
+                    if (a == '-' && b == '-') {
+                        state = State.EPILOGUE;
+                    } else if (a == '\r' && b == '\n') {
+                        pending.skipBytes(2);
+                        state = State.HEADERS;
+                    } else if (a == ' ' || a == '\t') {
+                        // transport padding
+                        pending.skipBytes(1);
+                    } else {
+                        throw new MultipartException("Garbage after boundary", BAD_REQUEST);
+                    }
+                    break;
+                case HEADERS:
+                    if (pending.readableBytes() < 2) {
+                        return;
+                    }
+                    if (startsWith(pending, CRLF)) {
+                        // part with no headers at all
+                        pending.skipBytes(2);
+                        startPart("");
+                    } else {
+                        int end = indexOf(pending, HEADERS_END);
+                        if (end < 0) {
+                            if (pending.readableBytes() > MAX_PART_HEADER_BYTES) {
+                                throw new MultipartException("Part headers too long", BAD_REQUEST);
+                            }
+                            return;
+                        }
+                        String headers = pending.toString(pending.readerIndex(), end - pending.readerIndex(), UTF_8);
+                        pending.readerIndex(end + HEADERS_END.length);
+                        startPart(headers);
+                    }
+                    state = State.BODY;
+                    break;
+                case BODY:
+                    int delim = indexOf(pending, delimiter);
+                    if (delim < 0) {
+                        int safe = pending.readableBytes() - (delimiter.length - 1);
+                        if (safe > 0) {
+                            write(pending.readerIndex(), safe);
+                            pending.skipBytes(safe);
+                        }
+                        return;
+                    }
+                    write(pending.readerIndex(), delim - pending.readerIndex());
+                    pending.readerIndex(delim + delimiter.length);
+                    endPart();
+                    state = State.AFTER_BOUNDARY;
+                    break;
+                case EPILOGUE:
+                case FAILED:
+                    pending.skipBytes(pending.readableBytes());
+                    return;
+                default:
+                    throw new AssertionError(state);
+            }
+        }
+    }
+
+    private void startPart(String headers) throws IOException {
+        partName = null;
+        partFileName = null;
+        partType = null;
+        partBytes = 0;
+        for (String line : headers.split("\r\n")) {
+            int ix = line.indexOf(':');
+            if (ix <= 0) {
+                continue;
+            }
+            String name = line.substring(0, ix).trim();
+            String value = line.substring(ix + 1).trim();
+            if ("content-disposition".equalsIgnoreCase(name)) {
+                partName = dispositionParameter(value, "name");
+                partFileName = dispositionParameter(value, "filename");
+            } else if ("content-type".equalsIgnoreCase(name)) {
+                try {
+                    partType = MediaType.parse(value);
+                } catch (IllegalArgumentException ex) {
+                    throw new MultipartException("Bad part content type '" + value + "'", BAD_REQUEST);
+                }
+            }
+        }
+        if (partFileName != null) {
+            openFile();
+        } else {
+            partMemory = new ByteArrayOutputStream(Math.min(memoryThreshold, 512));
+        }
+    }
+
+    private void openFile() throws IOException {
+        partPath = Files.createTempFile(uploadDir, "upload-", ".part");
+        partChannel = FileChannel.open(partPath, WRITE);
+    }
+
+    private void write(int index, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        partBytes += length;
+        if (partBytes > maxPartBytes) {
+            throw new MultipartException("Part " + partName + " exceeds " + maxPartBytes + " bytes", REQUEST_ENTITY_TOO_LARGE);
+        }
+        if (partChannel == null && partBytes > memoryThreshold) {
+            openFile();
+            ByteBuffer held = ByteBuffer.wrap(partMemory.toByteArray());
+            while (held.hasRemaining()) {
+                partChannel.write(held);
+            }
+            partMemory = null;
+        }
+        if (partChannel != null) {
+            // Gathering write straight from the inbound buffers
+            ByteBuffer[] buffers = pending.nioBuffers(index, length);
+            long remaining = length;
+            while (remaining > 0) {
+                remaining -= partChannel.write(buffers);
+            }
+        } else {
+            pending.getBytes(index, partMemory, length);
+        }
+    }
+
+    private void endPart() throws IOException {
+        if (partChannel != null) {
+            partChannel.close();
+            partChannel = null;
+            upload.add(new FilePart(partName, partFileName, partType, partPath, partBytes));
+            partPath = null;
+        } else {
+            upload.add(new FormField(partName, partType, partMemory.toByteArray()));
+            partMemory = null;
+        }
+    }
+
+    private void fail(MultipartException ex) {
+        state = State.FAILED;
+        upload.fail(ex);
+        finish();
+        // Resume early, so the client gets its error response without
+        // waiting to send the rest of the body
+        resumeWithUpload();
+    }
+
+    private void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (pending != null) {
+            pending.release();
+            pending = null;
+        }
+        partMemory = null;
+        if (partChannel != null) {
+            try {
+                partChannel.close();
+                Files.deleteIfExists(partPath);
+            } catch (IOException ex) {
+                if (upload.failure() != null) {
+                    upload.failure().addSuppressed(ex);
+                }
+            }
+            partChannel = null;
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        // Channel closed mid-upload - don't leak the buffer or a partial file
+        if (!finished) {
+            fail(new MultipartException("Connection closed during upload", BAD_REQUEST));
+        }
+        super.handlerRemoved(ctx);
+    }
+
+    private void skipAllBut(int keep) {
+        int skip = pending.readableBytes() - keep;
+        if (skip > 0) {
+            pending.skipBytes(skip);
+        }
+    }
+
+    private static boolean startsWith(ByteBuf buf, byte[] pattern) {
+        if (buf.readableBytes() < pattern.length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (buf.getByte(buf.readerIndex() + i) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int indexOf(ByteBuf buf, byte[] pattern) {
+        int last = buf.writerIndex() - pattern.length;
+        int pos = buf.readerIndex();
+        while (pos <= last) {
+            int candidate = buf.indexOf(pos, last + 1, pattern[0]);
+            if (candidate < 0) {
+                return -1;
+            }
+            boolean match = true;
+            for (int i = 1; i < pattern.length; i++) {
+                if (buf.getByte(candidate + i) != pattern[i]) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return candidate;
+            }
+            pos = candidate + 1;
+        }
+        return -1;
+    }
+
+    static String dispositionParameter(String disposition, String param) {
+        int len = disposition.length();
+        int pos = disposition.indexOf(';');
+        while (pos >= 0 && pos < len) {
+            pos++;
+            while (pos < len && disposition.charAt(pos) == ' ') {
+                pos++;
+            }
+            int eq = disposition.indexOf('=', pos);
+            if (eq < 0) {
+                return null;
+            }
+            String key = disposition.substring(pos, eq).trim();
+            int valueStart = eq + 1;
+            String value;
+            int next;
+            if (valueStart < len && disposition.charAt(valueStart) == '"') {
+                StringBuilder sb = new StringBuilder();
+                int i = valueStart + 1;
+                for (; i < len; i++) {
+                    char c = disposition.charAt(i);
+                    if (c == '\\' && i + 1 < len) {
+                        sb.append(disposition.charAt(++i));
+                    } else if (c == '"') {
+                        break;
+                    } else {
+                        sb.append(c);
+                    }
+                }
+                value = sb.toString();
+                next = disposition.indexOf(';', i);
+            } else {
+                next = disposition.indexOf(';', valueStart);
+                value = disposition.substring(valueStart, next < 0 ? len : next).trim();
+            }
+            if (param.equalsIgnoreCase(key)) {
+                return value;
+            }
+            pos = next;
+        }
+        return null;
+    }
+}
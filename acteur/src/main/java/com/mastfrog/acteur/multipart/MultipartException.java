@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.multipart;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.IOException;
+
+/**
+ * Thrown (or rather, recorded in the MultipartUpload) when a multipart request
+ * body could not be decoded, either because it was malformed or because it
+ * exceeded a configured size limit.
+ *
+ * @author Tim Boudreau
+ */
+public final class MultipartException extends IOException {
+
+    private final HttpResponseStatus status;
+
+    public MultipartException(String msg, HttpResponseStatus status) {
+        super(msg);
+        this.status = status;
+    }
+
+    public MultipartException(String msg, Throwable cause) {
+        super(msg, cause);
+        this.status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * The HTTP status most appropriate to respond with for this failure.
+     *
+     * @return A status
+     */
+    public HttpResponseStatus status() {
+        return status;
+    }
+}
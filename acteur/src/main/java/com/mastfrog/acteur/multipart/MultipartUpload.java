@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.multipart;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The decoded result of a multipart/form-data request body, injectable into
+ * acteurs which follow one annotated with
+ * <code>&#064;Early(MultipartChunkHandler.class)</code>. Any files which have
+ * not been moved elsewhere are deleted when the request is finished.
+ *
+ * @author Tim Boudreau
+ */
+public final class MultipartUpload implements AutoCloseable {
+
+    private final List<FormField> fields = new ArrayList<>(8);
+    private final List<FilePart> files = new ArrayList<>(4);
+    private volatile MultipartException failure;
+    private volatile long totalBytes;
+
+    MultipartUpload() {
+    }
+
+    void add(FormField field) {
+        fields.add(field);
+    }
+
+    void add(FilePart file) {
+        files.add(file);
+    }
+
+    void fail(MultipartException ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+    }
+
+    void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Get the in-memory form fields.
+     *
+     * @return The fields
+     */
+    public List<FormField> fields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    /**
+     * Get the parts which were written to disk.
+     *
+     * @return The files
+     */
+    public List<FilePart> files() {
+        return Collections.unmodifiableList(files);
+    }
+
+    public Optional<FormField> field(String name) {
+        for (FormField f : fields) {
+            if (name.equals(f.name())) {
+                return Optional.of(f);
+            }
+        }
+        return Optional.empty();
+    }
+
+    public Optional<FilePart> file(String name) {
+        for (FilePart f : files) {
+            if (name.equals(f.name())) {
+                return Optional.of(f);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Convenience method to get the string value of a field.
+     *
+     * @param name The field name
+     * @return The value, or null if not present
+     */
+    public String fieldValue(String name) {
+        Optional<FormField> result = field(name);
+        return result.isPresent() ? result.get().value() : null;
+    }
+
+    /**
+     * The number of bytes of request body received.
+     *
+     * @return The byte count
+     */
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Determine if decoding failed or a size limit was exceeded, in which case
+     * the fields and files may be incomplete.
+     *
+     * @return true if it failed
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Get the failure, if any.
+     *
+     * @return The failure or null
+     */
+    public MultipartException failure() {
+        return failure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException ex = null;
+        for (FilePart f : files) {
+            try {
+                f.delete();
+            } catch (IOException ioe) {
+                if (ex == null) {
+                    ex = ioe;
+                } else {
+                    ex.addSuppressed(ioe);
+                }
+            }
+        }
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MultipartUpload{fields=" + fields + ", files=" + files
+                + (failure == null ? "" : ", failure=" + failure.getMessage()) + "}";
+    }
+}
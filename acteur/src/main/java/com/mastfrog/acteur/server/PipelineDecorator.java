@@ -65,6 +65,12 @@ public interface PipelineDecorator {
 
     public static final String SSL_HANDLER = "ssl";
 
+    /**
+     * Name of the ChunkedWriteHandler used to send files over TLS, where
+     * FileRegions cannot be used; installed when SSL is enabled.
+     */
+    public static final String CHUNKED_WRITER = "chunkedWriter";
+
     default void onBeforeInstallSslHandler(ChannelPipeline pipeline) {
         // do nothing
     }
@@ -25,6 +25,7 @@ package com.mastfrog.acteur.server;
 
 import com.google.inject.Provider;
 import com.mastfrog.acteur.Application;
+import com.mastfrog.acteur.io.PreEncodedHttpResponse;
 import static com.mastfrog.acteur.server.ServerModule.HTTP_COMPRESSION;
 import static com.mastfrog.acteur.server.ServerModule.MAX_CONTENT_LENGTH;
 import static com.mastfrog.acteur.server.ServerModule.SETTINGS_KEY_MAX_CHUNK_SIZE;
@@ -37,20 +38,28 @@ import com.mastfrog.settings.Settings;
 import com.mastfrog.util.thread.AutoCloseThreadLocal;
 import com.mastfrog.util.thread.QuietAutoCloseable;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContentCompressor;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
+import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.AsciiString;
 import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import java.util.List;
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -116,7 +125,7 @@ class PipelineFactoryImpl extends ChannelInitializer<SocketChannel> {
 
         ChannelHandler decoder = new HttpRequestDecoder(maxInitialLineLength, maxHeadersSize, maxChunkSize);
         boolean hasEarly = application.hasEarlyPages();
-        ChannelHandler encoder = hasEarly ? new HackHttpResponseEncoder() : new HttpResponseEncoder();
+        ChannelHandler encoder = hasEarly ? new HackHttpResponseEncoder() : new ResponseEncoder();
 
         pipeline.addLast(PipelineDecorator.DECODER, decoder);
         pipeline.addLast(PipelineDecorator.ENCODER, encoder);
@@ -129,13 +138,32 @@ class PipelineFactoryImpl extends ChannelInitializer<SocketChannel> {
             ChannelHandler compressor = new SelectiveCompressor();
             pipeline.addLast(PipelineDecorator.COMPRESSOR, compressor);
         }
+        if (useSsl) {
+            // Files cannot be sent with sendfile() through an SslHandler
+            pipeline.addLast(PipelineDecorator.CHUNKED_WRITER, new ChunkedWriteHandler());
+        }
         pipeline.addLast(PipelineDecorator.HANDLER, handler.get());
 
         earlyPages.onCreatePipeline(pipeline);
         decorator.onPipelineInitialized(pipeline);
     }
 
-    static final class HackHttpResponseEncoder extends HttpResponseEncoder {
+    /**
+     * Passes PreEncodedHttpResponses through as bytes.
+     */
+    static class ResponseEncoder extends HttpResponseEncoder {
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
+            if (msg instanceof PreEncodedHttpResponse) {
+                out.add(((PreEncodedHttpResponse) msg).content().retain());
+                return;
+            }
+            super.encode(ctx, msg, out);
+        }
+    }
+
+    static final class HackHttpResponseEncoder extends ResponseEncoder {
 
         @Override
         protected void encode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
@@ -150,6 +178,25 @@ class PipelineFactoryImpl extends ChannelInitializer<SocketChannel> {
 
     static final class SelectiveCompressor extends HttpContentCompressor {
 
+        @Override
+        protected void encode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+            if (msg instanceof PreEncodedHttpResponse) {
+                // Let the superclass consume the Accept-Encoding it queued for
+                // this request, as it would for any other uncompressed
+                // response, so later responses on the connection match up
+                int size = out.size();
+                FullHttpResponse placeholder = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.OK, Unpooled.EMPTY_BUFFER);
+                super.encode(ctx, placeholder, out);
+                while (out.size() > size) {
+                    ReferenceCountUtil.release(out.remove(out.size() - 1));
+                }
+                out.add(((PreEncodedHttpResponse) msg).retain());
+                return;
+            }
+            super.encode(ctx, msg, out);
+        }
+
         @Override
         protected Result beginEncode(HttpResponse headers, String acceptEncoding) throws Exception {
             if (headers.headers().contains(X_INTERNAL_COMPRESS)) {
@@ -47,6 +47,7 @@ import com.mastfrog.acteur.errors.ExceptionEvaluatorRegistry;
 import static com.mastfrog.acteur.headers.Headers.COOKIE_B;
 import static com.mastfrog.acteur.headers.Headers.X_FORWARDED_PROTO;
 import com.mastfrog.acteur.headers.Method;
+import com.mastfrog.acteur.multipart.MultipartUpload;
 import com.mastfrog.acteur.spi.ApplicationControl;
 import com.mastfrog.acteur.sse.EventChannelName;
 import com.mastfrog.giulius.thread.ConventionalThreadSupplier;
@@ -169,6 +170,15 @@ public class ServerModule<A extends Application> extends AbstractModule {
      */
     public static final String SETTINGS_KEY_RENDER_STACK_TRACES = "render.stack.traces";
 
+    /**
+     * If true, successful responses to GET and HEAD requests which have a body
+     * but no ETag are given a weak ETag computed from a hash of the body, and
+     * are sent as 304 Not Modified with no body if it matches the request's
+     * If-None-Match header. Saves bandwidth for polling clients of dynamic
+     * pages; the response is still computed in full. Off by default.
+     */
+    public static final String SETTINGS_KEY_AUTO_ETAGS = "acteur.auto.etags";
+
     /**
      * URLs are generated using the host from InetAddress.getLocalHostName().
      * Note that the result of this may be quite unpredictable..
@@ -601,7 +611,8 @@ public class ServerModule<A extends Application> extends AbstractModule {
                 binder().getProvider(ByteBufAllocator.class)));
 
         scope.bindTypes(binder(), Event.class, HttpEvent.class, RequestID.class, WebSocketEvent.class,
-                Page.class, BasicCredentials.class, Closables.class, DeferredComputationResult.class);
+                Page.class, BasicCredentials.class, Closables.class, DeferredComputationResult.class,
+                MultipartUpload.class);
         @SuppressWarnings("deprecation")
         com.mastfrog.acteur.ImplicitBindings implicit = appType.getAnnotation(com.mastfrog.acteur.ImplicitBindings.class);
         if (implicit != null) {
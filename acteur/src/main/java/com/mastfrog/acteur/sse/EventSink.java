@@ -23,7 +23,6 @@
  */
 package com.mastfrog.acteur.sse;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Singleton;
@@ -31,23 +30,31 @@ import com.google.inject.name.Named;
 import com.mastfrog.acteur.server.ServerModule;
 import com.mastfrog.acteur.spi.ApplicationControl;
 import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
 import com.mastfrog.util.Checks;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.util.CharsetUtil;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import javax.inject.Inject;
 
 /**
@@ -57,23 +64,70 @@ import javax.inject.Inject;
  * user or per session EventSinks, write an Acteur that looks up (in a cache or
  * similar) the right EventSink, and include that in its state. Then use the
  * next one.
+ * <p>
+ * Each subscriber gets a bounded outbound queue:  events are written straight
+ * through while the channel is writable, and queued while it is not; if the
+ * queue grows past <code>sse.max.queued.bytes</code> or
+ * <code>sse.max.queued.events</code>, the {@link SlowSubscriberPolicy} set in
+ * <code>sse.slow.client.policy</code> decides whether older events are
+ * dropped or the client is disconnected, so one stalled client cannot make the
+ * server buffer events for it indefinitely.
+ * <p>
+ * Each event is rendered once, into a read-only buffer shared by all of its
+ * recipients.  Fan-out happens on the subscribers' own event loops - the
+ * background thread hands each event loop one task per batch of queued
+ * events, and each channel is flushed once per batch.
  *
  * @author Tim Boudreau
  */
 @Singleton
 public class EventSink {
 
+    /**
+     * Settings key for the maximum number of bytes of events which may be
+     * queued for a single subscriber whose channel is not writable.
+     */
+    public static final String SETTINGS_KEY_MAX_QUEUED_BYTES = "sse.max.queued.bytes";
+    /**
+     * Settings key for the maximum number of events which may be queued for a
+     * single subscriber whose channel is not writable.
+     */
+    public static final String SETTINGS_KEY_MAX_QUEUED_EVENTS = "sse.max.queued.events";
+    /**
+     * Settings key for what to do when a subscriber exceeds its queue budget -
+     * one of <code>coalesce-latest</code>, <code>drop-oldest</code> or
+     * <code>close</code>; the default is drop-oldest.
+     */
+    public static final String SETTINGS_KEY_SLOW_CLIENT_POLICY = "sse.slow.client.policy";
+    /**
+     * Settings key for the reconnect delay, in milliseconds, sent to clients
+     * which are disconnected under the close policy.
+     */
+    public static final String SETTINGS_KEY_CLOSE_RETRY_MILLIS = "sse.close.retry.millis";
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MAX_QUEUED_EVENTS = 1000;
+    public static final long DEFAULT_CLOSE_RETRY_MILLIS = 5000;
+    private static final long FORCE_CLOSE_DELAY_MILLIS = 5000;
+
     private final LinkedBlockingQueue<Message> messages = new LinkedBlockingQueue<>();
     private final AtomicLong count = new AtomicLong();
     private final MessageRenderer ren;
-    private final Set<Channel> channels = Sets.newConcurrentHashSet();
-    private final Map<EventChannelName, List<Channel>> channelsForName = Maps.newConcurrentMap();
+    private final Map<Channel, Subscriber> subscribers = Maps.newConcurrentMap();
+    private final Fanout everyone = new Fanout(null);
+    private final Map<EventChannelName, Fanout> named = Maps.newConcurrentMap();
     private volatile boolean shutdown;
     private volatile Thread thread;
     private final ByteBufAllocator alloc;
     private final ApplicationControl ctrl;
     private final Runner runner = new Runner();
     private final Shutdown shutdownRun = new Shutdown();
+    private final long maxQueuedBytes;
+    private final int maxQueuedEvents;
+    private final SlowSubscriberPolicy policy;
+    private final long closeRetryMillis;
+    private final LongAdder queuedBytes = new LongAdder();
+    private final LongAdder droppedEvents = new LongAdder();
+    private final LongAdder evictedSubscribers = new LongAdder();
 
     /**
      * Normally you will just ask for an instance to be injected into your
@@ -87,15 +141,83 @@ public class EventSink {
      * @param reg Shutdown hook registry that allows this sink to mark itself as
      * shut down, cease sending messages and clean up after itself
      */
-    @Inject
     protected EventSink(MessageRenderer ren, @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService svc, ByteBufAllocator alloc, ApplicationControl ctrl, ShutdownHookRegistry reg) {
+        this(ren, svc, alloc, ctrl, reg, null);
+    }
+
+    /**
+     * Normally you will just ask for an instance to be injected into your
+     * constructor.
+     *
+     * @param ren A message renderer
+     * @param svc The executor service that messages are dequeued on and sent to
+     * all open registered channels
+     * @param alloc An allocator for byte buffers, bound by the framework
+     * @param ctrl Used to handle any exceptions
+     * @param reg Shutdown hook registry that allows this sink to mark itself as
+     * shut down, cease sending messages and clean up after itself
+     * @param settings Settings, which supply the per-subscriber queue limits
+     * and slow subscriber policy; may be null, in which case the defaults are
+     * used
+     */
+    @Inject
+    protected EventSink(MessageRenderer ren, @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService svc, ByteBufAllocator alloc, ApplicationControl ctrl, ShutdownHookRegistry reg, Settings settings) {
         this.ren = ren;
         this.alloc = alloc;
         this.ctrl = ctrl;
+        if (settings == null) {
+            maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+            maxQueuedEvents = DEFAULT_MAX_QUEUED_EVENTS;
+            policy = SlowSubscriberPolicy.DROP_OLDEST;
+            closeRetryMillis = DEFAULT_CLOSE_RETRY_MILLIS;
+        } else {
+            maxQueuedBytes = settings.getLong(SETTINGS_KEY_MAX_QUEUED_BYTES, DEFAULT_MAX_QUEUED_BYTES);
+            maxQueuedEvents = settings.getInt(SETTINGS_KEY_MAX_QUEUED_EVENTS, DEFAULT_MAX_QUEUED_EVENTS);
+            policy = SlowSubscriberPolicy.parse(settings.getString(SETTINGS_KEY_SLOW_CLIENT_POLICY));
+            closeRetryMillis = settings.getLong(SETTINGS_KEY_CLOSE_RETRY_MILLIS, DEFAULT_CLOSE_RETRY_MILLIS);
+        }
         reg.add(shutdownRun);
         svc.submit(runner);
     }
 
+    /**
+     * The number of channels currently subscribed to this sink.
+     *
+     * @return The subscriber count
+     */
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * The total number of bytes of events currently queued for subscribers
+     * whose channels are not writable.
+     *
+     * @return A byte count
+     */
+    public long queuedBytes() {
+        return queuedBytes.sum();
+    }
+
+    /**
+     * The number of events discarded so far because a subscriber exceeded its
+     * queue budget.
+     *
+     * @return A count of events
+     */
+    public long droppedEvents() {
+        return droppedEvents.sum();
+    }
+
+    /**
+     * The number of subscribers disconnected so far under the close policy.
+     *
+     * @return A count of subscribers
+     */
+    public long evictedSubscribers() {
+        return evictedSubscribers.sum();
+    }
+
     /**
      * Publish an event
      *
@@ -107,22 +229,17 @@ public class EventSink {
      * @return this
      */
     public EventSink publish(EventChannelName name, String eventType, Object message) {
-        if (shutdown || channels.isEmpty()) {
+        if (shutdown || subscribers.isEmpty()) {
             return this;
         }
         // make sure we use the first instance we were passed
-        for (EventChannelName n : channelsForName.keySet()) {
-            if (name.equals(n)) {
-                name = n;
-                break;
-            }
-        }
+        name = canonicalize(name);
 //        long id = name == null ? count.getAndIncrement() : name.nextId();
         Message msg = new Message(name, eventType, count.getAndIncrement(), message);
         messages.offer(msg);
         return this;
     }
-    
+
     /**
      * Publish an event
      *
@@ -146,7 +263,7 @@ public class EventSink {
     public EventSink publish(Object message) {
         return publish((EventChannelName) null, message);
     }
-    
+
     /**
      * Publish an event to a named channel
      *
@@ -157,22 +274,25 @@ public class EventSink {
      */
     public EventSink publish(EventChannelName name, Object message) {
         Checks.notNull("message", message);
-        if (shutdown || channels.isEmpty()) {
+        if (shutdown || subscribers.isEmpty()) {
             return this;
         }
         // make sure we use the first instance we were passed
-        for (EventChannelName n : channelsForName.keySet()) {
-            if (name.equals(n)) {
-                name = n;
-                break;
-            }
-        }
+        name = canonicalize(name);
         long id = name == null ? count.getAndIncrement() : name.nextId();
         Message msg = new Message(name, id, message);
         messages.offer(msg);
         return this;
     }
 
+    private EventChannelName canonicalize(EventChannelName name) {
+        if (name == null) {
+            return null;
+        }
+        Fanout f = named.get(name);
+        return f == null ? name : f.name;
+    }
+
     /**
      * Register a channel which will receive events from this event sink.
      *
@@ -180,72 +300,313 @@ public class EventSink {
      * @return this
      */
     public EventSink register(Channel channel) {
-        if (!shutdown && channel.isOpen()) {
-            channels.add(channel);
-            channel.closeFuture().addListener(remover);
-        }
+        subscriberFor(channel);
         return this;
     }
 
     public synchronized EventSink register(EventChannelName name, Channel channel) {
-        if (!shutdown && channel.isOpen()) {
-            channels.add(channel);
-            List<Channel> chlls = channelsForName.get(name);
-            if (chlls == null) {
-                chlls = Lists.newCopyOnWriteArrayList(Arrays.asList(channel));
-                channelsForName.put(name, chlls);
-            } else {
-                chlls.add(channel);
+        Subscriber sub = subscriberFor(channel);
+        if (sub != null) {
+            Fanout f = named.get(name);
+            if (f == null) {
+                f = new Fanout(name);
+                named.put(name, f);
             }
-            channel.closeFuture().addListener(new RemoveListener(name));
-            register(channel);
+            f.add(sub);
+            sub.fanouts.add(f);
         }
         return this;
     }
 
+    private Subscriber subscriberFor(Channel channel) {
+        if (shutdown || !channel.isOpen()) {
+            return null;
+        }
+        Subscriber sub = new Subscriber(channel);
+        Subscriber old = subscribers.putIfAbsent(channel, sub);
+        if (old != null) {
+            return old;
+        }
+        everyone.add(sub);
+        sub.fanouts.add(everyone);
+        channel.pipeline().addLast(sub);
+        channel.closeFuture().addListener(remover);
+        return sub;
+    }
+
     private final RemoveListener remover = new RemoveListener();
 
     private final class RemoveListener implements ChannelFutureListener {
 
+        @Override
+        public void operationComplete(ChannelFuture f) throws Exception {
+            Subscriber sub = subscribers.remove(f.channel());
+            if (sub != null) {
+                unsubscribe(sub);
+                sub.discard();
+            }
+        }
+    }
+
+    private synchronized void unsubscribe(Subscriber sub) {
+        for (Fanout f : sub.fanouts) {
+            f.remove(sub);
+            if (f != everyone && f.isEmpty()) {
+                named.remove(f.name, f);
+            }
+        }
+    }
+
+    public void clear() {
+        for (Iterator<Subscriber> it = subscribers.values().iterator(); it.hasNext();) {
+            Subscriber sub = it.next();
+            it.remove();
+            unsubscribe(sub);
+            sub.discard();
+        }
+        messages.clear();
+    }
+
+    /**
+     * Renders a message once, into a read-only buffer which is shared (as
+     * duplicates) by every subscriber it is sent to.
+     */
+    private ByteBuf toByteBuf(Message msg) {
+        String stringMessage = ren.toString(msg.message).replace("\n", "\ndata: "); //XXX support multiline
+        ByteBuf buf = alloc.ioBuffer(stringMessage.length() + 64);
+        if (msg.eventType != null) {
+            ByteBufUtil.writeAscii(buf, "\nevent: ");
+            ByteBufUtil.writeUtf8(buf, msg.eventType);
+        }
+        ByteBufUtil.writeAscii(buf, "\nid: ");
+        ByteBufUtil.writeAscii(buf, Long.toString(msg.id));
+        buf.writeByte('-');
+        ByteBufUtil.writeAscii(buf, Long.toString(msg.timestamp));
+        ByteBufUtil.writeAscii(buf, "\ndata: ");
+        ByteBufUtil.writeUtf8(buf, stringMessage);
+        buf.writeByte('\n').writeByte('\n');
+        return buf.asReadOnly();
+    }
+
+    /**
+     * The subscribers to the unnamed channel or to one named channel,
+     * partitioned by the event loop each subscriber's channel belongs to, so
+     * a batch of events can be handed to each event loop as a single task.
+     */
+    private static final class Fanout {
+
         private final EventChannelName name;
+        private final Map<EventLoop, Set<Subscriber>> byLoop = Maps.newConcurrentMap();
 
-        public RemoveListener(EventChannelName name) {
+        Fanout(EventChannelName name) {
             this.name = name;
         }
 
-        public RemoveListener() {
-            this(null);
+        void add(Subscriber sub) {
+            Set<Subscriber> subs = byLoop.get(sub.loop);
+            if (subs == null) {
+                subs = Sets.newConcurrentHashSet();
+                Set<Subscriber> old = byLoop.putIfAbsent(sub.loop, subs);
+                if (old != null) {
+                    subs = old;
+                }
+            }
+            subs.add(sub);
+        }
+
+        void remove(Subscriber sub) {
+            // Empty sets are left in place - there are only as many as there
+            // are event loops
+            Set<Subscriber> subs = byLoop.get(sub.loop);
+            if (subs != null) {
+                subs.remove(sub);
+            }
+        }
+
+        boolean isEmpty() {
+            for (Set<Subscriber> subs : byLoop.values()) {
+                if (!subs.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes a batch of encoded events to all of the subscribers which live
+     * on one event loop, flushing each channel once per batch.
+     */
+    private final class Delivery implements Runnable {
+
+        private final Set<Subscriber> targets;
+        private final List<ByteBuf> events;
+
+        Delivery(Set<Subscriber> targets, List<ByteBuf> events) {
+            this.targets = targets;
+            this.events = events;
         }
 
         @Override
-        public void operationComplete(ChannelFuture f) throws Exception {
-            if (name != null) {
-                List<Channel> chlls = channelsForName.get(name);
-                if (chlls != null) {
-                    chlls.remove(f.channel());
-                    if (chlls.isEmpty()) {
-                        channelsForName.remove(name);
+        public void run() {
+            try {
+                for (Subscriber sub : targets) {
+                    if (shutdown) {
+                        return;
+                    }
+                    try {
+                        sub.deliver(events);
+                    } catch (Exception e) {
+                        ctrl.internalOnError(e);
+                        sub.channel.close();
                     }
                 }
+            } finally {
+                release();
             }
-            channels.remove(f.channel());
         }
-    }
 
-    public void clear() {
-        channels.clear();
-        messages.clear();
+        void release() {
+            for (ByteBuf buf : events) {
+                buf.release();
+            }
+        }
     }
 
-    private ByteBuf toByteBuf(Message msg) {
-        StringBuilder builder = new StringBuilder();
-        if (msg.eventType != null) {
-            builder.append("\nevent: ").append(msg.eventType);
+    /**
+     * Per-channel outbound queue, which is also added to the channel's
+     * pipeline so it hears when the channel becomes writable again. All of
+     * its state is only touched on the channel's event loop.
+     */
+    private final class Subscriber extends ChannelInboundHandlerAdapter {
+
+        private final Channel channel;
+        private final EventLoop loop;
+        private final Set<Fanout> fanouts = Sets.newConcurrentHashSet();
+        private final ArrayDeque<ByteBuf> queue = new ArrayDeque<>();
+        private long bytes;
+        private boolean closing;
+
+        Subscriber(Channel channel) {
+            this.channel = channel;
+            this.loop = channel.eventLoop();
+        }
+
+        void discard() {
+            if (loop.inEventLoop()) {
+                releaseQueue();
+            } else {
+                loop.execute(this::releaseQueue);
+            }
+        }
+
+        void deliver(List<ByteBuf> events) {
+            boolean wrote = false;
+            for (ByteBuf buf : events) {
+                wrote |= offer(buf.retainedDuplicate());
+            }
+            if (wrote) {
+                channel.flush();
+            }
+        }
+
+        private boolean offer(ByteBuf buf) {
+            if (closing || !channel.isOpen()) {
+                buf.release();
+                return false;
+            }
+            if (queue.isEmpty() && channel.isWritable()) {
+                channel.write(new DefaultHttpContent(buf));
+                return true;
+            }
+            queue.add(buf);
+            adjust(buf.readableBytes());
+            if (queue.size() > maxQueuedEvents || bytes > maxQueuedBytes) {
+                overflow();
+            }
+            return false;
+        }
+
+        private void drain() {
+            boolean wrote = false;
+            while (!queue.isEmpty() && channel.isWritable()) {
+                ByteBuf buf = queue.poll();
+                adjust(-buf.readableBytes());
+                channel.write(new DefaultHttpContent(buf));
+                wrote = true;
+            }
+            if (wrote) {
+                channel.flush();
+            }
+        }
+
+        private void overflow() {
+            switch (policy) {
+                case COALESCE_LATEST:
+                    while (queue.size() > 1) {
+                        drop();
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (queue.size() > 1 && (queue.size() > maxQueuedEvents || bytes > maxQueuedBytes)) {
+                        drop();
+                    }
+                    break;
+                case CLOSE:
+                    evict();
+                    break;
+                default:
+                    throw new AssertionError(policy);
+            }
+        }
+
+        private void drop() {
+            ByteBuf buf = queue.poll();
+            adjust(-buf.readableBytes());
+            buf.release();
+            droppedEvents.increment();
+        }
+
+        private void evict() {
+            closing = true;
+            droppedEvents.add(queue.size());
+            releaseQueue();
+            evictedSubscribers.increment();
+            ByteBuf hint = alloc.ioBuffer(24).writeBytes(("retry: " + closeRetryMillis + "\n\n")
+                    .getBytes(CharsetUtil.UTF_8));
+            channel.writeAndFlush(new DefaultHttpContent(hint)).addListener(ChannelFutureListener.CLOSE);
+            // The client is not reading, so the retry hint may never make it
+            // out - don't wait for it forever
+            loop.schedule(() -> {
+                channel.close();
+            }, FORCE_CLOSE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void releaseQueue() {
+            for (ByteBuf buf; (buf = queue.poll()) != null;) {
+                buf.release();
+            }
+            adjust(-bytes);
+        }
+
+        private void adjust(long by) {
+            bytes += by;
+            queuedBytes.add(by);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                drain();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            releaseQueue();
+            super.channelInactive(ctx);
         }
-        String stringMessage = ren.toString(msg.message).replace("\n", "\ndata: "); //XXX support multiline
-        builder.append("\nid: ").append(msg.id).append("-").append(msg.timestamp)
-                .append("\ndata: ").append(stringMessage).append('\n').append('\n');
-        return alloc.ioBuffer(builder.length()).writeBytes(builder.toString().getBytes(CharsetUtil.UTF_8));
     }
 
     private class Runner implements Runnable {
@@ -255,7 +616,8 @@ public class EventSink {
             synchronized (EventSink.class) {
                 thread = Thread.currentThread();
             }
-            final List<Message> msgs = new LinkedList<>();
+            final List<Message> msgs = new ArrayList<>();
+            final List<ByteBuf> batch = new ArrayList<>();
             try {
                 for (;;) {
                     try {
@@ -264,54 +626,27 @@ public class EventSink {
                         }
                         msgs.add(messages.take());
                         messages.drainTo(msgs);
-                        if (channels.isEmpty() && channelsForName.isEmpty()) {
+                        if (subscribers.isEmpty()) {
                             msgs.clear();
                             continue;
                         }
+                        // Consecutive events for the same target go out as
+                        // one task per event loop, so each channel is
+                        // flushed once per batch rather than once per event
+                        Fanout target = null;
                         for (Message msg : msgs) {
-                            EventChannelName target = msg.channelName;
-                            ByteBuf buf = toByteBuf(msg);
-                            if (target == null) {
-                                for (Iterator<Channel> channelIterator = channels.iterator(); channelIterator.hasNext();) {
-                                    if (shutdown) {
-                                        return;
-                                    }
-                                    Channel channel = channelIterator.next();
-                                    if (!channel.isOpen()) {
-                                        channelIterator.remove();
-                                    } else {
-                                        try {
-                                            ByteBuf toWrite = buf.duplicate().retain();
-                                            channel.writeAndFlush(new DefaultHttpContent(toWrite));
-                                        } catch (Exception e) {
-                                            ctrl.internalOnError(e);
-                                            channelIterator.remove();
-                                        }
-                                    }
-                                }
-                            } else {
-                                List<Channel> targetChannels = channelsForName.get(target);
-                                if (targetChannels != null) {
-                                    for (Iterator<Channel> channelIterator = targetChannels.iterator(); channelIterator.hasNext();) {
-                                        if (shutdown) {
-                                            return;
-                                        }
-                                        Channel channel = channelIterator.next();
-                                        if (!channel.isOpen()) {
-                                            channelIterator.remove();
-                                        } else {
-                                            try {
-                                                ByteBuf toWrite = buf.duplicate().retain();
-                                                channel.writeAndFlush(new DefaultHttpContent(toWrite));
-                                            } catch (Exception e) {
-                                                ctrl.internalOnError(e);
-                                                channelIterator.remove();
-                                            }
-                                        }
-                                    }
-                                }
+                            Fanout f = msg.channelName == null ? everyone : named.get(msg.channelName);
+                            if (f == null) {
+                                continue;
                             }
-                            buf.release();
+                            if (f != target && !batch.isEmpty()) {
+                                dispatch(target, batch);
+                            }
+                            target = f;
+                            batch.add(toByteBuf(msg));
+                        }
+                        if (!batch.isEmpty()) {
+                            dispatch(target, batch);
                         }
                         msgs.clear();
                     } catch (InterruptedException ex) {
@@ -321,17 +656,50 @@ public class EventSink {
             } finally {
                 msgs.clear();
                 try {
-                    for (Channel c : channels) {
+                    for (Channel c : subscribers.keySet()) {
                         c.close();
                     }
                 } finally {
-                    channels.clear();
+                    subscribers.clear();
                     synchronized (EventSink.this) {
                         thread = null;
                     }
                 }
             }
         }
+
+        private void dispatch(Fanout target, List<ByteBuf> batch) {
+            try {
+                for (Map.Entry<EventLoop, Set<Subscriber>> e : target.byLoop.entrySet()) {
+                    if (shutdown) {
+                        return;
+                    }
+                    if (e.getValue().isEmpty()) {
+                        continue;
+                    }
+                    List<ByteBuf> events = new ArrayList<>(batch.size());
+                    for (ByteBuf buf : batch) {
+                        events.add(buf.retainedDuplicate());
+                    }
+                    Delivery delivery = new Delivery(e.getValue(), events);
+                    EventLoop loop = e.getKey();
+                    if (loop.inEventLoop()) {
+                        delivery.run();
+                    } else {
+                        try {
+                            loop.execute(delivery);
+                        } catch (RejectedExecutionException ex) {
+                            delivery.release();
+                        }
+                    }
+                }
+            } finally {
+                for (ByteBuf buf : batch) {
+                    buf.release();
+                }
+                batch.clear();
+            }
+        }
     }
 
     private class Shutdown implements Runnable {
@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.sse;
+
+/**
+ * What an {@link EventSink} does when a subscriber is not reading events as
+ * fast as they are published, and the events queued for it exceed the
+ * configured budget.
+ *
+ * @author Tim Boudreau
+ */
+public enum SlowSubscriberPolicy {
+    /**
+     * Discard everything queued except the newest event - appropriate when
+     * each event supersedes the previous ones, such as status updates.
+     */
+    COALESCE_LATEST,
+    /**
+     * Discard the oldest queued events until the queue is within budget.
+     */
+    DROP_OLDEST,
+    /**
+     * Send the client a retry hint and close the connection; a browser's
+     * EventSource will reconnect after the retry interval.
+     */
+    CLOSE;
+
+    static SlowSubscriberPolicy parse(String value) {
+        return value == null ? DROP_OLDEST
+                : valueOf(value.trim().toUpperCase().replace('-', '_').replace('.', '_'));
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.websocket;
+
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.DEFAULT_WEBSOCKET_COMPRESSION_CLIENT_CONTEXT_TAKEOVER;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.DEFAULT_WEBSOCKET_COMPRESSION_CLIENT_WINDOW_BITS;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.DEFAULT_WEBSOCKET_COMPRESSION_LEVEL;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.DEFAULT_WEBSOCKET_COMPRESSION_MIN_BYTES;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.DEFAULT_WEBSOCKET_COMPRESSION_SERVER_CONTEXT_TAKEOVER;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.DEFLATE_MIN_BYTES_KEY;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.SETTINGS_KEY_WEBSOCKET_COMPRESSION_ALLOW_SERVER_WINDOW_BITS;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.SETTINGS_KEY_WEBSOCKET_COMPRESSION_CLIENT_CONTEXT_TAKEOVER;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.SETTINGS_KEY_WEBSOCKET_COMPRESSION_CLIENT_WINDOW_BITS;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.SETTINGS_KEY_WEBSOCKET_COMPRESSION_LEVEL;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.SETTINGS_KEY_WEBSOCKET_COMPRESSION_MIN_BYTES;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.SETTINGS_KEY_WEBSOCKET_COMPRESSION_SERVER_CONTEXT_TAKEOVER;
+import static com.mastfrog.acteur.websocket.WebSocketUpgradeActeur.SHARED_DEFLATE_LEVEL_KEY;
+import com.mastfrog.settings.Settings;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameEncoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Negotiates the permessage-deflate extension (RFC 7692) for a websocket
+ * upgrade, and installs the compressing and decompressing handlers once the
+ * handshake has succeeded.
+ *
+ * @author Tim Boudreau
+ */
+final class WebSocketCompression {
+
+    static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    private static final String INFLATER = "wsinflater";
+    private static final String DEFLATER = "wsdeflater";
+    private static final String SMALL_FRAMES = "wsdeflatebypass";
+
+    private final int level;
+    private final int minBytes;
+    private final boolean serverContextTakeover;
+    private final PerMessageDeflateServerExtensionHandshaker handshaker;
+
+    WebSocketCompression(Settings settings) {
+        level = settings.getInt(SETTINGS_KEY_WEBSOCKET_COMPRESSION_LEVEL, DEFAULT_WEBSOCKET_COMPRESSION_LEVEL);
+        minBytes = settings.getInt(SETTINGS_KEY_WEBSOCKET_COMPRESSION_MIN_BYTES, DEFAULT_WEBSOCKET_COMPRESSION_MIN_BYTES);
+        serverContextTakeover = settings.getBoolean(SETTINGS_KEY_WEBSOCKET_COMPRESSION_SERVER_CONTEXT_TAKEOVER,
+                DEFAULT_WEBSOCKET_COMPRESSION_SERVER_CONTEXT_TAKEOVER);
+        handshaker = new PerMessageDeflateServerExtensionHandshaker(level,
+                settings.getBoolean(SETTINGS_KEY_WEBSOCKET_COMPRESSION_ALLOW_SERVER_WINDOW_BITS, false),
+                settings.getInt(SETTINGS_KEY_WEBSOCKET_COMPRESSION_CLIENT_WINDOW_BITS, DEFAULT_WEBSOCKET_COMPRESSION_CLIENT_WINDOW_BITS),
+                true,
+                !settings.getBoolean(SETTINGS_KEY_WEBSOCKET_COMPRESSION_CLIENT_CONTEXT_TAKEOVER,
+                        DEFAULT_WEBSOCKET_COMPRESSION_CLIENT_CONTEXT_TAKEOVER));
+    }
+
+    /**
+     * Find the first permessage-deflate offer in a Sec-WebSocket-Extensions
+     * request header which we can accept.
+     *
+     * @param header The header value, may be null
+     * @return An extension, or null if none was offered or acceptable
+     */
+    WebSocketServerExtension negotiate(String header) {
+        if (header == null) {
+            return null;
+        }
+        for (WebSocketExtensionData offer : parse(header)) {
+            if (!PERMESSAGE_DEFLATE.equals(offer.name())) {
+                continue;
+            }
+            if (!serverContextTakeover && !offer.parameters().containsKey(SERVER_NO_CONTEXT_TAKEOVER)) {
+                // The server may decline context takeover unilaterally, so
+                // treat it as if the client had asked
+                Map<String, String> params = new HashMap<>(offer.parameters());
+                params.put(SERVER_NO_CONTEXT_TAKEOVER, null);
+                offer = new WebSocketExtensionData(offer.name(), params);
+            }
+            WebSocketServerExtension result = handshaker.handshakeExtension(offer);
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    HttpHeaders responseHeaders(WebSocketServerExtension ext) {
+        return new DefaultHttpHeaders().add(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS, format(ext.newReponseData()));
+    }
+
+    /**
+     * Add the extension's encoder and decoder next to the websocket frame
+     * encoder and decoder the handshake installed.
+     *
+     * @param ch The channel
+     * @param ext The negotiated extension
+     */
+    void install(Channel ch, WebSocketServerExtension ext) {
+        ChannelPipeline p = ch.pipeline();
+        p.addAfter(p.context(WebSocketFrameDecoder.class).name(), INFLATER, ext.newExtensionDecoder());
+        p.addAfter(p.context(WebSocketFrameEncoder.class).name(), DEFLATER, ext.newExtensionEncoder());
+        if (minBytes > 0) {
+            p.addAfter(DEFLATER, SMALL_FRAMES, new SmallFrameBypass(minBytes));
+        }
+        Map<String, String> params = ext.newReponseData().parameters();
+        if (params.containsKey(SERVER_NO_CONTEXT_TAKEOVER) && !params.containsKey(SERVER_MAX_WINDOW_BITS)) {
+            // Each message is compressed independently with the default window,
+            // so frames deflated once elsewhere can be sent as-is
+            ch.attr(SHARED_DEFLATE_LEVEL_KEY).set(level);
+            ch.attr(DEFLATE_MIN_BYTES_KEY).set(minBytes);
+        }
+    }
+
+    static List<WebSocketExtensionData> parse(String header) {
+        List<WebSocketExtensionData> result = new ArrayList<>(2);
+        for (String ext : header.split(",")) {
+            String[] parts = ext.split(";");
+            String name = parts[0].trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            Map<String, String> params = new HashMap<>(4);
+            for (int i = 1; i < parts.length; i++) {
+                String part = parts[i].trim();
+                if (part.isEmpty()) {
+                    continue;
+                }
+                int eq = part.indexOf('=');
+                if (eq < 0) {
+                    params.put(part, null);
+                } else {
+                    String value = part.substring(eq + 1).trim();
+                    if (value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    params.put(part.substring(0, eq).trim(), value);
+                }
+            }
+            result.add(new WebSocketExtensionData(name, params));
+        }
+        return result;
+    }
+
+    static String format(WebSocketExtensionData data) {
+        StringBuilder sb = new StringBuilder(data.name());
+        for (Map.Entry<String, String> e : data.parameters().entrySet()) {
+            sb.append("; ").append(e.getKey());
+            if (e.getValue() != null) {
+                sb.append('=').append(e.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sends complete data frames below the minimum size straight to the frame
+     * encoder, bypassing the deflater.
+     */
+    static final class SmallFrameBypass extends ChannelOutboundHandlerAdapter {
+
+        private final int minBytes;
+
+        SmallFrameBypass(int minBytes) {
+            this.minBytes = minBytes;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            // Continuations and first fragments always go to the deflater,
+            // which must see every frame of a message it started compressing
+            if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame) {
+                WebSocketFrame frame = (WebSocketFrame) msg;
+                if (frame.isFinalFragment() && frame.content().readableBytes() < minBytes) {
+                    ChannelHandlerContext deflater = ctx.pipeline().context(DEFLATER);
+                    if (deflater != null) {
+                        // Writing from the deflater's context starts with the
+                        // handler before it
+                        deflater.write(msg, promise);
+                        return;
+                    }
+                }
+            }
+            ctx.write(msg, promise);
+        }
+    }
+}
@@ -39,11 +39,13 @@ import com.mastfrog.url.URL;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import static io.netty.handler.codec.http.HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS;
 import static io.netty.handler.codec.http.HttpHeaderNames.SEC_WEBSOCKET_VERSION;
 import static io.netty.handler.codec.http.HttpResponseStatus.UPGRADE_REQUIRED;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
 import io.netty.util.AttributeKey;
 import java.util.LinkedList;
 import java.util.List;
@@ -57,8 +59,10 @@ import javax.inject.Inject;
  * still a chain of Acteurs; subsequent ones simply ask for a WebSocketEvent
  * instead of an HttpEvent to get their payload. Such acteurs can reply with
  * ok(someObject) to have the object converted to JSON per normal use and sent
- * on the websocket instead of as an http response. Header methods do nothing,
- * for obvious reasons, in acteurs that process websocket events.
+ * on the websocket instead of as an http response - as a text frame if the
+ * content type header is set to a textual, UTF-8 type, and binary otherwise.
+ * Other header methods do nothing, for obvious reasons, in acteurs that process
+ * websocket events.
  * <p>
  * As with any acteur, all objects provided by preceding acteurs in the chain may
  * be injected into acteurs that process a websocket connection.  So the pattern
@@ -74,6 +78,14 @@ import javax.inject.Inject;
  *      </ul>
  * </ul>
  * where the indented elements are constructed/called repeantedly for each WebSocketFrame.
+ * The remainder of the chain is resolved once when the connection is upgraded,
+ * not per frame; if <code>websocket.frames.on.event.loop</code> is set, frames
+ * are processed on the channel's event loop rather than the background thread
+ * pool, which avoids thread hops but means acteurs in the chain must never
+ * block.
+ * <p>
+ * If <code>websocket.compression</code> is set, the permessage-deflate
+ * extension is negotiated with clients which offer it.
  *
  * @author Tim Boudreau
  */
@@ -83,6 +95,77 @@ public class WebSocketUpgradeActeur extends Acteur {
     public static final boolean DEFAULT_WEBSOCKET_SECURE_PROTOCOL = false;
     public static final String SETTINGS_KEY_WEBSOCKET_FRAME_MAX_LENGTH = "websocket.frame.max.bytes";
     public static final int DEFAULT_WEBSOCKET_FRAME_MAX_LENGTH = 5 * 1024 * 1024;
+    /**
+     * Settings key for the size above which a message sent in response to a
+     * websocket frame is split into continuation frames; 0 or less to never
+     * split them.
+     */
+    public static final String SETTINGS_KEY_WEBSOCKET_FRAGMENT_BYTES = "websocket.fragment.bytes";
+    public static final int DEFAULT_WEBSOCKET_FRAGMENT_BYTES = 64 * 1024;
+    /**
+     * Settings key to run the acteurs which process websocket frames on the
+     * channel's event loop. Only safe if none of them block.
+     */
+    public static final String SETTINGS_KEY_WEBSOCKET_FRAMES_ON_EVENT_LOOP = "websocket.frames.on.event.loop";
+    public static final boolean DEFAULT_WEBSOCKET_FRAMES_ON_EVENT_LOOP = false;
+    /**
+     * Settings key to enable negotiating permessage-deflate compression with
+     * clients that offer it.
+     */
+    public static final String SETTINGS_KEY_WEBSOCKET_COMPRESSION = "websocket.compression";
+    public static final boolean DEFAULT_WEBSOCKET_COMPRESSION = false;
+    /**
+     * Settings key for the deflate compression level, 0-9.
+     */
+    public static final String SETTINGS_KEY_WEBSOCKET_COMPRESSION_LEVEL = "websocket.compression.level";
+    public static final int DEFAULT_WEBSOCKET_COMPRESSION_LEVEL = 6;
+    /**
+     * Settings key for the window size, in bits (8-15), the client is asked
+     * to use when compressing frames it sends, if it supports choosing one.
+     */
+    public static final String SETTINGS_KEY_WEBSOCKET_COMPRESSION_CLIENT_WINDOW_BITS = "websocket.compression.client.window.bits";
+    public static final int DEFAULT_WEBSOCKET_COMPRESSION_CLIENT_WINDOW_BITS = 15;
+    /**
+     * Settings key for whether to honor a client's request that the server
+     * compress with a smaller window than the maximum of 15 bits.
+     */
+    public static final String SETTINGS_KEY_WEBSOCKET_COMPRESSION_ALLOW_SERVER_WINDOW_BITS = "websocket.compression.allow.server.window.bits";
+    /**
+     * Settings key for whether the server keeps its compression context from
+     * one message to the next. Keeping it compresses better; turning it off
+     * uses less memory per connection, and lets a message broadcast to many
+     * connections be compressed once and the result shared.
+     */
+    public static final String SETTINGS_KEY_WEBSOCKET_COMPRESSION_SERVER_CONTEXT_TAKEOVER = "websocket.compression.server.context.takeover";
+    public static final boolean DEFAULT_WEBSOCKET_COMPRESSION_SERVER_CONTEXT_TAKEOVER = true;
+    /**
+     * Settings key for whether the client is asked to keep its compression
+     * context from one message to the next.
+     */
+    public static final String SETTINGS_KEY_WEBSOCKET_COMPRESSION_CLIENT_CONTEXT_TAKEOVER = "websocket.compression.client.context.takeover";
+    public static final boolean DEFAULT_WEBSOCKET_COMPRESSION_CLIENT_CONTEXT_TAKEOVER = true;
+    /**
+     * Settings key for the size below which outbound frames are sent
+     * uncompressed.
+     */
+    public static final String SETTINGS_KEY_WEBSOCKET_COMPRESSION_MIN_BYTES = "websocket.compression.min.bytes";
+    public static final int DEFAULT_WEBSOCKET_COMPRESSION_MIN_BYTES = 256;
+    /**
+     * Set on a websocket channel whose compression parameters allow it to be
+     * sent a frame which was deflated once (as a raw deflate stream with a
+     * 15 bit window, no context, the trailing 0x00 0x00 0xFF 0xFF removed and
+     * RSV1 set) and shared with other channels; the value is the compression
+     * level. Looked up by name, so code which does not depend on this library
+     * can use it.
+     */
+    public static final AttributeKey<Integer> SHARED_DEFLATE_LEVEL_KEY
+            = AttributeKey.valueOf("websocket.deflate.shared.level");
+    /**
+     * Set alongside SHARED_DEFLATE_LEVEL_KEY - the size below which frames
+     * should be sent uncompressed.
+     */
+    public static final AttributeKey<Integer> DEFLATE_MIN_BYTES_KEY
+            = AttributeKey.valueOf("websocket.deflate.min.bytes");
     public static final AttributeKey<Supplier<? extends Chain<? extends Acteur, ?>>> CHAIN_KEY
             = AttributeKey.valueOf(WebSocketUpgradeActeur.class, "websocket");
     public static final AttributeKey<Page> PAGE_KEY
@@ -105,10 +188,22 @@ public class WebSocketUpgradeActeur extends Acteur {
             add(Headers.stringHeader(SEC_WEBSOCKET_VERSION), WebSocketVersion.V13.toHttpHeaderValue());
             reply(UPGRADE_REQUIRED);
         } else {
-            ChannelFuture future = handshaker.handshake(evt.channel(), evt.request());
+            WebSocketCompression compression = null;
+            WebSocketServerExtension deflate = null;
+            if (settings.getBoolean(SETTINGS_KEY_WEBSOCKET_COMPRESSION, DEFAULT_WEBSOCKET_COMPRESSION)) {
+                compression = new WebSocketCompression(settings);
+                deflate = compression.negotiate(evt.header(SEC_WEBSOCKET_EXTENSIONS));
+            }
+            final WebSocketCompression comp = compression;
+            final WebSocketServerExtension ext = deflate;
+            ChannelFuture future = handshaker.handshake(evt.channel(), evt.request(),
+                    ext == null ? null : comp.responseHeaders(ext), evt.channel().newPromise());
             future.addListener((ChannelFutureListener) (ChannelFuture future1) -> {
                 if (future1.isSuccess()) {
                     Channel ch = future1.channel();
+                    if (ext != null) {
+                        comp.install(ch, ext);
+                    }
                     Object a = onConnect.connected(evt, ch);
                     Object b = connected(evt, ch); // allow subclasses
                     ch.attr(CHAIN_KEY).set(chain.remnantSupplier(flatten(a, b)));
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.AutoEtagTest.SM;
+import com.mastfrog.acteur.headers.HeaderValueType;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.netty.http.test.harness.TestHarness;
+import com.mastfrog.netty.http.test.harness.TestHarnessModule;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests weak etags computed from the response body, enabled by the
+ * acteur.auto.etags setting in AutoEtagTest.properties.
+ *
+ * @author Tim Boudreau
+ */
+@TestWith({TestHarnessModule.class, SM.class, SilentRequestLogger.class})
+@RunWith(GuiceRunner.class)
+public class AutoEtagTest {
+
+    static final AtomicInteger VERSION = new AtomicInteger(1);
+    // Not the typed If-None-Match header, which would quote the weak etag again
+    private static final HeaderValueType<CharSequence> IF_NONE_MATCH = Headers.header("If-None-Match");
+
+    static class SM extends ServerModule<EtagApp> {
+
+        SM() {
+            super(EtagApp.class, 2, 2, 3);
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void testBodyHashEtags(TestHarness harn) throws Throwable {
+        CharSequence etag = harn.get("poll").go().await().assertStatus(OK)
+                .assertContent("{\"version\":1}").getHeader(Headers.ETAG);
+        assertTrue(etag.toString(), etag.toString().startsWith("W/\""));
+
+        harn.get("poll").addHeader(IF_NONE_MATCH, etag).go().await().assertStatus(NOT_MODIFIED);
+
+        VERSION.incrementAndGet();
+        CharSequence newEtag = harn.get("poll").addHeader(IF_NONE_MATCH, etag).go().await()
+                .assertStatus(OK).assertContent("{\"version\":2}").getHeader(Headers.ETAG);
+        assertNotEquals(etag.toString(), newEtag.toString());
+
+        // An etag set by the page is left alone
+        harn.get("tagged").go().await().assertStatus(OK).assertHeader(Headers.ETAG, "mine");
+    }
+
+    @Test
+    public void testBodyHash() {
+        ByteBuf a = Unpooled.copiedBuffer("Hello, this is some content to hash", UTF_8);
+        ByteBuf b = Unpooled.copiedBuffer("XXHello, this is some content to hash", UTF_8);
+        b.readerIndex(2);
+        ByteBuf c = Unpooled.copiedBuffer("Hello, this is some content to hasH", UTF_8);
+        assertEquals(ResponseImpl.bodyHash(a), ResponseImpl.bodyHash(b));
+        assertNotEquals(ResponseImpl.bodyHash(a), ResponseImpl.bodyHash(c));
+        assertNotEquals(ResponseImpl.bodyHash(Unpooled.EMPTY_BUFFER),
+                ResponseImpl.bodyHash(Unpooled.wrappedBuffer(new byte[1])));
+    }
+
+    static class EtagApp extends Application {
+
+        EtagApp() {
+            add(PollPage.class);
+            add(TaggedPage.class);
+        }
+    }
+
+    @Methods(GET)
+    @Path("/poll")
+    static final class PollPage extends Page {
+
+        PollPage() {
+            add(PollActeur.class);
+        }
+    }
+
+    static final class PollActeur extends Acteur {
+
+        @Inject
+        PollActeur() {
+            ok("{\"version\":" + VERSION.get() + "}");
+        }
+    }
+
+    @Methods(GET)
+    @Path("/tagged")
+    static final class TaggedPage extends Page {
+
+        TaggedPage() {
+            add(TaggedActeur.class);
+        }
+    }
+
+    static final class TaggedActeur extends Acteur {
+
+        @Inject
+        TaggedActeur() {
+            add(Headers.ETAG, "mine");
+            ok("tagged");
+        }
+    }
+}
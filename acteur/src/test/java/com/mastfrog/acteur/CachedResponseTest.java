@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.CachedResponseTest.SM;
+import com.mastfrog.acteur.annotations.Cached;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.netty.http.test.harness.TestHarness;
+import com.mastfrog.netty.http.test.harness.TestHarnessModule;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that responses from pages annotated with &#064;Cached are replayed
+ * without running the page, and can be invalidated.
+ *
+ * @author Tim Boudreau
+ */
+@TestWith({TestHarnessModule.class, SM.class, SilentRequestLogger.class})
+@RunWith(GuiceRunner.class)
+public class CachedResponseTest {
+
+    static final AtomicInteger COUNTER = new AtomicInteger();
+
+    static class SM extends ServerModule<CachingApp> {
+
+        SM() {
+            super(CachingApp.class, 2, 2, 3);
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void testCachedResponses(TestHarness harn, ResponseCache cache) throws Throwable {
+        harn.get("counter").addQueryPair("q", "a").go().await().assertStatus(OK).assertContent("a-1");
+        harn.get("counter").addQueryPair("q", "a").go().await().assertStatus(OK).assertContent("a-1");
+        // Parameters not named in the annotation are not part of the key
+        harn.get("counter").addQueryPair("q", "a").addQueryPair("other", "x").go().await()
+                .assertStatus(OK).assertContent("a-1");
+        harn.get("counter").addQueryPair("q", "b").go().await().assertStatus(OK).assertContent("b-2");
+        harn.get("counter").addQueryPair("q", "b").go().await().assertStatus(OK).assertContent("b-2");
+        assertTrue(cache.hits() >= 3);
+
+        assertEquals(2, cache.invalidateTag("counters"));
+        harn.get("counter").addQueryPair("q", "a").go().await().assertStatus(OK).assertContent("a-3");
+        harn.get("counter").addQueryPair("q", "a").go().await().assertStatus(OK).assertContent("a-3");
+
+        assertEquals(1, cache.invalidate("/count"));
+        harn.get("counter").addQueryPair("q", "a").go().await().assertStatus(OK).assertContent("a-4");
+
+        // Credentials bypass the cache unless the page varies on them
+        harn.get("counter").addQueryPair("q", "a").addHeader(Headers.header("Authorization"), "Basic Zm9vOmJhcg==")
+                .go().await().assertStatus(OK).assertContent("a-5");
+        harn.get("counter").addQueryPair("q", "a").go().await().assertStatus(OK).assertContent("a-4");
+
+        // So do session cookies - neither served from nor stored in the cache
+        harn.get("counter").addQueryPair("q", "a").addHeader(Headers.header("Cookie"), "session=alice")
+                .go().await().assertStatus(OK).assertContent("a-6");
+        harn.get("counter").addQueryPair("q", "a").addHeader(Headers.header("Cookie"), "session=bob")
+                .go().await().assertStatus(OK).assertContent("a-7");
+        harn.get("counter").addQueryPair("q", "a").go().await().assertStatus(OK).assertContent("a-4");
+
+        harn.get("uncached").go().await().assertStatus(OK).assertContent("u-8");
+        harn.get("uncached").go().await().assertStatus(OK).assertContent("u-9");
+    }
+
+    static class CachingApp extends Application {
+
+        CachingApp() {
+            add(CounterPage.class);
+            add(UncachedPage.class);
+        }
+    }
+
+    @Methods(GET)
+    @Path("/counter")
+    @Cached(ttl = 60, parameters = "q", tags = "counters")
+    static final class CounterPage extends Page {
+
+        CounterPage() {
+            add(CounterActeur.class);
+        }
+    }
+
+    @Methods(GET)
+    @Path("/uncached")
+    static final class UncachedPage extends Page {
+
+        UncachedPage() {
+            add(UncachedActeur.class);
+        }
+    }
+
+    static final class CounterActeur extends Acteur {
+
+        @Inject
+        CounterActeur(HttpEvent evt) {
+            ok(evt.urlParameter("q") + "-" + COUNTER.incrementAndGet());
+        }
+    }
+
+    static final class UncachedActeur extends Acteur {
+
+        @Inject
+        UncachedActeur() {
+            ok("u-" + COUNTER.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.CoalescedRequestTest.SM;
+import com.mastfrog.acteur.annotations.Coalesced;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.netty.http.test.harness.TestHarness;
+import com.mastfrog.netty.http.test.harness.TestHarness.CallResult;
+import com.mastfrog.netty.http.test.harness.TestHarnessModule;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that concurrent identical requests to a page annotated with
+ * &#064;Coalesced share one response, and run on their own if it fails.
+ *
+ * @author Tim Boudreau
+ */
+@TestWith({TestHarnessModule.class, SM.class, SilentRequestLogger.class})
+@RunWith(GuiceRunner.class)
+public class CoalescedRequestTest {
+
+    static final AtomicInteger COUNTER = new AtomicInteger();
+    static final AtomicBoolean FAILED = new AtomicBoolean();
+
+    static class SM extends ServerModule<CoalescingApp> {
+
+        SM() {
+            super(CoalescingApp.class, 2, 2, 3);
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void testConcurrentRequestsAreCoalesced(TestHarness harn, RequestCoalescer coalescer) throws Throwable {
+        // The first request to arrive waits until the other two are parked
+        assertEquals(Arrays.asList("v-1", "v-1", "v-1"), contents(harn, "2", "false"));
+        assertEquals(2, coalescer.coalesced.sum());
+        assertEquals(0, coalescer.fallbacks.sum());
+
+        // If the leader fails, the others run the page themselves
+        assertEquals(Arrays.asList("failed", "v-3", "v-4"), contents(harn, "4", "true"));
+        assertEquals(4, coalescer.coalesced.sum());
+        assertEquals(2, coalescer.fallbacks.sum());
+
+        // Overlapping requests with different sessions must each get their
+        // own response
+        List<CallResult> calls = new ArrayList<>();
+        for (String user : new String[]{"alice", "bob", "carol"}) {
+            calls.add(harn.get("slow").addQueryPair("wait", "0").addQueryPair("fail", "false")
+                    .addQueryPair("hold", "750").addHeader(Headers.header("Cookie"), "session=" + user)
+                    .setTimeout(Duration.ofSeconds(30)).go());
+        }
+        List<String> result = new ArrayList<>();
+        for (CallResult call : calls) {
+            result.add(call.await().content());
+        }
+        Collections.sort(result);
+        assertEquals(Arrays.asList("v-5", "v-6", "v-7"), result);
+        assertEquals(4, coalescer.coalesced.sum());
+    }
+
+    private List<String> contents(TestHarness harn, String wait, String fail) throws Throwable {
+        List<CallResult> calls = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            calls.add(harn.get("slow").addQueryPair("wait", wait).addQueryPair("fail", fail)
+                    .setTimeout(Duration.ofSeconds(30)).go());
+        }
+        List<String> result = new ArrayList<>();
+        for (CallResult call : calls) {
+            result.add(call.await().content());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    static class CoalescingApp extends Application {
+
+        CoalescingApp() {
+            add(SlowPage.class);
+        }
+    }
+
+    @Methods(GET)
+    @Path("/slow")
+    @Coalesced(timeout = 20)
+    static final class SlowPage extends Page {
+
+        SlowPage() {
+            add(SlowActeur.class);
+        }
+    }
+
+    static final class SlowActeur extends Acteur {
+
+        @Inject
+        SlowActeur(HttpEvent evt, RequestCoalescer coalescer) throws InterruptedException {
+            long expected = Long.parseLong(evt.urlParameter("wait"));
+            long until = System.currentTimeMillis() + 15000;
+            while (coalescer.coalesced.sum() < expected && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            String hold = evt.urlParameter("hold");
+            if (hold != null) {
+                Thread.sleep(Long.parseLong(hold));
+            }
+            int count = COUNTER.incrementAndGet();
+            if ("true".equals(evt.urlParameter("fail")) && FAILED.compareAndSet(false, true)) {
+                reply(SERVICE_UNAVAILABLE, "failed");
+            } else {
+                ok("v-" + count);
+            }
+        }
+    }
+}
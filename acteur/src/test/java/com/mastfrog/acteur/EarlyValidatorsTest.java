@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.EarlyValidatorsTest.SM;
+import com.mastfrog.acteur.annotations.ValidatedBy;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.netty.http.test.harness.TestHarness;
+import com.mastfrog.netty.http.test.harness.TestHarnessModule;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that pages annotated with &#064;ValidatedBy answer matching
+ * conditional requests without running.
+ *
+ * @author Tim Boudreau
+ */
+@TestWith({TestHarnessModule.class, SM.class, SilentRequestLogger.class})
+@RunWith(GuiceRunner.class)
+public class EarlyValidatorsTest {
+
+    static final AtomicInteger VERSION = new AtomicInteger(1);
+    static final AtomicInteger RUNS = new AtomicInteger();
+    static final ZonedDateTime WHEN = ZonedDateTime.of(2018, 3, 1, 12, 0, 0, 0, ZoneId.of("GMT"));
+
+    static class SM extends ServerModule<ValidatedApp> {
+
+        SM() {
+            super(ValidatedApp.class, 2, 2, 3);
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void testConditionalRequestsAnsweredEarly(TestHarness harn) throws Throwable {
+        harn.get("thing").go().await().assertStatus(OK).assertContent("thing-1")
+                .assertHasHeader(Headers.ETAG).assertHasHeader(Headers.LAST_MODIFIED);
+        assertEquals(1, RUNS.get());
+
+        harn.get("thing").addHeader(Headers.IF_NONE_MATCH, "v1").go().await().assertStatus(NOT_MODIFIED);
+        harn.get("thing").addHeader(Headers.IF_MODIFIED_SINCE, WHEN.plus(Duration.ofMinutes(1))).go().await()
+                .assertStatus(NOT_MODIFIED);
+        assertEquals("Page should not have run", 1, RUNS.get());
+
+        harn.get("thing").addHeader(Headers.IF_MODIFIED_SINCE, WHEN.minus(Duration.ofMinutes(1))).go().await()
+                .assertStatus(OK).assertContent("thing-1");
+        assertEquals(2, RUNS.get());
+
+        VERSION.incrementAndGet();
+        harn.get("thing").addHeader(Headers.IF_NONE_MATCH, "v1").go().await()
+                .assertStatus(OK).assertContent("thing-2");
+        assertEquals(3, RUNS.get());
+    }
+
+    static class ValidatedApp extends Application {
+
+        ValidatedApp() {
+            add(ThingPage.class);
+        }
+    }
+
+    static final class VersionValidators implements ValidatorSupplier {
+
+        @Override
+        public CharSequence etag(HttpEvent evt) {
+            return "v" + VERSION.get();
+        }
+
+        @Override
+        public ZonedDateTime lastModified(HttpEvent evt) {
+            return WHEN;
+        }
+    }
+
+    @Methods(GET)
+    @Path("/thing")
+    @ValidatedBy(value = VersionValidators.class, memoize = 0)
+    static final class ThingPage extends Page {
+
+        ThingPage() {
+            add(ThingActeur.class);
+        }
+    }
+
+    static final class ThingActeur extends Acteur {
+
+        @Inject
+        ThingActeur() {
+            RUNS.incrementAndGet();
+            ok("thing-" + VERSION.get());
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.mastfrog.acteur.StreamingBodyWriter.FlowPublisherSource;
+import com.mastfrog.acteur.spi.ApplicationControl;
+import com.mastfrog.util.Codec;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the reflective bridge from java.util.concurrent.Flow.Publisher in
+ * StreamingBodyWriter, using a publisher which is itself a proxy, since this
+ * library is compiled for Java 8. Skipped on JDK 8, where there is no Flow.
+ *
+ * @author Tim Boudreau
+ */
+public class StreamingBodyWriterTest {
+
+    private static final String FLOW = "java.util.concurrent.Flow$";
+    private TestPublisher pub;
+
+    @Before
+    public void setup() throws Exception {
+        assumeTrue(flowAvailable());
+        pub = new TestPublisher();
+        assertTrue(StreamingBodyWriter.isStreamable(pub.publisher));
+    }
+
+    @Test
+    public void testDemandIsRequestedAndReplenished() throws Exception {
+        FlowPublisherSource source = new FlowPublisherSource(pub.publisher);
+        source.start();
+        assertEquals(32, pub.requested.get());
+        assertSame(StreamingBodyWriter.PENDING, source.next());
+
+        AtomicBoolean notified = new AtomicBoolean();
+        source.onAvailable(() -> notified.set(true));
+        assertFalse(notified.get());
+        for (int i = 0; i < 16; i++) {
+            pub.emit("item-" + i);
+        }
+        assertTrue("Waiter not run when an element arrived", notified.get());
+        for (int i = 0; i < 15; i++) {
+            assertEquals("item-" + i, source.next());
+        }
+        assertEquals(32, pub.requested.get());
+        assertEquals("item-15", source.next());
+        // Half the demand was consumed, so it should be topped up
+        assertEquals(48, pub.requested.get());
+
+        pub.emit("last");
+        pub.complete();
+        assertEquals("last", source.next());
+        assertSame(StreamingBodyWriter.END, source.next());
+        source.close();
+        assertFalse("Completed subscription should not be cancelled", pub.cancelled.get());
+    }
+
+    @Test
+    public void testOnErrorIsThrownAfterQueuedElements() throws Exception {
+        FlowPublisherSource source = new FlowPublisherSource(pub.publisher);
+        source.start();
+        AtomicBoolean notified = new AtomicBoolean();
+        source.onAvailable(() -> notified.set(true));
+        pub.emit("before");
+        pub.fail(new IOException("boom"));
+        assertTrue(notified.get());
+        assertEquals("before", source.next());
+        try {
+            source.next();
+            fail("Exception not thrown");
+        } catch (IOException ex) {
+            assertEquals("boom", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testWriterStreamsAndFinishes() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        StreamingBodyWriter writer = writer(errors);
+        writer.operationComplete(channel.newSucceededFuture());
+        assertEquals(32, pub.requested.get());
+
+        pub.emit("a");
+        assertEquals("\"a\"\n", readContent(channel));
+        pub.emit("b");
+        pub.emit("c");
+        assertEquals("\"b\"\n\"c\"\n", readContent(channel) + readContent(channel));
+        pub.complete();
+        Object last = channel.readOutbound();
+        assertTrue("Expected LastHttpContent but got " + last, last instanceof LastHttpContent);
+        assertTrue(errors.isEmpty());
+        assertFalse(pub.cancelled.get());
+    }
+
+    @Test
+    public void testSubscriptionIsCancelledOnDisconnect() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        StreamingBodyWriter writer = writer(errors);
+        writer.operationComplete(channel.newSucceededFuture());
+        pub.emit("a");
+        assertEquals("\"a\"\n", readContent(channel));
+        assertFalse(pub.cancelled.get());
+        // No further elements - the publisher should hear about it anyway
+        channel.close();
+        assertTrue("Subscription not cancelled when the channel closed", pub.cancelled.get());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testOnErrorAbortsResponse() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        StreamingBodyWriter writer = writer(errors);
+        writer.operationComplete(channel.newSucceededFuture());
+        pub.emit("a");
+        assertEquals("\"a\"\n", readContent(channel));
+        IOException boom = new IOException("boom");
+        pub.fail(boom);
+        assertEquals(1, errors.size());
+        assertSame(boom, errors.get(0));
+        assertFalse("Channel should be closed to truncate the response", channel.isOpen());
+    }
+
+    private StreamingBodyWriter writer(List<Throwable> errors) {
+        return new StreamingBodyWriter(pub.publisher, true, new TestCodec(), UTF_8,
+                ByteBufAllocator.DEFAULT, MoreExecutors.newDirectExecutorService(),
+                new RecordingControl(errors), false);
+    }
+
+    private static String readContent(EmbeddedChannel channel) {
+        HttpContent content = channel.readOutbound();
+        try {
+            return content.content().toString(UTF_8);
+        } finally {
+            content.release();
+        }
+    }
+
+    private static boolean flowAvailable() {
+        try {
+            Class.forName(FLOW + "Publisher");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * A Flow.Publisher which hands a single subscriber whatever the test tells
+     * it to, and records demand and cancellation.
+     */
+    static final class TestPublisher implements InvocationHandler {
+
+        final AtomicLong requested = new AtomicLong();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final Object publisher;
+        private final Class<?> subscriberType;
+        private final Object subscription;
+        private volatile Object subscriber;
+
+        TestPublisher() throws ClassNotFoundException {
+            ClassLoader ldr = TestPublisher.class.getClassLoader();
+            subscriberType = Class.forName(FLOW + "Subscriber");
+            publisher = Proxy.newProxyInstance(ldr, new Class<?>[]{Class.forName(FLOW + "Publisher")}, this);
+            subscription = Proxy.newProxyInstance(ldr, new Class<?>[]{Class.forName(FLOW + "Subscription")},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "request":
+                                requested.addAndGet((Long) args[0]);
+                                return null;
+                            case "cancel":
+                                cancelled.set(true);
+                                return null;
+                            default:
+                                return objectMethod(proxy, method, args);
+                        }
+                    });
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("subscribe".equals(method.getName())) {
+                subscriber = args[0];
+                call("onSubscribe", subscriberType.getMethod("onSubscribe", Class.forName(FLOW + "Subscription")),
+                        subscription);
+                return null;
+            }
+            return objectMethod(proxy, method, args);
+        }
+
+        void emit(Object item) throws Exception {
+            call("onNext", subscriberType.getMethod("onNext", Object.class), item);
+        }
+
+        void fail(Throwable t) throws Exception {
+            call("onError", subscriberType.getMethod("onError", Throwable.class), t);
+        }
+
+        void complete() throws Exception {
+            call("onComplete", subscriberType.getMethod("onComplete"));
+        }
+
+        private void call(String name, Method method, Object... args) throws Exception {
+            try {
+                method.invoke(subscriber, args);
+            } catch (InvocationTargetException ex) {
+                throw new AssertionError(name + " threw", ex.getCause());
+            }
+        }
+
+        private static Object objectMethod(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "TestPublisher";
+                default:
+                    return null;
+            }
+        }
+    }
+
+    static final class TestCodec implements Codec {
+
+        private final ObjectMapper mapper = new ObjectMapper();
+
+        @Override
+        public <T> String writeValueAsString(T object) throws IOException {
+            return mapper.writeValueAsString(object);
+        }
+
+        @Override
+        public <T> void writeValue(T object, OutputStream out) throws IOException {
+            mapper.writeValue(out, object);
+        }
+
+        @Override
+        public <T> T readValue(InputStream in, Class<T> type) throws IOException {
+            return mapper.readValue(in, type);
+        }
+
+        @Override
+        public <T> byte[] writeValueAsBytes(T object) throws IOException {
+            return mapper.writeValueAsBytes(object);
+        }
+    }
+
+    static final class RecordingControl implements ApplicationControl {
+
+        private final List<Throwable> errors;
+
+        RecordingControl(List<Throwable> errors) {
+            this.errors = errors;
+        }
+
+        @Override
+        public void enableDefaultCorsHandling() {
+        }
+
+        @Override
+        public CountDownLatch onEvent(Event<?> event, Channel channel) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void internalOnError(Throwable err) {
+            errors.add(err);
+        }
+    }
+}
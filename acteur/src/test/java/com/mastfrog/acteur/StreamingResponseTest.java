@@ -0,0 +1,119 @@
+package com.mastfrog.acteur;
+
+import com.google.common.net.MediaType;
+import com.google.inject.Inject;
+import com.mastfrog.acteur.StreamingResponseTest.SM;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.netty.http.test.harness.TestHarness;
+import com.mastfrog.netty.http.test.harness.TestHarnessModule;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import java.time.Duration;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that Streams and Iterators passed to ok() are written incrementally
+ * as JSON arrays or NDJSON.
+ *
+ * @author Tim Boudreau
+ */
+@TestWith({TestHarnessModule.class, SM.class, SilentRequestLogger.class})
+@RunWith(GuiceRunner.class)
+public class StreamingResponseTest {
+
+    // Large enough to need several batches
+    private static final int COUNT = 5000;
+    private static final MediaType NDJSON = MediaType.create("application", "x-ndjson");
+
+    static class SM extends ServerModule<StreamingApp> {
+
+        SM() {
+            super(StreamingApp.class, 2, 2, 3);
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void testStreamingBodies(TestHarness harn) throws Throwable {
+        String array = IntStream.range(0, COUNT).mapToObj(Integer::toString)
+                .collect(Collectors.joining(",", "[", "]"));
+        harn.get("array").setTimeout(Duration.ofSeconds(30)).go().await()
+                .assertStatus(OK).assertContent(array);
+
+        String nd = IntStream.range(0, COUNT).mapToObj(i -> "\"item-" + i + "\"\n")
+                .collect(Collectors.joining());
+        harn.get("nd").setTimeout(Duration.ofSeconds(30)).go().await()
+                .assertStatus(OK).assertContent(nd);
+
+        harn.get("empty").setTimeout(Duration.ofSeconds(30)).go().await()
+                .assertStatus(OK).assertContent("[]");
+    }
+
+    static class StreamingApp extends Application {
+
+        StreamingApp() {
+            add(ArrayPage.class);
+            add(NdJsonPage.class);
+            add(EmptyPage.class);
+        }
+    }
+
+    @Methods(GET)
+    @Path("/array")
+    static final class ArrayPage extends Page {
+
+        ArrayPage() {
+            add(ArrayActeur.class);
+        }
+    }
+
+    static final class ArrayActeur extends Acteur {
+
+        @Inject
+        ArrayActeur() {
+            ok(IntStream.range(0, COUNT).boxed());
+        }
+    }
+
+    @Methods(GET)
+    @Path("/nd")
+    static final class NdJsonPage extends Page {
+
+        NdJsonPage() {
+            add(NdJsonActeur.class);
+        }
+    }
+
+    static final class NdJsonActeur extends Acteur {
+
+        @Inject
+        NdJsonActeur() {
+            add(Headers.CONTENT_TYPE, NDJSON);
+            ok(IntStream.range(0, COUNT).mapToObj(i -> "item-" + i).iterator());
+        }
+    }
+
+    @Methods(GET)
+    @Path("/empty")
+    static final class EmptyPage extends Page {
+
+        EmptyPage() {
+            add(EmptyActeur.class);
+        }
+    }
+
+    static final class EmptyActeur extends Acteur {
+
+        @Inject
+        EmptyActeur() {
+            ok(IntStream.range(0, 0).boxed());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.net.MediaType;
+import com.mastfrog.marshallers.netty.NettyContentMarshallers;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class WebSocketFramesTest {
+
+    private final NettyContentMarshallers marshallers = NettyContentMarshallers.getDefault(new ObjectMapper());
+
+    @Test
+    public void testFrameTypeFromContentType() throws Exception {
+        WebSocketFrames frames = new WebSocketFrames(marshallers, UTF_8, 1024);
+        EmbeddedChannel ch = new EmbeddedChannel();
+
+        frames.send(ch, Collections.singletonMap("hello", "world"), MediaType.JSON_UTF_8);
+        WebSocketFrame frame = ch.readOutbound();
+        assertTrue(frame instanceof TextWebSocketFrame);
+        assertTrue(frame.isFinalFragment());
+        assertEquals("{\"hello\":\"world\"}", ((TextWebSocketFrame) frame).text());
+        frame.release();
+
+        frames.send(ch, "hello", null);
+        frame = ch.readOutbound();
+        assertTrue(frame instanceof BinaryWebSocketFrame);
+        assertEquals("hello", frame.content().toString(UTF_8));
+        frame.release();
+
+        // Text frames must be UTF-8
+        frames.send(ch, "hello", MediaType.PLAIN_TEXT_UTF_8.withCharset(ISO_8859_1));
+        frame = ch.readOutbound();
+        assertTrue(frame instanceof BinaryWebSocketFrame);
+        frame.release();
+
+        ByteBuf buf = Unpooled.copiedBuffer("bytes", UTF_8);
+        frames.send(ch, buf, MediaType.OCTET_STREAM);
+        frame = ch.readOutbound();
+        assertTrue(frame instanceof BinaryWebSocketFrame);
+        assertEquals(buf, frame.content());
+        frame.release();
+        assertFalse(ch.finishAndReleaseAll());
+    }
+
+    @Test
+    public void testFragmentation() throws Exception {
+        WebSocketFrames frames = new WebSocketFrames(marshallers, UTF_8, 16);
+        EmbeddedChannel ch = new EmbeddedChannel();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            sb.append("Line ").append(i).append(" of the message\n");
+        }
+        String msg = sb.toString();
+        ChannelFuture fut = frames.send(ch, msg, MediaType.PLAIN_TEXT_UTF_8);
+        assertTrue(fut.isSuccess());
+
+        ByteBuf received = Unpooled.buffer();
+        WebSocketFrame frame = ch.readOutbound();
+        assertTrue(frame instanceof TextWebSocketFrame);
+        int count = 0;
+        for (;;) {
+            count++;
+            assertTrue(frame.content().readableBytes() <= 16);
+            received.writeBytes(frame.content());
+            boolean last = frame.isFinalFragment();
+            frame.release();
+            if (last) {
+                break;
+            }
+            frame = ch.readOutbound();
+            assertTrue(frame instanceof ContinuationWebSocketFrame);
+        }
+        assertNull(ch.readOutbound());
+        assertEquals((msg.length() + 15) / 16, count);
+        assertEquals(msg, received.toString(UTF_8));
+        received.release();
+    }
+
+    @Test
+    public void testIsText() {
+        assertTrue(WebSocketFrames.isText(MediaType.PLAIN_TEXT_UTF_8));
+        assertTrue(WebSocketFrames.isText(MediaType.JSON_UTF_8));
+        assertTrue(WebSocketFrames.isText(MediaType.parse("application/hal+json")));
+        assertTrue(WebSocketFrames.isText(MediaType.XML_UTF_8));
+        assertFalse(WebSocketFrames.isText(MediaType.OCTET_STREAM));
+        assertFalse(WebSocketFrames.isText(MediaType.PNG));
+        assertFalse(WebSocketFrames.isText(null));
+    }
+}
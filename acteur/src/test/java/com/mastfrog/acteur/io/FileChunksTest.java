@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.io;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.codec.http.HttpContent;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class FileChunksTest {
+
+    private File file;
+    private byte[] bytes;
+
+    @Before
+    public void setUp() throws IOException {
+        bytes = new byte[(int) FileChunks.MAP_THRESHOLD * 3 + 1037];
+        new Random(23).nextBytes(bytes);
+        file = File.createTempFile("FileChunksTest", ".bin");
+        Files.write(file.toPath(), bytes);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private byte[] drain(FileChunks chunks, int chunkSize, boolean http) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            Object o;
+            while ((o = chunks.readChunk(UnpooledByteBufAllocator.DEFAULT)) != null) {
+                if (http) {
+                    assertTrue(o instanceof HttpContent);
+                    o = ((HttpContent) o).content();
+                }
+                ByteBuf buf = (ByteBuf) o;
+                assertTrue(buf.readableBytes() <= chunkSize);
+                byte[] b = new byte[buf.readableBytes()];
+                buf.readBytes(b);
+                buf.release();
+                out.write(b);
+            }
+            assertTrue(chunks.isEndOfInput());
+            assertEquals(chunks.length(), chunks.progress());
+            assertNull(chunks.readChunk(UnpooledByteBufAllocator.DEFAULT));
+        } finally {
+            chunks.close();
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] expected(int start, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(bytes, start, result, 0, length);
+        return result;
+    }
+
+    @Test
+    public void testSmallRegionIsRead() throws Exception {
+        byte[] got = drain(FileChunks.open(file, 1000, 50000, 16384, false), 16384, false);
+        assertArrayEquals(expected(1000, 50000), got);
+    }
+
+    @Test
+    public void testLargeRegionIsMapped() throws Exception {
+        int start = 517;
+        int length = bytes.length - start - 3;
+        byte[] got = drain(FileChunks.open(file, start, length, 16384, true), 16384, true);
+        assertArrayEquals(expected(start, length), got);
+    }
+
+    @Test
+    public void testChunkSizeWithoutSsl() {
+        assertTrue(FileChunks.chunkSize(null) > FileChunks.MAX_TLS_RECORD_PAYLOAD);
+    }
+}
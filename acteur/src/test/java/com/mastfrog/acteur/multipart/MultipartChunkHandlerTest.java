@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.multipart;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class MultipartChunkHandlerTest {
+
+    @Test
+    public void testIndexOfAcrossComponents() {
+        byte[] delim = "\r\n--abc".getBytes(US_ASCII);
+        CompositeByteBuf buf = Unpooled.compositeBuffer();
+        try {
+            buf.addComponent(true, Unpooled.copiedBuffer("hello world\r\n-", US_ASCII));
+            assertEquals(-1, MultipartChunkHandler.indexOf(buf, delim));
+            buf.addComponent(true, Unpooled.copiedBuffer("-abc--", US_ASCII));
+            assertEquals(11, MultipartChunkHandler.indexOf(buf, delim));
+            buf.readerIndex(12);
+            assertEquals(-1, MultipartChunkHandler.indexOf(buf, delim));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testIndexOfPartialMatches() {
+        ByteBuf buf = Unpooled.copiedBuffer("--ab--abc", US_ASCII);
+        try {
+            assertEquals(4, MultipartChunkHandler.indexOf(buf, "--abc".getBytes(US_ASCII)));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testDispositionParameters() {
+        String disp = "form-data; name=\"upload\"; filename=\"a \\\"quoted\\\"; name.txt\"";
+        assertEquals("upload", MultipartChunkHandler.dispositionParameter(disp, "name"));
+        assertEquals("a \"quoted\"; name.txt", MultipartChunkHandler.dispositionParameter(disp, "filename"));
+        assertEquals("x", MultipartChunkHandler.dispositionParameter("form-data; name=x", "name"));
+        assertNull(MultipartChunkHandler.dispositionParameter("form-data; name=x", "filename"));
+        assertNull(MultipartChunkHandler.dispositionParameter("form-data", "name"));
+    }
+}
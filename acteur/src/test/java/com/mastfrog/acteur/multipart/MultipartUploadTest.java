@@ -0,0 +1,282 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.multipart;
+
+import com.google.common.net.MediaType;
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.Application;
+import com.mastfrog.acteur.Closables;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.Page;
+import com.mastfrog.acteur.SilentRequestLogger;
+import com.mastfrog.acteur.annotations.Early;
+import com.mastfrog.acteur.annotations.InstallChunkHandler;
+import static com.mastfrog.acteur.headers.Method.POST;
+import com.mastfrog.acteur.multipart.MultipartUploadTest.SM;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.netty.http.test.harness.TestHarness;
+import com.mastfrog.netty.http.test.harness.TestHarnessModule;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+import static io.netty.handler.codec.http.HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Posts real multipart bodies to a server using MultipartChunkHandler.
+ *
+ * @author Tim Boudreau
+ */
+@TestWith({TestHarnessModule.class, SM.class, SilentRequestLogger.class})
+@RunWith(GuiceRunner.class)
+public class MultipartUploadTest {
+
+    private static final String BOUNDARY = "----acteur-test-7MA4YWxkTrZu0gW";
+    private static final MediaType FORM_DATA = MediaType.create("multipart", "form-data")
+            .withParameter("boundary", BOUNDARY);
+    private static final int MAX_PART_BYTES = 8192;
+    private static final int MAX_TOTAL_BYTES = 32768;
+    private static final int MEMORY_THRESHOLD = 1024;
+    static final java.nio.file.Path UPLOADS;
+    static final java.nio.file.Path KEPT;
+    // File contents, read by the acteur while the request was being handled
+    static final Map<String, String> CONTENTS = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            UPLOADS = Files.createTempDirectory("multipart-uploads");
+            KEPT = Files.createTempDirectory("multipart-kept");
+        } catch (IOException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    static class SM extends ServerModule<UploadApp> {
+
+        SM() {
+            super(UploadApp.class, 2, 2, 3);
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void testFieldsAndFiles(TestHarness harn) throws Throwable {
+        CONTENTS.clear();
+        String fileContent = "some text\r\nwith line breaks\r\n--" + BOUNDARY.substring(0, 10) + " and most of a boundary";
+        String body = new Body()
+                .field("a", "hello")
+                .field("b", "world")
+                .file("upload", "notes.txt", fileContent)
+                .end();
+        harn.post("upload").setBody(body, FORM_DATA).go().await()
+                .assertStatus(OK)
+                .assertContent("field:a=hello\nfield:b=world\nfile:upload=notes.txt:" + fileContent.length() + "\n");
+        assertEquals(fileContent, CONTENTS.get("upload"));
+        waitForNoTempFiles();
+    }
+
+    @Test(timeout = 60000L)
+    public void testLargeFieldIsSpilledToDisk(TestHarness harn) throws Throwable {
+        CONTENTS.clear();
+        String big = repeat('x', MEMORY_THRESHOLD * 2);
+        String body = new Body()
+                .field("small", "s")
+                .field("big", big)
+                .end();
+        harn.post("upload").setBody(body, FORM_DATA).go().await()
+                .assertStatus(OK)
+                .assertContent("field:small=s\nfile:big=null:" + big.length() + "\n");
+        assertEquals(big, CONTENTS.get("big"));
+        waitForNoTempFiles();
+    }
+
+    @Test(timeout = 60000L)
+    public void testMovedFileIsKept(TestHarness harn) throws Throwable {
+        CONTENTS.clear();
+        String body = new Body().file("upload", "keep.txt", "keep me").end();
+        harn.post("upload").addQueryPair("keep", "true").setBody(body, FORM_DATA).go().await()
+                .assertStatus(OK);
+        waitForNoTempFiles();
+        assertEquals("keep me", new String(Files.readAllBytes(KEPT.resolve("keep.txt")), "UTF-8"));
+    }
+
+    @Test(timeout = 60000L)
+    public void testPartTooLarge(TestHarness harn) throws Throwable {
+        String body = new Body()
+                .field("a", "hello")
+                .file("upload", "huge.bin", repeat('z', MAX_PART_BYTES + 1))
+                .end();
+        harn.post("upload").setBody(body, FORM_DATA).go().await()
+                .assertStatus(REQUEST_ENTITY_TOO_LARGE);
+        waitForNoTempFiles();
+    }
+
+    @Test(timeout = 60000L)
+    public void testBodyTooLarge(TestHarness harn) throws Throwable {
+        Body b = new Body();
+        for (int i = 0; i < 6; i++) {
+            b.file("upload" + i, "part" + i + ".bin", repeat('q', MAX_PART_BYTES - 100));
+        }
+        harn.post("upload").setBody(b.end(), FORM_DATA).go().await()
+                .assertStatus(REQUEST_ENTITY_TOO_LARGE);
+        waitForNoTempFiles();
+    }
+
+    @Test(timeout = 60000L)
+    public void testMalformedBody(TestHarness harn) throws Throwable {
+        String body = "--" + BOUNDARY + "garbage\r\n"
+                + "Content-Disposition: form-data; name=\"a\"\r\n\r\n"
+                + "hello\r\n--" + BOUNDARY + "--\r\n";
+        harn.post("upload").setBody(body, FORM_DATA).go().await()
+                .assertStatus(BAD_REQUEST);
+        waitForNoTempFiles();
+    }
+
+    @Test(timeout = 60000L)
+    public void testTruncatedBody(TestHarness harn) throws Throwable {
+        String body = new Body()
+                .field("a", "hello")
+                .file("upload", "cut.txt", repeat('c', MEMORY_THRESHOLD * 2))
+                .truncated();
+        harn.post("upload").setBody(body, FORM_DATA).go().await()
+                .assertStatus(BAD_REQUEST);
+        waitForNoTempFiles();
+    }
+
+    @Test(timeout = 60000L)
+    public void testNotMultipart(TestHarness harn) throws Throwable {
+        harn.post("upload").setBody("a=hello", MediaType.FORM_DATA).go().await()
+                .assertStatus(UNSUPPORTED_MEDIA_TYPE);
+    }
+
+    private static void waitForNoTempFiles() throws IOException, InterruptedException {
+        // Files are deleted when the request's Closables are closed, which
+        // happens after the response is flushed
+        for (;;) {
+            try (Stream<java.nio.file.Path> files = Files.list(UPLOADS)) {
+                if (files.count() == 0) {
+                    return;
+                }
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    static final class Body {
+
+        private final StringBuilder sb = new StringBuilder();
+
+        Body field(String name, String value) {
+            sb.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(name).append("\"\r\n")
+                    .append("Content-Type: text/plain; charset=UTF-8\r\n\r\n")
+                    .append(value).append("\r\n");
+            return this;
+        }
+
+        Body file(String name, String fileName, String content) {
+            sb.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(name)
+                    .append("\"; filename=\"").append(fileName).append("\"\r\n")
+                    .append("Content-Type: application/octet-stream\r\n\r\n")
+                    .append(content).append("\r\n");
+            return this;
+        }
+
+        String end() {
+            return sb.append("--").append(BOUNDARY).append("--\r\n").toString();
+        }
+
+        String truncated() {
+            // Drop the final CRLF of the last part along with the closing
+            // boundary, as if the client went away mid-upload
+            return sb.substring(0, sb.length() - 2);
+        }
+    }
+
+    static class UploadApp extends Application {
+
+        UploadApp() {
+            add(UploadPage.class);
+        }
+    }
+
+    @Methods(POST)
+    @Path("/upload")
+    @Early(TestMultipartChunkHandler.class)
+    static final class UploadPage extends Page {
+
+        UploadPage() {
+            add(InstallChunkHandler.class);
+            add(CheckMultipartUpload.class);
+            add(ReportActeur.class);
+        }
+    }
+
+    static final class TestMultipartChunkHandler extends MultipartChunkHandler {
+
+        @Inject
+        TestMultipartChunkHandler(HttpEvent evt, Closables closables) {
+            super(evt, closables, MAX_PART_BYTES, MAX_TOTAL_BYTES, MEMORY_THRESHOLD, UPLOADS);
+        }
+    }
+
+    static final class ReportActeur extends Acteur {
+
+        @Inject
+        ReportActeur(HttpEvent evt, MultipartUpload upload) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for (FormField f : upload.fields()) {
+                sb.append("field:").append(f.name()).append('=').append(f.value()).append('\n');
+            }
+            for (FilePart f : upload.files()) {
+                CONTENTS.put(f.name(), new String(Files.readAllBytes(f.path()), "UTF-8"));
+                sb.append("file:").append(f.name()).append('=').append(f.fileName())
+                        .append(':').append(f.size()).append('\n');
+                if ("true".equals(evt.urlParameter("keep"))) {
+                    f.moveTo(KEPT.resolve(f.fileName()));
+                }
+            }
+            ok(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.server;
+
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteur.io.PreEncodedHttpResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class PreEncodedHttpResponseTest {
+
+    @Test
+    public void testHeaderEncoding() {
+        HttpResponse resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+        Headers.write(Headers.ETAG, "abc", resp);
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeBytes(PreEncodedHttpResponse.encodeHeaders(resp).duplicate());
+        PreEncodedHttpResponse.appendHeader(buf, Headers.CONTENT_LENGTH, 0);
+        PreEncodedHttpResponse.endHeaders(buf);
+        assertEquals("HTTP/1.1 304 Not Modified\r\netag: \"abc\"\r\ncontent-length: 0\r\n\r\n",
+                buf.toString(US_ASCII));
+    }
+
+    @Test
+    public void testPassesThroughEncoderAndCompressor() {
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpRequestDecoder(),
+                new PipelineFactoryImpl.ResponseEncoder(), new PipelineFactoryImpl.SelectiveCompressor());
+        channel.writeInbound(Unpooled.copiedBuffer("GET /a HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "GET /b HTTP/1.1\r\nHost: x\r\nAccept-Encoding: gzip\r\n\r\n", US_ASCII));
+        Object msg;
+        while ((msg = channel.readInbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+
+        String raw = "HTTP/1.1 200 OK\r\ncontent-length: 2\r\n\r\nhi";
+        ByteBuf content = Unpooled.copiedBuffer(raw, US_ASCII);
+        channel.writeOutbound(new PreEncodedHttpResponse(content));
+        assertEquals(raw, readOutbound(channel));
+        assertEquals(0, content.refCnt());
+
+        // The second response must be matched with the second request, which
+        // accepts gzip, not the first, which did not
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("Hello world ").append(i).append('\n');
+        }
+        byte[] body = sb.toString().getBytes(UTF_8);
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                Unpooled.wrappedBuffer(body));
+        Headers.write(Headers.CONTENT_LENGTH, body.length, resp);
+        channel.writeOutbound(resp);
+        String second = readOutbound(channel);
+        assertTrue(second, second.toLowerCase().contains("content-encoding: gzip"));
+        assertFalse(second.contains("Hello world"));
+        channel.finishAndReleaseAll();
+    }
+
+    private static String readOutbound(EmbeddedChannel channel) {
+        StringBuilder sb = new StringBuilder();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ByteBuf buf = (ByteBuf) msg;
+            sb.append(buf.toString(US_ASCII));
+            buf.release();
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.sse;
+
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+import com.mastfrog.acteur.Application;
+import com.mastfrog.acteur.SilentRequestLogger;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.acteur.spi.ApplicationControl;
+import com.mastfrog.acteur.sse.SlowSubscriberTest.SM;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that events for a subscriber which is not writable are queued within
+ * the budget in SlowSubscriberTest.properties, and delivered when it becomes
+ * writable again; the other policies are tested against sinks constructed
+ * with their own settings.
+ *
+ * @author Tim Boudreau
+ */
+@TestWith({SM.class, SilentRequestLogger.class})
+@RunWith(GuiceRunner.class)
+public class SlowSubscriberTest {
+
+    static class SM extends ServerModule<QuietApp> {
+
+        SM() {
+            super(QuietApp.class, 2, 2, 3);
+        }
+    }
+
+    @Test(timeout = 20000L)
+    public void testDropOldest(EventSink sink) throws Throwable {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        assertFalse(channel.isWritable());
+        sink.register(channel);
+        assertEquals(1, sink.subscriberCount());
+
+        for (int i = 0; i < 10; i++) {
+            sink.publish("hello " + i);
+        }
+        while (sink.droppedEvents() < 7) {
+            Thread.sleep(20);
+        }
+        assertTrue(sink.queuedBytes() > 0);
+
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+        List<String> received = new ArrayList<>();
+        for (HttpContent c; (c = channel.readOutbound()) != null;) {
+            received.add(c.content().toString(UTF_8));
+            c.release();
+        }
+        assertEquals(received.toString(), 3, received.size());
+        assertTrue(received.get(0), received.get(0).contains("data: hello 7"));
+        assertTrue(received.get(2), received.get(2).contains("data: hello 9"));
+        assertEquals(0, sink.queuedBytes());
+        assertEquals(7, sink.droppedEvents());
+
+        channel.close();
+        assertEquals(0, sink.subscriberCount());
+    }
+
+    @Test(timeout = 20000L)
+    public void testCoalesceLatest(Dependencies deps) throws Throwable {
+        EventSink sink = sink(deps, "coalesce-latest");
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        sink.register(channel);
+
+        for (int i = 0; i < 10; i++) {
+            sink.publish("hello " + i);
+        }
+        while (sink.droppedEvents() < 9) {
+            Thread.sleep(20);
+        }
+        assertTrue(sink.queuedBytes() > 0);
+
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+        List<String> received = new ArrayList<>();
+        for (HttpContent c; (c = channel.readOutbound()) != null;) {
+            received.add(c.content().toString(UTF_8));
+            c.release();
+        }
+        assertEquals(received.toString(), 1, received.size());
+        assertTrue(received.get(0), received.get(0).contains("data: hello 9"));
+        assertEquals(0, sink.queuedBytes());
+        assertEquals(9, sink.droppedEvents());
+        assertEquals(0, sink.evictedSubscribers());
+        channel.close();
+    }
+
+    @Test(timeout = 20000L)
+    public void testClose(Dependencies deps) throws Throwable {
+        EventSink sink = sink(deps, "close");
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        sink.register(channel);
+
+        for (int i = 0; i < 4; i++) {
+            sink.publish("hello " + i);
+        }
+        while (sink.evictedSubscribers() < 1 || channel.isOpen()) {
+            Thread.sleep(20);
+        }
+        List<String> received = new ArrayList<>();
+        for (HttpContent c; (c = channel.readOutbound()) != null;) {
+            received.add(c.content().toString(UTF_8));
+            c.release();
+        }
+        assertEquals(received.toString(), 1, received.size());
+        assertEquals("retry: 1234\n\n", received.get(0));
+        assertEquals(1, sink.evictedSubscribers());
+        assertEquals(4, sink.droppedEvents());
+        assertEquals(0, sink.queuedBytes());
+        while (sink.subscriberCount() > 0) {
+            Thread.sleep(20);
+        }
+    }
+
+    private static EventSink sink(Dependencies deps, String policy) throws IOException {
+        return new EventSink(deps.getInstance(MessageRenderer.class),
+                deps.getInstance(Key.get(ExecutorService.class,
+                        Names.named(ServerModule.BACKGROUND_THREAD_POOL_NAME))),
+                deps.getInstance(ByteBufAllocator.class),
+                deps.getInstance(ApplicationControl.class),
+                deps.getInstance(ShutdownHookRegistry.class),
+                new SettingsBuilder()
+                        .add(EventSink.SETTINGS_KEY_MAX_QUEUED_EVENTS, 3)
+                        .add(EventSink.SETTINGS_KEY_SLOW_CLIENT_POLICY, policy)
+                        .add(EventSink.SETTINGS_KEY_CLOSE_RETRY_MILLIS, 1234)
+                        .build());
+    }
+
+    static class QuietApp extends Application {
+
+        QuietApp() {
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.websocket;
+
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class WebSocketCompressionTest {
+
+    private static final String OFFER = "permessage-deflate; client_max_window_bits, x-webkit-deflate-frame";
+
+    @Test
+    public void testParse() {
+        List<WebSocketExtensionData> exts = WebSocketCompression.parse(OFFER + "; foo=\"bar\"");
+        assertEquals(2, exts.size());
+        assertEquals(WebSocketCompression.PERMESSAGE_DEFLATE, exts.get(0).name());
+        assertTrue(exts.get(0).parameters().containsKey("client_max_window_bits"));
+        assertNull(exts.get(0).parameters().get("client_max_window_bits"));
+        assertEquals("x-webkit-deflate-frame", exts.get(1).name());
+        assertEquals("bar", exts.get(1).parameters().get("foo"));
+    }
+
+    @Test
+    public void testNegotiateAndCompress() throws Exception {
+        WebSocketCompression comp = new WebSocketCompression(new SettingsBuilder()
+                .add(WebSocketUpgradeActeur.SETTINGS_KEY_WEBSOCKET_COMPRESSION_SERVER_CONTEXT_TAKEOVER, "false")
+                .add(WebSocketUpgradeActeur.SETTINGS_KEY_WEBSOCKET_COMPRESSION_MIN_BYTES, 64)
+                .build());
+        assertNull(comp.negotiate(null));
+        assertNull(comp.negotiate("x-webkit-deflate-frame"));
+        WebSocketServerExtension ext = comp.negotiate(OFFER);
+        assertNotNull(ext);
+        String response = comp.responseHeaders(ext).get("Sec-WebSocket-Extensions");
+        assertTrue(response, response.startsWith("permessage-deflate"));
+        assertTrue(response, response.contains("server_no_context_takeover"));
+
+        EmbeddedChannel ch = new EmbeddedChannel(new WebSocket13FrameDecoder(false, true, 65536),
+                new WebSocket13FrameEncoder(false));
+        comp.install(ch, ext);
+        assertEquals(Integer.valueOf(6), ch.attr(WebSocketUpgradeActeur.SHARED_DEFLATE_LEVEL_KEY).get());
+        assertEquals(Integer.valueOf(64), ch.attr(WebSocketUpgradeActeur.DEFLATE_MIN_BYTES_KEY).get());
+
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            big.append("{\"hello\":\"world\"}");
+        }
+        assertTrue(ch.writeOutbound(new TextWebSocketFrame(big.toString())));
+        ByteBuf compressed = readAll(ch);
+        assertTrue("RSV1 should be set", (compressed.getByte(0) & 0x40) != 0);
+        assertTrue(compressed.readableBytes() < big.length());
+        compressed.release();
+
+        assertTrue(ch.writeOutbound(new TextWebSocketFrame("{\"hello\":\"world\"}")));
+        ByteBuf small = readAll(ch);
+        assertFalse("Small frame should not be compressed", (small.getByte(0) & 0x40) != 0);
+        small.release();
+        ch.finishAndReleaseAll();
+    }
+
+    private static ByteBuf readAll(EmbeddedChannel ch) {
+        ByteBuf result = ch.alloc().buffer();
+        for (ByteBuf buf; (buf = ch.readOutbound()) != null;) {
+            result.writeBytes(buf);
+            buf.release();
+        }
+        return result;
+    }
+}
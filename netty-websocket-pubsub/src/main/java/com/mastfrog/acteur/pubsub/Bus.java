@@ -35,11 +35,15 @@ import io.netty.channel.ChannelPromise;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -57,11 +61,18 @@ class Bus implements PubSubBus {
     private final ByteBufAllocator alloc;
     private final ExecutorService threadPool;
     private final BusListener.Registry listeners;
+    private static final int MAX_RESOLVED_IDS = 10000;
+    private final SubscriptionTrie patterns = new SubscriptionTrie();
+    // Subscribers resolved per published id, valid while the generation is
+    // unchanged, i.e. until the next subscribe or unsubscribe
+    private final Map<ChannelId, Resolved> resolved = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile BusBridge bridge;
 
     @Inject
     Bus(ShutdownHookRegistry shutdown, NettyContentMarshallers marshallers, ByteBufAllocator alloc, @Named("bus") ExecutorService threadPool,
             BusListener.Registry listeners) {
-        this.reg = new ChannelRegistry<>(shutdown);
+        this.reg = new ChannelRegistry<>(shutdown, this::onSubscriptionsChanged);
         this.marshallers = marshallers;
         this.alloc = alloc;
         this.threadPool = threadPool;
@@ -83,8 +94,74 @@ class Bus implements PubSubBus {
         return reg.unsubscribe(from, channel);
     }
 
+    void attach(BusBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * Get the channels subscribed to exactly this id (or pattern).
+     */
+    Set<Channel> localSubscribers(ChannelId id) {
+        return reg.channels(id);
+    }
+
+    Set<ChannelId> subscribedIds() {
+        return reg.allIds();
+    }
+
     public boolean hasSubscribers(ChannelId id) {
-        return !reg.channels(id).isEmpty();
+        return !subscribers(id).isEmpty();
+    }
+
+    private void onSubscriptionsChanged(ChannelId id) {
+        if (id.isPattern()) {
+            // Notifications for the same id can arrive out of order, so
+            // use the registry's current state, not what we were told
+            synchronized (patterns) {
+                if (reg.channels(id).isEmpty()) {
+                    patterns.remove(id);
+                } else {
+                    patterns.add(id);
+                }
+            }
+        }
+        generation.incrementAndGet();
+        resolved.clear();
+        BusBridge b = bridge;
+        if (b != null) {
+            b.localInterestChanged(id);
+        }
+    }
+
+    /**
+     * Get the channels subscribed to an id, either directly or through a
+     * wildcard pattern which matches it.
+     *
+     * @param id An id
+     * @return An unmodifiable set of channels
+     */
+    Set<Channel> subscribers(ChannelId id) {
+        long gen = generation.get();
+        Resolved res = resolved.get(id);
+        if (res != null && res.generation == gen) {
+            return res.channels;
+        }
+        Set<Channel> result = reg.channels(id);
+        if (!patterns.isEmpty()) {
+            Set<ChannelId> matched = patterns.match(id);
+            if (!matched.isEmpty()) {
+                result = new HashSet<>(result);
+                for (ChannelId pattern : matched) {
+                    result.addAll(reg.channels(pattern));
+                }
+                result = Collections.unmodifiableSet(result);
+            }
+        }
+        if (resolved.size() >= MAX_RESOLVED_IDS) {
+            resolved.clear();
+        }
+        resolved.put(id, new Resolved(gen, result));
+        return result;
     }
 
     @Override
@@ -92,24 +169,37 @@ class Bus implements PubSubBus {
         Checks.notEmpty("to", to);
         ByteBuf buf = alloc.buffer();
         marshallers.write(obj, buf);
-        final BinaryWebSocketFrame frame = new BinaryWebSocketFrame(buf);
-        Set<Channel> channels = new HashSet<>(50);
-        for (ChannelId id : to) {
-            channels.addAll(reg.channels(id));
-        }
-        channels.remove(origin);
-        ChannelPromise p = origin.newPromise();
-        if (!channels.isEmpty()) {
-            threadPool.submit(() -> {
-                new CHF(channels.iterator(), frame, p).operationComplete(null);
-            });
-        } else {
-            p.setSuccess();
+        BusBridge b = bridge;
+        if (b != null) {
+            b.forward(buf, to);
         }
+        ChannelPromise p = deliver(buf, origin, to);
         listeners.onPublish(obj, to, origin);
         return p;
     }
 
+    /**
+     * Send an already marshalled message to local subscribers.
+     *
+     * @param buf The message, which is released once sent
+     * @param origin The channel it came from, which will not receive it
+     * @param to The ids it was published to
+     * @return A promise
+     */
+    ChannelPromise deliver(ByteBuf buf, Channel origin, Set<ChannelId> to) {
+        Set<Channel> channels;
+        if (to.size() == 1) {
+            // Use the cached snapshot as-is
+            channels = subscribers(to.iterator().next());
+        } else {
+            channels = new HashSet<>(50);
+            for (ChannelId id : to) {
+                channels.addAll(subscribers(id));
+            }
+        }
+        return send(buf, origin, channels);
+    }
+
     @Override
     public <T> ChannelPromise broadcast(T obj) throws Exception {
         return broadcast(obj, new EmbeddedChannel());
@@ -117,30 +207,74 @@ class Bus implements PubSubBus {
 
     @Override
     public <T> ChannelPromise broadcast(T obj, Channel origin) throws Exception {
-        ChannelPromise p = origin.newPromise();
-        Set<Channel> all = new HashSet<>(reg.allChannels());
-        all.remove(origin);
-        if (all.isEmpty()) {
-            return p.setSuccess();
+        BusBridge b = bridge;
+        boolean remote = b != null && b.hasInterestedPeers();
+        if (!remote && isEmptyExcept(reg.allChannels(), origin)) {
+            return origin.newPromise().setSuccess();
         }
         ByteBuf buf = alloc.buffer();
         marshallers.write(obj, buf);
-        final BinaryWebSocketFrame frame = new BinaryWebSocketFrame(buf);
+        if (remote) {
+            b.forwardBroadcast(buf);
+        }
+        return deliverToAll(buf, origin);
+    }
+
+    /**
+     * Send an already marshalled message to every local channel.
+     *
+     * @param buf The message, which is released once sent
+     * @param origin The channel it came from, which will not receive it
+     * @return A promise
+     */
+    ChannelPromise deliverToAll(ByteBuf buf, Channel origin) {
+        return send(buf, origin, reg.allChannels());
+    }
+
+    private ChannelPromise send(ByteBuf buf, Channel origin, Set<Channel> channels) {
+        ChannelPromise p = origin.newPromise();
+        if (isEmptyExcept(channels, origin)) {
+            buf.release();
+            return p.setSuccess();
+        }
+        final SharedDeflate frames = new SharedDeflate(new BinaryWebSocketFrame(buf));
+        // Each channel is sent a retained duplicate
+        p.addListener((ChannelFuture f) -> {
+            frames.release();
+            buf.release();
+        });
         threadPool.submit(() -> {
-            new CHF(all.iterator(), frame, p).operationComplete(null);
+            new CHF(channels.iterator(), origin, frames, p).operationComplete(null);
         });
         return p;
     }
 
+    private static boolean isEmptyExcept(Set<Channel> channels, Channel origin) {
+        return channels.isEmpty() || (channels.size() == 1 && channels.contains(origin));
+    }
+
+    private static final class Resolved {
+
+        private final long generation;
+        private final Set<Channel> channels;
+
+        Resolved(long generation, Set<Channel> channels) {
+            this.generation = generation;
+            this.channels = channels;
+        }
+    }
+
     static class CHF implements ChannelFutureListener {
 
         private final Iterator<Channel> channels;
-        private final WebSocketFrame frame;
+        private final Channel origin;
+        private final SharedDeflate frames;
         private final ChannelPromise prom;
 
-        CHF(Iterator<Channel> channels, WebSocketFrame frame, ChannelPromise prom) {
+        CHF(Iterator<Channel> channels, Channel origin, SharedDeflate frames, ChannelPromise prom) {
             this.channels = channels;
-            this.frame = frame;
+            this.origin = origin;
+            this.frames = frames;
             this.prom = prom;
         }
 
@@ -158,13 +292,14 @@ class Bus implements PubSubBus {
             }
             Channel ch = null;
             while (channels.hasNext()) {
-                ch = channels.next();
-                if (ch.isWritable()) {
+                Channel candidate = channels.next();
+                if (candidate != origin && candidate.isWritable()) {
+                    ch = candidate;
                     break;
                 }
             }
             if (ch != null) {
-                WebSocketFrame fr = frame.retainedDuplicate();
+                WebSocketFrame fr = frames.frameFor(ch).retainedDuplicate();
                 future = ch.writeAndFlush(fr).addListener(this);
                 if (channels.hasNext()) {
                     future.addListener(this);
@@ -0,0 +1,568 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.pubsub;
+
+import com.mastfrog.acteur.util.ErrorHandlers;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Relays publishes between the buses of several processes, so subscribers
+ * connected to any node receive messages published on any other. To use,
+ * bind it as an eager singleton and set <code>pubsub.bridge.port</code>,
+ * <code>pubsub.bridge.bind.address</code> and <code>pubsub.bridge.peers</code>
+ * on every node. The bridge protocol is not authenticated, so it listens on
+ * the loopback address unless told otherwise, and should only be exposed on a
+ * private network.
+ * <p>
+ * Each node connects to every peer listed in its settings, and sends
+ * publishes over that connection; the peer replies on the same connection
+ * with the ids (and wildcard patterns) it has local subscribers for, and
+ * messages are only forwarded to peers which have a matching subscriber.
+ * Messages are marshalled once, by the publishing node, and relayed as opaque
+ * bytes in length-prefixed frames. Messages received from a peer are only
+ * delivered locally, never relayed further, so every node should list every
+ * other node as a peer.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class BusBridge {
+
+    /**
+     * Settings key for the port this node listens on for connections from
+     * its peers. If unset, this node only forwards to peers and does not
+     * receive from them.
+     */
+    public static final String SETTINGS_KEY_BRIDGE_PORT = "pubsub.bridge.port";
+    /**
+     * Settings key for the address this node listens on for connections from
+     * its peers; defaults to the loopback address, so it must be set for peers
+     * on other hosts to connect.
+     */
+    public static final String SETTINGS_KEY_BRIDGE_BIND_ADDRESS = "pubsub.bridge.bind.address";
+    /**
+     * Settings key for a comma-delimited list of the <code>host:port</code>
+     * addresses of the other nodes.
+     */
+    public static final String SETTINGS_KEY_BRIDGE_PEERS = "pubsub.bridge.peers";
+    /**
+     * Settings key for how long to wait, in milliseconds, before reconnecting
+     * to a peer whose connection failed or was closed.
+     */
+    public static final String SETTINGS_KEY_BRIDGE_RECONNECT_MILLIS = "pubsub.bridge.reconnect.millis";
+    /**
+     * Settings key for the maximum size of a single relayed message.
+     */
+    public static final String SETTINGS_KEY_BRIDGE_MAX_FRAME_BYTES = "pubsub.bridge.max.frame.bytes";
+    /**
+     * Settings key for how many bytes may be queued to a peer which is not
+     * reading them; messages for it are dropped until it catches up.
+     */
+    public static final String SETTINGS_KEY_BRIDGE_MAX_PENDING_BYTES = "pubsub.bridge.max.pending.bytes";
+    public static final long DEFAULT_RECONNECT_MILLIS = 2000;
+    public static final int DEFAULT_MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    static final byte INTEREST_ADDED = 1;
+    static final byte INTEREST_REMOVED = 2;
+    static final byte PUBLISH = 3;
+    static final byte BROADCAST = 4;
+
+    private final Bus bus;
+    private final ByteBufAllocator alloc;
+    private final EventLoopGroup group;
+    private final long reconnectMillis;
+    private final int maxFrameBytes;
+    private final WriteBufferWaterMark waterMark;
+    private final ErrorHandlers errors;
+    private final Set<ChannelId> localInterest = new HashSet<>();
+    // Channels accepted from peers, which we send our interest to
+    private final Set<Channel> inbound = ConcurrentHashMap.newKeySet();
+    private final List<Peer> peers = new ArrayList<>();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean shutdown;
+    private volatile Channel serverChannel;
+
+    @Inject
+    BusBridge(Bus bus, Settings settings, ByteBufAllocator alloc, ShutdownHookRegistry reg, ErrorHandlers errors) {
+        this.bus = bus;
+        this.alloc = alloc;
+        this.errors = errors;
+        reconnectMillis = settings.getLong(SETTINGS_KEY_BRIDGE_RECONNECT_MILLIS, DEFAULT_RECONNECT_MILLIS);
+        maxFrameBytes = settings.getInt(SETTINGS_KEY_BRIDGE_MAX_FRAME_BYTES, DEFAULT_MAX_FRAME_BYTES);
+        int maxPending = settings.getInt(SETTINGS_KEY_BRIDGE_MAX_PENDING_BYTES, DEFAULT_MAX_PENDING_BYTES);
+        waterMark = new WriteBufferWaterMark(maxPending / 2, maxPending);
+        group = new NioEventLoopGroup(1, new DefaultThreadFactory("pubsub-bridge", true));
+        reg.add(this::shutdown);
+        for (String addr : splitAndTrim(settings.getString(SETTINGS_KEY_BRIDGE_PEERS))) {
+            int ix = addr.lastIndexOf(':');
+            if (ix <= 0 || ix == addr.length() - 1) {
+                throw new IllegalArgumentException("Bad peer address '" + addr + "' in "
+                        + SETTINGS_KEY_BRIDGE_PEERS + " - should be host:port");
+            }
+            peers.add(new Peer(addr.substring(0, ix), Integer.parseInt(addr.substring(ix + 1))));
+        }
+        Integer port = settings.getInt(SETTINGS_KEY_BRIDGE_PORT);
+        if (port != null) {
+            String bindAddress = settings.getString(SETTINGS_KEY_BRIDGE_BIND_ADDRESS);
+            InetSocketAddress addr = bindAddress == null
+                    ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                    : new InetSocketAddress(bindAddress, port);
+            serverChannel = new ServerBootstrap().group(group)
+                    .channel(NioServerSocketChannel.class)
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                    .childHandler(new Initializer(null))
+                    .bind(addr).syncUninterruptibly().channel();
+        }
+        bus.attach(this);
+        for (ChannelId id : bus.subscribedIds()) {
+            localInterestChanged(id);
+        }
+        for (Peer peer : peers) {
+            peer.connect();
+        }
+    }
+
+    private static List<String> splitAndTrim(String data) {
+        List<String> result = new ArrayList<>();
+        if (data != null) {
+            for (String s : data.split(",")) {
+                s = s.trim();
+                if (!s.isEmpty()) {
+                    result.add(s);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of messages sent to peers so far.
+     *
+     * @return A count
+     */
+    public long forwarded() {
+        return forwarded.sum();
+    }
+
+    /**
+     * The number of messages received from peers so far.
+     *
+     * @return A count
+     */
+    public long received() {
+        return received.sum();
+    }
+
+    /**
+     * The number of messages not sent to a peer because it was not reading
+     * what had already been sent to it.
+     *
+     * @return A count
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    int peersInterestedIn(ChannelId id) {
+        int result = 0;
+        for (Peer peer : peers) {
+            if (peer.isInterestedIn(id)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    boolean hasInterestedPeers() {
+        for (Peer peer : peers) {
+            if (peer.hasInterest()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by the bus when local subscribers to an id change; the bus is
+     * consulted for the current state, since calls may arrive out of order.
+     */
+    synchronized void localInterestChanged(ChannelId id) {
+        boolean interested = !bus.localSubscribers(id).isEmpty();
+        boolean changed = interested ? localInterest.add(id) : localInterest.remove(id);
+        if (changed) {
+            for (Channel ch : inbound) {
+                ch.writeAndFlush(interestMessage(interested ? INTEREST_ADDED : INTEREST_REMOVED, id));
+            }
+        }
+    }
+
+    private synchronized void sendInterest(Channel ch) {
+        for (ChannelId id : localInterest) {
+            ch.write(interestMessage(INTEREST_ADDED, id));
+        }
+        ch.flush();
+    }
+
+    private ByteBuf interestMessage(byte type, ChannelId id) {
+        ByteBuf buf = alloc.buffer(id.toString().length() + 1);
+        buf.writeByte(type);
+        ByteBufUtil.writeUtf8(buf, id.toString());
+        return buf;
+    }
+
+    /**
+     * Relay a published message to any peers with matching subscribers.
+     *
+     * @param payload The marshalled message, which is not modified
+     * @param to The ids published to
+     */
+    void forward(ByteBuf payload, Set<ChannelId> to) {
+        ByteBuf message = null;
+        try {
+            for (Peer peer : peers) {
+                if (peer.isInterestedIn(to)) {
+                    if (message == null) {
+                        message = publishMessage(payload, to);
+                    }
+                    peer.send(message.retainedDuplicate());
+                }
+            }
+        } finally {
+            if (message != null) {
+                message.release();
+            }
+        }
+    }
+
+    /**
+     * Relay a broadcast message to all peers with any subscribers.
+     *
+     * @param payload The marshalled message, which is not modified
+     */
+    void forwardBroadcast(ByteBuf payload) {
+        ByteBuf message = null;
+        try {
+            for (Peer peer : peers) {
+                if (peer.hasInterest()) {
+                    if (message == null) {
+                        message = alloc.buffer(payload.readableBytes() + 1).writeByte(BROADCAST)
+                                .writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+                    }
+                    peer.send(message.retainedDuplicate());
+                }
+            }
+        } finally {
+            if (message != null) {
+                message.release();
+            }
+        }
+    }
+
+    private ByteBuf publishMessage(ByteBuf payload, Set<ChannelId> to) {
+        ByteBuf buf = alloc.buffer(payload.readableBytes() + 3 + to.size() * 24);
+        buf.writeByte(PUBLISH);
+        buf.writeShort(to.size());
+        for (ChannelId id : to) {
+            byte[] name = id.toString().getBytes(UTF_8);
+            buf.writeShort(name.length);
+            buf.writeBytes(name);
+        }
+        buf.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+        return buf;
+    }
+
+    private static ChannelId readId(ByteBuf buf, int length) {
+        return new ChannelId(buf.readCharSequence(length, UTF_8).toString());
+    }
+
+    private void shutdown() {
+        shutdown = true;
+        Channel server = serverChannel;
+        if (server != null) {
+            server.close();
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public String toString() {
+        Channel server = serverChannel;
+        return "BusBridge{" + (server == null ? "" : server.localAddress() + " ") + "peers=" + peers + "}";
+    }
+
+    private final class Initializer extends ChannelInitializer<SocketChannel> {
+
+        private final Peer peer;
+
+        Initializer(Peer peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        protected void initChannel(SocketChannel ch) throws Exception {
+            ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(maxFrameBytes, 0, 4, 0, 4),
+                    new LengthFieldPrepender(4),
+                    peer == null ? new Receiver() : new InterestReceiver(peer));
+        }
+    }
+
+    /**
+     * Handles a connection accepted from a peer, which sends us messages
+     * and is sent our interest.
+     */
+    private final class Receiver extends SimpleChannelInboundHandler<ByteBuf> {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            inbound.add(ctx.channel());
+            sendInterest(ctx.channel());
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            inbound.remove(ctx.channel());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+            received.increment();
+            byte type = msg.readByte();
+            switch (type) {
+                case PUBLISH:
+                    int count = msg.readUnsignedShort();
+                    Set<ChannelId> to = new HashSet<>(count);
+                    for (int i = 0; i < count; i++) {
+                        to.add(readId(msg, msg.readUnsignedShort()));
+                    }
+                    bus.deliver(msg.retainedSlice(), ctx.channel(), to);
+                    break;
+                case BROADCAST:
+                    bus.deliverToAll(msg.retainedSlice(), ctx.channel());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown message type " + type
+                            + " from " + ctx.channel().remoteAddress());
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            errors.onError(cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Handles our connection to a peer, which sends us the ids it has
+     * subscribers for.
+     */
+    private final class InterestReceiver extends SimpleChannelInboundHandler<ByteBuf> {
+
+        private final Peer peer;
+
+        InterestReceiver(Peer peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+            byte type = msg.readByte();
+            ChannelId id = readId(msg, msg.readableBytes());
+            switch (type) {
+                case INTEREST_ADDED:
+                    peer.interested(id);
+                    break;
+                case INTEREST_REMOVED:
+                    peer.uninterested(id);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown message type " + type
+                            + " from " + ctx.channel().remoteAddress());
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            errors.onError(cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * An outbound connection to another node, and what it is interested in.
+     */
+    private final class Peer {
+
+        private final String host;
+        private final int port;
+        private final Set<ChannelId> exact = ConcurrentHashMap.newKeySet();
+        private final SubscriptionTrie patterns = new SubscriptionTrie();
+        private volatile Channel channel;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void connect() {
+            if (shutdown) {
+                return;
+            }
+            new Bootstrap().group(group)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .option(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                    .handler(new Initializer(this))
+                    .connect(host, port).addListener((ChannelFuture f) -> {
+                        if (f.isSuccess()) {
+                            channel = f.channel();
+                            f.channel().closeFuture().addListener((ChannelFuture cf) -> disconnected());
+                        } else {
+                            reconnectLater();
+                        }
+                    });
+        }
+
+        private void disconnected() {
+            channel = null;
+            // The peer will resend its interest when we reconnect
+            exact.clear();
+            patterns.clear();
+            reconnectLater();
+        }
+
+        private void reconnectLater() {
+            if (!shutdown) {
+                group.schedule(this::connect, reconnectMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void interested(ChannelId id) {
+            if (id.isPattern()) {
+                patterns.add(id);
+            } else {
+                exact.add(id);
+            }
+        }
+
+        void uninterested(ChannelId id) {
+            if (id.isPattern()) {
+                patterns.remove(id);
+            } else {
+                exact.remove(id);
+            }
+        }
+
+        boolean hasInterest() {
+            return channel != null && (!exact.isEmpty() || !patterns.isEmpty());
+        }
+
+        boolean isInterestedIn(ChannelId id) {
+            return exact.contains(id) || (!patterns.isEmpty() && !patterns.match(id).isEmpty());
+        }
+
+        boolean isInterestedIn(Set<ChannelId> ids) {
+            if (channel == null) {
+                return false;
+            }
+            for (ChannelId id : ids) {
+                if (isInterestedIn(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void send(ByteBuf message) {
+            Channel ch = channel;
+            if (ch == null) {
+                message.release();
+                return;
+            }
+            if (!ch.isWritable()) {
+                // A stalled peer must not make us buffer without limit; it
+                // misses these, as a subscriber on a dropped connection would
+                dropped.increment();
+                message.release();
+                return;
+            }
+            forwarded.increment();
+            ch.writeAndFlush(message);
+        }
+
+        void close() {
+            Channel ch = channel;
+            if (ch != null) {
+                ch.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
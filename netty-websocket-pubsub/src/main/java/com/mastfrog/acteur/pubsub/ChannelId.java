@@ -23,21 +23,58 @@
  */
 package com.mastfrog.acteur.pubsub;
 
+import java.util.regex.Pattern;
+
 /**
  * An ad-hoc name for a pub-sub channel, which multiple netty channels
  * may be subscribed to.  The channels subscribed must have a handler that
  * knows what to do with a WebSocketFrame.
+ * <p>
+ * Names are hierarchical, with dots separating segments, e.g.
+ * <code>orders.eu.created</code>.  A channel id used to <i>subscribe</i> may
+ * contain wildcard segments: <code>*</code> matches exactly one segment, and
+ * <code>#</code> matches zero or more, so <code>orders.*.created</code> and
+ * <code>orders.#</code> both match a publish to
+ * <code>orders.eu.created</code>.  Ids published to are always treated
+ * literally.
  *
  * @author Tim Boudreau
  */
 public final class ChannelId {
 
+    static final String ONE_SEGMENT = "*";
+    static final String ANY_SEGMENTS = "#";
+    private static final Pattern DOT = Pattern.compile("\\.");
     private final String name;
+    private String[] segments;
 
     public ChannelId(String name) {
         this.name = name;
     }
 
+    /**
+     * Determine if this id contains wildcard segments.
+     *
+     * @return true if it is a pattern
+     */
+    public boolean isPattern() {
+        for (String seg : segments()) {
+            if (ONE_SEGMENT.equals(seg) || ANY_SEGMENTS.equals(seg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    String[] segments() {
+        // Benign race - the result is always the same
+        String[] result = segments;
+        if (result == null) {
+            segments = result = DOT.split(name, -1);
+        }
+        return result;
+    }
+
     public boolean equals(Object o) {
         return o instanceof ChannelId && ((ChannelId) o).name.equals(name);
     }
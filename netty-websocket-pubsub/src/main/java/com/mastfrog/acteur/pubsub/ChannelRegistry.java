@@ -25,19 +25,14 @@ package com.mastfrog.acteur.pubsub;
 
 import com.mastfrog.giulius.ShutdownHookRegistry;
 import com.mastfrog.util.Exceptions;
-import com.mastfrog.util.collections.CollectionUtils;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -46,27 +41,34 @@ import javax.inject.Singleton;
  * Bi-directionally maps sets of channels to sets of identifiers (such as a
  * subscriber or channel id). The one requirement is that the identifier objects
  * be immutable and implement equals/hashCode() correctly. Strings will do.
+ * <p>
+ * The set stored for each identifier or channel is an immutable snapshot,
+ * replaced (copy-on-write) by an atomic per-key update whenever it changes, so
+ * lookups neither lock nor copy, and mutations of different keys proceed in
+ * parallel.
  *
  * @author Tim Boudreau
  */
 @Singleton
 final class ChannelRegistry<Identifier> {
 
-    private final Map<Identifier, Set<Channel>> channelsForId
-            = CollectionUtils.concurrentSupplierMap(() -> ConcurrentHashMap.newKeySet(50));
+    private final ConcurrentHashMap<Identifier, Set<Channel>> channelsForId
+            = new ConcurrentHashMap<>(50);
 
-    private final Map<Channel, Set<Identifier>> idsForChannel
-            = CollectionUtils.concurrentSupplierMap(() -> ConcurrentHashMap.newKeySet(50));
+    private final ConcurrentHashMap<Channel, Set<Identifier>> idsForChannel
+            = new ConcurrentHashMap<>(50);
 
     private final ChannelFutureListener remover = new ClosureRemover();
-    private final ExecutorService mutationThread;
+    private final SubscriptionListener<? super Identifier> listener;
 
     @Inject
     ChannelRegistry(ShutdownHookRegistry reg) {
-        // Though we are using concurrent data structures, they are not atomic
-        // when used in combination as we are here.  So confine mutations to
-        // a single thread to avoid out-of-order surprises.
-        mutationThread = Executors.newFixedThreadPool(1);
+        this(reg, (id) -> {
+        });
+    }
+
+    ChannelRegistry(ShutdownHookRegistry reg, SubscriptionListener<? super Identifier> listener) {
+        this.listener = listener;
         reg.add(() -> {
             idsForChannel.keySet().forEach((channel) -> {
                 try {
@@ -79,103 +81,138 @@ final class ChannelRegistry<Identifier> {
             idsForChannel.clear();
             return null;
         });
-        reg.add(mutationThread);
     }
 
     public Future<Boolean> register(Identifier id, Channel channel) {
-        Set<Identifier> ids = idsForChannel.get(channel);
-        if (ids.contains(id)) {
-            CompletableFuture<Boolean> result = new CompletableFuture<>();
-            result.complete(true);
-            return result;
-        }
-        return mutationThread.submit(() -> {
-            Set<Channel> channels = channelsForId.get(id);
-            boolean result = channels.add(channel);
-            if (result) {
-                idsForChannel.get(channel).add(id);
-                channelsForId.get(id).add(channel);
-                channel.closeFuture().addListener(remover);
-            }
+        boolean[] newChannel = new boolean[1];
+        idsForChannel.compute(channel, (ch, old) -> {
+            newChannel[0] = old == null;
+            return with(old, id);
+        });
+        boolean[] added = new boolean[1];
+        channelsForId.compute(id, (i, old) -> {
+            Set<Channel> result = with(old, channel);
+            added[0] = result != old;
             return result;
         });
+        if (added[0]) {
+            listener.onSubscriptionsChanged(id);
+        }
+        if (newChannel[0]) {
+            channel.closeFuture().addListener(remover);
+        }
+        if (!channel.isOpen()) {
+            // The channel may have closed, and the remover run, between the
+            // two updates above, in which case it could not have seen the
+            // pair we added to channelsForId - so remove it explicitly
+            unsubscribe(id, channel);
+            unregister(channel);
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.completedFuture(added[0]);
     }
 
+    /**
+     * Get the channels subscribed to an identifier.
+     *
+     * @param id An identifier
+     * @return An immutable snapshot of the channels
+     */
     public Set<Channel> channels(Identifier id) {
-        return new HashSet<>(channelsForId.get(id));
+        Set<Channel> result = channelsForId.get(id);
+        return result == null ? Collections.emptySet() : result;
     }
 
+    /**
+     * Get the identifiers a channel is subscribed to.
+     *
+     * @param channel A channel
+     * @return An immutable snapshot of the identifiers
+     */
     public Set<Identifier> idsForChannel(Channel channel) {
-        return new HashSet<>(idsForChannel.get(channel));
+        Set<Identifier> result = idsForChannel.get(channel);
+        return result == null ? Collections.emptySet() : result;
     }
 
+    /**
+     * Get all channels with at least one subscription.
+     *
+     * @return An unmodifiable, weakly consistent live view
+     */
     public Set<Channel> allChannels() {
-        return Collections.unmodifiableSet(new HashSet<>(idsForChannel.keySet()));
+        return Collections.unmodifiableSet(idsForChannel.keySet());
     }
 
+    /**
+     * Get all identifiers with at least one subscriber.
+     *
+     * @return An unmodifiable, weakly consistent live view
+     */
     public Set<Identifier> allIds() {
-        return Collections.unmodifiableSet(new HashSet<>(channelsForId.keySet()));
+        return Collections.unmodifiableSet(channelsForId.keySet());
     }
 
     public Future<Boolean> unsubscribe(Identifier from, Channel channel) {
-        return mutationThread.submit(() -> {
-            Set<Channel> channelsFor = channelsForId.get(from);
-            boolean result = channelsFor.remove(channel);
-            if (channelsFor.isEmpty()) {
-                channelsForId.remove(from);
-            }
-            Set<Identifier> idsFor = idsForChannel.get(channel);
-            result |= idsFor.remove(from);
-            if (idsFor.isEmpty()) {
-                idsForChannel.remove(channel);
-            }
+        boolean[] removed = new boolean[1];
+        channelsForId.computeIfPresent(from, (i, old) -> {
+            Set<Channel> result = without(old, channel);
+            removed[0] = result != old;
             return result;
         });
+        if (idsForChannel.computeIfPresent(channel, (ch, old) -> without(old, from)) == null) {
+            channel.closeFuture().removeListener(remover);
+        }
+        if (removed[0]) {
+            listener.onSubscriptionsChanged(from);
+        }
+        return CompletableFuture.completedFuture(removed[0]);
     }
 
     public void unregister(Channel channel) {
-        if (mutationThread.isShutdown()) {
-            return;
-        }
-        mutationThread.submit(() -> {
-            Map<Identifier, Set<Channel>> alsoRemove = new HashMap<>();
-            Set<Identifier> ids = idsForChannel.get(channel);
-            if (ids != null) {
-                ids.forEach((id) -> {
-                    Set<Channel> channels = channelsForId.get(id);
-                    channels.remove(channel);
-                    if (channels.isEmpty()) {
-                        alsoRemove.put(id, channels);
-                    }
-                });
+        Set<Identifier> ids = idsForChannel.remove(channel);
+        if (ids != null) {
+            for (Identifier id : ids) {
+                channelsForId.computeIfPresent(id, (i, old) -> without(old, channel));
+                listener.onSubscriptionsChanged(id);
             }
-            idsForChannel.remove(channel);
-            alsoRemove.entrySet().stream().filter((e) -> (e.getValue().isEmpty())).forEachOrdered((e) -> {
-                channelsForId.remove(e.getKey());
-            });
-            channel.closeFuture().removeListener(remover);
-        });
+        }
+        channel.closeFuture().removeListener(remover);
     }
 
-    void gc() {
-        // Because we are using SupplierMap, we can wind up populating maps
-        // with unused lists
-        mutationThread.submit(() -> {
-            Set<Identifier> idsToRemove = new HashSet<>();
-            Set<Channel> channelsToRemove = new HashSet<>();
-            channelsForId.entrySet().stream().filter((e) -> (e.getValue().isEmpty())).forEachOrdered((e) -> {
-                idsToRemove.add(e.getKey());
-            });
-            idsForChannel.entrySet().stream().filter((e) -> (e.getValue().isEmpty())).forEachOrdered((e) -> {
-                channelsToRemove.add(e.getKey());
-            });
-            for (Identifier i : idsToRemove) {
-                channelsForId.remove(i);
-            }
-            for (Channel c : channelsToRemove) {
-                idsForChannel.remove(c);
-            }
-        });
+    private static <T> Set<T> with(Set<T> snapshot, T item) {
+        if (snapshot != null && snapshot.contains(item)) {
+            return snapshot;
+        }
+        if (snapshot == null) {
+            return Collections.singleton(item);
+        }
+        Set<T> result = new HashSet<>(snapshot.size() + 1, 1F);
+        result.addAll(snapshot);
+        result.add(item);
+        return Collections.unmodifiableSet(result);
+    }
+
+    private static <T> Set<T> without(Set<T> snapshot, T item) {
+        if (!snapshot.contains(item)) {
+            return snapshot;
+        }
+        if (snapshot.size() == 1) {
+            // Returning null from compute removes the mapping
+            return null;
+        }
+        Set<T> result = new HashSet<>(snapshot);
+        result.remove(item);
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Notified, after the fact and possibly concurrently, whenever the set of
+     * channels subscribed to an identifier changes; implementations should
+     * look up the current state rather than assume it.
+     */
+    interface SubscriptionListener<Identifier> {
+
+        void onSubscriptionsChanged(Identifier id);
     }
 
     private final class ClosureRemover implements ChannelFutureListener {
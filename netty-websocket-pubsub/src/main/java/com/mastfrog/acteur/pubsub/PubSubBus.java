@@ -79,11 +79,13 @@ public interface PubSubBus {
 
     /**
      * Subscribe a channel to messages on the passed channel id.  Subscribing
-     * may not be completed synchronously, so a future is returned.
+     * may not be completed synchronously, so a future is returned.  The id
+     * may contain <code>*</code> or <code>#</code> wildcard segments, to
+     * subscribe to every matching id - see {@link ChannelId}.
      *
      * @param channel The channel (must have a handler that can deal with a
      * WebSocketFrame)
-     * @param to The channel id
+     * @param to The channel id or pattern
      * @return A promise
      */
     Future<Boolean> subscribe(Channel channel, ChannelId to);
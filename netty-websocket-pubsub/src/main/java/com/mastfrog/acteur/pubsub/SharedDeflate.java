@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.pubsub;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.util.AttributeKey;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a message at most once per compression level, for all of the
+ * recipients which negotiated permessage-deflate without server context
+ * takeover - for those, each message is compressed independently, so the
+ * same compressed frame can be sent to all of them. The websocket upgrade
+ * marks such channels with attributes, which are looked up by name.
+ *
+ * @author Tim Boudreau
+ */
+final class SharedDeflate {
+
+    static final AttributeKey<Integer> SHARED_DEFLATE_LEVEL
+            = AttributeKey.valueOf("websocket.deflate.shared.level");
+    static final AttributeKey<Integer> DEFLATE_MIN_BYTES
+            = AttributeKey.valueOf("websocket.deflate.min.bytes");
+    private static final int TRAILER_LENGTH = 4;
+
+    private final WebSocketFrame frame;
+    private final Map<Integer, WebSocketFrame> compressed = new ConcurrentHashMap<>(2);
+
+    SharedDeflate(WebSocketFrame frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * Get the frame to send a channel - either the original or a compressed
+     * copy.  The caller should send a retained duplicate of it.
+     *
+     * @param ch A channel
+     * @return A frame
+     */
+    WebSocketFrame frameFor(Channel ch) {
+        if (!ch.hasAttr(SHARED_DEFLATE_LEVEL)) {
+            return frame;
+        }
+        Integer level = ch.attr(SHARED_DEFLATE_LEVEL).get();
+        Integer min = ch.attr(DEFLATE_MIN_BYTES).get();
+        if (level == null || (min != null && frame.content().readableBytes() < min)) {
+            return frame;
+        }
+        return compressed.computeIfAbsent(level, this::deflate);
+    }
+
+    private WebSocketFrame deflate(int level) {
+        byte[] input = ByteBufUtil.getBytes(frame.content());
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(input);
+            byte[] out = new byte[input.length / 2 + 64];
+            int length = 0;
+            for (;;) {
+                length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+                if (length < out.length) {
+                    break;
+                }
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            // RFC 7692 7.2.1 - the empty block a sync flush ends with is
+            // removed, and restored by the receiver
+            return new BinaryWebSocketFrame(true, WebSocketExtension.RSV1,
+                    Unpooled.wrappedBuffer(out, 0, length - TRAILER_LENGTH));
+        } finally {
+            deflater.end();
+        }
+    }
+
+    void release() {
+        for (WebSocketFrame f : compressed.values()) {
+            f.release();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.pubsub;
+
+import static com.mastfrog.acteur.pubsub.ChannelId.ANY_SEGMENTS;
+import static com.mastfrog.acteur.pubsub.ChannelId.ONE_SEGMENT;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of wildcard channel ids, one trie node per segment, so the patterns
+ * matching a concrete id can be found in time proportional to the number of
+ * segments in it rather than the number of patterns.
+ *
+ * @author Tim Boudreau
+ */
+final class SubscriptionTrie {
+
+    private final Node root = new Node();
+
+    synchronized void add(ChannelId pattern) {
+        Node node = root;
+        for (String seg : pattern.segments()) {
+            node = node.child(seg, true);
+        }
+        node.patterns.add(pattern);
+    }
+
+    synchronized boolean remove(ChannelId pattern) {
+        return remove(root, pattern, 0);
+    }
+
+    private boolean remove(Node node, ChannelId pattern, int ix) {
+        String[] segs = pattern.segments();
+        if (ix == segs.length) {
+            return node.patterns.remove(pattern);
+        }
+        Node child = node.child(segs[ix], false);
+        if (child == null) {
+            return false;
+        }
+        boolean result = remove(child, pattern, ix + 1);
+        if (result && child.isEmpty()) {
+            node.prune(segs[ix]);
+        }
+        return result;
+    }
+
+    /**
+     * Find all patterns which match a concrete channel id.
+     *
+     * @param id An id
+     * @return The set of patterns
+     */
+    synchronized Set<ChannelId> match(ChannelId id) {
+        Set<ChannelId> result = new HashSet<>(4);
+        collect(root, id.segments(), 0, result);
+        return result;
+    }
+
+    private void collect(Node node, String[] segs, int ix, Set<ChannelId> into) {
+        if (node.anySegments != null) {
+            for (int i = ix; i <= segs.length; i++) {
+                collect(node.anySegments, segs, i, into);
+            }
+        }
+        if (ix == segs.length) {
+            into.addAll(node.patterns);
+            return;
+        }
+        Node exact = node.children.get(segs[ix]);
+        if (exact != null) {
+            collect(exact, segs, ix + 1, into);
+        }
+        if (node.oneSegment != null) {
+            collect(node.oneSegment, segs, ix + 1, into);
+        }
+    }
+
+    synchronized void clear() {
+        root.children.clear();
+        root.patterns.clear();
+        root.oneSegment = null;
+        root.anySegments = null;
+    }
+
+    synchronized boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new HashMap<>(4);
+        private final Set<ChannelId> patterns = new HashSet<>(2);
+        private Node oneSegment;
+        private Node anySegments;
+
+        Node child(String seg, boolean create) {
+            switch (seg) {
+                case ONE_SEGMENT:
+                    if (oneSegment == null && create) {
+                        oneSegment = new Node();
+                    }
+                    return oneSegment;
+                case ANY_SEGMENTS:
+                    if (anySegments == null && create) {
+                        anySegments = new Node();
+                    }
+                    return anySegments;
+                default:
+                    Node result = children.get(seg);
+                    if (result == null && create) {
+                        result = new Node();
+                        children.put(seg, result);
+                    }
+                    return result;
+            }
+        }
+
+        void prune(String seg) {
+            switch (seg) {
+                case ONE_SEGMENT:
+                    oneSegment = null;
+                    break;
+                case ANY_SEGMENTS:
+                    anySegments = null;
+                    break;
+                default:
+                    children.remove(seg);
+            }
+        }
+
+        boolean isEmpty() {
+            return patterns.isEmpty() && children.isEmpty()
+                    && oneSegment == null && anySegments == null;
+        }
+    }
+}
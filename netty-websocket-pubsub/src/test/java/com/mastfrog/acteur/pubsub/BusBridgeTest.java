@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.pubsub;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Guice;
+import com.mastfrog.acteur.util.ErrorHandlers;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.marshallers.netty.NettyContentMarshallers;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Runs two bridged buses on localhost.
+ *
+ * @author Tim Boudreau
+ */
+public class BusBridgeTest {
+
+    @Test(timeout = 30000)
+    public void testBridge() throws Throwable {
+        int portA = freePort();
+        int portB = freePort();
+        Recorder onA = new Recorder();
+        Recorder onB = new Recorder();
+        EmbeddedChannel subscriberA = new EmbeddedChannel(onA);
+        EmbeddedChannel subscriberB = new EmbeddedChannel(onB);
+        EmbeddedChannel origin = new EmbeddedChannel();
+        ChannelId euCreated = new ChannelId("orders.eu.created");
+        ChannelId invoices = new ChannelId("invoices");
+        try (X x = new X()) {
+            Bus busA = bus(x);
+            Bus busB = bus(x);
+            // Subscribe before the bridge exists, to check it announces
+            // existing subscriptions
+            busB.subscribe(subscriberB, new ChannelId("orders.#")).get();
+            BusBridge bridgeA = new BusBridge(busA, new SettingsBuilder()
+                    .add(BusBridge.SETTINGS_KEY_BRIDGE_PORT, portA)
+                    .add(BusBridge.SETTINGS_KEY_BRIDGE_PEERS, loopback() + ":" + portB)
+                    .add(BusBridge.SETTINGS_KEY_BRIDGE_RECONNECT_MILLIS, 50)
+                    .build(), ByteBufAllocator.DEFAULT, x, errors());
+            BusBridge bridgeB = new BusBridge(busB, new SettingsBuilder()
+                    .add(BusBridge.SETTINGS_KEY_BRIDGE_PORT, portB)
+                    .add(BusBridge.SETTINGS_KEY_BRIDGE_PEERS, loopback() + ":" + portA)
+                    .add(BusBridge.SETTINGS_KEY_BRIDGE_RECONNECT_MILLIS, 50)
+                    .build(), ByteBufAllocator.DEFAULT, x, errors());
+
+            waitFor(() -> bridgeA.peersInterestedIn(euCreated) == 1);
+            assertEquals(0, bridgeA.peersInterestedIn(invoices));
+
+            busA.publish("created", origin, euCreated);
+            waitFor(() -> onB.messages.contains("created"));
+            assertEquals(1, bridgeA.forwarded());
+            assertEquals(1, bridgeB.received());
+
+            // Nobody on B is subscribed, so this should not be sent there
+            busA.publish("unpaid", origin, invoices);
+            assertEquals(1, bridgeA.forwarded());
+
+            busA.subscribe(subscriberA, invoices).get();
+            waitFor(() -> bridgeB.peersInterestedIn(invoices) == 1);
+            busB.publish("paid", origin, invoices);
+            waitFor(() -> onA.messages.contains("paid"));
+            assertEquals(1, bridgeB.forwarded());
+
+            busB.broadcast("everyone", origin);
+            waitFor(() -> onA.messages.contains("everyone"));
+            waitFor(() -> onB.messages.contains("everyone"));
+
+            busA.unsubscribe(subscriberA, invoices).get();
+            waitFor(() -> bridgeB.peersInterestedIn(invoices) == 0);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testMessagesForStalledPeerAreDropped() throws Throwable {
+        ChannelId id = new ChannelId("stalled");
+        char[] chars = new char[64 * 1024];
+        Arrays.fill(chars, 'x');
+        String big = new String(chars);
+        EmbeddedChannel origin = new EmbeddedChannel();
+        try (X x = new X(); ServerSocket stalled = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Bus bus = bus(x);
+            BusBridge bridge = new BusBridge(bus, new SettingsBuilder()
+                    .add(BusBridge.SETTINGS_KEY_BRIDGE_PEERS, loopback() + ":" + stalled.getLocalPort())
+                    .add(BusBridge.SETTINGS_KEY_BRIDGE_MAX_PENDING_BYTES, 64 * 1024)
+                    .build(), ByteBufAllocator.DEFAULT, x, errors());
+            try (Socket peer = stalled.accept()) {
+                // Announce interest, then never read anything
+                byte[] name = id.toString().getBytes(UTF_8);
+                DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+                out.writeInt(name.length + 1);
+                out.writeByte(BusBridge.INTEREST_ADDED);
+                out.write(name);
+                out.flush();
+                waitFor(() -> bridge.peersInterestedIn(id) == 1);
+                while (bridge.dropped() == 0) {
+                    bus.publish(big, origin, id);
+                }
+                assertTrue(bridge.forwarded() > 0);
+            }
+        }
+    }
+
+    private static String loopback() {
+        return InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
+    private static ErrorHandlers errors() {
+        return Guice.createInjector().getInstance(ErrorHandlers.class);
+    }
+
+    private static Bus bus(ShutdownHookRegistry reg) {
+        return new Bus(reg, NettyContentMarshallers.getDefault(new ObjectMapper()), ByteBufAllocator.DEFAULT,
+                Executors.newCachedThreadPool(), new BusListener.Registry());
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket sock = new ServerSocket(0)) {
+            return sock.getLocalPort();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier test) throws InterruptedException {
+        while (!test.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+    static class Recorder extends ChannelOutboundHandlerAdapter {
+
+        final List<String> messages = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof WebSocketFrame) {
+                WebSocketFrame f = (WebSocketFrame) msg;
+                messages.add(f.content().toString(CharsetUtil.UTF_8));
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    private static final class X extends ShutdownHookRegistry implements AutoCloseable {
+
+        @Override
+        public void close() {
+            super.runShutdownHooks();
+        }
+    }
+}
@@ -149,6 +149,55 @@ public class BusTest {
         }
     }
 
+    @Test(timeout = 20000)
+    public void testWildcardSubscriptions() throws Throwable {
+        CH origin = new CH("origin");
+        CH all = new CH("all");
+        CH created = new CH("created");
+        CH exact = new CH("exact");
+        EmbeddedChannel c0 = new EmbeddedChannel(new Xid(origin.name));
+        c0.pipeline().addLast(origin, origin.out);
+        EmbeddedChannel c1 = new EmbeddedChannel(new Xid(all.name));
+        c1.pipeline().addLast(all, all.out);
+        EmbeddedChannel c2 = new EmbeddedChannel(new Xid(created.name));
+        c2.pipeline().addLast(created, created.out);
+        EmbeddedChannel c3 = new EmbeddedChannel(new Xid(exact.name));
+        c3.pipeline().addLast(exact, exact.out);
+        ChannelId euCreated = new ChannelId("orders.eu.created");
+        ChannelId usShipped = new ChannelId("orders.us.shipped");
+        try (X x = new X()) {
+            Bus bus = new Bus(x, NettyContentMarshallers.getDefault(new ObjectMapper()), ByteBufAllocator.DEFAULT, Executors.newCachedThreadPool(), new BusListener.Registry());
+            assertFalse(bus.hasSubscribers(euCreated));
+            bus.subscribe(c1, new ChannelId("orders.#")).get();
+            bus.subscribe(c2, new ChannelId("orders.*.created")).get();
+            bus.subscribe(c3, euCreated).get();
+            assertTrue(bus.hasSubscribers(euCreated));
+            assertEquals(3, bus.subscribers(euCreated).size());
+            assertEquals(1, bus.subscribers(usShipped).size());
+
+            await(bus.publish("created", c0, euCreated));
+            all.assertLastMessageIs("created");
+            created.assertLastMessageIs("created");
+            exact.assertLastMessageIs("created");
+
+            await(bus.publish("shipped", c0, usShipped));
+            all.assertLastMessageIs("shipped");
+            created.assertLastMessageIs("created");
+            exact.assertLastMessageIs("created");
+
+            bus.unsubscribe(c1, new ChannelId("orders.#")).get();
+            assertEquals(2, bus.subscribers(euCreated).size());
+            assertFalse(bus.hasSubscribers(usShipped));
+
+            bus.unsubscribe(c2, new ChannelId("orders.*.created")).get();
+            assertEquals(1, bus.subscribers(euCreated).size());
+            origin.assertNoMessages();
+        }
+        if (thrown != null) {
+            throw thrown;
+        }
+    }
+
     static class CH extends SimpleChannelInboundHandler<Object> {
 
         List<String> msgs = new ArrayList<>();
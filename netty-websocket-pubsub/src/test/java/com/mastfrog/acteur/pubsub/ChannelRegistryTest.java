@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.pubsub;
+
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ChannelRegistryTest {
+
+    private static final List<String> IDS = Arrays.asList("a", "b", "c", "d");
+
+    @Test
+    public void testRegisterAndUnsubscribe() throws Exception {
+        Set<String> changed = ConcurrentHashMap.newKeySet();
+        try (X x = new X()) {
+            ChannelRegistry<String> reg = new ChannelRegistry<>(x, changed::add);
+            EmbeddedChannel c1 = new EmbeddedChannel();
+            EmbeddedChannel c2 = new EmbeddedChannel();
+            assertTrue(reg.register("a", c1).get());
+            assertFalse(reg.register("a", c1).get());
+            assertTrue(reg.register("b", c1).get());
+            assertTrue(reg.register("a", c2).get());
+            assertEquals(new HashSet<>(Arrays.asList("a", "b")), changed);
+            assertEquals(new HashSet<>(Arrays.asList(c1, c2)), reg.channels("a"));
+            assertEquals(new HashSet<>(Arrays.asList("a", "b")), reg.idsForChannel(c1));
+
+            Set<Channel> snapshot = reg.channels("a");
+            assertTrue(reg.unsubscribe("a", c1).get());
+            assertFalse(reg.unsubscribe("a", c1).get());
+            assertEquals(2, snapshot.size());
+            assertEquals(Collections.singleton(c2), reg.channels("a"));
+            assertEquals(Collections.singleton("b"), reg.idsForChannel(c1));
+
+            c1.close();
+            assertTrue(reg.channels("b").isEmpty());
+            assertTrue(reg.idsForChannel(c1).isEmpty());
+            assertEquals(Collections.singleton("a"), reg.allIds());
+            assertEquals(Collections.singleton(c2), reg.allChannels());
+        }
+    }
+
+    @Test
+    public void testRegisterClosedChannel() throws Exception {
+        try (X x = new X()) {
+            ChannelRegistry<String> reg = new ChannelRegistry<>(x);
+            EmbeddedChannel c1 = new EmbeddedChannel();
+            assertTrue(reg.register("a", c1).get());
+            c1.close();
+            // Closed, but already known to the registry
+            assertFalse(reg.register("b", c1).get());
+            EmbeddedChannel c2 = new EmbeddedChannel();
+            c2.close();
+            assertFalse(reg.register("a", c2).get());
+            assertTrue(reg.allChannels().isEmpty());
+            assertTrue(reg.allIds().isEmpty());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentSubscribeUnsubscribeAndClose() throws Exception {
+        ExecutorService svc = Executors.newFixedThreadPool(8);
+        try (X x = new X()) {
+            ChannelRegistry<String> reg = new ChannelRegistry<>(x);
+            List<EmbeddedChannel> survivors = Collections.synchronizedList(new ArrayList<>());
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                EmbeddedChannel ch = new EmbeddedChannel();
+                boolean survive = i % 10 == 0;
+                if (survive) {
+                    survivors.add(ch);
+                }
+                CountDownLatch start = new CountDownLatch(1);
+                // One thread subscribes and unsubscribes while another
+                // closes the channel partway through
+                futures.add(svc.submit(() -> {
+                    start.await();
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int j = 0; j < 20; j++) {
+                        String id = IDS.get(rnd.nextInt(IDS.size()));
+                        if (rnd.nextBoolean()) {
+                            reg.register(id, ch).get();
+                        } else {
+                            reg.unsubscribe(id, ch).get();
+                        }
+                    }
+                    if (survive) {
+                        for (String id : IDS) {
+                            reg.register(id, ch).get();
+                        }
+                    }
+                    return null;
+                }));
+                if (!survive) {
+                    futures.add(svc.submit(() -> {
+                        start.countDown();
+                        Thread.yield();
+                        ch.close();
+                        return null;
+                    }));
+                } else {
+                    start.countDown();
+                }
+            }
+            for (Future<?> f : futures) {
+                f.get(30, TimeUnit.SECONDS);
+            }
+            Set<Channel> expected = new HashSet<>(survivors);
+            assertEquals(expected, new HashSet<>(reg.allChannels()));
+            assertEquals(new HashSet<>(IDS), new HashSet<>(reg.allIds()));
+            for (String id : IDS) {
+                assertEquals(id, expected, reg.channels(id));
+            }
+            for (EmbeddedChannel ch : survivors) {
+                assertEquals(new HashSet<>(IDS), reg.idsForChannel(ch));
+                ch.close();
+            }
+            assertTrue(reg.allChannels().isEmpty());
+            assertTrue(reg.allIds().isEmpty());
+        } finally {
+            svc.shutdownNow();
+        }
+    }
+
+    private static final class X extends ShutdownHookRegistry implements AutoCloseable {
+
+        @Override
+        public void close() {
+            super.runShutdownHooks();
+        }
+    }
+}
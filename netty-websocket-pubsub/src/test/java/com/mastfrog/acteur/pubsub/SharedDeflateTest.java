@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.pubsub;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SharedDeflateTest {
+
+    @Test
+    public void testCompressedOncePerLevel() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("{\"channel\":\"orders\",\"seq\":").append(i).append('}');
+        }
+        byte[] payload = sb.toString().getBytes(UTF_8);
+        BinaryWebSocketFrame original = new BinaryWebSocketFrame(Unpooled.wrappedBuffer(payload));
+        SharedDeflate frames = new SharedDeflate(original);
+
+        EmbeddedChannel plain = new EmbeddedChannel();
+        EmbeddedChannel deflating1 = new EmbeddedChannel();
+        EmbeddedChannel deflating2 = new EmbeddedChannel();
+        EmbeddedChannel tooSmall = new EmbeddedChannel();
+        deflating1.attr(SharedDeflate.SHARED_DEFLATE_LEVEL).set(6);
+        deflating2.attr(SharedDeflate.SHARED_DEFLATE_LEVEL).set(6);
+        tooSmall.attr(SharedDeflate.SHARED_DEFLATE_LEVEL).set(6);
+        tooSmall.attr(SharedDeflate.DEFLATE_MIN_BYTES).set(payload.length + 1);
+
+        assertSame(original, frames.frameFor(plain));
+        assertSame(original, frames.frameFor(tooSmall));
+        WebSocketFrame compressed = frames.frameFor(deflating1);
+        assertSame(compressed, frames.frameFor(deflating2));
+        assertEquals(WebSocketExtension.RSV1, compressed.rsv());
+
+        byte[] deflated = ByteBufUtil.getBytes(compressed.content());
+        byte[] withTrailer = Arrays.copyOf(deflated, deflated.length + 4);
+        withTrailer[withTrailer.length - 2] = (byte) 0xFF;
+        withTrailer[withTrailer.length - 1] = (byte) 0xFF;
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(withTrailer);
+        byte[] inflated = new byte[payload.length];
+        assertEquals(payload.length, inflater.inflate(inflated));
+        inflater.end();
+        assertArrayEquals(payload, inflated);
+
+        frames.release();
+        assertEquals(0, compressed.refCnt());
+        original.release();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.pubsub;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SubscriptionTrieTest {
+
+    private static final ChannelId ORDERS_ANY = new ChannelId("orders.#");
+    private static final ChannelId ORDERS_ONE = new ChannelId("orders.*");
+    private static final ChannelId CREATED = new ChannelId("orders.*.created");
+    private static final ChannelId ALL = new ChannelId("#");
+    private static final ChannelId EU_TAIL = new ChannelId("orders.eu.#.shipped");
+
+    @Test
+    public void testPatterns() {
+        assertTrue(ORDERS_ANY.isPattern());
+        assertTrue(CREATED.isPattern());
+        assertFalse(new ChannelId("orders.eu.created").isPattern());
+        assertFalse(new ChannelId("orders*").isPattern());
+    }
+
+    @Test
+    public void testMatch() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        assertTrue(trie.isEmpty());
+        for (ChannelId id : new ChannelId[]{ORDERS_ANY, ORDERS_ONE, CREATED, ALL, EU_TAIL}) {
+            trie.add(id);
+        }
+        assertMatches(trie, "orders", ORDERS_ANY, ALL);
+        assertMatches(trie, "orders.eu", ORDERS_ANY, ORDERS_ONE, ALL);
+        assertMatches(trie, "orders.eu.created", ORDERS_ANY, CREATED, ALL);
+        assertMatches(trie, "orders.eu.shipped", ORDERS_ANY, ALL, EU_TAIL);
+        assertMatches(trie, "orders.eu.de.berlin.shipped", ORDERS_ANY, ALL, EU_TAIL);
+        assertMatches(trie, "orders.us.de.shipped", ORDERS_ANY, ALL);
+        assertMatches(trie, "invoices.eu.created", ALL);
+
+        assertTrue(trie.remove(ALL));
+        assertFalse(trie.remove(ALL));
+        assertMatches(trie, "invoices.eu.created");
+        assertTrue(trie.remove(ORDERS_ANY));
+        assertTrue(trie.remove(ORDERS_ONE));
+        assertTrue(trie.remove(CREATED));
+        assertMatches(trie, "orders.eu.x.shipped", EU_TAIL);
+        assertTrue(trie.remove(EU_TAIL));
+        assertTrue(trie.isEmpty());
+    }
+
+    private static void assertMatches(SubscriptionTrie trie, String id, ChannelId... expected) {
+        Set<ChannelId> exp = new HashSet<>(Arrays.asList(expected));
+        assertEquals(id, exp, trie.match(new ChannelId(id)));
+    }
+}